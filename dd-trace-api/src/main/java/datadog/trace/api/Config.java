@@ -60,6 +60,37 @@ public class Config {
   public static final String TRACE_ENABLED = "trace.enabled";
   public static final String INTEGRATIONS_ENABLED = "integrations.enabled";
   public static final String WRITER_TYPE = "writer.type";
+  public static final String WRITER_SERIALIZER_THREADS = "writer.serializer.threads";
+  public static final String WRITER_SUBMISSION_STRIPES = "writer.submission.stripes";
+  public static final String WRITER_QUEUE_BUDGET_BYTES = "writer.queue.budget.bytes";
+  public static final String TRACE_CLIENT_STATS_ENABLED = "trace.client.stats.enabled";
+  public static final String WRITER_INFLIGHT_REQUESTS = "writer.inflight.requests";
+  public static final String WRITER_COMPRESSION = "writer.compression";
+  public static final String WRITER_COMPRESSION_THRESHOLD_BYTES =
+      "writer.compression.threshold.bytes";
+  public static final String WRITER_SPILL_DIRECTORY = "writer.spill.directory";
+  public static final String WRITER_SPILL_MAX_BYTES = "writer.spill.max.bytes";
+  public static final String WRITER_SPILL_MAX_AGE_SECONDS = "writer.spill.max.age.seconds";
+  public static final String WRITER_RECORDING_DIRECTORY = "writer.recording.directory";
+  public static final String WRITER_RECORDING_SEGMENT_BYTES = "writer.recording.segment.bytes";
+  public static final String WRITER_RECORDING_SEGMENT_SECONDS = "writer.recording.segment.seconds";
+  public static final String WRITER_RECORDING_SYNC_MILLIS = "writer.recording.sync.millis";
+  public static final String WRITER_ADAPTIVE_FLUSH_ENABLED = "writer.adaptive.flush.enabled";
+  public static final String WRITER_ADAPTIVE_MIN_FLUSH_MILLIS = "writer.adaptive.min.flush.millis";
+  public static final String WRITER_ADAPTIVE_MAX_FLUSH_MILLIS = "writer.adaptive.max.flush.millis";
+  public static final String WRITER_ADAPTIVE_MIN_PAYLOAD_BYTES =
+      "writer.adaptive.min.payload.bytes";
+  public static final String WRITER_ADAPTIVE_MAX_PAYLOAD_BYTES =
+      "writer.adaptive.max.payload.bytes";
+  public static final String WRITER_ADAPTIVE_TARGET_LATENCY_MILLIS =
+      "writer.adaptive.target.latency.millis";
+  public static final String WRITER_CIRCUIT_BREAKER_ENABLED = "writer.circuit.breaker.enabled";
+  public static final String WRITER_CIRCUIT_BREAKER_FAILURE_THRESHOLD =
+      "writer.circuit.breaker.failure.threshold";
+  public static final String WRITER_CIRCUIT_BREAKER_INITIAL_BACKOFF_MILLIS =
+      "writer.circuit.breaker.initial.backoff.millis";
+  public static final String WRITER_CIRCUIT_BREAKER_MAX_BACKOFF_MILLIS =
+      "writer.circuit.breaker.max.backoff.millis";
   public static final String AGENT_HOST = "agent.host";
   public static final String TRACE_AGENT_PORT = "trace.agent.port";
   public static final String AGENT_PORT_LEGACY = "agent.port";
@@ -96,6 +127,11 @@ public class Config {
   public static final String SPLIT_BY_TAGS = "trace.split-by-tags";
   public static final String SCOPE_DEPTH_LIMIT = "trace.scope.depth.limit";
   public static final String PARTIAL_FLUSH_MIN_SPANS = "trace.partial.flush.min.spans";
+  public static final String PARTIAL_FLUSH_TIMEOUT = "trace.partial.flush.timeout";
+  public static final String STALE_TRACE_TIMEOUT = "trace.stale.timeout";
+  public static final String ERROR_STACK_LAZY = "trace.error.stack.lazy";
+  public static final String ERROR_STACK_MAX_DEPTH = "trace.error.stack.max.depth";
+  public static final String ERROR_STACK_MAX_LENGTH = "trace.error.stack.max.length";
   public static final String RUNTIME_CONTEXT_FIELD_INJECTION =
       "trace.runtime.context.field.injection";
   public static final String PROPAGATION_STYLE_EXTRACT = "propagation.style.extract";
@@ -149,7 +185,6 @@ public class Config {
       "profiling.exception.histogram.max-collection-size";
 
   public static final String KAFKA_CLIENT_PROPAGATION_ENABLED = "kafka.client.propagation.enabled";
-  public static final String SNAPWATCH_ENABLED = "snapwatch.enabled";
 
   public static final String RUNTIME_ID_TAG = "runtime-id";
   public static final String SERVICE = "service";
@@ -165,7 +200,31 @@ public class Config {
   public static final boolean DEFAULT_INTEGRATIONS_ENABLED = true;
   public static final String DD_AGENT_WRITER_TYPE = "DDAgentWriter";
   public static final String LOGGING_WRITER_TYPE = "LoggingWriter";
+  public static final String RECORDING_WRITER_TYPE = "RecordingWriter";
   private static final String DEFAULT_AGENT_WRITER_TYPE = DD_AGENT_WRITER_TYPE;
+  private static final int DEFAULT_WRITER_SERIALIZER_THREADS = 1;
+  private static final int DEFAULT_WRITER_SUBMISSION_STRIPES = 0; // 0 to disable
+  private static final int DEFAULT_WRITER_QUEUE_BUDGET_BYTES = 0; // 0 to disable
+  private static final boolean DEFAULT_TRACE_CLIENT_STATS_ENABLED = false;
+  private static final int DEFAULT_WRITER_INFLIGHT_REQUESTS = 1;
+  private static final String DEFAULT_WRITER_COMPRESSION = "off";
+  private static final int DEFAULT_WRITER_COMPRESSION_THRESHOLD_BYTES = 16 * 1024;
+  private static final int DEFAULT_WRITER_SPILL_MAX_BYTES = 64 * 1024 * 1024;
+  private static final int DEFAULT_WRITER_SPILL_MAX_AGE_SECONDS = 600;
+  private static final String DEFAULT_WRITER_RECORDING_DIRECTORY = "dd-trace-recordings";
+  private static final int DEFAULT_WRITER_RECORDING_SEGMENT_BYTES = 64 * 1024 * 1024;
+  private static final int DEFAULT_WRITER_RECORDING_SEGMENT_SECONDS = 300;
+  private static final int DEFAULT_WRITER_RECORDING_SYNC_MILLIS = 1000;
+  private static final boolean DEFAULT_WRITER_ADAPTIVE_FLUSH_ENABLED = false;
+  private static final int DEFAULT_WRITER_ADAPTIVE_MIN_FLUSH_MILLIS = 200;
+  private static final int DEFAULT_WRITER_ADAPTIVE_MAX_FLUSH_MILLIS = 5000;
+  private static final int DEFAULT_WRITER_ADAPTIVE_MIN_PAYLOAD_BYTES = 64 * 1024;
+  private static final int DEFAULT_WRITER_ADAPTIVE_MAX_PAYLOAD_BYTES = 4 * 1024 * 1024;
+  private static final int DEFAULT_WRITER_ADAPTIVE_TARGET_LATENCY_MILLIS = 250;
+  private static final boolean DEFAULT_WRITER_CIRCUIT_BREAKER_ENABLED = false;
+  private static final int DEFAULT_WRITER_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 3;
+  private static final int DEFAULT_WRITER_CIRCUIT_BREAKER_INITIAL_BACKOFF_MILLIS = 1000;
+  private static final int DEFAULT_WRITER_CIRCUIT_BREAKER_MAX_BACKOFF_MILLIS = 60000;
 
   public static final String DEFAULT_AGENT_HOST = "localhost";
   public static final int DEFAULT_TRACE_AGENT_PORT = 8126;
@@ -186,6 +245,11 @@ public class Config {
   private static final String DEFAULT_SPLIT_BY_TAGS = "";
   private static final int DEFAULT_SCOPE_DEPTH_LIMIT = 100;
   private static final int DEFAULT_PARTIAL_FLUSH_MIN_SPANS = 1000;
+  private static final int DEFAULT_PARTIAL_FLUSH_TIMEOUT = 0; // seconds, 0 to disable
+  private static final int DEFAULT_STALE_TRACE_TIMEOUT = 300; // seconds
+  private static final boolean DEFAULT_ERROR_STACK_LAZY = false;
+  private static final int DEFAULT_ERROR_STACK_MAX_DEPTH = 64; // frames per exception, 0 for all
+  private static final int DEFAULT_ERROR_STACK_MAX_LENGTH = 0; // characters, 0 for no limit
   private static final String DEFAULT_PROPAGATION_STYLE_EXTRACT = PropagationStyle.DATADOG.name();
   private static final String DEFAULT_PROPAGATION_STYLE_INJECT = PropagationStyle.DATADOG.name();
   private static final boolean DEFAULT_JMX_FETCH_ENABLED = true;
@@ -209,7 +273,6 @@ public class Config {
   public static final int DEFAULT_PROFILING_EXCEPTION_HISTOGRAM_MAX_COLLECTION_SIZE = 10000;
 
   public static final boolean DEFAULT_KAFKA_CLIENT_PROPAGATION_ENABLED = true;
-  public static final boolean DEFAULT_SNAPWATCH_ENABLED = false;
 
   private static final String SPLIT_BY_SPACE_OR_COMMA_REGEX = "[,\\s]+";
 
@@ -264,6 +327,30 @@ public class Config {
   @Getter private final boolean traceEnabled;
   @Getter private final boolean integrationsEnabled;
   @Getter private final String writerType;
+  @Getter private final int writerSerializerThreads;
+  @Getter private final int writerSubmissionStripes;
+  @Getter private final int writerQueueBudgetBytes;
+  @Getter private final boolean traceClientStatsEnabled;
+  @Getter private final int writerInflightRequests;
+  @Getter private final String writerCompression;
+  @Getter private final int writerCompressionThresholdBytes;
+  @Getter private final String writerSpillDirectory;
+  @Getter private final int writerSpillMaxBytes;
+  @Getter private final int writerSpillMaxAgeSeconds;
+  @Getter private final String writerRecordingDirectory;
+  @Getter private final int writerRecordingSegmentBytes;
+  @Getter private final int writerRecordingSegmentSeconds;
+  @Getter private final int writerRecordingSyncMillis;
+  @Getter private final boolean writerAdaptiveFlushEnabled;
+  @Getter private final int writerAdaptiveMinFlushMillis;
+  @Getter private final int writerAdaptiveMaxFlushMillis;
+  @Getter private final int writerAdaptiveMinPayloadBytes;
+  @Getter private final int writerAdaptiveMaxPayloadBytes;
+  @Getter private final int writerAdaptiveTargetLatencyMillis;
+  @Getter private final boolean writerCircuitBreakerEnabled;
+  @Getter private final int writerCircuitBreakerFailureThreshold;
+  @Getter private final int writerCircuitBreakerInitialBackoffMillis;
+  @Getter private final int writerCircuitBreakerMaxBackoffMillis;
   @Getter private final String agentHost;
   @Getter private final int agentPort;
   @Getter private final String agentUnixDomainSocket;
@@ -284,6 +371,11 @@ public class Config {
   @Getter private final Set<String> splitByTags;
   @Getter private final Integer scopeDepthLimit;
   @Getter private final Integer partialFlushMinSpans;
+  @Getter private final Integer partialFlushTimeout;
+  @Getter private final int staleTraceTimeout;
+  @Getter private final boolean errorStackLazy;
+  @Getter private final int errorStackMaxDepth;
+  @Getter private final int errorStackMaxLength;
   @Getter private final boolean runtimeContextFieldInjection;
   @Getter private final Set<PropagationStyle> propagationStylesToExtract;
   @Getter private final Set<PropagationStyle> propagationStylesToInject;
@@ -338,8 +430,6 @@ public class Config {
 
   @Getter private final boolean kafkaClientPropagationEnabled;
 
-  @Getter private final boolean snapwatchEnabled;
-
   // Values from an optionally provided properties file
   private static Properties propertiesFromConfigFile;
 
@@ -372,6 +462,75 @@ public class Config {
     integrationsEnabled =
         getBooleanSettingFromEnvironment(INTEGRATIONS_ENABLED, DEFAULT_INTEGRATIONS_ENABLED);
     writerType = getSettingFromEnvironment(WRITER_TYPE, DEFAULT_AGENT_WRITER_TYPE);
+    writerSerializerThreads =
+        getIntegerSettingFromEnvironment(
+            WRITER_SERIALIZER_THREADS, DEFAULT_WRITER_SERIALIZER_THREADS);
+    writerSubmissionStripes =
+        getIntegerSettingFromEnvironment(
+            WRITER_SUBMISSION_STRIPES, DEFAULT_WRITER_SUBMISSION_STRIPES);
+    writerQueueBudgetBytes =
+        getIntegerSettingFromEnvironment(
+            WRITER_QUEUE_BUDGET_BYTES, DEFAULT_WRITER_QUEUE_BUDGET_BYTES);
+    traceClientStatsEnabled =
+        getBooleanSettingFromEnvironment(
+            TRACE_CLIENT_STATS_ENABLED, DEFAULT_TRACE_CLIENT_STATS_ENABLED);
+    writerInflightRequests =
+        getIntegerSettingFromEnvironment(
+            WRITER_INFLIGHT_REQUESTS, DEFAULT_WRITER_INFLIGHT_REQUESTS);
+    writerCompression = getSettingFromEnvironment(WRITER_COMPRESSION, DEFAULT_WRITER_COMPRESSION);
+    writerCompressionThresholdBytes =
+        getIntegerSettingFromEnvironment(
+            WRITER_COMPRESSION_THRESHOLD_BYTES, DEFAULT_WRITER_COMPRESSION_THRESHOLD_BYTES);
+    writerSpillDirectory = getSettingFromEnvironment(WRITER_SPILL_DIRECTORY, null);
+    writerSpillMaxBytes =
+        getIntegerSettingFromEnvironment(WRITER_SPILL_MAX_BYTES, DEFAULT_WRITER_SPILL_MAX_BYTES);
+    writerSpillMaxAgeSeconds =
+        getIntegerSettingFromEnvironment(
+            WRITER_SPILL_MAX_AGE_SECONDS, DEFAULT_WRITER_SPILL_MAX_AGE_SECONDS);
+    writerRecordingDirectory =
+        getSettingFromEnvironment(WRITER_RECORDING_DIRECTORY, DEFAULT_WRITER_RECORDING_DIRECTORY);
+    writerRecordingSegmentBytes =
+        getIntegerSettingFromEnvironment(
+            WRITER_RECORDING_SEGMENT_BYTES, DEFAULT_WRITER_RECORDING_SEGMENT_BYTES);
+    writerRecordingSegmentSeconds =
+        getIntegerSettingFromEnvironment(
+            WRITER_RECORDING_SEGMENT_SECONDS, DEFAULT_WRITER_RECORDING_SEGMENT_SECONDS);
+    writerRecordingSyncMillis =
+        getIntegerSettingFromEnvironment(
+            WRITER_RECORDING_SYNC_MILLIS, DEFAULT_WRITER_RECORDING_SYNC_MILLIS);
+    writerAdaptiveFlushEnabled =
+        getBooleanSettingFromEnvironment(
+            WRITER_ADAPTIVE_FLUSH_ENABLED, DEFAULT_WRITER_ADAPTIVE_FLUSH_ENABLED);
+    writerAdaptiveMinFlushMillis =
+        getIntegerSettingFromEnvironment(
+            WRITER_ADAPTIVE_MIN_FLUSH_MILLIS, DEFAULT_WRITER_ADAPTIVE_MIN_FLUSH_MILLIS);
+    writerAdaptiveMaxFlushMillis =
+        getIntegerSettingFromEnvironment(
+            WRITER_ADAPTIVE_MAX_FLUSH_MILLIS, DEFAULT_WRITER_ADAPTIVE_MAX_FLUSH_MILLIS);
+    writerAdaptiveMinPayloadBytes =
+        getIntegerSettingFromEnvironment(
+            WRITER_ADAPTIVE_MIN_PAYLOAD_BYTES, DEFAULT_WRITER_ADAPTIVE_MIN_PAYLOAD_BYTES);
+    writerAdaptiveMaxPayloadBytes =
+        getIntegerSettingFromEnvironment(
+            WRITER_ADAPTIVE_MAX_PAYLOAD_BYTES, DEFAULT_WRITER_ADAPTIVE_MAX_PAYLOAD_BYTES);
+    writerAdaptiveTargetLatencyMillis =
+        getIntegerSettingFromEnvironment(
+            WRITER_ADAPTIVE_TARGET_LATENCY_MILLIS, DEFAULT_WRITER_ADAPTIVE_TARGET_LATENCY_MILLIS);
+    writerCircuitBreakerEnabled =
+        getBooleanSettingFromEnvironment(
+            WRITER_CIRCUIT_BREAKER_ENABLED, DEFAULT_WRITER_CIRCUIT_BREAKER_ENABLED);
+    writerCircuitBreakerFailureThreshold =
+        getIntegerSettingFromEnvironment(
+            WRITER_CIRCUIT_BREAKER_FAILURE_THRESHOLD,
+            DEFAULT_WRITER_CIRCUIT_BREAKER_FAILURE_THRESHOLD);
+    writerCircuitBreakerInitialBackoffMillis =
+        getIntegerSettingFromEnvironment(
+            WRITER_CIRCUIT_BREAKER_INITIAL_BACKOFF_MILLIS,
+            DEFAULT_WRITER_CIRCUIT_BREAKER_INITIAL_BACKOFF_MILLIS);
+    writerCircuitBreakerMaxBackoffMillis =
+        getIntegerSettingFromEnvironment(
+            WRITER_CIRCUIT_BREAKER_MAX_BACKOFF_MILLIS,
+            DEFAULT_WRITER_CIRCUIT_BREAKER_MAX_BACKOFF_MILLIS);
     agentHost = getSettingFromEnvironment(AGENT_HOST, DEFAULT_AGENT_HOST);
     agentPort =
         getIntegerSettingFromEnvironment(
@@ -433,6 +592,18 @@ public class Config {
     partialFlushMinSpans =
         getIntegerSettingFromEnvironment(PARTIAL_FLUSH_MIN_SPANS, DEFAULT_PARTIAL_FLUSH_MIN_SPANS);
 
+    partialFlushTimeout =
+        getIntegerSettingFromEnvironment(PARTIAL_FLUSH_TIMEOUT, DEFAULT_PARTIAL_FLUSH_TIMEOUT);
+
+    staleTraceTimeout =
+        getIntegerSettingFromEnvironment(STALE_TRACE_TIMEOUT, DEFAULT_STALE_TRACE_TIMEOUT);
+
+    errorStackLazy = getBooleanSettingFromEnvironment(ERROR_STACK_LAZY, DEFAULT_ERROR_STACK_LAZY);
+    errorStackMaxDepth =
+        getIntegerSettingFromEnvironment(ERROR_STACK_MAX_DEPTH, DEFAULT_ERROR_STACK_MAX_DEPTH);
+    errorStackMaxLength =
+        getIntegerSettingFromEnvironment(ERROR_STACK_MAX_LENGTH, DEFAULT_ERROR_STACK_MAX_LENGTH);
+
     runtimeContextFieldInjection =
         getBooleanSettingFromEnvironment(
             RUNTIME_CONTEXT_FIELD_INJECTION, DEFAULT_RUNTIME_CONTEXT_FIELD_INJECTION);
@@ -559,9 +730,6 @@ public class Config {
         getBooleanSettingFromEnvironment(
             KAFKA_CLIENT_PROPAGATION_ENABLED, DEFAULT_KAFKA_CLIENT_PROPAGATION_ENABLED);
 
-    snapwatchEnabled =
-        getBooleanSettingFromEnvironment(SNAPWATCH_ENABLED, DEFAULT_SNAPWATCH_ENABLED);
-
     // Setting this last because we have a few places where this can come from
     apiKey = tmpApiKey;
 
@@ -581,6 +749,83 @@ public class Config {
     integrationsEnabled =
         getPropertyBooleanValue(properties, INTEGRATIONS_ENABLED, parent.integrationsEnabled);
     writerType = properties.getProperty(WRITER_TYPE, parent.writerType);
+    writerSerializerThreads =
+        getPropertyIntegerValue(
+            properties, WRITER_SERIALIZER_THREADS, parent.writerSerializerThreads);
+    writerSubmissionStripes =
+        getPropertyIntegerValue(
+            properties, WRITER_SUBMISSION_STRIPES, parent.writerSubmissionStripes);
+    writerQueueBudgetBytes =
+        getPropertyIntegerValue(
+            properties, WRITER_QUEUE_BUDGET_BYTES, parent.writerQueueBudgetBytes);
+    traceClientStatsEnabled =
+        getPropertyBooleanValue(
+            properties, TRACE_CLIENT_STATS_ENABLED, parent.traceClientStatsEnabled);
+    writerInflightRequests =
+        getPropertyIntegerValue(
+            properties, WRITER_INFLIGHT_REQUESTS, parent.writerInflightRequests);
+    writerCompression = properties.getProperty(WRITER_COMPRESSION, parent.writerCompression);
+    writerCompressionThresholdBytes =
+        getPropertyIntegerValue(
+            properties,
+            WRITER_COMPRESSION_THRESHOLD_BYTES,
+            parent.writerCompressionThresholdBytes);
+    writerSpillDirectory =
+        properties.getProperty(WRITER_SPILL_DIRECTORY, parent.writerSpillDirectory);
+    writerSpillMaxBytes =
+        getPropertyIntegerValue(properties, WRITER_SPILL_MAX_BYTES, parent.writerSpillMaxBytes);
+    writerSpillMaxAgeSeconds =
+        getPropertyIntegerValue(
+            properties, WRITER_SPILL_MAX_AGE_SECONDS, parent.writerSpillMaxAgeSeconds);
+    writerRecordingDirectory =
+        properties.getProperty(WRITER_RECORDING_DIRECTORY, parent.writerRecordingDirectory);
+    writerRecordingSegmentBytes =
+        getPropertyIntegerValue(
+            properties, WRITER_RECORDING_SEGMENT_BYTES, parent.writerRecordingSegmentBytes);
+    writerRecordingSegmentSeconds =
+        getPropertyIntegerValue(
+            properties, WRITER_RECORDING_SEGMENT_SECONDS, parent.writerRecordingSegmentSeconds);
+    writerRecordingSyncMillis =
+        getPropertyIntegerValue(
+            properties, WRITER_RECORDING_SYNC_MILLIS, parent.writerRecordingSyncMillis);
+    writerAdaptiveFlushEnabled =
+        getPropertyBooleanValue(
+            properties, WRITER_ADAPTIVE_FLUSH_ENABLED, parent.writerAdaptiveFlushEnabled);
+    writerAdaptiveMinFlushMillis =
+        getPropertyIntegerValue(
+            properties, WRITER_ADAPTIVE_MIN_FLUSH_MILLIS, parent.writerAdaptiveMinFlushMillis);
+    writerAdaptiveMaxFlushMillis =
+        getPropertyIntegerValue(
+            properties, WRITER_ADAPTIVE_MAX_FLUSH_MILLIS, parent.writerAdaptiveMaxFlushMillis);
+    writerAdaptiveMinPayloadBytes =
+        getPropertyIntegerValue(
+            properties, WRITER_ADAPTIVE_MIN_PAYLOAD_BYTES, parent.writerAdaptiveMinPayloadBytes);
+    writerAdaptiveMaxPayloadBytes =
+        getPropertyIntegerValue(
+            properties, WRITER_ADAPTIVE_MAX_PAYLOAD_BYTES, parent.writerAdaptiveMaxPayloadBytes);
+    writerAdaptiveTargetLatencyMillis =
+        getPropertyIntegerValue(
+            properties,
+            WRITER_ADAPTIVE_TARGET_LATENCY_MILLIS,
+            parent.writerAdaptiveTargetLatencyMillis);
+    writerCircuitBreakerEnabled =
+        getPropertyBooleanValue(
+            properties, WRITER_CIRCUIT_BREAKER_ENABLED, parent.writerCircuitBreakerEnabled);
+    writerCircuitBreakerFailureThreshold =
+        getPropertyIntegerValue(
+            properties,
+            WRITER_CIRCUIT_BREAKER_FAILURE_THRESHOLD,
+            parent.writerCircuitBreakerFailureThreshold);
+    writerCircuitBreakerInitialBackoffMillis =
+        getPropertyIntegerValue(
+            properties,
+            WRITER_CIRCUIT_BREAKER_INITIAL_BACKOFF_MILLIS,
+            parent.writerCircuitBreakerInitialBackoffMillis);
+    writerCircuitBreakerMaxBackoffMillis =
+        getPropertyIntegerValue(
+            properties,
+            WRITER_CIRCUIT_BREAKER_MAX_BACKOFF_MILLIS,
+            parent.writerCircuitBreakerMaxBackoffMillis);
     agentHost = properties.getProperty(AGENT_HOST, parent.agentHost);
     agentPort =
         getPropertyIntegerValue(
@@ -644,6 +889,18 @@ public class Config {
     partialFlushMinSpans =
         getPropertyIntegerValue(properties, PARTIAL_FLUSH_MIN_SPANS, parent.partialFlushMinSpans);
 
+    partialFlushTimeout =
+        getPropertyIntegerValue(properties, PARTIAL_FLUSH_TIMEOUT, parent.partialFlushTimeout);
+
+    staleTraceTimeout =
+        getPropertyIntegerValue(properties, STALE_TRACE_TIMEOUT, parent.staleTraceTimeout);
+
+    errorStackLazy = getPropertyBooleanValue(properties, ERROR_STACK_LAZY, parent.errorStackLazy);
+    errorStackMaxDepth =
+        getPropertyIntegerValue(properties, ERROR_STACK_MAX_DEPTH, parent.errorStackMaxDepth);
+    errorStackMaxLength =
+        getPropertyIntegerValue(properties, ERROR_STACK_MAX_LENGTH, parent.errorStackMaxLength);
+
     runtimeContextFieldInjection =
         getPropertyBooleanValue(
             properties, RUNTIME_CONTEXT_FIELD_INJECTION, parent.runtimeContextFieldInjection);
@@ -755,9 +1012,6 @@ public class Config {
         getPropertyBooleanValue(
             properties, KAFKA_CLIENT_PROPAGATION_ENABLED, parent.kafkaClientPropagationEnabled);
 
-    snapwatchEnabled =
-        getPropertyBooleanValue(properties, SNAPWATCH_ENABLED, parent.snapwatchEnabled);
-
     log.debug("New instance: {}", this);
   }
 
@@ -767,16 +1021,19 @@ public class Config {
     final Map<String, String> result = new HashMap<>(runtimeTags);
     result.put(LANGUAGE_TAG_KEY, LANGUAGE_TAG_VALUE);
 
-    if (reportHostName) {
-      final String hostName = getHostName();
-      if (null != hostName && !hostName.isEmpty()) {
-        result.put(INTERNAL_HOST_NAME, hostName);
-      }
+    final String hostName = getReportedHostName();
+    if (null != hostName && !hostName.isEmpty()) {
+      result.put(INTERNAL_HOST_NAME, hostName);
     }
 
     return Collections.unmodifiableMap(result);
   }
 
+  /** @return the detected hostname if it should be reported, otherwise null */
+  public String getReportedHostName() {
+    return reportHostName ? getHostName() : null;
+  }
+
   public Map<String, String> getMergedSpanTags() {
     // Do not include runtimeId into span tags: we only want that added to the root span
     final Map<String, String> result = newHashMap(getGlobalTags().size() + spanTags.size());
@@ -8,6 +8,13 @@ public interface TraceInterceptor {
    * After a trace is "complete" but before it is written, it is provided to the interceptors to
    * modify. The result following all interceptors is sampled then sent to the trace writer.
    *
+   * <p>Whatever the writer, the sampling priority is only set afterwards, so an interceptor can
+   * set it or change what is sampled. With the default writer, this is called on the writer's
+   * serializer threads rather than on the application thread which finished the trace, and
+   * concurrently for different traces when there are several serializer threads: implementations
+   * must be thread-safe, and should not block since that holds up the serialization of other
+   * traces. With a custom writer, it is called on the application thread which finished the trace.
+   *
    * @param trace - The collection of spans that represent a trace. Can be modified in place. Order
    *     of spans should not be relied upon.
    * @return A potentially modified or replaced collection of spans. Must not be null.
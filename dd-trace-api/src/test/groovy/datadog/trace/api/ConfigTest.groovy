@@ -17,6 +17,9 @@ import static datadog.trace.api.Config.DEFAULT_PROFILING_EXCEPTION_SAMPLE_LIMIT
 import static datadog.trace.api.Config.DEFAULT_PROFILING_EXCEPTION_HISTOGRAM_MAX_COLLECTION_SIZE
 import static datadog.trace.api.Config.DEFAULT_PROFILING_EXCEPTION_HISTOGRAM_TOP_ITEMS
 import static datadog.trace.api.Config.DEFAULT_SERVICE_NAME
+import static datadog.trace.api.Config.ERROR_STACK_LAZY
+import static datadog.trace.api.Config.ERROR_STACK_MAX_DEPTH
+import static datadog.trace.api.Config.ERROR_STACK_MAX_LENGTH
 import static datadog.trace.api.Config.GLOBAL_TAGS
 import static datadog.trace.api.Config.HEADER_TAGS
 import static datadog.trace.api.Config.HEALTH_METRICS_ENABLED
@@ -36,6 +39,7 @@ import static datadog.trace.api.Config.JMX_TAGS
 import static datadog.trace.api.Config.LANGUAGE_TAG_KEY
 import static datadog.trace.api.Config.LANGUAGE_TAG_VALUE
 import static datadog.trace.api.Config.PARTIAL_FLUSH_MIN_SPANS
+import static datadog.trace.api.Config.PARTIAL_FLUSH_TIMEOUT
 import static datadog.trace.api.Config.PREFIX
 import static datadog.trace.api.Config.PRIORITY_SAMPLING
 import static datadog.trace.api.Config.PROFILING_API_KEY_FILE_OLD
@@ -67,8 +71,10 @@ import static datadog.trace.api.Config.SERVICE_TAG
 import static datadog.trace.api.Config.SITE
 import static datadog.trace.api.Config.SPAN_TAGS
 import static datadog.trace.api.Config.SPLIT_BY_TAGS
+import static datadog.trace.api.Config.STALE_TRACE_TIMEOUT
 import static datadog.trace.api.Config.TAGS
 import static datadog.trace.api.Config.TRACE_AGENT_PORT
+import static datadog.trace.api.Config.TRACE_CLIENT_STATS_ENABLED
 import static datadog.trace.api.Config.TRACE_ENABLED
 import static datadog.trace.api.Config.TRACE_RATE_LIMIT
 import static datadog.trace.api.Config.TRACE_REPORT_HOSTNAME
@@ -76,6 +82,29 @@ import static datadog.trace.api.Config.TRACE_RESOLVER_ENABLED
 import static datadog.trace.api.Config.TRACE_SAMPLE_RATE
 import static datadog.trace.api.Config.TRACE_SAMPLING_OPERATION_RULES
 import static datadog.trace.api.Config.TRACE_SAMPLING_SERVICE_RULES
+import static datadog.trace.api.Config.WRITER_ADAPTIVE_FLUSH_ENABLED
+import static datadog.trace.api.Config.WRITER_ADAPTIVE_MIN_FLUSH_MILLIS
+import static datadog.trace.api.Config.WRITER_ADAPTIVE_MAX_FLUSH_MILLIS
+import static datadog.trace.api.Config.WRITER_ADAPTIVE_MIN_PAYLOAD_BYTES
+import static datadog.trace.api.Config.WRITER_ADAPTIVE_MAX_PAYLOAD_BYTES
+import static datadog.trace.api.Config.WRITER_ADAPTIVE_TARGET_LATENCY_MILLIS
+import static datadog.trace.api.Config.WRITER_CIRCUIT_BREAKER_ENABLED
+import static datadog.trace.api.Config.WRITER_CIRCUIT_BREAKER_FAILURE_THRESHOLD
+import static datadog.trace.api.Config.WRITER_CIRCUIT_BREAKER_INITIAL_BACKOFF_MILLIS
+import static datadog.trace.api.Config.WRITER_CIRCUIT_BREAKER_MAX_BACKOFF_MILLIS
+import static datadog.trace.api.Config.WRITER_SERIALIZER_THREADS
+import static datadog.trace.api.Config.WRITER_COMPRESSION
+import static datadog.trace.api.Config.WRITER_COMPRESSION_THRESHOLD_BYTES
+import static datadog.trace.api.Config.WRITER_RECORDING_DIRECTORY
+import static datadog.trace.api.Config.WRITER_RECORDING_SEGMENT_BYTES
+import static datadog.trace.api.Config.WRITER_RECORDING_SEGMENT_SECONDS
+import static datadog.trace.api.Config.WRITER_RECORDING_SYNC_MILLIS
+import static datadog.trace.api.Config.WRITER_SPILL_DIRECTORY
+import static datadog.trace.api.Config.WRITER_SPILL_MAX_AGE_SECONDS
+import static datadog.trace.api.Config.WRITER_SPILL_MAX_BYTES
+import static datadog.trace.api.Config.WRITER_INFLIGHT_REQUESTS
+import static datadog.trace.api.Config.WRITER_QUEUE_BUDGET_BYTES
+import static datadog.trace.api.Config.WRITER_SUBMISSION_STRIPES
 import static datadog.trace.api.Config.WRITER_TYPE
 
 class ConfigTest extends DDSpecification {
@@ -118,6 +147,30 @@ class ConfigTest extends DDSpecification {
     config.serviceName == "unnamed-java-app"
     config.traceEnabled == true
     config.writerType == "DDAgentWriter"
+    config.writerSerializerThreads == 1
+    config.writerSubmissionStripes == 0
+    config.writerQueueBudgetBytes == 0
+    config.writerInflightRequests == 1
+    config.writerCompression == "off"
+    config.writerCompressionThresholdBytes == 16384
+    config.writerSpillDirectory == null
+    config.writerSpillMaxBytes == 67108864
+    config.writerSpillMaxAgeSeconds == 600
+    config.writerRecordingDirectory == "dd-trace-recordings"
+    config.writerRecordingSegmentBytes == 67108864
+    config.writerRecordingSegmentSeconds == 300
+    config.writerRecordingSyncMillis == 1000
+    config.writerAdaptiveFlushEnabled == false
+    config.writerAdaptiveMinFlushMillis == 200
+    config.writerAdaptiveMaxFlushMillis == 5000
+    config.writerAdaptiveMinPayloadBytes == 65536
+    config.writerAdaptiveMaxPayloadBytes == 4194304
+    config.writerAdaptiveTargetLatencyMillis == 250
+    config.writerCircuitBreakerEnabled == false
+    config.writerCircuitBreakerFailureThreshold == 3
+    config.writerCircuitBreakerInitialBackoffMillis == 1000
+    config.writerCircuitBreakerMaxBackoffMillis == 60000
+    config.traceClientStatsEnabled == false
     config.agentHost == "localhost"
     config.agentPort == 8126
     config.agentUnixDomainSocket == null
@@ -133,6 +186,11 @@ class ConfigTest extends DDSpecification {
     config.dbClientSplitByInstance == false
     config.splitByTags == [].toSet()
     config.partialFlushMinSpans == 1000
+    config.partialFlushTimeout == 0
+    config.staleTraceTimeout == 300
+    config.errorStackLazy == false
+    config.errorStackMaxDepth == 64
+    config.errorStackMaxLength == 0
     config.reportHostName == false
     config.runtimeContextFieldInjection == true
     config.propagationStylesToExtract.toList() == [Config.PropagationStyle.DATADOG]
@@ -182,6 +240,30 @@ class ConfigTest extends DDSpecification {
     prop.setProperty(SERVICE_NAME, "something else")
     prop.setProperty(TRACE_ENABLED, "false")
     prop.setProperty(WRITER_TYPE, "LoggingWriter")
+    prop.setProperty(WRITER_SERIALIZER_THREADS, "4")
+    prop.setProperty(WRITER_SUBMISSION_STRIPES, "16")
+    prop.setProperty(WRITER_QUEUE_BUDGET_BYTES, "1048576")
+    prop.setProperty(WRITER_INFLIGHT_REQUESTS, "4")
+    prop.setProperty(WRITER_COMPRESSION, "gzip")
+    prop.setProperty(WRITER_COMPRESSION_THRESHOLD_BYTES, "1024")
+    prop.setProperty(WRITER_SPILL_DIRECTORY, "/tmp/spill")
+    prop.setProperty(WRITER_SPILL_MAX_BYTES, "1048576")
+    prop.setProperty(WRITER_SPILL_MAX_AGE_SECONDS, "60")
+    prop.setProperty(WRITER_RECORDING_DIRECTORY, "/tmp/recordings")
+    prop.setProperty(WRITER_RECORDING_SEGMENT_BYTES, "1048576")
+    prop.setProperty(WRITER_RECORDING_SEGMENT_SECONDS, "60")
+    prop.setProperty(WRITER_RECORDING_SYNC_MILLIS, "100")
+    prop.setProperty(WRITER_ADAPTIVE_FLUSH_ENABLED, "true")
+    prop.setProperty(WRITER_ADAPTIVE_MIN_FLUSH_MILLIS, "100")
+    prop.setProperty(WRITER_ADAPTIVE_MAX_FLUSH_MILLIS, "2000")
+    prop.setProperty(WRITER_ADAPTIVE_MIN_PAYLOAD_BYTES, "32768")
+    prop.setProperty(WRITER_ADAPTIVE_MAX_PAYLOAD_BYTES, "1048576")
+    prop.setProperty(WRITER_ADAPTIVE_TARGET_LATENCY_MILLIS, "50")
+    prop.setProperty(WRITER_CIRCUIT_BREAKER_ENABLED, "true")
+    prop.setProperty(WRITER_CIRCUIT_BREAKER_FAILURE_THRESHOLD, "5")
+    prop.setProperty(WRITER_CIRCUIT_BREAKER_INITIAL_BACKOFF_MILLIS, "500")
+    prop.setProperty(WRITER_CIRCUIT_BREAKER_MAX_BACKOFF_MILLIS, "30000")
+    prop.setProperty(TRACE_CLIENT_STATS_ENABLED, "true")
     prop.setProperty(AGENT_HOST, "somehost")
     prop.setProperty(TRACE_AGENT_PORT, "123")
     prop.setProperty(AGENT_UNIX_DOMAIN_SOCKET, "somepath")
@@ -199,6 +281,11 @@ class ConfigTest extends DDSpecification {
     prop.setProperty(DB_CLIENT_HOST_SPLIT_BY_INSTANCE, "true")
     prop.setProperty(SPLIT_BY_TAGS, "some.tag1,some.tag2,some.tag1")
     prop.setProperty(PARTIAL_FLUSH_MIN_SPANS, "15")
+    prop.setProperty(PARTIAL_FLUSH_TIMEOUT, "30")
+    prop.setProperty(STALE_TRACE_TIMEOUT, "3600")
+    prop.setProperty(ERROR_STACK_LAZY, "true")
+    prop.setProperty(ERROR_STACK_MAX_DEPTH, "20")
+    prop.setProperty(ERROR_STACK_MAX_LENGTH, "4096")
     prop.setProperty(TRACE_REPORT_HOSTNAME, "true")
     prop.setProperty(RUNTIME_CONTEXT_FIELD_INJECTION, "false")
     prop.setProperty(PROPAGATION_STYLE_EXTRACT, "Datadog, B3")
@@ -243,6 +330,30 @@ class ConfigTest extends DDSpecification {
     config.serviceName == "something else"
     config.traceEnabled == false
     config.writerType == "LoggingWriter"
+    config.writerSerializerThreads == 4
+    config.writerSubmissionStripes == 16
+    config.writerQueueBudgetBytes == 1048576
+    config.writerInflightRequests == 4
+    config.writerCompression == "gzip"
+    config.writerCompressionThresholdBytes == 1024
+    config.writerSpillDirectory == "/tmp/spill"
+    config.writerSpillMaxBytes == 1048576
+    config.writerSpillMaxAgeSeconds == 60
+    config.writerRecordingDirectory == "/tmp/recordings"
+    config.writerRecordingSegmentBytes == 1048576
+    config.writerRecordingSegmentSeconds == 60
+    config.writerRecordingSyncMillis == 100
+    config.writerAdaptiveFlushEnabled == true
+    config.writerAdaptiveMinFlushMillis == 100
+    config.writerAdaptiveMaxFlushMillis == 2000
+    config.writerAdaptiveMinPayloadBytes == 32768
+    config.writerAdaptiveMaxPayloadBytes == 1048576
+    config.writerAdaptiveTargetLatencyMillis == 50
+    config.writerCircuitBreakerEnabled == true
+    config.writerCircuitBreakerFailureThreshold == 5
+    config.writerCircuitBreakerInitialBackoffMillis == 500
+    config.writerCircuitBreakerMaxBackoffMillis == 30000
+    config.traceClientStatsEnabled == true
     config.agentHost == "somehost"
     config.agentPort == 123
     config.agentUnixDomainSocket == "somepath"
@@ -258,6 +369,11 @@ class ConfigTest extends DDSpecification {
     config.dbClientSplitByInstance == true
     config.splitByTags == ["some.tag1", "some.tag2"].toSet()
     config.partialFlushMinSpans == 15
+    config.partialFlushTimeout == 30
+    config.staleTraceTimeout == 3600
+    config.errorStackLazy == true
+    config.errorStackMaxDepth == 20
+    config.errorStackMaxLength == 4096
     config.reportHostName == true
     config.runtimeContextFieldInjection == false
     config.propagationStylesToExtract.toList() == [Config.PropagationStyle.DATADOG, Config.PropagationStyle.B3]
@@ -302,6 +418,30 @@ class ConfigTest extends DDSpecification {
     System.setProperty(PREFIX + SERVICE_NAME, "something else")
     System.setProperty(PREFIX + TRACE_ENABLED, "false")
     System.setProperty(PREFIX + WRITER_TYPE, "LoggingWriter")
+    System.setProperty(PREFIX + WRITER_SERIALIZER_THREADS, "8")
+    System.setProperty(PREFIX + WRITER_SUBMISSION_STRIPES, "32")
+    System.setProperty(PREFIX + WRITER_QUEUE_BUDGET_BYTES, "2097152")
+    System.setProperty(PREFIX + WRITER_INFLIGHT_REQUESTS, "8")
+    System.setProperty(PREFIX + WRITER_COMPRESSION, "gzip")
+    System.setProperty(PREFIX + WRITER_COMPRESSION_THRESHOLD_BYTES, "2048")
+    System.setProperty(PREFIX + WRITER_SPILL_DIRECTORY, "/var/spill")
+    System.setProperty(PREFIX + WRITER_SPILL_MAX_BYTES, "2097152")
+    System.setProperty(PREFIX + WRITER_SPILL_MAX_AGE_SECONDS, "120")
+    System.setProperty(PREFIX + WRITER_RECORDING_DIRECTORY, "/var/recordings")
+    System.setProperty(PREFIX + WRITER_RECORDING_SEGMENT_BYTES, "2097152")
+    System.setProperty(PREFIX + WRITER_RECORDING_SEGMENT_SECONDS, "120")
+    System.setProperty(PREFIX + WRITER_RECORDING_SYNC_MILLIS, "200")
+    System.setProperty(PREFIX + WRITER_ADAPTIVE_FLUSH_ENABLED, "true")
+    System.setProperty(PREFIX + WRITER_ADAPTIVE_MIN_FLUSH_MILLIS, "300")
+    System.setProperty(PREFIX + WRITER_ADAPTIVE_MAX_FLUSH_MILLIS, "3000")
+    System.setProperty(PREFIX + WRITER_ADAPTIVE_MIN_PAYLOAD_BYTES, "16384")
+    System.setProperty(PREFIX + WRITER_ADAPTIVE_MAX_PAYLOAD_BYTES, "2097152")
+    System.setProperty(PREFIX + WRITER_ADAPTIVE_TARGET_LATENCY_MILLIS, "75")
+    System.setProperty(PREFIX + WRITER_CIRCUIT_BREAKER_ENABLED, "true")
+    System.setProperty(PREFIX + WRITER_CIRCUIT_BREAKER_FAILURE_THRESHOLD, "7")
+    System.setProperty(PREFIX + WRITER_CIRCUIT_BREAKER_INITIAL_BACKOFF_MILLIS, "250")
+    System.setProperty(PREFIX + WRITER_CIRCUIT_BREAKER_MAX_BACKOFF_MILLIS, "10000")
+    System.setProperty(PREFIX + TRACE_CLIENT_STATS_ENABLED, "true")
     System.setProperty(PREFIX + AGENT_HOST, "somehost")
     System.setProperty(PREFIX + TRACE_AGENT_PORT, "123")
     System.setProperty(PREFIX + AGENT_UNIX_DOMAIN_SOCKET, "somepath")
@@ -319,6 +459,11 @@ class ConfigTest extends DDSpecification {
     System.setProperty(PREFIX + DB_CLIENT_HOST_SPLIT_BY_INSTANCE, "true")
     System.setProperty(PREFIX + SPLIT_BY_TAGS, "some.tag3, some.tag2, some.tag1")
     System.setProperty(PREFIX + PARTIAL_FLUSH_MIN_SPANS, "25")
+    System.setProperty(PREFIX + PARTIAL_FLUSH_TIMEOUT, "30")
+    System.setProperty(PREFIX + STALE_TRACE_TIMEOUT, "3600")
+    System.setProperty(PREFIX + ERROR_STACK_LAZY, "true")
+    System.setProperty(PREFIX + ERROR_STACK_MAX_DEPTH, "30")
+    System.setProperty(PREFIX + ERROR_STACK_MAX_LENGTH, "8192")
     System.setProperty(PREFIX + TRACE_REPORT_HOSTNAME, "true")
     System.setProperty(PREFIX + RUNTIME_CONTEXT_FIELD_INJECTION, "false")
     System.setProperty(PREFIX + PROPAGATION_STYLE_EXTRACT, "Datadog, B3")
@@ -363,6 +508,30 @@ class ConfigTest extends DDSpecification {
     config.serviceName == "something else"
     config.traceEnabled == false
     config.writerType == "LoggingWriter"
+    config.writerSerializerThreads == 8
+    config.writerSubmissionStripes == 32
+    config.writerQueueBudgetBytes == 2097152
+    config.writerInflightRequests == 8
+    config.writerCompression == "gzip"
+    config.writerCompressionThresholdBytes == 2048
+    config.writerSpillDirectory == "/var/spill"
+    config.writerSpillMaxBytes == 2097152
+    config.writerSpillMaxAgeSeconds == 120
+    config.writerRecordingDirectory == "/var/recordings"
+    config.writerRecordingSegmentBytes == 2097152
+    config.writerRecordingSegmentSeconds == 120
+    config.writerRecordingSyncMillis == 200
+    config.writerAdaptiveFlushEnabled == true
+    config.writerAdaptiveMinFlushMillis == 300
+    config.writerAdaptiveMaxFlushMillis == 3000
+    config.writerAdaptiveMinPayloadBytes == 16384
+    config.writerAdaptiveMaxPayloadBytes == 2097152
+    config.writerAdaptiveTargetLatencyMillis == 75
+    config.writerCircuitBreakerEnabled == true
+    config.writerCircuitBreakerFailureThreshold == 7
+    config.writerCircuitBreakerInitialBackoffMillis == 250
+    config.writerCircuitBreakerMaxBackoffMillis == 10000
+    config.traceClientStatsEnabled == true
     config.agentHost == "somehost"
     config.agentPort == 123
     config.agentUnixDomainSocket == "somepath"
@@ -378,6 +547,11 @@ class ConfigTest extends DDSpecification {
     config.dbClientSplitByInstance == true
     config.splitByTags == ["some.tag3", "some.tag2", "some.tag1"].toSet()
     config.partialFlushMinSpans == 25
+    config.partialFlushTimeout == 30
+    config.staleTraceTimeout == 3600
+    config.errorStackLazy == true
+    config.errorStackMaxDepth == 30
+    config.errorStackMaxLength == 8192
     config.reportHostName == true
     config.runtimeContextFieldInjection == false
     config.propagationStylesToExtract.toList() == [Config.PropagationStyle.DATADOG, Config.PropagationStyle.B3]
@@ -553,6 +727,30 @@ class ConfigTest extends DDSpecification {
     properties.setProperty(SERVICE_NAME, "something else")
     properties.setProperty(TRACE_ENABLED, "false")
     properties.setProperty(WRITER_TYPE, "LoggingWriter")
+    properties.setProperty(WRITER_SERIALIZER_THREADS, "4")
+    properties.setProperty(WRITER_SUBMISSION_STRIPES, "16")
+    properties.setProperty(WRITER_QUEUE_BUDGET_BYTES, "1048576")
+    properties.setProperty(WRITER_INFLIGHT_REQUESTS, "4")
+    properties.setProperty(WRITER_COMPRESSION, "gzip")
+    properties.setProperty(WRITER_COMPRESSION_THRESHOLD_BYTES, "1024")
+    properties.setProperty(WRITER_SPILL_DIRECTORY, "/tmp/spill")
+    properties.setProperty(WRITER_SPILL_MAX_BYTES, "1048576")
+    properties.setProperty(WRITER_SPILL_MAX_AGE_SECONDS, "60")
+    properties.setProperty(WRITER_RECORDING_DIRECTORY, "/tmp/recordings")
+    properties.setProperty(WRITER_RECORDING_SEGMENT_BYTES, "1048576")
+    properties.setProperty(WRITER_RECORDING_SEGMENT_SECONDS, "60")
+    properties.setProperty(WRITER_RECORDING_SYNC_MILLIS, "100")
+    properties.setProperty(WRITER_ADAPTIVE_FLUSH_ENABLED, "true")
+    properties.setProperty(WRITER_ADAPTIVE_MIN_FLUSH_MILLIS, "100")
+    properties.setProperty(WRITER_ADAPTIVE_MAX_FLUSH_MILLIS, "2000")
+    properties.setProperty(WRITER_ADAPTIVE_MIN_PAYLOAD_BYTES, "32768")
+    properties.setProperty(WRITER_ADAPTIVE_MAX_PAYLOAD_BYTES, "1048576")
+    properties.setProperty(WRITER_ADAPTIVE_TARGET_LATENCY_MILLIS, "50")
+    properties.setProperty(WRITER_CIRCUIT_BREAKER_ENABLED, "true")
+    properties.setProperty(WRITER_CIRCUIT_BREAKER_FAILURE_THRESHOLD, "5")
+    properties.setProperty(WRITER_CIRCUIT_BREAKER_INITIAL_BACKOFF_MILLIS, "500")
+    properties.setProperty(WRITER_CIRCUIT_BREAKER_MAX_BACKOFF_MILLIS, "30000")
+    properties.setProperty(TRACE_CLIENT_STATS_ENABLED, "true")
     properties.setProperty(AGENT_HOST, "somehost")
     properties.setProperty(TRACE_AGENT_PORT, "123")
     properties.setProperty(AGENT_UNIX_DOMAIN_SOCKET, "somepath")
@@ -568,6 +766,11 @@ class ConfigTest extends DDSpecification {
     properties.setProperty(HTTP_CLIENT_HOST_SPLIT_BY_DOMAIN, "true")
     properties.setProperty(DB_CLIENT_HOST_SPLIT_BY_INSTANCE, "true")
     properties.setProperty(PARTIAL_FLUSH_MIN_SPANS, "15")
+    properties.setProperty(PARTIAL_FLUSH_TIMEOUT, "30")
+    properties.setProperty(STALE_TRACE_TIMEOUT, "3600")
+    properties.setProperty(ERROR_STACK_LAZY, "true")
+    properties.setProperty(ERROR_STACK_MAX_DEPTH, "20")
+    properties.setProperty(ERROR_STACK_MAX_LENGTH, "4096")
     properties.setProperty(PROPAGATION_STYLE_EXTRACT, "B3 Datadog")
     properties.setProperty(PROPAGATION_STYLE_INJECT, "Datadog B3")
     properties.setProperty(JMX_FETCH_METRICS_CONFIGS, "/foo.yaml,/bar.yaml")
@@ -583,6 +786,30 @@ class ConfigTest extends DDSpecification {
     config.serviceName == "something else"
     config.traceEnabled == false
     config.writerType == "LoggingWriter"
+    config.writerSerializerThreads == 4
+    config.writerSubmissionStripes == 16
+    config.writerQueueBudgetBytes == 1048576
+    config.writerInflightRequests == 4
+    config.writerCompression == "gzip"
+    config.writerCompressionThresholdBytes == 1024
+    config.writerSpillDirectory == "/tmp/spill"
+    config.writerSpillMaxBytes == 1048576
+    config.writerSpillMaxAgeSeconds == 60
+    config.writerRecordingDirectory == "/tmp/recordings"
+    config.writerRecordingSegmentBytes == 1048576
+    config.writerRecordingSegmentSeconds == 60
+    config.writerRecordingSyncMillis == 100
+    config.writerAdaptiveFlushEnabled == true
+    config.writerAdaptiveMinFlushMillis == 100
+    config.writerAdaptiveMaxFlushMillis == 2000
+    config.writerAdaptiveMinPayloadBytes == 32768
+    config.writerAdaptiveMaxPayloadBytes == 1048576
+    config.writerAdaptiveTargetLatencyMillis == 50
+    config.writerCircuitBreakerEnabled == true
+    config.writerCircuitBreakerFailureThreshold == 5
+    config.writerCircuitBreakerInitialBackoffMillis == 500
+    config.writerCircuitBreakerMaxBackoffMillis == 30000
+    config.traceClientStatsEnabled == true
     config.agentHost == "somehost"
     config.agentPort == 123
     config.agentUnixDomainSocket == "somepath"
@@ -598,6 +825,11 @@ class ConfigTest extends DDSpecification {
     config.dbClientSplitByInstance == true
     config.splitByTags == [].toSet()
     config.partialFlushMinSpans == 15
+    config.partialFlushTimeout == 30
+    config.staleTraceTimeout == 3600
+    config.errorStackLazy == true
+    config.errorStackMaxDepth == 20
+    config.errorStackMaxLength == 4096
     config.propagationStylesToExtract.toList() == [Config.PropagationStyle.B3, Config.PropagationStyle.DATADOG]
     config.propagationStylesToInject.toList() == [Config.PropagationStyle.DATADOG, Config.PropagationStyle.B3]
     config.jmxFetchMetricsConfigs == ["/foo.yaml", "/bar.yaml"]
@@ -18,8 +18,6 @@ import jdk.jfr.Timespan;
 @StackTrace(false)
 public final class ScopeEvent extends Event implements DDScopeEvent {
 
-  private static final int IDS_RADIX = 16;
-
   private final transient DDSpanContext spanContext;
 
   @Label("Trace Id")
@@ -64,9 +62,9 @@ public final class ScopeEvent extends Event implements DDScopeEvent {
       if (cpuTime > 0) {
         cpuTime = ThreadCpuTimeAccess.getCurrentThreadCpuTime() - cpuTime;
       }
-      traceId = spanContext.getTraceId().toString(IDS_RADIX);
-      spanId = spanContext.getSpanId().toString(IDS_RADIX);
-      parentId = spanContext.getParentId().toString(IDS_RADIX);
+      traceId = spanContext.getDDTraceId().toHexString();
+      spanId = spanContext.getDDSpanId().toHexString();
+      parentId = spanContext.getDDParentId().toHexString();
       serviceName = spanContext.getServiceName();
       resourceName = spanContext.getResourceName();
       operationName = spanContext.getOperationName();
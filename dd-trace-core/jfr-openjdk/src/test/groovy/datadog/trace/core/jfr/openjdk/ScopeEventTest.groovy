@@ -8,6 +8,7 @@ import datadog.trace.bootstrap.instrumentation.api.AgentSpan
 import datadog.trace.common.writer.ListWriter
 import datadog.trace.context.TraceScope
 import datadog.trace.core.CoreTracer
+import datadog.trace.core.DDId
 import datadog.trace.core.DDSpanContext
 import datadog.trace.core.PendingTrace
 import datadog.trace.core.util.ThreadCpuTimeAccess
@@ -29,9 +30,9 @@ class ScopeEventTest extends DDSpecification {
 
   def parentContext =
     new DDSpanContext(
-      123,
-      432,
-      222,
+      DDId.from(123),
+      DDId.from(432),
+      DDId.from(222),
       "fakeService",
       "fakeOperation",
       "fakeResource",
@@ -41,7 +42,7 @@ class ScopeEventTest extends DDSpecification {
       false,
       "fakeType",
       null,
-      new PendingTrace(tracer, 123),
+      new PendingTrace(tracer, DDId.from(123)),
       tracer,
       [:])
   def builder = tracer.buildSpan("test operation")
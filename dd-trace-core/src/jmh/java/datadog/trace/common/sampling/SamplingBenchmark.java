@@ -0,0 +1,68 @@
+package datadog.trace.common.sampling;
+
+import datadog.trace.common.writer.ListWriter;
+import datadog.trace.core.CoreTracer;
+import datadog.trace.core.DDSpan;
+import java.util.HashMap;
+import java.util.Map;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Run with the gc profiler (enabled in dd-trace-core.gradle): {@code gc.alloc.rate.norm} should be
+ * ~0 B/op for every benchmark, i.e. a sampling decision doesn't allocate.
+ */
+@State(Scope.Thread)
+public class SamplingBenchmark {
+  private static final int SPAN_COUNT = 1024;
+
+  private final DDSpan[] spans = new DDSpan[SPAN_COUNT];
+  private DeterministicSampler deterministicSampler;
+  private RateByServiceSampler rateByServiceSampler;
+  private int index;
+
+  @Setup
+  public void setup() {
+    final CoreTracer tracer = CoreTracer.builder().writer(new ListWriter()).build();
+    for (int i = 0; i < SPAN_COUNT; i++) {
+      spans[i] =
+          (DDSpan)
+              tracer
+                  .buildSpan("benchmark")
+                  .withServiceName("service-" + (i % 8))
+                  .withTag("env", i % 2 == 0 ? "prod" : "staging")
+                  .start();
+    }
+
+    deterministicSampler = new DeterministicSampler(0.5);
+
+    final Map<String, Number> rates = new HashMap<>();
+    rates.put("service:,env:", 0.9);
+    for (int i = 0; i < 8; i++) {
+      rates.put("service:service-" + i + ",env:prod", 0.5);
+      rates.put("service:service-" + i + ",env:staging", 0.25);
+    }
+    final Map<String, Map<String, Number>> response = new HashMap<>();
+    response.put("rate_by_service", rates);
+    rateByServiceSampler = new RateByServiceSampler();
+    rateByServiceSampler.onResponse("benchmark", response);
+  }
+
+  private DDSpan nextSpan() {
+    return spans[index++ & (SPAN_COUNT - 1)];
+  }
+
+  @Benchmark
+  public boolean deterministicSample() {
+    return deterministicSampler.sample(nextSpan());
+  }
+
+  @Benchmark
+  public DDSpan rateByServiceSetSamplingPriority() {
+    final DDSpan span = nextSpan();
+    rateByServiceSampler.setSamplingPriority(span);
+    return span;
+  }
+}
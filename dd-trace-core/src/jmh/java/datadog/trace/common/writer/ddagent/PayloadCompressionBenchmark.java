@@ -0,0 +1,80 @@
+package datadog.trace.common.writer.ddagent;
+
+import datadog.trace.common.writer.ListWriter;
+import datadog.trace.core.CoreTracer;
+import datadog.trace.core.DDSpan;
+import java.io.IOException;
+import java.util.List;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Writes a payload of 10, 100 or 1000 traces of 10 spans each as a request body, uncompressed and
+ * gzipped. The time per operation is the CPU cost of compression, and the payload sizes logged at
+ * the end of each trial are the bytes it saves.
+ */
+@State(Scope.Thread)
+public class PayloadCompressionBenchmark {
+
+  @Param({"10", "100", "1000"})
+  int traceCount;
+
+  @Param({"off", "gzip"})
+  String compression;
+
+  private CoreTracer tracer;
+  private DDAgentApi.MsgPackRequestBody body;
+  private TraceBuffer traces;
+  private final Buffer sink = new Buffer();
+  private long bytes;
+  private long payloads;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    tracer = CoreTracer.builder().writer(new ListWriter()).build();
+    final List<DDSpan> trace = SerializerBenchmark.createTrace(tracer, 10);
+    final MsgPackStatefulSerializer serializer =
+        new MsgPackStatefulSerializer(Integer.MAX_VALUE, 1 << 20);
+    traces = serializer.newBuffer();
+    serializer.reset(traces);
+    for (int i = 0; i < traceCount; ++i) {
+      serializer.serialize(trace);
+    }
+    serializer.dropBuffer();
+    body =
+        new DDAgentApi.MsgPackRequestBody(
+            traces, CompressionType.of(compression) == CompressionType.GZIP);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    if (payloads > 0) {
+      System.out.println(
+          compression
+              + " payload of "
+              + traceCount
+              + " traces is "
+              + bytes / payloads
+              + " bytes, uncompressed "
+              + (traces.headerSize() + traces.sizeInBytes())
+              + " bytes");
+    }
+    tracer.close();
+  }
+
+  @Benchmark
+  public long writeRequestBody() throws IOException {
+    body.writeTo(sink);
+    final long size = sink.size();
+    sink.clear();
+    bytes += size;
+    ++payloads;
+    return size;
+  }
+}
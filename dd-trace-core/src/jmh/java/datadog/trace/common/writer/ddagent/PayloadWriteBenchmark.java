@@ -0,0 +1,131 @@
+package datadog.trace.common.writer.ddagent;
+
+import datadog.trace.common.writer.ListWriter;
+import datadog.trace.core.CoreTracer;
+import datadog.trace.core.DDSpan;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.List;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Writes a payload of 10, 100 or 1000 traces of 10 spans each, packed into chunks of 64KB, to a
+ * gathering channel which consumes the buffers it is given without copying them, and as a request
+ * body into an okio buffer, as when sending to the agent. Allocations per payload are {@code
+ * gc.alloc.rate.norm}; the write calls and bytes copied per payload are logged at the end of each
+ * trial.
+ */
+@State(Scope.Thread)
+public class PayloadWriteBenchmark {
+
+  @Param({"10", "100", "1000"})
+  int traceCount;
+
+  @Param({"gathering", "request-body"})
+  String target;
+
+  private CoreTracer tracer;
+  private TraceBuffer traces;
+  private DDAgentApi.MsgPackRequestBody body;
+  private final CountingChannel channel = new CountingChannel();
+  private final Buffer sink = new Buffer();
+  private long copiedBytes;
+  private long payloads;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    tracer = CoreTracer.builder().writer(new ListWriter()).build();
+    final List<DDSpan> trace = SerializerBenchmark.createTrace(tracer, 10);
+    final MsgPackStatefulSerializer serializer =
+        new MsgPackStatefulSerializer(Integer.MAX_VALUE, 64 << 10);
+    traces = serializer.newBuffer();
+    serializer.reset(traces);
+    for (int i = 0; i < traceCount; ++i) {
+      serializer.serialize(trace);
+    }
+    serializer.dropBuffer();
+    body = new DDAgentApi.MsgPackRequestBody(traces, false);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    if (payloads > 0) {
+      System.out.println(
+          target
+              + " payload of "
+              + (traces.headerSize() + traces.sizeInBytes())
+              + " bytes took "
+              + (double) channel.writes / payloads
+              + " write calls and copied "
+              + copiedBytes / payloads
+              + " bytes");
+    }
+    tracer.close();
+  }
+
+  @Benchmark
+  public long writePayload() throws IOException {
+    final long size;
+    if ("gathering".equals(target)) {
+      final long before = channel.bytes;
+      traces.writeTo(channel);
+      size = channel.bytes - before;
+    } else {
+      body.writeTo(sink);
+      size = sink.size();
+      // okio copies the payload into its own segments before it reaches the socket
+      copiedBytes += size;
+      sink.clear();
+    }
+    ++payloads;
+    return size;
+  }
+
+  /** Consumes buffers by moving their positions, like a socket would after sending them. */
+  private static final class CountingChannel implements GatheringByteChannel {
+    private long writes;
+    private long bytes;
+
+    @Override
+    public long write(final ByteBuffer[] srcs, final int offset, final int length) {
+      ++writes;
+      long written = 0;
+      for (int i = offset; i < offset + length; ++i) {
+        written += srcs[i].remaining();
+        srcs[i].position(srcs[i].limit());
+      }
+      bytes += written;
+      return written;
+    }
+
+    @Override
+    public long write(final ByteBuffer[] srcs) {
+      return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(final ByteBuffer src) {
+      ++writes;
+      final int written = src.remaining();
+      src.position(src.limit());
+      bytes += written;
+      return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,134 @@
+package datadog.trace.common.writer.ddagent;
+
+import datadog.trace.bootstrap.instrumentation.api.AgentSpan;
+import datadog.trace.common.writer.ListWriter;
+import datadog.trace.core.CoreTracer;
+import datadog.trace.core.DDSpan;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Serializes a realistic trace of 10, 100 or 1000 spans with {@link MsgPackStatefulSerializer}
+ * and {@link MsgPackByteBufferSerializer}, writing each full buffer to a discarding channel as the
+ * writer would. Bytes/sec is the trace size logged at the end of each trial divided by the
+ * reported time per operation; allocations per span is {@code gc.alloc.rate.norm} divided by the
+ * span count.
+ */
+@State(Scope.Thread)
+public class SerializerBenchmark {
+
+  @Param({"10", "100", "1000"})
+  int spanCount;
+
+  @Param({"msgpack-core", "bytebuffer", "bytebuffer-direct"})
+  String serializerType;
+
+  private CoreTracer tracer;
+  private List<DDSpan> trace;
+  private StatefulSerializer serializer;
+  private TraceBuffer buffer;
+  private long bytes;
+  private long traces;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    tracer = CoreTracer.builder().writer(new ListWriter()).build();
+    trace = createTrace(tracer, spanCount);
+    if ("msgpack-core".equals(serializerType)) {
+      serializer = new MsgPackStatefulSerializer();
+    } else {
+      serializer =
+          new MsgPackByteBufferSerializer(
+              MsgPackStatefulSerializer.DEFAULT_BUFFER_THRESHOLD,
+              MsgPackStatefulSerializer.DEFAULT_BUFFER_THRESHOLD * 3 / 2,
+              "bytebuffer-direct".equals(serializerType));
+    }
+    buffer = serializer.newBuffer();
+    serializer.reset(buffer);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    if (traces > 0) {
+      System.out.println(
+          serializerType + " trace of " + spanCount + " spans is " + bytes / traces + " bytes");
+    }
+    tracer.close();
+  }
+
+  @Benchmark
+  public int serialize() throws IOException {
+    if (serializer.isAtCapacity()) {
+      serializer.dropBuffer();
+      buffer.writeTo(DISCARDING_CHANNEL);
+      serializer.reset(buffer);
+    }
+    int size = serializer.serialize(trace);
+    bytes += size;
+    ++traces;
+    return size;
+  }
+
+  static List<DDSpan> createTrace(final CoreTracer tracer, final int spanCount) {
+    final List<DDSpan> spans = new ArrayList<>(spanCount);
+    final AgentSpan root =
+        tracer
+            .buildSpan("servlet.request")
+            .withServiceName("web")
+            .withResourceName("GET /users/?")
+            .withSpanType("web")
+            .withTag("http.method", "GET")
+            .withTag("http.url", "http://localhost:8080/users/12345")
+            .withTag("http.status_code", 200)
+            .withTag("component", "java-web-servlet")
+            .start();
+    spans.add((DDSpan) root);
+    for (int i = 1; i < spanCount; i++) {
+      final AgentSpan child =
+          tracer
+              .buildSpan("database.query")
+              .withServiceName("users-db")
+              .withResourceName("SELECT * FROM users WHERE id = ?")
+              .withSpanType("sql")
+              .withTag("db.type", "postgresql")
+              .withTag("db.instance", "users")
+              .withTag("db.user", "app")
+              .withTag("peer.hostname", "db-" + (i % 4) + ".internal")
+              .withTag("component", "java-jdbc-prepared_statement")
+              .asChildOf(root.context())
+              .start();
+      child.finish();
+      spans.add((DDSpan) child);
+    }
+    root.finish();
+    return spans;
+  }
+
+  private static final WritableByteChannel DISCARDING_CHANNEL =
+      new WritableByteChannel() {
+        @Override
+        public int write(final ByteBuffer src) {
+          final int remaining = src.remaining();
+          src.position(src.limit());
+          return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+          return true;
+        }
+
+        @Override
+        public void close() {}
+      };
+}
@@ -0,0 +1,75 @@
+package datadog.trace.core;
+
+import datadog.trace.bootstrap.instrumentation.api.AgentSpan;
+import datadog.trace.common.writer.InterceptingWriter;
+import java.util.List;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Start and finish child spans of a single trace from 1, 8 and 32 threads, which is the contended
+ * path through {@link PendingTrace}. Partial flushes (every 1000 spans by default) keep the trace
+ * from growing without bound. Compare against the previous design by running this benchmark on the
+ * parent commit.
+ */
+@State(Scope.Benchmark)
+public class PendingTraceBenchmark {
+
+  private CoreTracer tracer;
+  private AgentSpan root;
+
+  @Setup(Level.Iteration)
+  public void setup() {
+    tracer = CoreTracer.builder().writer(new DiscardingWriter()).build();
+    root = tracer.buildSpan("root").start();
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() {
+    root.finish();
+    tracer.close();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public AgentSpan startFinishChild1Thread() {
+    return startFinishChild();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public AgentSpan startFinishChild8Threads() {
+    return startFinishChild();
+  }
+
+  @Benchmark
+  @Threads(32)
+  public AgentSpan startFinishChild32Threads() {
+    return startFinishChild();
+  }
+
+  private AgentSpan startFinishChild() {
+    final AgentSpan span = tracer.buildSpan("child").asChildOf(root.context()).start();
+    span.finish();
+    return span;
+  }
+
+  static class DiscardingWriter implements InterceptingWriter {
+    @Override
+    public void write(final List<DDSpan> trace) {}
+
+    @Override
+    public void start() {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public void incrementTraceCount() {}
+  }
+}
@@ -0,0 +1,52 @@
+package datadog.trace.core;
+
+import datadog.trace.api.DDTags;
+import datadog.trace.bootstrap.instrumentation.api.Tags;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Sets tags on a span through {@link DDSpanContext#setTag}, both tags which no decorator matches,
+ * the common case, and tags which the builtin decorators rewrite, to measure the lookup in the
+ * {@link DecoratorTable}. Compare against the previous design by running this benchmark on the
+ * parent commit.
+ */
+@State(Scope.Benchmark)
+public class SetTagBenchmark {
+
+  private CoreTracer tracer;
+  private DDSpanContext context;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    tracer = CoreTracer.builder().writer(new PendingTraceBenchmark.DiscardingWriter()).build();
+    context = ((DDSpan) tracer.buildSpan("servlet.request").start()).context();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    tracer.close();
+  }
+
+  @Benchmark
+  public DDSpanContext setTagsWithoutDecorators() {
+    context.setTag(Tags.COMPONENT, "java-web-servlet");
+    context.setTag(Tags.HTTP_METHOD, "GET");
+    context.setTag(Tags.HTTP_URL, "http://localhost:8080/users/list");
+    context.setTag(Tags.HTTP_STATUS, 200);
+    return context;
+  }
+
+  @Benchmark
+  public DDSpanContext setTagsWithDecorators() {
+    context.setTag(DDTags.SERVICE_NAME, "users");
+    context.setTag(Tags.PEER_SERVICE, "users-db");
+    context.setTag(Tags.DB_TYPE, "postgresql");
+    context.setTag("servlet.context", "/users");
+    return context;
+  }
+}
@@ -0,0 +1,50 @@
+package datadog.trace.core;
+
+import datadog.trace.bootstrap.instrumentation.api.AgentSpan;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Starts a span, sets 10 tags and 2 metrics on it and finishes it, which is where {@link TagMap}
+ * replaced the concurrent maps of {@link DDSpanContext}. Run with {@code -prof gc} to report the
+ * bytes allocated per span ({@code gc.alloc.rate.norm}), and compare against the previous design by
+ * running this benchmark on the parent commit.
+ */
+@State(Scope.Benchmark)
+public class SpanTagsBenchmark {
+
+  private CoreTracer tracer;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    tracer = CoreTracer.builder().writer(new PendingTraceBenchmark.DiscardingWriter()).build();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    tracer.close();
+  }
+
+  @Benchmark
+  public AgentSpan startTagFinish() {
+    final DDSpan span = (DDSpan) tracer.buildSpan("servlet.request").start();
+    span.setTag("component", "java-web-servlet");
+    span.setTag("span.kind", "server");
+    span.setTag("http.method", "GET");
+    span.setTag("http.url", "http://localhost:8080/users/list");
+    span.setTag("http.status_code", 200);
+    span.setTag("peer.hostname", "10.0.0.1");
+    span.setTag("peer.port", 52634);
+    span.setTag("servlet.context", "/users");
+    span.setTag("servlet.path", "/list");
+    span.setTag("user.authenticated", true);
+    span.context().setMetric("_dd.measured", 1);
+    span.context().setMetric("_dd1.sr.eausr", 0.5);
+    span.finish();
+    return span;
+  }
+}
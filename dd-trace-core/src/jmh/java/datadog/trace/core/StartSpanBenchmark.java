@@ -0,0 +1,82 @@
+package datadog.trace.core;
+
+import datadog.trace.api.Config;
+import datadog.trace.bootstrap.instrumentation.api.AgentSpan;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Starts and finishes a root span and a child span, with 4 default span tags configured, through
+ * the span builder and through the builder-free {@code startSpan}, with the 2 tags an
+ * instrumentation would resolve once. Run with {@code -prof gc} to report the bytes allocated per
+ * operation ({@code gc.alloc.rate.norm}), and compare against the previous design by running the
+ * builder benchmark on the parent commit.
+ */
+@State(Scope.Benchmark)
+public class StartSpanBenchmark {
+
+  private static final Map<String, Object> TAGS;
+
+  static {
+    final Map<String, Object> tags = new LinkedHashMap<>();
+    tags.put("component", "java-web-servlet");
+    tags.put("span.kind", "server");
+    TAGS = Collections.unmodifiableMap(tags);
+  }
+
+  private CoreTracer tracer;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    final Properties properties = new Properties();
+    properties.setProperty(Config.SPAN_TAGS, "env:prod,version:1.0,team:apm,region:us-east-1");
+    tracer =
+        CoreTracer.builder()
+            .withProperties(properties)
+            .writer(new PendingTraceBenchmark.DiscardingWriter())
+            .build();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    tracer.close();
+  }
+
+  @Benchmark
+  public AgentSpan builder() {
+    final AgentSpan root =
+        tracer
+            .buildSpan("servlet.request")
+            .ignoreActiveSpan()
+            .withTag("component", "java-web-servlet")
+            .withTag("span.kind", "server")
+            .start();
+    final AgentSpan child =
+        tracer
+            .buildSpan("servlet.forward")
+            .asChildOf(root.context())
+            .withTag("component", "java-web-servlet")
+            .withTag("span.kind", "server")
+            .start();
+    child.finish();
+    root.finish();
+    return root;
+  }
+
+  @Benchmark
+  public AgentSpan builderFree() {
+    final AgentSpan root = tracer.startSpan("servlet.request", null, TAGS);
+    final AgentSpan child = tracer.startSpan("servlet.forward", root.context(), TAGS);
+    child.finish();
+    root.finish();
+    return root;
+  }
+}
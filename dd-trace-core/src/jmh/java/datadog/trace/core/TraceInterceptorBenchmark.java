@@ -0,0 +1,114 @@
+package datadog.trace.core;
+
+import datadog.trace.api.interceptor.MutableSpan;
+import datadog.trace.api.interceptor.TraceInterceptor;
+import datadog.trace.bootstrap.instrumentation.api.AgentSpan;
+import datadog.trace.common.writer.InterceptingWriter;
+import datadog.trace.core.processor.TraceProcessor;
+import java.util.Collection;
+import java.util.List;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Finishes traces of 5 spans with 0, 1 and 3 trace interceptors registered, each of which tags
+ * every span. {@code finishTrace} discards the trace once it is handed to the writer, so measures
+ * the application thread only, while {@code finishAndProcessTrace} also processes the trace like
+ * the writers do, where the interceptors now run. Compare against the previous design by running
+ * this benchmark on the parent commit.
+ */
+@State(Scope.Benchmark)
+public class TraceInterceptorBenchmark {
+
+  private static final int CHILD_SPANS = 4;
+
+  @Param({"0", "1", "3"})
+  int interceptors;
+
+  private CoreTracer discardingTracer;
+  private CoreTracer processingTracer;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    discardingTracer =
+        CoreTracer.builder().writer(new PendingTraceBenchmark.DiscardingWriter()).build();
+    processingTracer = CoreTracer.builder().writer(new ProcessingWriter()).build();
+    for (int i = 0; i < interceptors; i++) {
+      discardingTracer.addTraceInterceptor(new TaggingInterceptor(i + 1));
+      processingTracer.addTraceInterceptor(new TaggingInterceptor(i + 1));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    discardingTracer.close();
+    processingTracer.close();
+  }
+
+  @Benchmark
+  public AgentSpan finishTrace() {
+    return startFinishTrace(discardingTracer);
+  }
+
+  @Benchmark
+  public AgentSpan finishAndProcessTrace() {
+    return startFinishTrace(processingTracer);
+  }
+
+  private static AgentSpan startFinishTrace(final CoreTracer tracer) {
+    final AgentSpan root = tracer.buildSpan("root").start();
+    for (int i = 0; i < CHILD_SPANS; i++) {
+      tracer.buildSpan("child").asChildOf(root.context()).start().finish();
+    }
+    root.finish();
+    return root;
+  }
+
+  static class TaggingInterceptor implements TraceInterceptor {
+    private final int priority;
+    private final String tag;
+
+    TaggingInterceptor(final int priority) {
+      this.priority = priority;
+      this.tag = "intercepted." + priority;
+    }
+
+    @Override
+    public Collection<? extends MutableSpan> onTraceComplete(
+        final Collection<? extends MutableSpan> trace) {
+      for (final MutableSpan span : trace) {
+        span.setTag(tag, true);
+      }
+      return trace;
+    }
+
+    @Override
+    public int priority() {
+      return priority;
+    }
+  }
+
+  /** Processes traces on the calling thread, then discards them. */
+  static class ProcessingWriter implements InterceptingWriter {
+    private final TraceProcessor processor = new TraceProcessor();
+
+    @Override
+    public void write(final List<DDSpan> trace) {
+      processor.onTraceComplete(trace);
+    }
+
+    @Override
+    public void start() {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public void incrementTraceCount() {}
+  }
+}
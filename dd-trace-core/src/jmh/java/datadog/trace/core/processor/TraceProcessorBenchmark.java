@@ -0,0 +1,98 @@
+package datadog.trace.core.processor;
+
+import datadog.trace.api.DDSpanTypes;
+import datadog.trace.api.DDTags;
+import datadog.trace.bootstrap.instrumentation.api.AgentSpan;
+import datadog.trace.bootstrap.instrumentation.api.Tags;
+import datadog.trace.common.writer.ListWriter;
+import datadog.trace.core.CoreTracer;
+import datadog.trace.core.DDSpan;
+import datadog.trace.core.DDSpanContext;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Applies the default rules to HTTP, database and messaging traces of 10 spans, either compiled
+ * into a {@link RulePlan} or one rule after another. Every invocation first restores the tags the
+ * rules consume, which costs both variants the same.
+ */
+@State(Scope.Benchmark)
+public class TraceProcessorBenchmark {
+
+  private static final int SPAN_COUNT = 10;
+
+  @Param({"true", "false"})
+  boolean compiled;
+
+  @Param({"http", "db", "messaging"})
+  String traceType;
+
+  private CoreTracer tracer;
+  private TraceProcessor processor;
+  private List<DDSpan> trace;
+  private List<Map<String, Object>> templates;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    tracer = CoreTracer.builder().writer(new ListWriter()).build();
+    processor = new TraceProcessor(compiled);
+    trace = new ArrayList<>(SPAN_COUNT);
+    templates = new ArrayList<>(SPAN_COUNT);
+    final AgentSpan root = tracer.buildSpan("root").start();
+    for (int i = 0; i < SPAN_COUNT; i++) {
+      final AgentSpan span =
+          0 == i ? root : tracer.buildSpan("child").asChildOf(root.context()).start();
+      trace.add((DDSpan) span);
+      templates.add(tags(i));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    tracer.close();
+  }
+
+  @Benchmark
+  public List<DDSpan> processTrace() {
+    for (int i = 0; i < SPAN_COUNT; i++) {
+      final DDSpanContext context = trace.get(i).context();
+      context.setResourceName(null);
+      context.setSpanType(null);
+      context.setErrorFlag(false);
+      context.getTags().putAll(templates.get(i));
+    }
+    return processor.onTraceComplete(trace);
+  }
+
+  private Map<String, Object> tags(final int index) {
+    final Map<String, Object> tags = new HashMap<>();
+    if ("http".equals(traceType)) {
+      tags.put(DDTags.SPAN_TYPE, 0 == index ? DDSpanTypes.HTTP_SERVER : DDSpanTypes.HTTP_CLIENT);
+      tags.put(Tags.HTTP_METHOD, "GET");
+      tags.put(Tags.HTTP_URL, "http://localhost:8080/users/" + (12345 + index) + "/orders");
+      tags.put(Tags.HTTP_STATUS, 0 == index % 4 ? 404 : 200);
+      tags.put(Tags.COMPONENT, "okhttp");
+    } else if ("db".equals(traceType)) {
+      tags.put(DDTags.SPAN_TYPE, DDSpanTypes.SQL);
+      tags.put(Tags.DB_TYPE, "postgresql");
+      tags.put(Tags.DB_STATEMENT, "SELECT * FROM users WHERE id = ?");
+      tags.put(Tags.COMPONENT, "java-jdbc-prepared_statement");
+    } else {
+      tags.put(DDTags.SPAN_TYPE, DDSpanTypes.MESSAGE_CONSUMER);
+      tags.put(DDTags.RESOURCE_NAME, "Consume Topic orders");
+      tags.put(DDTags.ANALYTICS_SAMPLE_RATE, 1.0);
+      tags.put(Tags.COMPONENT, "java-kafka");
+      tags.put(Tags.ERROR, 0 == index % 5);
+    }
+    return tags;
+  }
+}
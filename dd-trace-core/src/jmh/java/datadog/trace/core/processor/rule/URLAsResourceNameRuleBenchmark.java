@@ -0,0 +1,76 @@
+package datadog.trace.core.processor.rule;
+
+import static datadog.trace.core.processor.rule.URLAsResourceNameRule.PATH_MIXED_ALPHANUMERICS;
+
+import java.util.Random;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Computes resource names from urls drawn from 1000 path shapes, either mostly repeating static
+ * paths or mostly paths containing ids, with the regex the rule used to apply, with the regex-free
+ * normalizer, and with the normalizer behind the cache.
+ */
+@State(Scope.Benchmark)
+public class URLAsResourceNameRuleBenchmark {
+
+  private static final int URL_COUNT = 1 << 14;
+  private static final int SHAPE_COUNT = 1000;
+
+  @Param({"static", "ids"})
+  String paths;
+
+  private final URLAsResourceNameRule uncached = new URLAsResourceNameRule(null);
+  private URLAsResourceNameRule cached;
+  private String[] urls;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    cached = new URLAsResourceNameRule();
+    urls = new String[URL_COUNT];
+    final Random random = new Random(0);
+    final boolean ids = "ids".equals(paths);
+    for (int i = 0; i < URL_COUNT; i++) {
+      final int shape = random.nextInt(SHAPE_COUNT);
+      final boolean withId = ids ? random.nextInt(10) != 0 : random.nextInt(10) == 0;
+      urls[i] =
+          "http://localhost:8080/api/v2/"
+              + name(shape % 50)
+              + "/"
+              + name(shape)
+              + (withId ? "/" + random.nextInt(1_000_000) + "/details" : "/list")
+              + "?page="
+              + random.nextInt(10);
+    }
+  }
+
+  @Benchmark
+  public String regex() {
+    final String url = nextUrl();
+    final String rawPath = uncached.rawPathFromUrlString(url);
+    return "GET " + PATH_MIXED_ALPHANUMERICS.matcher(rawPath).replaceAll("?");
+  }
+
+  @Benchmark
+  public String normalizer() {
+    return uncached.resourceName(nextUrl(), "GET");
+  }
+
+  @Benchmark
+  public String cachedNormalizer() {
+    return cached.resourceName(nextUrl(), "GET");
+  }
+
+  private static String name(final int index) {
+    return "" + (char) ('a' + index % 26) + (char) ('a' + index / 26 % 26) + "-items";
+  }
+
+  private String nextUrl() {
+    return urls[next++ & (URL_COUNT - 1)];
+  }
+}
@@ -3,26 +3,31 @@ package datadog.trace.common.sampling;
 import datadog.trace.core.CoreTracer;
 import datadog.trace.core.DDSpan;
 import java.math.BigDecimal;
-import java.math.BigInteger;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * This implements the deterministic sampling algorithm used by the Datadog Agent as well as the
  * tracers for other languages
+ *
+ * <p>The hash is computed with wrapping {@code long} arithmetic, which is exactly multiplication
+ * modulo 2^64, and compared as unsigned against a cutoff computed once, so a sampling decision
+ * doesn't allocate.
  */
 @Slf4j
 public class DeterministicSampler implements RateSampler {
-  private static final BigInteger KNUTH_FACTOR = new BigInteger("1111111111111111111");
+  private static final long KNUTH_FACTOR = 1111111111111111111L;
   private static final BigDecimal TRACE_ID_MAX_AS_BIG_DECIMAL =
       new BigDecimal(CoreTracer.TRACE_ID_MAX);
-  private static final BigInteger MODULUS = new BigInteger("2").pow(64);
 
-  private final BigInteger cutoff;
+  // unsigned cutoff, offset by Long.MIN_VALUE so that it can be compared with signed comparison
+  private final long cutoff;
   private final double rate;
 
   public DeterministicSampler(final double rate) {
     this.rate = rate;
-    cutoff = new BigDecimal(rate).multiply(TRACE_ID_MAX_AS_BIG_DECIMAL).toBigInteger();
+    cutoff =
+        new BigDecimal(rate).multiply(TRACE_ID_MAX_AS_BIG_DECIMAL).toBigInteger().longValue()
+            + Long.MIN_VALUE;
 
     log.debug("Initializing the RateSampler, sampleRate: {} %", rate * 100);
   }
@@ -30,12 +35,12 @@ public class DeterministicSampler implements RateSampler {
   @Override
   public boolean sample(final DDSpan span) {
     final boolean sampled;
-    if (rate == 1) {
+    if (rate >= 1) {
       sampled = true;
-    } else if (rate == 0) {
+    } else if (rate <= 0) {
       sampled = false;
     } else {
-      sampled = span.getTraceId().multiply(KNUTH_FACTOR).mod(MODULUS).compareTo(cutoff) < 0;
+      sampled = span.getDDTraceId().toLong() * KNUTH_FACTOR + Long.MIN_VALUE < cutoff;
     }
 
     log.debug("{} - Span is sampled: {}", span, sampled);
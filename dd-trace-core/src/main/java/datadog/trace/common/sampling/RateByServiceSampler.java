@@ -1,11 +1,9 @@
 package datadog.trace.common.sampling;
 
-import static java.util.Collections.singletonMap;
-import static java.util.Collections.unmodifiableMap;
-
 import datadog.trace.api.sampling.PrioritySampling;
 import datadog.trace.common.writer.ddagent.DDAgentResponseListener;
 import datadog.trace.core.DDSpan;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import lombok.extern.slf4j.Slf4j;
@@ -22,10 +20,15 @@ public class RateByServiceSampler implements Sampler, PrioritySampler, DDAgentRe
   /** Key for setting the default/baseline rate */
   private static final String DEFAULT_KEY = "service:,env:";
 
+  private static final String SERVICE_PREFIX = "service:";
+  private static final String ENV_PREFIX = ",env:";
+
   private static final double DEFAULT_RATE = 1.0;
 
-  private volatile Map<String, RateSampler> serviceRates =
-      unmodifiableMap(singletonMap(DEFAULT_KEY, createRateSampler(DEFAULT_RATE)));
+  private volatile RateSamplersByServiceAndEnv serviceRates =
+      new RateSamplersByServiceAndEnv(
+          createRateSampler(DEFAULT_RATE),
+          Collections.<String, Map<String, RateSampler>>emptyMap());
 
   @Override
   public boolean sample(final DDSpan span) {
@@ -37,15 +40,7 @@ public class RateByServiceSampler implements Sampler, PrioritySampler, DDAgentRe
   /** If span is a root span, set the span context samplingPriority to keep or drop */
   @Override
   public void setSamplingPriority(final DDSpan span) {
-    final String serviceName = span.getServiceName();
-    final String env = getSpanEnv(span);
-    final String key = "service:" + serviceName + ",env:" + env;
-
-    final Map<String, RateSampler> rates = serviceRates;
-    RateSampler sampler = serviceRates.get(key);
-    if (sampler == null) {
-      sampler = rates.get(DEFAULT_KEY);
-    }
+    final RateSampler sampler = serviceRates.getSampler(span.getServiceName(), getSpanEnv(span));
 
     final boolean priorityWasSet;
 
@@ -63,7 +58,9 @@ public class RateByServiceSampler implements Sampler, PrioritySampler, DDAgentRe
   }
 
   private static String getSpanEnv(final DDSpan span) {
-    return null == span.getTags().get("env") ? "" : String.valueOf(span.getTags().get("env"));
+    // read through the context to avoid wrapping the tags in an unmodifiable view
+    final Object env = span.context().getTags().get("env");
+    return null == env ? "" : String.valueOf(env);
   }
 
   @Override
@@ -72,17 +69,36 @@ public class RateByServiceSampler implements Sampler, PrioritySampler, DDAgentRe
     final Map<String, Number> newServiceRates = responseJson.get("rate_by_service");
     if (null != newServiceRates) {
       log.debug("Update service sampler rates: {} -> {}", endpoint, responseJson);
-      final Map<String, RateSampler> updatedServiceRates = new HashMap<>();
+      RateSampler defaultSampler = null;
+      final Map<String, Map<String, RateSampler>> updatedServiceRates = new HashMap<>();
       for (final Map.Entry<String, Number> entry : newServiceRates.entrySet()) {
-        if (entry.getValue() != null) {
-          updatedServiceRates.put(
-              entry.getKey(), createRateSampler(entry.getValue().doubleValue()));
+        if (entry.getValue() == null) {
+          continue;
+        }
+        final String key = entry.getKey();
+        final RateSampler sampler = createRateSampler(entry.getValue().doubleValue());
+        if (DEFAULT_KEY.equals(key)) {
+          defaultSampler = sampler;
+          continue;
         }
+        final int envIndex = key.lastIndexOf(ENV_PREFIX);
+        if (!key.startsWith(SERVICE_PREFIX) || envIndex < SERVICE_PREFIX.length()) {
+          log.debug("Ignoring unrecognized service rate key: {}", key);
+          continue;
+        }
+        final String service = key.substring(SERVICE_PREFIX.length(), envIndex);
+        final String env = key.substring(envIndex + ENV_PREFIX.length());
+        Map<String, RateSampler> ratesByEnv = updatedServiceRates.get(service);
+        if (ratesByEnv == null) {
+          ratesByEnv = new HashMap<>();
+          updatedServiceRates.put(service, ratesByEnv);
+        }
+        ratesByEnv.put(env, sampler);
       }
-      if (!updatedServiceRates.containsKey(DEFAULT_KEY)) {
-        updatedServiceRates.put(DEFAULT_KEY, createRateSampler(DEFAULT_RATE));
+      if (defaultSampler == null) {
+        defaultSampler = createRateSampler(DEFAULT_RATE);
       }
-      serviceRates = unmodifiableMap(updatedServiceRates);
+      serviceRates = new RateSamplersByServiceAndEnv(defaultSampler, updatedServiceRates);
     }
   }
 
@@ -99,4 +115,34 @@ public class RateByServiceSampler implements Sampler, PrioritySampler, DDAgentRe
 
     return new DeterministicSampler(sanitizedRate);
   }
+
+  /**
+   * Immutable lookup of the agent provided rates, keyed by service and then env, so that finding
+   * the sampler for a span doesn't need to build a composite key.
+   */
+  static final class RateSamplersByServiceAndEnv {
+    private final RateSampler defaultSampler;
+    private final Map<String, Map<String, RateSampler>> samplers;
+
+    RateSamplersByServiceAndEnv(
+        final RateSampler defaultSampler, final Map<String, Map<String, RateSampler>> samplers) {
+      this.defaultSampler = defaultSampler;
+      this.samplers = samplers;
+    }
+
+    RateSampler getDefaultSampler() {
+      return defaultSampler;
+    }
+
+    RateSampler getSampler(final String service, final String env) {
+      final Map<String, RateSampler> samplersByEnv = samplers.get(service);
+      if (null != samplersByEnv) {
+        final RateSampler sampler = samplersByEnv.get(env);
+        if (null != sampler) {
+          return sampler;
+        }
+      }
+      return defaultSampler;
+    }
+  }
 }
@@ -5,16 +5,26 @@ import static datadog.trace.api.Config.DEFAULT_AGENT_UNIX_DOMAIN_SOCKET;
 import static datadog.trace.api.Config.DEFAULT_TRACE_AGENT_PORT;
 
 import com.lmax.disruptor.EventFactory;
+import datadog.common.exec.CommonTaskExecutor;
+import datadog.trace.api.sampling.PrioritySampling;
+import datadog.trace.common.writer.ddagent.AdaptiveFlushController;
+import datadog.trace.common.writer.ddagent.AgentCircuitBreaker;
+import datadog.trace.common.writer.ddagent.ClientStatsAggregator;
 import datadog.trace.common.writer.ddagent.DDAgentApi;
 import datadog.trace.common.writer.ddagent.DDAgentResponseListener;
 import datadog.trace.common.writer.ddagent.DispatchingDisruptor;
 import datadog.trace.common.writer.ddagent.Monitor;
 import datadog.trace.common.writer.ddagent.MsgPackStatefulSerializer;
+import datadog.trace.common.writer.ddagent.SpillQueue;
 import datadog.trace.common.writer.ddagent.StatefulSerializer;
+import datadog.trace.common.writer.ddagent.StripedSubmissionBuffer;
 import datadog.trace.common.writer.ddagent.TraceBuffer;
+import datadog.trace.common.writer.ddagent.TraceMemoryBudget;
 import datadog.trace.common.writer.ddagent.TraceProcessingDisruptor;
 import datadog.trace.core.DDSpan;
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import lombok.extern.slf4j.Slf4j;
@@ -23,7 +33,8 @@ import lombok.extern.slf4j.Slf4j;
  * This writer buffers traces and sends them to the provided DDApi instance. Buffering is done with
  * a distruptor to limit blocking the application threads. Internally, the trace is serialized and
  * put onto a separate disruptor that does block to decouple the CPU intensive from the IO bound
- * threads.
+ * threads. Several requests to the agent may be in flight at once, so that a slow response doesn't
+ * stall serialization.
  *
  * <p>[Application] -> [trace processing buffer] -> [serialized trace batching buffer] -> [dd-agent]
  *
@@ -32,16 +43,47 @@ import lombok.extern.slf4j.Slf4j;
  *
  * <p>If the buffer is filled traces are discarded before serializing. Once serialized every effort
  * is made to keep, to avoid wasting the serialization effort.
+ *
+ * <p>Optionally, traces are first staged in a {@link StripedSubmissionBuffer}, which reduces
+ * contention between application threads and absorbs bursts which would overfill the first buffer.
+ *
+ * <p>The first buffer can also be bounded by the estimated heap its traces retain, with a {@link
+ * TraceMemoryBudget}, in which case traces with a lower sampling priority are dropped first.
+ *
+ * <p>When stats are aggregated by the tracer with a {@link ClientStatsAggregator}, and the agent
+ * accepts them, traces dropped by the sampler are only counted, and the aggregates are sent to the
+ * agent periodically, by the threads sending traces. Until the agent is found to accept stats,
+ * every trace is sent as before.
+ *
+ * <p>While the agent is unavailable, serialized traces can be spilled to disk with a {@link
+ * SpillQueue}, and are replayed once it is available again, by the threads sending traces rather
+ * than on the shared task scheduler.
+ *
+ * <p>The flush interval and payload size can be tuned from the agent's responses by an {@link
+ * AdaptiveFlushController}, within its bounds, instead of being fixed.
+ *
+ * <p>When the api guards its requests with an {@link AgentCircuitBreaker}, its changes of state
+ * are reported to the monitor.
  */
 @Slf4j
-public class DDAgentWriter implements Writer {
+public class DDAgentWriter implements InterceptingWriter {
 
   private static final int DISRUPTOR_BUFFER_SIZE = 1024;
   private static final int OUTSTANDING_REQUESTS = 4;
+  private static final long SUBMISSION_DRAIN_MILLIS = 10;
+  private static final long SUBMISSION_REPORT_MILLIS = 1000;
+  private static final long CLIENT_STATS_FLUSH_SECONDS = 10;
 
   private final DDAgentApi api;
   private final TraceProcessingDisruptor traceProcessingDisruptor;
   private final DispatchingDisruptor dispatchingDisruptor;
+  private final StripedSubmissionBuffer submissionBuffer;
+  private final TraceMemoryBudget budget;
+  private final ClientStatsAggregator clientStats;
+  private final SpillQueue spillQueue;
+
+  private volatile ScheduledFuture<?> submissionDrain;
+  private volatile ScheduledFuture<?> submissionReport;
 
   private final AtomicInteger traceCount = new AtomicInteger(0);
   private volatile boolean closed;
@@ -56,6 +98,10 @@ public class DDAgentWriter implements Writer {
     int traceBufferSize = DISRUPTOR_BUFFER_SIZE;
     Monitor monitor = new Monitor.Noop();
     int flushFrequencySeconds = 1;
+    int serializerThreads = 1;
+    int submissionStripes = 0;
+    long queueBudgetBytes = 0;
+    int inflightRequests = 1;
   }
 
   @Deprecated
@@ -73,17 +119,33 @@ public class DDAgentWriter implements Writer {
     this.monitor = monitor;
     dispatchingDisruptor =
         new DispatchingDisruptor(
-            OUTSTANDING_REQUESTS, toEventFactory(serializer), api, monitor, this);
+            OUTSTANDING_REQUESTS,
+            1,
+            1,
+            toEventFactory(serializer),
+            api,
+            monitor,
+            this,
+            null,
+            null,
+            null);
     traceProcessingDisruptor =
         new TraceProcessingDisruptor(
             DISRUPTOR_BUFFER_SIZE,
             dispatchingDisruptor,
             monitor,
             this,
-            serializer,
+            new StatefulSerializer[] {serializer},
+            null,
+            null,
+            null,
             1,
             TimeUnit.SECONDS,
             false);
+    submissionBuffer = null;
+    budget = null;
+    clientStats = null;
+    spillQueue = null;
   }
 
   @lombok.Builder
@@ -96,26 +158,75 @@ public class DDAgentWriter implements Writer {
       final int traceBufferSize,
       final Monitor monitor,
       final int flushFrequencySeconds,
-      final StatefulSerializer serializer) {
+      final StatefulSerializer serializer,
+      final int serializerThreads,
+      final int submissionStripes,
+      final long queueBudgetBytes,
+      final ClientStatsAggregator clientStats,
+      final int inflightRequests,
+      final SpillQueue spillQueue,
+      final AdaptiveFlushController flushController) {
     if (agentApi != null) {
       api = agentApi;
     } else {
       api = new DDAgentApi(agentHost, traceAgentPort, unixDomainSocket);
     }
-    final StatefulSerializer s = null == serializer ? new MsgPackStatefulSerializer() : serializer;
+    final StatefulSerializer[] serializers;
+    if (null == serializer) {
+      serializers = new StatefulSerializer[Math.max(1, serializerThreads)];
+      for (int i = 0; i < serializers.length; ++i) {
+        serializers[i] = new MsgPackStatefulSerializer();
+      }
+    } else {
+      if (serializerThreads > 1) {
+        log.warn(
+            "A single serializer was provided, ignoring request for {} serializer threads",
+            serializerThreads);
+      }
+      serializers = new StatefulSerializer[] {serializer};
+    }
     this.monitor = monitor;
+    this.budget = queueBudgetBytes > 0 ? new TraceMemoryBudget(queueBudgetBytes) : null;
+    this.clientStats = clientStats;
+    if (null != clientStats) {
+      api.setClientComputedStats(true);
+    }
+    if (null != api.getCircuitBreaker()) {
+      api.getCircuitBreaker().addListener(new CircuitBreakerReporter(this));
+    }
+    this.spillQueue = spillQueue;
+    final int senders = Math.max(1, inflightRequests);
+    // each serializer holds a buffer while it fills it, and each sender while it sends it
     this.dispatchingDisruptor =
-        new DispatchingDisruptor(OUTSTANDING_REQUESTS, toEventFactory(s), api, monitor, this);
+        new DispatchingDisruptor(
+            OUTSTANDING_REQUESTS + serializers.length - 1 + senders - 1,
+            serializers.length,
+            senders,
+            toEventFactory(serializers[0]),
+            api,
+            monitor,
+            this,
+            spillQueue,
+            flushController,
+            null == spillQueue && null == clientStats ? null : new BackgroundTask(this));
     this.traceProcessingDisruptor =
         new TraceProcessingDisruptor(
             traceBufferSize,
             dispatchingDisruptor,
             monitor,
             this,
-            s,
+            serializers,
+            budget,
+            clientStats,
+            flushController,
             flushFrequencySeconds,
             TimeUnit.SECONDS,
             flushFrequencySeconds > 0);
+    this.submissionBuffer =
+        submissionStripes > 0
+            ? new StripedSubmissionBuffer(
+                submissionStripes, traceProcessingDisruptor, budget, monitor, this)
+            : null;
   }
 
   public void addResponseListener(final DDAgentResponseListener listener) {
@@ -135,6 +246,11 @@ public class DDAgentWriter implements Writer {
     return traceProcessingDisruptor.getDisruptorRemainingCapacity();
   }
 
+  /** @return the estimated heap retained by queued traces, or 0 if the queue has no budget */
+  public final long getQueuedBytes() {
+    return null == budget ? 0 : budget.getUsedBytes();
+  }
+
   @Override
   public void write(final List<DDSpan> trace) {
     // We can't add events after shutdown otherwise it will never complete shutting down.
@@ -146,9 +262,28 @@ public class DDAgentWriter implements Writer {
       } else {
         representativeCount = traceCount.getAndSet(0) + 1;
       }
-      final boolean published = traceProcessingDisruptor.publish(trace, representativeCount);
+      final int footprint;
+      final boolean published;
+      if (null == budget) {
+        footprint = 0;
+        published = publish(trace, representativeCount, 0);
+      } else {
+        footprint = budget.estimate(trace);
+        if (budget.tryAcquire(footprint, samplingPriority(trace))) {
+          published = publish(trace, representativeCount, footprint);
+          if (!published) {
+            budget.release(footprint);
+          }
+        } else {
+          published = false;
+        }
+        monitor.onBudgetedPublish(this, trace, footprint, published);
+      }
       if (published) {
-        monitor.onPublish(DDAgentWriter.this, trace);
+        if (null == submissionBuffer) {
+          // staged traces are reported by the buffer once they reach the disruptor
+          monitor.onPublish(DDAgentWriter.this, trace);
+        }
       } else {
         // We're discarding the trace, but we still want to count it.
         traceCount.addAndGet(representativeCount);
@@ -161,8 +296,22 @@ public class DDAgentWriter implements Writer {
     }
   }
 
+  private boolean publish(
+      final List<DDSpan> trace, final int representativeCount, final int footprint) {
+    return null == submissionBuffer
+        ? traceProcessingDisruptor.publish(trace, representativeCount, footprint)
+        : submissionBuffer.offer(trace, representativeCount, footprint);
+  }
+
+  private static int samplingPriority(final List<DDSpan> trace) {
+    return trace.isEmpty() ? PrioritySampling.UNSET : trace.get(0).context().getSamplingPriority();
+  }
+
   public boolean flush() {
     if (!closed) { // give up after a second
+      if (null != submissionBuffer) {
+        submissionBuffer.drain();
+      }
       if (traceProcessingDisruptor.flush(1, TimeUnit.SECONDS)) {
         monitor.onFlush(this, false);
         return true;
@@ -185,22 +334,72 @@ public class DDAgentWriter implements Writer {
     if (!closed) {
       dispatchingDisruptor.start();
       traceProcessingDisruptor.start();
+      if (null != submissionBuffer) {
+        submissionDrain =
+            CommonTaskExecutor.INSTANCE.scheduleAtFixedRate(
+                new SubmissionDrainTask(),
+                submissionBuffer,
+                SUBMISSION_DRAIN_MILLIS,
+                SUBMISSION_DRAIN_MILLIS,
+                TimeUnit.MILLISECONDS,
+                "trace submission drain");
+        submissionReport =
+            CommonTaskExecutor.INSTANCE.scheduleAtFixedRate(
+                new SubmissionReportTask(),
+                this,
+                SUBMISSION_REPORT_MILLIS,
+                SUBMISSION_REPORT_MILLIS,
+                TimeUnit.MILLISECONDS,
+                "trace submission report");
+      }
       monitor.onStart(this);
     }
   }
 
   @Override
   public void close() {
+    if (null != submissionBuffer) {
+      // publish the staged traces before the last flush, and drop those there's no room for
+      submissionBuffer.close();
+    }
     boolean flushed = flush();
     closed = true;
+    if (null != submissionDrain) {
+      submissionDrain.cancel(false);
+    }
+    if (null != submissionReport) {
+      submissionReport.cancel(false);
+    }
+    if (null != clientStats) {
+      flushClientStats();
+    }
     try {
       traceProcessingDisruptor.close();
     } finally { // in case first close fails.
       dispatchingDisruptor.close();
+      if (null != spillQueue) {
+        spillQueue.close();
+      }
     }
     monitor.onShutdown(this, flushed);
   }
 
+  /** @return true if stats are aggregated by the tracer, and the agent accepts them */
+  public boolean isClientComputedStats() {
+    return null != clientStats && api.isClientComputedStats();
+  }
+
+  private void flushClientStats() {
+    try {
+      final byte[] payload = clientStats.drain();
+      if (null != payload && api.isClientComputedStats()) {
+        api.sendClientStats(payload);
+      }
+    } catch (final IOException e) {
+      log.debug("Failed to serialize client stats", e);
+    }
+  }
+
   @Override
   public String toString() {
     // DQH - I don't particularly like the instanceof check,
@@ -217,6 +416,63 @@ public class DDAgentWriter implements Writer {
     return str;
   }
 
+  // Important to use explicit classes to avoid implicit hard references to the writer
+  private static final class SubmissionDrainTask
+      implements CommonTaskExecutor.Task<StripedSubmissionBuffer> {
+    @Override
+    public void run(final StripedSubmissionBuffer submissionBuffer) {
+      submissionBuffer.drain();
+    }
+  }
+
+  private static final class SubmissionReportTask
+      implements CommonTaskExecutor.Task<DDAgentWriter> {
+    @Override
+    public void run(final DDAgentWriter writer) {
+      writer.submissionBuffer.report(writer.monitor, writer);
+    }
+  }
+
+  /**
+   * Run by the threads sending traces, one at a time, so may block on the agent like they do.
+   * Flushes the client stats every {@link #CLIENT_STATS_FLUSH_SECONDS}, and replays spilled traces.
+   */
+  private static final class BackgroundTask implements Runnable {
+    private final DDAgentWriter writer;
+    private long nextClientStatsFlushNanos;
+
+    private BackgroundTask(final DDAgentWriter writer) {
+      this.writer = writer;
+      this.nextClientStatsFlushNanos =
+          System.nanoTime() + TimeUnit.SECONDS.toNanos(CLIENT_STATS_FLUSH_SECONDS);
+    }
+
+    @Override
+    public void run() {
+      if (null != writer.clientStats && System.nanoTime() - nextClientStatsFlushNanos >= 0) {
+        nextClientStatsFlushNanos =
+            System.nanoTime() + TimeUnit.SECONDS.toNanos(CLIENT_STATS_FLUSH_SECONDS);
+        writer.flushClientStats();
+      }
+      if (null != writer.spillQueue) {
+        writer.spillQueue.replay(writer.api, writer.monitor, writer);
+      }
+    }
+  }
+
+  private static final class CircuitBreakerReporter implements AgentCircuitBreaker.Listener {
+    private final DDAgentWriter writer;
+
+    private CircuitBreakerReporter(final DDAgentWriter writer) {
+      this.writer = writer;
+    }
+
+    @Override
+    public void onStateChange(final AgentCircuitBreaker.State state, final long backoffMillis) {
+      writer.monitor.onCircuitBreaker(writer, state, backoffMillis);
+    }
+  }
+
   private static EventFactory<TraceBuffer> toEventFactory(final StatefulSerializer serializer) {
     return new SerializerBackedEventFactory(serializer);
   }
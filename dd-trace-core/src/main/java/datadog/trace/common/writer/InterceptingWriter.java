@@ -0,0 +1,8 @@
+package datadog.trace.common.writer;
+
+/**
+ * A writer which applies the tracer's {@link datadog.trace.api.interceptor.TraceInterceptor trace
+ * interceptors} itself, with a {@link datadog.trace.core.processor.TraceProcessor}, when it
+ * processes the traces it is given. The tracer applies them before handing traces to other writers.
+ */
+public interface InterceptingWriter extends Writer {}
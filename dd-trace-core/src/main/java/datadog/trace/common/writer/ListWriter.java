@@ -11,7 +11,8 @@ import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /** List writer used by tests mostly */
-public class ListWriter extends CopyOnWriteArrayList<List<DDSpan>> implements Writer {
+public class ListWriter extends CopyOnWriteArrayList<List<DDSpan>>
+    implements InterceptingWriter {
   private final TraceProcessor processor = new TraceProcessor();
   private final List<CountDownLatch> latches = new ArrayList<>();
   private final AtomicInteger traceCount = new AtomicInteger();
@@ -22,9 +23,14 @@ public class ListWriter extends CopyOnWriteArrayList<List<DDSpan>> implements Wr
 
   @Override
   public void write(List<DDSpan> trace) {
-    incrementTraceCount();
     synchronized (latches) {
+      final boolean empty = trace.isEmpty();
       trace = processor.onTraceComplete(trace);
+      if (trace.isEmpty() && !empty) {
+        // discarded by a trace interceptor, or dropped by the sampler and counted by the tracer
+        return;
+      }
+      incrementTraceCount();
       add(trace);
       for (final CountDownLatch latch : latches) {
         if (size() >= latch.getCount()) {
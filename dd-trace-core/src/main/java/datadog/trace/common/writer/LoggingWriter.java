@@ -8,12 +8,17 @@ import java.util.List;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
-public class LoggingWriter implements Writer {
+public class LoggingWriter implements InterceptingWriter {
   private final TraceProcessor processor = new TraceProcessor();
 
   @Override
   public void write(List<DDSpan> trace) {
+    final boolean empty = trace.isEmpty();
     trace = processor.onTraceComplete(trace);
+    if (trace.isEmpty() && !empty) {
+      // discarded by a trace interceptor, or dropped by the sampler
+      return;
+    }
     if (log.isInfoEnabled()) {
       try {
         log.info("write(trace): {}", toString(trace));
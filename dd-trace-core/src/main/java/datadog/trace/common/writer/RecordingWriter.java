@@ -0,0 +1,116 @@
+package datadog.trace.common.writer;
+
+import datadog.common.exec.DaemonThreadFactory;
+import datadog.trace.common.writer.ddagent.Monitor;
+import datadog.trace.common.writer.ddagent.RecordingApi;
+import datadog.trace.common.writer.ddagent.TraceRecorder;
+import datadog.trace.core.DDSpan;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Records traces to local segment files instead of sending them to the agent, for example to
+ * capture the traces of a load test and replay them later.
+ *
+ * <p>Traces are processed and serialized exactly as by the {@link DDAgentWriter}, and the buffers
+ * which would have been sent are written by a {@link TraceRecorder}. Records are synced to disk
+ * periodically, so that a recording stays complete up to the last sync interval when the
+ * application stops abruptly. Syncs can block for a while, so they are made by a thread of the
+ * writer's own rather than on the shared task scheduler.
+ */
+@Slf4j
+public class RecordingWriter implements InterceptingWriter {
+
+  private final TraceRecorder recorder;
+  private final DDAgentWriter writer;
+  private final long syncIntervalMillis;
+
+  private volatile ScheduledExecutorService syncExecutor;
+
+  public RecordingWriter(
+      final TraceRecorder recorder, final Monitor monitor, final long syncIntervalMillis) {
+    this.recorder = recorder;
+    this.syncIntervalMillis = syncIntervalMillis;
+    this.writer =
+        DDAgentWriter.builder().agentApi(new RecordingApi(recorder)).monitor(monitor).build();
+  }
+
+  @Override
+  public void write(final List<DDSpan> trace) {
+    writer.write(trace);
+  }
+
+  @Override
+  public void incrementTraceCount() {
+    writer.incrementTraceCount();
+  }
+
+  /** Records traces written so far, and syncs them to disk. */
+  public boolean flush() {
+    if (writer.flush()) {
+      sync();
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void start() {
+    writer.start();
+    if (syncIntervalMillis > 0) {
+      syncExecutor =
+          Executors.newSingleThreadScheduledExecutor(DaemonThreadFactory.TRACE_RECORDER);
+      syncExecutor.scheduleWithFixedDelay(
+          new SyncTask(recorder), syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (null != syncExecutor) {
+      // not interrupted, which would close the segment's channel in the middle of a sync
+      syncExecutor.shutdown();
+    }
+    writer.close();
+    try {
+      recorder.close();
+    } catch (final IOException e) {
+      log.warn("Failed to close trace recording: {}", e.getMessage());
+    }
+  }
+
+  private void sync() {
+    sync(recorder);
+  }
+
+  private static void sync(final TraceRecorder recorder) {
+    try {
+      recorder.sync();
+    } catch (final IOException e) {
+      log.debug("Failed to sync trace recording", e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "RecordingWriter { recorder=" + recorder + " }";
+  }
+
+  // Important to use explicit classes to avoid implicit hard references to the writer
+  private static final class SyncTask implements Runnable {
+    private final TraceRecorder recorder;
+
+    private SyncTask(final TraceRecorder recorder) {
+      this.recorder = recorder;
+    }
+
+    @Override
+    public void run() {
+      sync(recorder);
+    }
+  }
+}
@@ -1,12 +1,22 @@
 package datadog.trace.common.writer;
 
 import datadog.trace.api.Config;
+import datadog.trace.common.writer.ddagent.AdaptiveFlushController;
+import datadog.trace.common.writer.ddagent.AgentCircuitBreaker;
+import datadog.trace.common.writer.ddagent.ClientStatsAggregator;
+import datadog.trace.common.writer.ddagent.CompressionType;
 import datadog.trace.common.writer.ddagent.DDAgentApi;
 import datadog.trace.common.writer.ddagent.Monitor;
+import datadog.trace.common.writer.ddagent.SpillQueue;
+import datadog.trace.common.writer.ddagent.TraceRecorder;
 import datadog.trace.core.DDSpan;
 import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import lombok.extern.slf4j.Slf4j;
 
 /** A writer is responsible to send collected spans to some place */
@@ -44,6 +54,8 @@ public interface Writer extends Closeable {
           writer = createAgentWriter(config);
         } else if (Config.LOGGING_WRITER_TYPE.equals(configuredType)) {
           writer = new LoggingWriter();
+        } else if (Config.RECORDING_WRITER_TYPE.equals(configuredType)) {
+          writer = createRecordingWriter(config);
         } else {
           log.warn(
               "Writer type not configured correctly: Type {} not recognized. Defaulting to DDAgentWriter.",
@@ -67,12 +79,90 @@ public interface Writer extends Closeable {
       return DDAgentWriter.builder()
           .agentApi(createApi(config))
           .monitor(createMonitor(config))
+          .serializerThreads(config.getWriterSerializerThreads())
+          .submissionStripes(config.getWriterSubmissionStripes())
+          .queueBudgetBytes(config.getWriterQueueBudgetBytes())
+          .clientStats(createClientStats(config))
+          .inflightRequests(config.getWriterInflightRequests())
+          .spillQueue(createSpillQueue(config))
+          .flushController(createFlushController(config))
           .build();
     }
 
+    private static Writer createRecordingWriter(final Config config) {
+      try {
+        final TraceRecorder recorder =
+            new TraceRecorder(
+                new File(config.getWriterRecordingDirectory()),
+                config.getRuntimeId(),
+                config.getWriterRecordingSegmentBytes(),
+                TimeUnit.SECONDS.toMillis(config.getWriterRecordingSegmentSeconds()),
+                config.getWriterRecordingSyncMillis());
+        return new RecordingWriter(
+            recorder, createMonitor(config), config.getWriterRecordingSyncMillis());
+      } catch (final IOException e) {
+        log.warn("Traces can't be recorded: {}. Defaulting to DDAgentWriter.", e.getMessage());
+        return createAgentWriter(config);
+      }
+    }
+
+    private static SpillQueue createSpillQueue(final Config config) {
+      if (null == config.getWriterSpillDirectory()) {
+        return null;
+      }
+      try {
+        return new SpillQueue(
+            new File(config.getWriterSpillDirectory()),
+            config.getWriterSpillMaxBytes(),
+            TimeUnit.SECONDS.toMillis(config.getWriterSpillMaxAgeSeconds()));
+      } catch (final IOException e) {
+        log.warn("Traces will not be spilled to disk: {}", e.getMessage());
+        return null;
+      }
+    }
+
+    private static AdaptiveFlushController createFlushController(final Config config) {
+      if (!config.isWriterAdaptiveFlushEnabled()) {
+        return null;
+      }
+      return new AdaptiveFlushController(
+          config.getWriterAdaptiveMinFlushMillis(),
+          config.getWriterAdaptiveMaxFlushMillis(),
+          config.getWriterAdaptiveMinPayloadBytes(),
+          config.getWriterAdaptiveMaxPayloadBytes(),
+          config.getWriterAdaptiveTargetLatencyMillis());
+    }
+
+    private static ClientStatsAggregator createClientStats(final Config config) {
+      if (!config.isTraceClientStatsEnabled()) {
+        return null;
+      }
+      final Map<String, String> tags = config.getMergedSpanTags();
+      return new ClientStatsAggregator(
+          config.getReportedHostName(),
+          tags.get("env"),
+          tags.get("version"),
+          config.getRuntimeId());
+    }
+
     private static DDAgentApi createApi(final Config config) {
       return new DDAgentApi(
-          config.getAgentHost(), config.getAgentPort(), config.getAgentUnixDomainSocket());
+          config.getAgentHost(),
+          config.getAgentPort(),
+          config.getAgentUnixDomainSocket(),
+          CompressionType.of(config.getWriterCompression()),
+          config.getWriterCompressionThresholdBytes(),
+          createCircuitBreaker(config));
+    }
+
+    private static AgentCircuitBreaker createCircuitBreaker(final Config config) {
+      if (!config.isWriterCircuitBreakerEnabled()) {
+        return null;
+      }
+      return new AgentCircuitBreaker(
+          config.getWriterCircuitBreakerFailureThreshold(),
+          config.getWriterCircuitBreakerInitialBackoffMillis(),
+          config.getWriterCircuitBreakerMaxBackoffMillis());
     }
 
     private static Monitor createMonitor(final Config config) {
@@ -0,0 +1,121 @@
+package datadog.trace.common.writer.ddagent;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Tunes how often serializers flush their buffers, and how large a payload may grow before it is
+ * flushed, from the agent's responses and the depth of the queue of traces waiting to be
+ * serialized. Like TCP's congestion control, the send rate is increased additively while the agent
+ * keeps up, and decreased multiplicatively when it doesn't:
+ *
+ * <ul>
+ *   <li>when a request fails or takes longer than the target latency, the target payload size is
+ *       halved and the flush interval doubled
+ *   <li>otherwise, when payloads reach their target size or the queue is more than half full, the
+ *       target payload size grows by a step and the flush interval shrinks by a step, so that
+ *       bigger payloads drain the backlog in fewer requests
+ *   <li>otherwise payloads are flushed by time while mostly empty, and the flush interval grows by
+ *       a step, so that a lightly loaded application sends fewer, larger payloads
+ * </ul>
+ *
+ * <p>Both values stay within their configured bounds, and start at the tracer's fixed defaults of
+ * one second and 1MB.
+ *
+ * <p>Thread-safe: updated by the threads sending payloads, and read by the threads serializing
+ * them.
+ */
+public final class AdaptiveFlushController {
+
+  private static final long INITIAL_FLUSH_INTERVAL_MILLIS = 1000;
+  // how many steps it takes to go from one bound to the other
+  private static final int STEPS = 16;
+
+  private final long minFlushIntervalMillis;
+  private final long maxFlushIntervalMillis;
+  private final int minPayloadBytes;
+  private final int maxPayloadBytes;
+  private final long targetLatencyNanos;
+  private final long flushIntervalStepMillis;
+  private final int payloadStepBytes;
+
+  private volatile long flushIntervalMillis;
+  private volatile int payloadBytes;
+
+  public AdaptiveFlushController(
+      final long minFlushIntervalMillis,
+      final long maxFlushIntervalMillis,
+      final int minPayloadBytes,
+      final int maxPayloadBytes,
+      final long targetLatencyMillis) {
+    this.minFlushIntervalMillis = Math.max(1, minFlushIntervalMillis);
+    this.maxFlushIntervalMillis = Math.max(this.minFlushIntervalMillis, maxFlushIntervalMillis);
+    this.minPayloadBytes = Math.max(1, minPayloadBytes);
+    this.maxPayloadBytes = Math.max(this.minPayloadBytes, maxPayloadBytes);
+    this.targetLatencyNanos = MILLISECONDS.toNanos(targetLatencyMillis);
+    this.flushIntervalStepMillis =
+        Math.max(1, (this.maxFlushIntervalMillis - this.minFlushIntervalMillis) / STEPS);
+    this.payloadStepBytes = Math.max(1, (this.maxPayloadBytes - this.minPayloadBytes) / STEPS);
+    this.flushIntervalMillis =
+        clamp(
+            INITIAL_FLUSH_INTERVAL_MILLIS,
+            this.minFlushIntervalMillis,
+            this.maxFlushIntervalMillis);
+    this.payloadBytes =
+        (int)
+            clamp(
+                MsgPackStatefulSerializer.DEFAULT_BUFFER_THRESHOLD,
+                this.minPayloadBytes,
+                this.maxPayloadBytes);
+  }
+
+  /** @return how long a serializer should hold a buffer before flushing it */
+  public long getFlushIntervalMillis() {
+    return flushIntervalMillis;
+  }
+
+  /** @return how large a payload may grow before it is flushed */
+  public int getPayloadBytes() {
+    return payloadBytes;
+  }
+
+  /**
+   * Adjusts the flush interval and payload size after a payload has been sent.
+   *
+   * @param sizeInBytes the size of the payload
+   * @param latencyNanos how long the agent took to respond
+   * @param success whether the agent accepted the payload
+   * @param queued how many traces are waiting to be serialized
+   * @param capacity how many traces can wait to be serialized
+   */
+  public synchronized void onSend(
+      final int sizeInBytes,
+      final long latencyNanos,
+      final boolean success,
+      final long queued,
+      final long capacity) {
+    if (!success || latencyNanos > targetLatencyNanos) {
+      payloadBytes = Math.max(minPayloadBytes, payloadBytes / 2);
+      flushIntervalMillis = Math.min(maxFlushIntervalMillis, flushIntervalMillis * 2);
+    } else if (sizeInBytes >= payloadBytes - payloadBytes / 4 || queued * 2 > capacity) {
+      payloadBytes = (int) Math.min(maxPayloadBytes, (long) payloadBytes + payloadStepBytes);
+      flushIntervalMillis =
+          Math.max(minFlushIntervalMillis, flushIntervalMillis - flushIntervalStepMillis);
+    } else {
+      flushIntervalMillis =
+          Math.min(maxFlushIntervalMillis, flushIntervalMillis + flushIntervalStepMillis);
+    }
+  }
+
+  private static long clamp(final long value, final long min, final long max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  @Override
+  public String toString() {
+    return "AdaptiveFlushController { flushIntervalMillis="
+        + flushIntervalMillis
+        + ", payloadBytes="
+        + payloadBytes
+        + " }";
+  }
+}
@@ -0,0 +1,169 @@
+package datadog.trace.common.writer.ddagent;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Stops requests to the agent while it is failing, so that a down agent costs next to nothing:
+ *
+ * <ul>
+ *   <li>{@link State#CLOSED}: requests are sent; after enough consecutive failures the circuit
+ *       opens
+ *   <li>{@link State#OPEN}: requests fail fast without being sent, until the backoff has elapsed
+ *   <li>{@link State#HALF_OPEN}: a single request is let through to probe the agent, while the
+ *       others still fail fast; its success closes the circuit, and its failure opens it again for
+ *       twice as long, up to the maximum backoff
+ * </ul>
+ *
+ * <p>A probe which hasn't reported back within the maximum backoff counts as failed, so that a lost
+ * outcome can't leave the circuit half-open.
+ *
+ * <p>Backoffs are jittered by up to a tenth, so that many tracers don't probe a restarted agent at
+ * once.
+ *
+ * <p>Thread-safe: shared by every thread sending to the agent.
+ */
+public final class AgentCircuitBreaker {
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  /** Notified when the circuit changes state. */
+  public interface Listener {
+    /**
+     * @param state the new state
+     * @param backoffMillis how long the circuit stays open, or 0 unless the state is open
+     */
+    void onStateChange(State state, long backoffMillis);
+  }
+
+  private final int failureThreshold;
+  private final long initialBackoffNanos;
+  private final long maxBackoffNanos;
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+  // read without locking by every request
+  private volatile State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long backoffNanos;
+  private long openUntilNanos;
+  private long probeStartedNanos;
+
+  /**
+   * @param failureThreshold how many consecutive failures open the circuit
+   * @param initialBackoffMillis how long the circuit first stays open
+   * @param maxBackoffMillis how long the circuit may stay open at most
+   */
+  public AgentCircuitBreaker(
+      final int failureThreshold, final long initialBackoffMillis, final long maxBackoffMillis) {
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.initialBackoffNanos = MILLISECONDS.toNanos(Math.max(1, initialBackoffMillis));
+    this.maxBackoffNanos = Math.max(initialBackoffNanos, MILLISECONDS.toNanos(maxBackoffMillis));
+  }
+
+  public void addListener(final Listener listener) {
+    if (!listeners.contains(listener)) {
+      listeners.add(listener);
+    }
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  /** @return true if a request may be sent, false if it should fail fast */
+  public boolean allowRequest() {
+    if (state == State.CLOSED) {
+      return true;
+    }
+    return tryHalfOpen();
+  }
+
+  /**
+   * Records that a request reached the agent and was accepted, or rejected for reasons which
+   * retrying won't fix.
+   *
+   * @return true if this closed the circuit
+   */
+  public boolean onSuccess() {
+    synchronized (this) {
+      consecutiveFailures = 0;
+      if (state == State.CLOSED) {
+        return false;
+      }
+      backoffNanos = 0;
+      state = State.CLOSED;
+    }
+    notifyListeners(State.CLOSED, 0);
+    return true;
+  }
+
+  /** Records that a request couldn't reach the agent, or the agent couldn't handle it. */
+  public void onFailure() {
+    final long backoffMillis;
+    synchronized (this) {
+      ++consecutiveFailures;
+      if (state == State.OPEN
+          || (state == State.CLOSED && consecutiveFailures < failureThreshold)) {
+        return;
+      }
+      // the threshold was reached, or the probe failed
+      backoffMillis = open();
+    }
+    notifyListeners(State.OPEN, backoffMillis);
+  }
+
+  private boolean tryHalfOpen() {
+    final long now = System.nanoTime();
+    final long backoffMillis;
+    synchronized (this) {
+      if (state == State.OPEN && now - openUntilNanos >= 0) {
+        // this request is the probe
+        probeStartedNanos = now;
+        state = State.HALF_OPEN;
+        backoffMillis = -1;
+      } else if (state == State.HALF_OPEN && now - probeStartedNanos - maxBackoffNanos >= 0) {
+        // the probe never reported back, count it as failed
+        ++consecutiveFailures;
+        backoffMillis = open();
+      } else {
+        return false;
+      }
+    }
+    if (backoffMillis < 0) {
+      notifyListeners(State.HALF_OPEN, 0);
+      return true;
+    }
+    notifyListeners(State.OPEN, backoffMillis);
+    return false;
+  }
+
+  /** Must be called holding the lock, returns the jittered backoff in milliseconds. */
+  private long open() {
+    backoffNanos =
+        0 == backoffNanos ? initialBackoffNanos : Math.min(maxBackoffNanos, backoffNanos * 2);
+    final long jitteredNanos =
+        backoffNanos + ThreadLocalRandom.current().nextLong(backoffNanos / 10 + 1);
+    openUntilNanos = System.nanoTime() + jitteredNanos;
+    state = State.OPEN;
+    return NANOSECONDS.toMillis(jitteredNanos);
+  }
+
+  private void notifyListeners(final State state, final long backoffMillis) {
+    for (final Listener listener : listeners) {
+      listener.onStateChange(state, backoffMillis);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "AgentCircuitBreaker { state=" + state + " }";
+  }
+}
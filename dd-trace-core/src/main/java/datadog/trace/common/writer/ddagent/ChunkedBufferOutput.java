@@ -0,0 +1,105 @@
+package datadog.trace.common.writer.ddagent;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.msgpack.core.buffer.MessageBuffer;
+import org.msgpack.core.buffer.MessageBufferOutput;
+
+/**
+ * Collects packed bytes in a list of chunks, like {@link
+ * org.msgpack.core.buffer.ArrayBufferOutput}, but keeps its chunks and a {@link ByteBuffer} view of
+ * each when cleared, so that a buffer which is filled and written over and over allocates nothing
+ * once it has grown to the size of its payloads.
+ *
+ * <p>Not thread-safe.
+ */
+final class ChunkedBufferOutput implements MessageBufferOutput {
+
+  private final int chunkSize;
+
+  private byte[][] chunks = new byte[2][];
+  private ByteBuffer[] views = new ByteBuffer[2];
+  private int[] lengths = new int[2];
+  // the chunk being written to, -1 when empty
+  private int current = -1;
+  private int size;
+
+  ChunkedBufferOutput(final int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  @Override
+  public MessageBuffer next(final int minimumSize) {
+    if (current < 0 || chunks[current].length - lengths[current] < minimumSize) {
+      advance(minimumSize);
+    }
+    final byte[] chunk = chunks[current];
+    return MessageBuffer.wrap(chunk, lengths[current], chunk.length - lengths[current]);
+  }
+
+  @Override
+  public void writeBuffer(final int length) {
+    lengths[current] += length;
+    size += length;
+  }
+
+  @Override
+  public void write(final byte[] buffer, final int offset, final int length) {
+    if (current < 0 || chunks[current].length - lengths[current] < length) {
+      advance(length);
+    }
+    System.arraycopy(buffer, offset, chunks[current], lengths[current], length);
+    writeBuffer(length);
+  }
+
+  @Override
+  public void add(final byte[] buffer, final int offset, final int length) {
+    // copied rather than referenced, because the caller may reuse the array
+    write(buffer, offset, length);
+  }
+
+  @Override
+  public void flush() {}
+
+  @Override
+  public void close() {}
+
+  /** Discards the written bytes, keeping the chunks for reuse. */
+  void clear() {
+    for (int i = 0; i <= current; ++i) {
+      lengths[i] = 0;
+    }
+    current = -1;
+    size = 0;
+  }
+
+  int getSize() {
+    return size;
+  }
+
+  int chunkCount() {
+    return current + 1;
+  }
+
+  /** @return a view of the bytes written to the chunk, shared by every call */
+  ByteBuffer chunk(final int index) {
+    final ByteBuffer view = views[index];
+    view.limit(lengths[index]);
+    view.position(0);
+    return view;
+  }
+
+  private void advance(final int minimumSize) {
+    ++current;
+    if (current == chunks.length) {
+      chunks = Arrays.copyOf(chunks, current * 2);
+      views = Arrays.copyOf(views, current * 2);
+      lengths = Arrays.copyOf(lengths, current * 2);
+    }
+    if (null == chunks[current] || chunks[current].length < minimumSize) {
+      chunks[current] = new byte[Math.max(chunkSize, minimumSize)];
+      views[current] = ByteBuffer.wrap(chunks[current]);
+    }
+    lengths[current] = 0;
+  }
+}
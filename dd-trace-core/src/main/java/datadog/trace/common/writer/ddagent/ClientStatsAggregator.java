@@ -0,0 +1,314 @@
+package datadog.trace.common.writer.ddagent;
+
+import datadog.trace.bootstrap.instrumentation.api.Tags;
+import datadog.trace.core.DDId;
+import datadog.trace.core.DDSpan;
+import datadog.trace.core.DDTraceCoreInfo;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+
+/**
+ * Aggregates hits, errors and latency distributions of spans per service, resource, operation,
+ * type and HTTP status, so that the agent doesn't need to see every trace to compute them. The hits
+ * of top-level spans, those whose parent belongs to another service or another trace, are also
+ * counted apart.
+ *
+ * <p>Spans are recorded by the serializing threads and the aggregates are drained periodically into
+ * the agent's v0.6 stats payload. Keys which saw no hits during an interval are evicted when it is
+ * drained, and at most {@link #MAX_KEYS} keys are tracked, beyond which new keys are not recorded.
+ */
+@Slf4j
+public class ClientStatsAggregator {
+
+  static final int MAX_KEYS = 2048;
+
+  private final ConcurrentHashMap<Key, Stats> stats = new ConcurrentHashMap<>();
+  private final String hostname;
+  private final String env;
+  private final String version;
+  private final String runtimeId;
+
+  private long intervalStartNanos = wallClockNanos();
+  private long sequence;
+
+  /**
+   * @param hostname the host reported to the agent, or null to let the agent fill it in
+   * @param env the environment of the application, or null
+   * @param version the version of the application, or null
+   * @param runtimeId the identifier of this tracer's runtime
+   */
+  public ClientStatsAggregator(
+      final String hostname, final String env, final String version, final String runtimeId) {
+    this.hostname = null == hostname ? "" : hostname;
+    this.env = null == env ? "" : env;
+    this.version = null == version ? "" : version;
+    this.runtimeId = runtimeId;
+  }
+
+  /** Records the spans of a trace. */
+  public void record(final List<DDSpan> trace) {
+    if (trace.size() == 1) {
+      record(trace.get(0), true);
+      return;
+    }
+    final Map<DDId, String> services = new HashMap<>(trace.size() * 2);
+    for (final DDSpan span : trace) {
+      services.put(span.getDDSpanId(), span.getServiceName());
+    }
+    for (final DDSpan span : trace) {
+      final String parentService = services.get(span.getDDParentId());
+      record(span, null == parentService || !parentService.equals(span.getServiceName()));
+    }
+  }
+
+  private void record(final DDSpan span, final boolean topLevel) {
+    final Key key =
+        new Key(
+            span.getServiceName(),
+            span.getResourceName(),
+            span.getOperationName(),
+            span.getType(),
+            httpStatus(span));
+    while (true) {
+      Stats current = stats.get(key);
+      if (null == current) {
+        if (stats.size() >= MAX_KEYS) {
+          log.debug("Too many client stats keys, not recording {}", key);
+          return;
+        }
+        final Stats created = new Stats();
+        current = stats.putIfAbsent(key, created);
+        if (null == current) {
+          current = created;
+        }
+      }
+      if (current.record(span.getDurationNano(), span.getError() != 0, topLevel)) {
+        return;
+      }
+      // evicted by a concurrent drain, look up its replacement
+    }
+  }
+
+  /**
+   * Drains the aggregates recorded since the last call.
+   *
+   * @return the serialized stats payload, or null if nothing was recorded
+   */
+  public synchronized byte[] drain() throws IOException {
+    final long now = wallClockNanos();
+    final List<Map.Entry<Key, Stats>> entries = new ArrayList<>(stats.entrySet());
+    final List<Key> keys = new ArrayList<>(entries.size());
+    final List<Snapshot> snapshots = new ArrayList<>(entries.size());
+    for (final Map.Entry<Key, Stats> entry : entries) {
+      final Snapshot snapshot = entry.getValue().drain();
+      if (null == snapshot) {
+        stats.remove(entry.getKey(), entry.getValue());
+      } else {
+        keys.add(entry.getKey());
+        snapshots.add(snapshot);
+      }
+    }
+    final long start = intervalStartNanos;
+    intervalStartNanos = now;
+    if (snapshots.isEmpty()) {
+      return null;
+    }
+
+    final MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
+    packer.packMapHeader(8);
+    packer.packString("Hostname").packString(hostname);
+    packer.packString("Env").packString(env);
+    packer.packString("Version").packString(version);
+    packer.packString("Lang").packString("java");
+    packer.packString("TracerVersion").packString(DDTraceCoreInfo.VERSION);
+    packer.packString("RuntimeID").packString(runtimeId);
+    packer.packString("Sequence").packLong(++sequence);
+    packer.packString("Stats").packArrayHeader(1);
+    packer.packMapHeader(3);
+    packer.packString("Start").packLong(start);
+    packer.packString("Duration").packLong(now - start);
+    packer.packString("Stats").packArrayHeader(snapshots.size());
+    for (int i = 0; i < snapshots.size(); ++i) {
+      final Key key = keys.get(i);
+      final Snapshot snapshot = snapshots.get(i);
+      packer.packMapHeader(12);
+      packer.packString("Service").packString(key.service);
+      packer.packString("Name").packString(key.operation);
+      packer.packString("Resource").packString(key.resource);
+      packer.packString("Type").packString(key.type);
+      packer.packString("HTTPStatusCode").packInt(key.httpStatus);
+      packer.packString("Synthetics").packBoolean(false);
+      packer.packString("Hits").packLong(snapshot.hits);
+      packer.packString("TopLevelHits").packLong(snapshot.topLevelHits);
+      packer.packString("Errors").packLong(snapshot.errors);
+      packer.packString("Duration").packLong(snapshot.duration);
+      packer.packString("OkSummary");
+      packBinary(packer, snapshot.okSummary);
+      packer.packString("ErrorSummary");
+      packBinary(packer, snapshot.errorSummary);
+    }
+    packer.close();
+    return packer.toByteArray();
+  }
+
+  private static void packBinary(final MessageBufferPacker packer, final byte[] bytes)
+      throws IOException {
+    packer.packBinaryHeader(bytes.length);
+    packer.writePayload(bytes);
+  }
+
+  private static int httpStatus(final DDSpan span) {
+    final Object status = span.context().getTags().get(Tags.HTTP_STATUS);
+    if (status instanceof Number) {
+      return ((Number) status).intValue();
+    }
+    if (null != status) {
+      try {
+        return Integer.parseInt(status.toString());
+      } catch (final NumberFormatException ignored) {
+      }
+    }
+    return 0;
+  }
+
+  private static long wallClockNanos() {
+    return TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+  }
+
+  private static final class Key {
+    private final String service;
+    private final String resource;
+    private final String operation;
+    private final String type;
+    private final int httpStatus;
+    private final int hash;
+
+    private Key(
+        final String service,
+        final String resource,
+        final String operation,
+        final String type,
+        final int httpStatus) {
+      this.service = null == service ? "" : service;
+      this.resource = null == resource ? "" : resource;
+      this.operation = null == operation ? "" : operation;
+      this.type = null == type ? "" : type;
+      this.httpStatus = httpStatus;
+      int hash = this.service.hashCode();
+      hash = 31 * hash + this.resource.hashCode();
+      hash = 31 * hash + this.operation.hashCode();
+      hash = 31 * hash + this.type.hashCode();
+      this.hash = 31 * hash + httpStatus;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      final Key that = (Key) o;
+      return httpStatus == that.httpStatus
+          && service.equals(that.service)
+          && resource.equals(that.resource)
+          && operation.equals(that.operation)
+          && type.equals(that.type);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public String toString() {
+      return service + "|" + operation + "|" + resource + "|" + type + "|" + httpStatus;
+    }
+  }
+
+  private static final class Stats {
+    private final DurationSketch okSummary = new DurationSketch();
+    private final DurationSketch errorSummary = new DurationSketch();
+    private long hits;
+    private long topLevelHits;
+    private long errors;
+    private long duration;
+    private boolean evicted;
+
+    synchronized boolean record(
+        final long durationNanos, final boolean error, final boolean topLevel) {
+      if (evicted) {
+        return false;
+      }
+      ++hits;
+      if (topLevel) {
+        ++topLevelHits;
+      }
+      duration += durationNanos;
+      if (error) {
+        ++errors;
+        errorSummary.accept(durationNanos);
+      } else {
+        okSummary.accept(durationNanos);
+      }
+      return true;
+    }
+
+    /** @return the aggregates since the last call, or null if there were none */
+    synchronized Snapshot drain() {
+      if (hits == 0) {
+        evicted = true;
+        return null;
+      }
+      final Snapshot snapshot =
+          new Snapshot(
+              hits,
+              topLevelHits,
+              errors,
+              duration,
+              okSummary.toProto(),
+              errorSummary.toProto());
+      hits = 0;
+      topLevelHits = 0;
+      errors = 0;
+      duration = 0;
+      okSummary.clear();
+      errorSummary.clear();
+      return snapshot;
+    }
+  }
+
+  private static final class Snapshot {
+    private final long hits;
+    private final long topLevelHits;
+    private final long errors;
+    private final long duration;
+    private final byte[] okSummary;
+    private final byte[] errorSummary;
+
+    private Snapshot(
+        final long hits,
+        final long topLevelHits,
+        final long errors,
+        final long duration,
+        final byte[] okSummary,
+        final byte[] errorSummary) {
+      this.hits = hits;
+      this.topLevelHits = topLevelHits;
+      this.errors = errors;
+      this.duration = duration;
+      this.okSummary = okSummary;
+      this.errorSummary = errorSummary;
+    }
+  }
+}
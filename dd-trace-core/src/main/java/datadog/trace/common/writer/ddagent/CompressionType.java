@@ -0,0 +1,29 @@
+package datadog.trace.common.writer.ddagent;
+
+import lombok.extern.slf4j.Slf4j;
+
+/** How trace payloads are compressed before being sent to the agent. */
+@Slf4j
+public enum CompressionType {
+  /** No compression */
+  OFF,
+  /** Streamed gzip compression, sent with {@code Content-Encoding: gzip} */
+  GZIP;
+
+  public static CompressionType of(String type) {
+    if (type == null) {
+      type = "";
+    }
+
+    switch (type.toLowerCase()) {
+      case "":
+      case "off":
+        return OFF;
+      case "gzip":
+        return GZIP;
+      default:
+        log.warn("Unrecognizable compression type: {}. Defaulting to 'off'.", type);
+        return OFF;
+    }
+  }
+}
@@ -4,7 +4,6 @@ import com.squareup.moshi.JsonAdapter;
 import com.squareup.moshi.Moshi;
 import com.squareup.moshi.Types;
 import datadog.common.exec.CommonTaskExecutor;
-import datadog.trace.api.Config;
 import datadog.trace.common.writer.unixdomainsockets.UnixDomainSocketFactory;
 import datadog.trace.core.ContainerInfo;
 import datadog.trace.core.DDTraceCoreInfo;
@@ -16,23 +15,28 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import static org.msgpack.core.MessagePack.Code.FIXARRAY_PREFIX;
 
-/** The API pointing to a DD agent */
+/**
+ * The API pointing to a DD agent
+ *
+ * <p>When the agent doesn't have the v0.4 endpoint, or can't be reached, traces are sent to the
+ * v0.3 endpoint instead, and v0.4 is probed again periodically and as soon as the agent recovers.
+ *
+ * <p>With an {@link AgentCircuitBreaker}, requests fail fast without being sent while the agent is
+ * failing.
+ */
 @Slf4j
 public class DDAgentApi {
   private static final String DATADOG_META_LANG = "Datadog-Meta-Lang";
@@ -43,11 +47,16 @@ public class DDAgentApi {
   private static final String DATADOG_META_TRACER_VERSION = "Datadog-Meta-Tracer-Version";
   private static final String DATADOG_CONTAINER_ID = "Datadog-Container-ID";
   private static final String X_DATADOG_TRACE_COUNT = "X-Datadog-Trace-Count";
+  private static final String DATADOG_CLIENT_COMPUTED_STATS = "Datadog-Client-Computed-Stats";
+  private static final String CONTENT_ENCODING = "Content-Encoding";
 
   private static final int HTTP_TIMEOUT = 1; // 1 second for conenct/read/write operations
   private static final String TRACES_ENDPOINT_V3 = "v0.3/traces";
   private static final String TRACES_ENDPOINT_V4 = "v0.4/traces";
+  private static final String STATS_ENDPOINT_V6 = "v0.6/stats";
   private static final long MILLISECONDS_BETWEEN_ERROR_LOG = TimeUnit.MINUTES.toMillis(5);
+  private static final long NANOSECONDS_BETWEEN_UPGRADE_PROBES = TimeUnit.MINUTES.toNanos(1);
+  private static final CircuitOpenException CIRCUIT_OPEN = new CircuitOpenException();
 
   private final List<DDAgentResponseListener> responseListeners = new ArrayList<>();
 
@@ -66,16 +75,49 @@ public class DDAgentApi {
   private final String host;
   private final int port;
   private final String unixDomainSocketPath;
-  private OkHttpClient httpClient;
-  private HttpUrl tracesUrl;
-
-  private File tracesDir;
-  private final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH-mm-ss");
+  private final CompressionType compression;
+  private final int compressionThresholdBytes;
+  private final AgentCircuitBreaker circuitBreaker;
+  // read without locking by every thread sending traces
+  private volatile OkHttpClient httpClient;
+  private volatile HttpUrl tracesUrl;
+  private HttpUrl statsUrl;
+  private volatile boolean clientComputedStats;
+  private volatile boolean statsEndpointAvailable;
+  private volatile boolean downgraded;
+  private volatile long nextUpgradeProbeNanos;
 
   public DDAgentApi(final String host, final int port, final String unixDomainSocketPath) {
+    this(host, port, unixDomainSocketPath, CompressionType.OFF, 0);
+  }
+
+  /**
+   * @param compression how to compress trace payloads
+   * @param compressionThresholdBytes payloads smaller than this are sent uncompressed
+   */
+  public DDAgentApi(
+      final String host,
+      final int port,
+      final String unixDomainSocketPath,
+      final CompressionType compression,
+      final int compressionThresholdBytes) {
+    this(host, port, unixDomainSocketPath, compression, compressionThresholdBytes, null);
+  }
+
+  /** @param circuitBreaker stops requests while the agent is failing, or null */
+  public DDAgentApi(
+      final String host,
+      final int port,
+      final String unixDomainSocketPath,
+      final CompressionType compression,
+      final int compressionThresholdBytes,
+      final AgentCircuitBreaker circuitBreaker) {
     this.host = host;
     this.port = port;
     this.unixDomainSocketPath = unixDomainSocketPath;
+    this.compression = compression;
+    this.compressionThresholdBytes = compressionThresholdBytes;
+    this.circuitBreaker = circuitBreaker;
   }
 
   public void addResponseListener(final DDAgentResponseListener listener) {
@@ -84,56 +126,62 @@ public class DDAgentApi {
     }
   }
 
-  Response sendSerializedTraces(final TraceBuffer traces) {
-
-    if (Config.get().isSnapwatchEnabled()) {
-      return sendSerializedTracesSW(traces);
-    } else {
-      return sendSerializedTracesDD(traces);
-    }
+  /**
+   * Tells the agent that stats are computed by the tracer, so that it doesn't count the traces it
+   * is sent, which don't include the traces dropped by the tracer. This only takes effect once the
+   * agent is known to accept stats, see {@link #isClientComputedStats()}.
+   */
+  public void setClientComputedStats(final boolean clientComputedStats) {
+    this.clientComputedStats = clientComputedStats;
   }
 
-  private Response sendSerializedTracesSW(final TraceBuffer traces) {
-    if (tracesDir == null) {
-      tracesDir = new File(System.getenv("HOME") + "/.snapwatch/recordings");
-      if (!tracesDir
-          .exists()) { // todo: more error checking: what if exists but it's not a directory, etc.
-        tracesDir.mkdirs();
-      }
-    }
-
-    final String fileName =
-        DATE_FORMAT.format(new Date()); // todo: it's insufficient to make a unique name
-    final File file = new File(tracesDir, fileName);
-
-    // todo: add data that DD adds in HTTP headers
-
-    try (final FileOutputStream outputStream = new FileOutputStream(file)) {
-      final FileChannel fileChannel = outputStream.getChannel();
-
-      traces.writeTo(fileChannel);
-      fileChannel.force(false); // todo: is it a good idea?
+  /**
+   * @return true if stats computed by the tracer were requested, and the agent has been found to
+   *     accept them; until then the agent computes stats from the traces it is sent
+   */
+  public boolean isClientComputedStats() {
+    return clientComputedStats && statsEndpointAvailable;
+  }
 
-    } catch (final FileNotFoundException e) {
-      e.printStackTrace(); // todo: better error handling
-    } catch (final IOException e) {
-      e.printStackTrace(); // todo: better error handling
-    }
+  /** @return the circuit breaker guarding requests to the agent, or null */
+  public AgentCircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
 
-    return Response.success(200);
+  Response sendSerializedTraces(final TraceBuffer traces) {
+    return sendSerializedTraces(traces, null);
   }
 
-  private Response sendSerializedTracesDD(final TraceBuffer traces) {
+  /**
+   * Sends traces with the metadata they were recorded with, which replaces the tracer's own
+   * metadata headers.
+   *
+   * @param metadata headers to send instead of {@link #metadata()}, or null
+   */
+  Response sendSerializedTraces(final TraceBuffer traces, final Map<String, String> metadata) {
+    if (null != circuitBreaker && !circuitBreaker.allowRequest()) {
+      return Response.failed(CIRCUIT_OPEN);
+    }
     if (httpClient == null) {
       detectEndpointAndBuildClient();
+    } else if (shouldProbe() && System.nanoTime() - nextUpgradeProbeNanos >= 0) {
+      upgradeEndpoint();
     }
 
     try {
-      final Request request =
-          prepareRequest(tracesUrl)
-              .addHeader(X_DATADOG_TRACE_COUNT, Integer.toString(traces.representativeCount()))
-              .put(new MsgPackRequestBody(traces))
-              .build();
+      final Request.Builder builder =
+          prepareRequest(tracesUrl, null == metadata ? metadata() : metadata)
+              .addHeader(X_DATADOG_TRACE_COUNT, Integer.toString(traces.representativeCount()));
+      if (isClientComputedStats()) {
+        builder.addHeader(DATADOG_CLIENT_COMPUTED_STATS, "yes");
+      }
+      final boolean compress =
+          compression == CompressionType.GZIP
+              && traces.headerSize() + traces.sizeInBytes() >= compressionThresholdBytes;
+      if (compress) {
+        builder.addHeader(CONTENT_ENCODING, "gzip");
+      }
+      final Request request = builder.put(new MsgPackRequestBody(traces, compress)).build();
       try (final okhttp3.Response response = httpClient.newCall(request).execute()) {
         if (response.code() != 200) {
           if (log.isDebugEnabled()) {
@@ -154,8 +202,10 @@ public class DDAgentApi {
                 response.message(),
                 TimeUnit.MILLISECONDS.toMinutes(MILLISECONDS_BETWEEN_ERROR_LOG));
           }
+          onResponse(response.code());
           return Response.failed(response.code());
         }
+        onResponse(response.code());
         if (log.isDebugEnabled()) {
           log.debug(
               "Successfully sent {} of {} traces to the DD agent.",
@@ -197,12 +247,69 @@ public class DDAgentApi {
             traces.traceCount(),
             traces.representativeCount(),
             (traces.sizeInBytes() / 1024),
-            ((MsgPackStatefulSerializer.MsgPackTraceBuffer) traces).id,
+            traces.id(),
             e.getClass().getName(),
             e.getMessage(),
             TimeUnit.MILLISECONDS.toMinutes(MILLISECONDS_BETWEEN_ERROR_LOG));
       }
+      onFailure();
       return Response.failed(e);
+    } catch (final Throwable e) {
+      // this may have been the probe, which must report back to the circuit breaker
+      onFailure();
+      throw e;
+    }
+  }
+
+  /** Sends a payload of stats aggregated by the tracer to the agent. */
+  public Response sendClientStats(final byte[] payload) {
+    if (null != circuitBreaker && !circuitBreaker.allowRequest()) {
+      return Response.failed(CIRCUIT_OPEN);
+    }
+    if (httpClient == null) {
+      detectEndpointAndBuildClient();
+    }
+
+    try {
+      final Request request =
+          prepareRequest(statsUrl, metadata()).put(RequestBody.create(MSGPACK, payload)).build();
+      try (final okhttp3.Response response = httpClient.newCall(request).execute()) {
+        if (response.code() != 200) {
+          log.debug(
+              "Error while sending client stats to the DD agent. Status: {}, Response: {}",
+              response.code(),
+              response.message());
+          onResponse(response.code());
+          return Response.failed(response.code());
+        }
+        onResponse(response.code());
+        return Response.success(response.code());
+      }
+    } catch (final IOException e) {
+      log.debug("Error while sending client stats to the DD agent.", e);
+      onFailure();
+      return Response.failed(e);
+    } catch (final Throwable e) {
+      onFailure();
+      throw e;
+    }
+  }
+
+  private void onResponse(final int status) {
+    if (null != circuitBreaker) {
+      if (status >= 500 || status == 429) {
+        // the agent is overloaded or failing, retrying straight away won't help
+        circuitBreaker.onFailure();
+      } else if (circuitBreaker.onSuccess() && shouldProbe()) {
+        // the agent has recovered, and may have been unavailable when it was probed
+        nextUpgradeProbeNanos = System.nanoTime();
+      }
+    }
+  }
+
+  private void onFailure() {
+    if (null != circuitBreaker) {
+      circuitBreaker.onFailure();
     }
   }
 
@@ -213,7 +320,7 @@ public class DDAgentApi {
     try {
       final OkHttpClient client = buildHttpClient(unixDomainSocketPath);
       final RequestBody body = RequestBody.create(MSGPACK, EMPTY_LIST);
-      final Request request = prepareRequest(url).put(body).build();
+      final Request request = prepareRequest(url, metadata()).put(body).build();
 
       try (final okhttp3.Response response = client.newCall(request).execute()) {
         return response.code() == 200;
@@ -226,6 +333,21 @@ public class DDAgentApi {
     return false;
   }
 
+  /** @return true if the agent handles the endpoint, even though it rejects the empty payload */
+  private static boolean endpointExists(final HttpUrl url, final String unixDomainSocketPath) {
+    try {
+      final OkHttpClient client = buildHttpClient(unixDomainSocketPath);
+      final RequestBody body = RequestBody.create(MSGPACK, EMPTY_LIST);
+      final Request request = prepareRequest(url, metadata()).put(body).build();
+
+      try (final okhttp3.Response response = client.newCall(request).execute()) {
+        return response.code() != 404 && response.code() < 500;
+      }
+    } catch (final IOException e) {
+      return false;
+    }
+  }
+
   private static OkHttpClient buildHttpClient(final String unixDomainSocketPath) {
     OkHttpClient.Builder builder = new OkHttpClient.Builder();
     if (unixDomainSocketPath != null) {
@@ -250,22 +372,29 @@ public class DDAgentApi {
         .build();
   }
 
-  private static Request.Builder prepareRequest(final HttpUrl url) {
-    final Request.Builder builder =
-        new Request.Builder()
-            .url(url)
-            .addHeader(DATADOG_META_LANG, "java")
-            .addHeader(DATADOG_META_LANG_VERSION, DDTraceCoreInfo.JAVA_VERSION)
-            .addHeader(DATADOG_META_LANG_INTERPRETER, DDTraceCoreInfo.JAVA_VM_NAME)
-            .addHeader(DATADOG_META_LANG_INTERPRETER_VENDOR, DDTraceCoreInfo.JAVA_VM_VENDOR)
-            .addHeader(DATADOG_META_TRACER_VERSION, DDTraceCoreInfo.VERSION);
+  /** @return the metadata about the tracer which is sent to the agent as headers */
+  static Map<String, String> metadata() {
+    final Map<String, String> metadata = new LinkedHashMap<>();
+    metadata.put(DATADOG_META_LANG, "java");
+    metadata.put(DATADOG_META_LANG_VERSION, DDTraceCoreInfo.JAVA_VERSION);
+    metadata.put(DATADOG_META_LANG_INTERPRETER, DDTraceCoreInfo.JAVA_VM_NAME);
+    metadata.put(DATADOG_META_LANG_INTERPRETER_VENDOR, DDTraceCoreInfo.JAVA_VM_VENDOR);
+    metadata.put(DATADOG_META_TRACER_VERSION, DDTraceCoreInfo.VERSION);
 
     final String containerId = ContainerInfo.get().getContainerId();
-    if (containerId == null) {
-      return builder;
-    } else {
-      return builder.addHeader(DATADOG_CONTAINER_ID, containerId);
+    if (containerId != null) {
+      metadata.put(DATADOG_CONTAINER_ID, containerId);
     }
+    return metadata;
+  }
+
+  private static Request.Builder prepareRequest(
+      final HttpUrl url, final Map<String, String> metadata) {
+    final Request.Builder builder = new Request.Builder().url(url);
+    for (final Map.Entry<String, String> header : metadata.entrySet()) {
+      builder.addHeader(header.getKey(), header.getValue());
+    }
+    return builder;
   }
 
   private synchronized void detectEndpointAndBuildClient() {
@@ -276,16 +405,67 @@ public class DDAgentApi {
       } else {
         log.debug("API v0.4 endpoints not available. Downgrading to v0.3");
         tracesUrl = getUrl(host, port, TRACES_ENDPOINT_V3);
+        downgraded = true;
+      }
+      statsUrl = getUrl(host, port, STATS_ENDPOINT_V6);
+      if (clientComputedStats) {
+        statsEndpointAvailable = endpointExists(statsUrl, unixDomainSocketPath);
+        if (!statsEndpointAvailable) {
+          log.debug("API v0.6 stats endpoint not available. Sending stats computed by the agent");
+        }
+      }
+      if (shouldProbe()) {
+        nextUpgradeProbeNanos = System.nanoTime() + NANOSECONDS_BETWEEN_UPGRADE_PROBES;
       }
       httpClient = buildHttpClient(unixDomainSocketPath);
     }
   }
 
+  /** @return true if the agent may support endpoints which it didn't when last probed */
+  private boolean shouldProbe() {
+    return downgraded || (clientComputedStats && !statsEndpointAvailable);
+  }
+
+  private synchronized void upgradeEndpoint() {
+    if (shouldProbe() && System.nanoTime() - nextUpgradeProbeNanos >= 0) {
+      if (downgraded) {
+        final HttpUrl v4Url = getUrl(host, port, TRACES_ENDPOINT_V4);
+        if (endpointAvailable(v4Url, unixDomainSocketPath, false)) {
+          log.debug("API v0.4 endpoints available. Upgrading from v0.3");
+          tracesUrl = v4Url;
+          downgraded = false;
+        }
+      }
+      if (clientComputedStats && !statsEndpointAvailable) {
+        statsEndpointAvailable = endpointExists(statsUrl, unixDomainSocketPath);
+        if (statsEndpointAvailable) {
+          log.debug("API v0.6 stats endpoint available. Sending stats computed by the tracer");
+        }
+      }
+      if (shouldProbe()) {
+        nextUpgradeProbeNanos = System.nanoTime() + NANOSECONDS_BETWEEN_UPGRADE_PROBES;
+      }
+    }
+  }
+
   @Override
   public String toString() {
     return "DDApi { tracesUrl=" + tracesUrl + " }";
   }
 
+  /** Returned without sending while the circuit to the agent is open. */
+  static final class CircuitOpenException extends IOException {
+    CircuitOpenException() {
+      super("The DD agent is unavailable, not sending until it recovers");
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      // shared by every request which fails fast
+      return this;
+    }
+  }
+
   /**
    * Encapsulates an attempted response from the Datadog agent.
    *
@@ -344,11 +524,13 @@ public class DDAgentApi {
     }
   }
 
-  private static class MsgPackRequestBody extends RequestBody {
+  static class MsgPackRequestBody extends RequestBody {
     private final TraceBuffer traces;
+    private final boolean gzip;
 
-    private MsgPackRequestBody(final TraceBuffer traces) {
+    MsgPackRequestBody(final TraceBuffer traces, final boolean gzip) {
       this.traces = traces;
+      this.gzip = gzip;
     }
 
     @Override
@@ -358,13 +540,21 @@ public class DDAgentApi {
 
     @Override
     public long contentLength() {
-      return traces.headerSize() + traces.sizeInBytes();
+      // the compressed length isn't known until written, so it's sent chunked
+      return gzip ? -1 : traces.headerSize() + traces.sizeInBytes();
     }
 
     @Override
     public void writeTo(final BufferedSink sink) throws IOException {
-      traces.writeTo(sink);
-      sink.flush();
+      if (gzip) {
+        // compresses as the buffer is written, without copying the whole payload
+        final BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+        traces.writeTo(gzipSink);
+        gzipSink.close();
+      } else {
+        traces.writeTo(sink);
+        sink.flush();
+      }
     }
   }
 }
@@ -1,54 +1,156 @@
 package datadog.trace.common.writer.ddagent;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
 import com.lmax.disruptor.BlockingWaitStrategy;
 import com.lmax.disruptor.EventFactory;
 import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.LifecycleAware;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.TimeoutBlockingWaitStrategy;
+import com.lmax.disruptor.TimeoutHandler;
+import com.lmax.disruptor.WorkHandler;
 import com.lmax.disruptor.dsl.Disruptor;
 import com.lmax.disruptor.dsl.ProducerType;
 import datadog.common.exec.DaemonThreadFactory;
 import datadog.trace.common.writer.DDAgentWriter;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * Disruptor that takes serialized traces and dispatches them to the DD agent
  *
  * <p>publishing to the buffer will block if the buffer is full.
+ *
+ * <p>Each producer holds one claimed buffer while it serializes traces into it, so with several
+ * producers a buffer committed by one is only dispatched once every buffer claimed before it has
+ * been committed too. Producers therefore don't block claiming a buffer while others may hold
+ * theirs, since the others may need the blocked producer to make progress before committing.
+ *
+ * <p>Buffers are sent by one thread, or with several requests in flight by a pool of threads each
+ * sending one buffer at a time. A buffer is only returned to the ring once the response to its
+ * request has arrived, so buffers can be sent and released out of order while the ring never
+ * reuses a buffer which is still being sent. A flush is only complete once every buffer committed
+ * before it has been sent.
+ *
+ * <p>With a {@link SpillQueue}, buffers which fail to send are spilled to disk, and are replayed by
+ * the writer's background task. Spilled and dropped buffers are reported to the monitor.
+ *
+ * <p>The writer's background task, which makes requests to the agent besides sending buffers, is
+ * run by one of the sending threads between two buffers, or when no buffer has arrived for its
+ * interval, rather than on the shared task scheduler, so that a slow agent only holds up the
+ * threads already waiting for it.
+ *
+ * <p>Closing waits a few seconds at most for the buffers being sent to be sent or spilled, so that
+ * the spill queue can be closed once no thread writes to it anymore.
+ *
+ * <p>With an {@link AdaptiveFlushController}, the outcome of every request is reported to it, so
+ * that it can tune how often and how much the serializers flush.
  */
 @Slf4j
 public class DispatchingDisruptor implements AutoCloseable {
 
+  private static final long AWAIT_SENT_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+  // longer than a request to the agent can take
+  private static final long CLOSE_TIMEOUT_SECONDS = 5;
+  private static final long BACKGROUND_INTERVAL_MILLIS = 1000;
+
   private final Disruptor<TraceBuffer> disruptor;
+  private final boolean concurrent;
+  // counted down by each handler once it has stopped
+  private final CountDownLatch handlersStopped;
+  private volatile boolean started;
 
   public DispatchingDisruptor(
       int disruptorSize,
+      int producers,
+      int inflightRequests,
       EventFactory<TraceBuffer> eventFactory,
       DDAgentApi api,
       Monitor monitor,
-      DDAgentWriter writer) {
+      DDAgentWriter writer,
+      SpillQueue spillQueue,
+      AdaptiveFlushController flushController,
+      Runnable backgroundTask) {
     this.disruptor =
         DisruptorUtils.create(
             eventFactory,
             disruptorSize,
             DaemonThreadFactory.TRACE_WRITER,
-            ProducerType.SINGLE,
-            // block (and use no resources) until there's a batch of data to dispatch
-            new BlockingWaitStrategy());
-    disruptor.handleEventsWith(new TraceDispatchingHandler(api, monitor, writer));
+            producers > 1 ? ProducerType.MULTI : ProducerType.SINGLE,
+            // block (and use no resources) until there's a batch of data to dispatch, or it's time
+            // to run the background task
+            null == backgroundTask
+                ? new BlockingWaitStrategy()
+                : new TimeoutBlockingWaitStrategy(BACKGROUND_INTERVAL_MILLIS, MILLISECONDS));
+    final Background background = null == backgroundTask ? null : new Background(backgroundTask);
+    this.concurrent = inflightRequests > 1;
+    if (concurrent) {
+      this.handlersStopped = new CountDownLatch(inflightRequests);
+      final TraceDispatchingHandler[] handlers = new TraceDispatchingHandler[inflightRequests];
+      for (int i = 0; i < inflightRequests; ++i) {
+        handlers[i] =
+            new TraceDispatchingHandler(
+                api, monitor, writer, spillQueue, flushController, background, handlersStopped);
+      }
+      // each worker claims the next buffer and holds back the ring's gating sequence until sent
+      disruptor.handleEventsWithWorkerPool(handlers);
+    } else {
+      this.handlersStopped = new CountDownLatch(1);
+      disruptor.handleEventsWith(
+          new TraceDispatchingHandler(
+              api, monitor, writer, spillQueue, flushController, background, handlersStopped));
+    }
   }
 
   public void start() {
+    started = true;
     disruptor.start();
   }
 
   @Override
   public void close() {
     disruptor.halt();
+    if (started) {
+      try {
+        if (!handlersStopped.await(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+          log.debug("Timed out waiting for the traces being sent");
+        }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
   }
 
   long beginTransaction() {
     return disruptor.getRingBuffer().next();
   }
 
+  /**
+   * Claims the next buffer, waiting for about the timeout at most for one to be released.
+   *
+   * @return the sequence of the buffer, or -1 if every buffer is still claimed or being sent
+   */
+  long tryBeginTransaction(final long timeoutNanos) {
+    final RingBuffer<TraceBuffer> ringBuffer = disruptor.getRingBuffer();
+    final long deadline = System.nanoTime() + timeoutNanos;
+    while (true) {
+      try {
+        return ringBuffer.tryNext();
+      } catch (final InsufficientCapacityException e) {
+        if (System.nanoTime() - deadline >= 0) {
+          return -1;
+        }
+        LockSupport.parkNanos(AWAIT_SENT_PARK_NANOS);
+      }
+    }
+  }
+
   TraceBuffer getTraceBuffer(long sequence) {
     return disruptor.getRingBuffer().get(sequence);
   }
@@ -57,23 +159,107 @@ public class DispatchingDisruptor implements AutoCloseable {
     disruptor.getRingBuffer().publish(sequence);
   }
 
-  // Intentionally not thread safe.
-  private static class TraceDispatchingHandler implements EventHandler<TraceBuffer> {
+  /**
+   * Waits until every buffer before the sequence has been sent. Called while the buffer at the
+   * sequence is being dispatched, which with a single sender implies the others have been sent.
+   */
+  void awaitSentBefore(long sequence) {
+    if (concurrent) {
+      // a worker's sequence trails the buffer it is sending
+      final RingBuffer<TraceBuffer> ringBuffer = disruptor.getRingBuffer();
+      while (ringBuffer.getMinimumGatingSequence() < sequence - 1) {
+        LockSupport.parkNanos(AWAIT_SENT_PARK_NANOS);
+      }
+    }
+  }
+
+  /** Runs the task on one sending thread at a time, at most once per interval. */
+  private static final class Background {
+    private final Runnable task;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile long nextRunNanos = System.nanoTime();
+
+    private Background(final Runnable task) {
+      this.task = task;
+    }
+
+    void runIfDue() {
+      final long now = System.nanoTime();
+      if (now - nextRunNanos < 0 || !running.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        nextRunNanos = now + MILLISECONDS.toNanos(BACKGROUND_INTERVAL_MILLIS);
+        task.run();
+      } catch (final Throwable e) {
+        log.debug("Failed to run the writer's background task: {}", e.getMessage(), e);
+      } finally {
+        running.set(false);
+      }
+    }
+  }
+
+  // Intentionally not thread safe, each worker has its own.
+  private static class TraceDispatchingHandler
+      implements EventHandler<TraceBuffer>,
+          WorkHandler<TraceBuffer>,
+          LifecycleAware,
+          TimeoutHandler {
 
     private final DDAgentApi api;
     private final Monitor monitor;
     private final DDAgentWriter writer;
+    private final SpillQueue spillQueue;
+    private final AdaptiveFlushController flushController;
+    private final Background background;
+    private final CountDownLatch stopped;
 
     private TraceDispatchingHandler(
-        final DDAgentApi api, final Monitor monitor, final DDAgentWriter writer) {
+        final DDAgentApi api,
+        final Monitor monitor,
+        final DDAgentWriter writer,
+        final SpillQueue spillQueue,
+        final AdaptiveFlushController flushController,
+        final Background background,
+        final CountDownLatch stopped) {
       this.api = api;
       this.monitor = monitor;
       this.writer = writer;
+      this.spillQueue = spillQueue;
+      this.flushController = flushController;
+      this.background = background;
+      this.stopped = stopped;
+    }
+
+    @Override
+    public void onStart() {}
+
+    @Override
+    public void onShutdown() {
+      stopped.countDown();
     }
 
     @Override
     public void onEvent(final TraceBuffer event, final long sequence, final boolean endOfBatch) {
       sendData(event);
+      runBackground();
+    }
+
+    @Override
+    public void onEvent(final TraceBuffer event) {
+      sendData(event);
+      runBackground();
+    }
+
+    @Override
+    public void onTimeout(final long sequence) {
+      runBackground();
+    }
+
+    private void runBackground() {
+      if (null != background) {
+        background.runIfDue();
+      }
     }
 
     private void sendData(TraceBuffer traces) {
@@ -84,15 +270,28 @@ public class DispatchingDisruptor implements AutoCloseable {
             traces.representativeCount(),
             traces.traceCount());
       }
+      final long start = System.nanoTime();
+      // buffers of dropped traces only are still sent, for the agent to count them
+      final boolean empty = traces.traceCount() == 0 && traces.representativeCount() == 0;
       try {
-        if (traces.traceCount() > 0) {
+        if (!empty && null != spillQueue && spillQueue.isBypassing()) {
+          // the agent failed recently, don't wait for another request to fail
+          spill(traces);
+        } else if (!empty) {
           final DDAgentApi.Response response = api.sendSerializedTraces(traces);
+          final long latencyNanos = System.nanoTime() - start;
           if (response.success()) {
             if (log.isDebugEnabled()) {
               log.debug(
                   "Successfully sent {} traces {} to the API", traces.traceCount(), traces.id());
             }
-            monitor.onSend(writer, traces.representativeCount(), traces.sizeInBytes(), response);
+            monitor.onSend(
+                writer,
+                traces.representativeCount(),
+                traces.sizeInBytes(),
+                latencyNanos,
+                response);
+            adapt(traces, latencyNanos, true);
           } else {
             if (log.isDebugEnabled()) {
               log.debug(
@@ -102,7 +301,19 @@ public class DispatchingDisruptor implements AutoCloseable {
                   traces.sizeInBytes());
             }
             monitor.onFailedSend(
-                writer, traces.representativeCount(), traces.sizeInBytes(), response);
+                writer,
+                traces.representativeCount(),
+                traces.sizeInBytes(),
+                latencyNanos,
+                response);
+            if (!(response.exception() instanceof DDAgentApi.CircuitOpenException)) {
+              // failing fast says nothing about the agent's latency or capacity
+              adapt(traces, latencyNanos, false);
+            }
+            if (null != spillQueue) {
+              spillQueue.onSendFailed();
+              spill(traces);
+            }
           }
         } else if (log.isDebugEnabled()) {
           log.debug("buffer {} was empty", traces.id());
@@ -114,14 +325,43 @@ public class DispatchingDisruptor implements AutoCloseable {
         // shouldn't occur.
         // However, just to be safe to start, create a failed Response to handle any
         // spurious Throwable-s.
+        final long latencyNanos = System.nanoTime() - start;
         monitor.onFailedSend(
             writer,
             traces.representativeCount(),
             traces.sizeInBytes(),
+            latencyNanos,
             DDAgentApi.Response.failed(e));
+        adapt(traces, latencyNanos, false);
       } finally {
         traces.onDispatched();
       }
     }
+
+    private void adapt(final TraceBuffer traces, final long latencyNanos, final boolean success) {
+      if (null != flushController) {
+        flushController.onSend(
+            traces.sizeInBytes(),
+            latencyNanos,
+            success,
+            writer.getDisruptorUtilizedCapacity(),
+            writer.getDisruptorCapacity());
+        monitor.onFlushTuning(
+            writer, flushController.getFlushIntervalMillis(), flushController.getPayloadBytes());
+      }
+    }
+
+    private void spill(final TraceBuffer traces) {
+      boolean spilled = false;
+      try {
+        spilled = spillQueue.append(traces);
+        if (!spilled) {
+          log.debug("Spill queue is full, dropping {} traces {}", traces.traceCount(), traces.id());
+        }
+      } catch (final IOException e) {
+        log.debug("Failed to spill traces {}: {}", traces.id(), e.getMessage(), e);
+      }
+      monitor.onSpill(writer, traces.representativeCount(), traces.sizeInBytes(), spilled);
+    }
   }
 }
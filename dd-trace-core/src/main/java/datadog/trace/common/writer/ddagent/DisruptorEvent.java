@@ -2,18 +2,23 @@ package datadog.trace.common.writer.ddagent;
 
 import com.lmax.disruptor.EventFactory;
 import com.lmax.disruptor.EventTranslator;
+import com.lmax.disruptor.EventTranslatorThreeArg;
 import com.lmax.disruptor.EventTranslatorTwoArg;
 import java.util.concurrent.CountDownLatch;
 
 class DisruptorEvent<T> {
   // Memory ordering enforced by disruptor's memory fences, so volatile not required.
+  // Translators overwrite every field, because when several handlers consume the
+  // same events only the handler which owns a data event may reset it.
   T data = null;
   int representativeCount = 0;
-  CountDownLatch flushLatch = null;
+  int footprint = 0;
+  FlushLatch flushLatch = null;
 
   void reset() {
     data = null;
     representativeCount = 0;
+    footprint = 0;
     flushLatch = null;
   }
 
@@ -24,36 +29,62 @@ class DisruptorEvent<T> {
     }
   }
 
-  static class DataTranslator<T> implements EventTranslatorTwoArg<DisruptorEvent<T>, T, Integer> {
+  static class DataTranslator<T>
+      implements EventTranslatorThreeArg<DisruptorEvent<T>, T, Integer, Integer> {
 
     @Override
     public void translateTo(
         final DisruptorEvent<T> event,
         final long sequence,
         final T data,
-        final Integer representativeCount) {
+        final Integer representativeCount,
+        final Integer footprint) {
       event.data = data;
       event.representativeCount = representativeCount;
+      event.footprint = footprint;
+      event.flushLatch = null;
     }
   }
 
   static class HeartbeatTranslator<T> implements EventTranslator<DisruptorEvent<T>> {
 
     @Override
-    public void translateTo(final DisruptorEvent<T> event, final long sequence) {}
+    public void translateTo(final DisruptorEvent<T> event, final long sequence) {
+      event.reset();
+    }
   }
 
   static class FlushTranslator<T>
-      implements EventTranslatorTwoArg<DisruptorEvent<T>, Integer, CountDownLatch> {
+      implements EventTranslatorTwoArg<DisruptorEvent<T>, Integer, FlushLatch> {
 
     @Override
     public void translateTo(
         final DisruptorEvent<T> event,
         final long sequence,
         final Integer representativeCount,
-        final CountDownLatch latch) {
+        final FlushLatch latch) {
+      event.data = null;
       event.representativeCount = representativeCount;
+      event.footprint = 0;
       event.flushLatch = latch;
     }
   }
+
+  /** Counted down by each handler once it has flushed, or found that it couldn't. */
+  static final class FlushLatch extends CountDownLatch {
+    private volatile boolean failed;
+
+    FlushLatch(final int handlers) {
+      super(handlers);
+    }
+
+    void fail() {
+      failed = true;
+      countDown();
+    }
+
+    boolean failed() {
+      return failed;
+    }
+  }
 }
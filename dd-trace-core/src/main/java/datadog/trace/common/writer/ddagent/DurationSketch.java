@@ -0,0 +1,104 @@
+package datadog.trace.common.writer.ddagent;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Fixed-bucket histogram of durations in nanoseconds, with logarithmically sized buckets, four to
+ * each power of two. Values are recorded with a relative error below 9%, and the sketch is encoded
+ * as a DDSketch protobuf message with a logarithmic mapping, which is how the agent expects
+ * latency distributions.
+ *
+ * <p>Not thread-safe.
+ */
+final class DurationSketch {
+
+  private static final double GAMMA = Math.pow(2, 0.25);
+  private static final double MULTIPLIER = 1 / Math.log(GAMMA);
+  // enough for durations up to 2^64 nanoseconds
+  private static final int BUCKETS = 256;
+
+  private final long[] counts = new long[BUCKETS];
+  private long zeroCount;
+  private int minIndex = BUCKETS;
+  private int maxIndex = -1;
+
+  void accept(final long durationNanos) {
+    if (durationNanos <= 0) {
+      ++zeroCount;
+      return;
+    }
+    final int index = Math.min((int) (Math.log(durationNanos) * MULTIPLIER), BUCKETS - 1);
+    ++counts[index];
+    minIndex = Math.min(minIndex, index);
+    maxIndex = Math.max(maxIndex, index);
+  }
+
+  boolean isEmpty() {
+    return zeroCount == 0 && maxIndex < 0;
+  }
+
+  void clear() {
+    if (maxIndex >= 0) {
+      Arrays.fill(counts, minIndex, maxIndex + 1, 0);
+    }
+    zeroCount = 0;
+    minIndex = BUCKETS;
+    maxIndex = -1;
+  }
+
+  /**
+   * Encodes the sketch as a DDSketch message: an index mapping with gamma and a zero offset, the
+   * positive values as a contiguous run of bin counts, and the zero count.
+   */
+  byte[] toProto() {
+    final ByteArrayOutputStream mapping = new ByteArrayOutputStream(9);
+    writeTag(mapping, 1, 1); // gamma
+    writeDouble(mapping, GAMMA);
+
+    final ByteArrayOutputStream store = new ByteArrayOutputStream();
+    if (maxIndex >= 0) {
+      final int bins = maxIndex - minIndex + 1;
+      writeTag(store, 2, 2); // contiguousBinCounts, packed
+      writeVarint(store, bins * 8);
+      for (int i = minIndex; i <= maxIndex; ++i) {
+        writeDouble(store, counts[i]);
+      }
+      writeTag(store, 3, 0); // contiguousBinIndexOffset, sint32
+      writeVarint(store, (minIndex << 1) ^ (minIndex >> 31));
+    }
+
+    final ByteArrayOutputStream sketch = new ByteArrayOutputStream(32 + store.size());
+    writeTag(sketch, 1, 2); // mapping
+    writeVarint(sketch, mapping.size());
+    sketch.write(mapping.toByteArray(), 0, mapping.size());
+    writeTag(sketch, 2, 2); // positiveValues
+    writeVarint(sketch, store.size());
+    sketch.write(store.toByteArray(), 0, store.size());
+    if (zeroCount > 0) {
+      writeTag(sketch, 4, 1); // zeroCount
+      writeDouble(sketch, zeroCount);
+    }
+    return sketch.toByteArray();
+  }
+
+  private static void writeTag(
+      final ByteArrayOutputStream out, final int field, final int wireType) {
+    writeVarint(out, (field << 3) | wireType);
+  }
+
+  private static void writeVarint(final ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static void writeDouble(final ByteArrayOutputStream out, final double value) {
+    final long bits = Double.doubleToLongBits(value);
+    for (int i = 0; i < 8; ++i) {
+      out.write((int) (bits >>> (i * 8)));
+    }
+  }
+}
@@ -1,11 +1,16 @@
 package datadog.trace.common.writer.ddagent;
 
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
 import com.timgroup.statsd.NonBlockingStatsDClient;
 import com.timgroup.statsd.StatsDClient;
 import datadog.trace.common.writer.DDAgentWriter;
 import datadog.trace.core.DDSpan;
 import datadog.trace.core.DDTraceCoreInfo;
+import datadog.trace.core.StringTables;
+import datadog.trace.core.serialization.Utf8Cache;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Callback interface for monitoring the health of the DDAgentWriter. Provides hooks for major
@@ -15,8 +20,13 @@ import java.util.List;
  *   <li>start
  *   <li>shutdown
  *   <li>publishing to disruptor
+ *   <li>staging in submission stripes
+ *   <li>admission against the queue's memory budget
  *   <li>serializing
  *   <li>sending to agent
+ *   <li>spilling to disk the traces which couldn't be sent
+ *   <li>tuning the flush interval and payload size
+ *   <li>opening and closing the circuit to the agent
  * </ul>
  */
 public interface Monitor {
@@ -28,6 +38,15 @@ public interface Monitor {
 
   void onFailedPublish(final DDAgentWriter agentWriter, final List<DDSpan> trace);
 
+  void onSubmissionStripe(
+      final DDAgentWriter agentWriter, final int stripe, final int depth, final long dropped);
+
+  void onBudgetedPublish(
+      final DDAgentWriter agentWriter,
+      final List<DDSpan> trace,
+      final int footprint,
+      final boolean admitted);
+
   void onFlush(final DDAgentWriter agentWriter, final boolean early);
 
   void onScheduleFlush(final DDAgentWriter agentWriter, final boolean previousIncomplete);
@@ -42,14 +61,30 @@ public interface Monitor {
       final DDAgentWriter agentWriter,
       final int representativeCount,
       final int sizeInBytes,
+      final long latencyNanos,
       final DDAgentApi.Response response);
 
   void onFailedSend(
       final DDAgentWriter agentWriter,
       final int representativeCount,
       final int sizeInBytes,
+      final long latencyNanos,
       final DDAgentApi.Response response);
 
+  void onSpill(
+      final DDAgentWriter agentWriter,
+      final int representativeCount,
+      final int sizeInBytes,
+      final boolean spilled);
+
+  void onFlushTuning(
+      final DDAgentWriter agentWriter, final long flushIntervalMillis, final int payloadBytes);
+
+  void onCircuitBreaker(
+      final DDAgentWriter agentWriter,
+      final AgentCircuitBreaker.State state,
+      final long backoffMillis);
+
   final class StatsD implements Monitor {
     public static final String PREFIX = "datadog.tracer";
 
@@ -62,6 +97,10 @@ public interface Monitor {
     private final String hostInfo;
     private final StatsDClient statsd;
 
+    // updated concurrently by the threads sending traces, each reporting the delta it swapped
+    private final AtomicLong reportedUtf8CacheHits = new AtomicLong();
+    private final AtomicLong reportedUtf8CacheMisses = new AtomicLong();
+
     // DQH - Made a conscious choice to not take a Config object here.
     // Letting the creating of the Monitor take the Config,
     // so it can decide which Monitor variant to create.
@@ -109,6 +148,26 @@ public interface Monitor {
       statsd.incrementCounter("queue.dropped");
     }
 
+    @Override
+    public void onSubmissionStripe(
+        final DDAgentWriter agentWriter, final int stripe, final int depth, final long dropped) {
+      final String stripeTag = "stripe:" + stripe;
+      statsd.recordGaugeValue("queue.stripe.depth", depth, stripeTag);
+      if (dropped > 0) {
+        statsd.count("queue.stripe.dropped", dropped, stripeTag);
+      }
+    }
+
+    @Override
+    public void onBudgetedPublish(
+        final DDAgentWriter agentWriter,
+        final List<DDSpan> trace,
+        final int footprint,
+        final boolean admitted) {
+      statsd.count(admitted ? "queue.admitted_bytes" : "queue.dropped_bytes", footprint);
+      statsd.recordGaugeValue("queue.budget.used_bytes", agentWriter.getQueuedBytes());
+    }
+
     @Override
     public void onScheduleFlush(final DDAgentWriter agentWriter, final boolean previousIncomplete) {
       // not recorded
@@ -139,8 +198,9 @@ public interface Monitor {
         final DDAgentWriter agentWriter,
         final int representativeCount,
         final int sizeInBytes,
+        final long latencyNanos,
         final DDAgentApi.Response response) {
-      onSendAttempt(agentWriter, representativeCount, sizeInBytes, response);
+      onSendAttempt(agentWriter, representativeCount, sizeInBytes, latencyNanos, response);
     }
 
     @Override
@@ -148,19 +208,27 @@ public interface Monitor {
         final DDAgentWriter agentWriter,
         final int representativeCount,
         final int sizeInBytes,
+        final long latencyNanos,
         final DDAgentApi.Response response) {
-      onSendAttempt(agentWriter, representativeCount, sizeInBytes, response);
+      onSendAttempt(agentWriter, representativeCount, sizeInBytes, latencyNanos, response);
     }
 
     private void onSendAttempt(
         final DDAgentWriter agentWriter,
         final int representativeCount,
         final int sizeInBytes,
+        final long latencyNanos,
         final DDAgentApi.Response response) {
+      if (response.exception() instanceof DDAgentApi.CircuitOpenException) {
+        // not sent, the agent is known to be unavailable
+        statsd.incrementCounter("api.requests.circuit_open");
+        return;
+      }
       statsd.incrementCounter("api.requests");
       statsd.recordGaugeValue("queue.length", representativeCount);
       // TODO: missing queue.spans (# of spans being sent)
       statsd.recordGaugeValue("queue.size", sizeInBytes);
+      statsd.recordHistogramValue("api.latency_ms", NANOSECONDS.toMillis(latencyNanos));
 
       if (response.exception() != null) {
         // covers communication errors -- both not receiving a response or
@@ -171,6 +239,58 @@ public interface Monitor {
       if (response.status() != null) {
         statsd.incrementCounter("api.responses", "status: " + response.status());
       }
+
+      // the cache is shared by all writers, so this is only accurate when there is one
+      reportUtf8Cache(StringTables.RUNTIME_UTF8_CACHE);
+    }
+
+    @Override
+    public void onSpill(
+        final DDAgentWriter agentWriter,
+        final int representativeCount,
+        final int sizeInBytes,
+        final boolean spilled) {
+      statsd.count(spilled ? "spill.spilled" : "spill.dropped", representativeCount);
+      statsd.count(spilled ? "spill.spilled_bytes" : "spill.dropped_bytes", sizeInBytes);
+    }
+
+    @Override
+    public void onFlushTuning(
+        final DDAgentWriter agentWriter, final long flushIntervalMillis, final int payloadBytes) {
+      statsd.recordGaugeValue("flush.interval_ms", flushIntervalMillis);
+      statsd.recordGaugeValue("flush.payload_bytes", payloadBytes);
+    }
+
+    @Override
+    public void onCircuitBreaker(
+        final DDAgentWriter agentWriter,
+        final AgentCircuitBreaker.State state,
+        final long backoffMillis) {
+      final boolean open = state != AgentCircuitBreaker.State.CLOSED;
+      statsd.recordGaugeValue("api.circuit.open", open ? 1 : 0);
+      statsd.incrementCounter("api.circuit.transitions", "state:" + state.name().toLowerCase());
+      if (backoffMillis > 0) {
+        statsd.recordHistogramValue("api.circuit.backoff_ms", backoffMillis);
+      }
+    }
+
+    private void reportUtf8Cache(final Utf8Cache cache) {
+      final long hits = cache.hits();
+      final long misses = cache.misses();
+      statsd.count("serialization.utf8_cache.hits", delta(reportedUtf8CacheHits, hits));
+      statsd.count("serialization.utf8_cache.misses", delta(reportedUtf8CacheMisses, misses));
+    }
+
+    /** Never negative, a thread reading an older total than another reports nothing. */
+    private static long delta(final AtomicLong reported, final long total) {
+      long previous = reported.get();
+      while (previous < total) {
+        if (reported.compareAndSet(previous, total)) {
+          return total - previous;
+        }
+        previous = reported.get();
+      }
+      return 0;
     }
 
     @Override
@@ -196,6 +316,17 @@ public interface Monitor {
     @Override
     public void onFailedPublish(final DDAgentWriter agentWriter, final List<DDSpan> trace) {}
 
+    @Override
+    public void onSubmissionStripe(
+        final DDAgentWriter agentWriter, final int stripe, final int depth, final long dropped) {}
+
+    @Override
+    public void onBudgetedPublish(
+        final DDAgentWriter agentWriter,
+        final List<DDSpan> trace,
+        final int footprint,
+        final boolean admitted) {}
+
     @Override
     public void onFlush(final DDAgentWriter agentWriter, final boolean early) {}
 
@@ -218,6 +349,7 @@ public interface Monitor {
         final DDAgentWriter agentWriter,
         final int representativeCount,
         final int sizeInBytes,
+        final long latencyNanos,
         final DDAgentApi.Response response) {}
 
     @Override
@@ -225,8 +357,26 @@ public interface Monitor {
         final DDAgentWriter agentWriter,
         final int representativeCount,
         final int sizeInBytes,
+        final long latencyNanos,
         final DDAgentApi.Response response) {}
 
+    @Override
+    public void onSpill(
+        final DDAgentWriter agentWriter,
+        final int representativeCount,
+        final int sizeInBytes,
+        final boolean spilled) {}
+
+    @Override
+    public void onFlushTuning(
+        final DDAgentWriter agentWriter, final long flushIntervalMillis, final int payloadBytes) {}
+
+    @Override
+    public void onCircuitBreaker(
+        final DDAgentWriter agentWriter,
+        final AgentCircuitBreaker.State state,
+        final long backoffMillis) {}
+
     @Override
     public String toString() {
       return "NoOp";
@@ -0,0 +1,498 @@
+package datadog.trace.common.writer.ddagent;
+
+import static datadog.trace.core.StringTables.DURATION;
+import static datadog.trace.core.StringTables.ERROR;
+import static datadog.trace.core.StringTables.META;
+import static datadog.trace.core.StringTables.METRICS;
+import static datadog.trace.core.StringTables.NAME;
+import static datadog.trace.core.StringTables.PARENT_ID;
+import static datadog.trace.core.StringTables.RESOURCE;
+import static datadog.trace.core.StringTables.SERVICE;
+import static datadog.trace.core.StringTables.SPAN_ID;
+import static datadog.trace.core.StringTables.START;
+import static datadog.trace.core.StringTables.TRACE_ID;
+import static datadog.trace.core.StringTables.TYPE;
+
+import datadog.trace.core.DDId;
+import datadog.trace.core.DDSpan;
+import datadog.trace.core.StringTables;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serialises traces in the v0.4 msgpack layout directly into a reusable {@link ByteBuffer}, without
+ * going through a {@link org.msgpack.core.MessagePacker}. Produces the same spans as {@link
+ * MsgPackStatefulSerializer}, but:
+ *
+ * <ul>
+ *   <li>strings are encoded to UTF-8 straight into the buffer, and the encodings of repeated
+ *       service, resource and operation names, tag keys and tag values are taken from {@link
+ *       StringTables#RUNTIME_UTF8_CACHE}
+ *   <li>ids are packed from their primitive values
+ *   <li>each trace buffer is a single, optionally direct, {@link ByteBuffer} which is written to
+ *       the channel in one call, with room reserved at its start for the trace count header
+ * </ul>
+ *
+ * <p>Intentionally not thread-safe; each thread should have a dedicated instance in multi-threaded
+ * settings.
+ */
+public class MsgPackByteBufferSerializer implements StatefulSerializer {
+
+  // the largest array header
+  private static final int HEADER_RESERVED = 5;
+
+  private static final byte FIXMAP = (byte) 0x80;
+  private static final byte FIXARRAY = (byte) 0x90;
+  private static final byte FIXSTR = (byte) 0xa0;
+  private static final byte NIL = (byte) 0xc0;
+  private static final byte FLOAT32 = (byte) 0xca;
+  private static final byte FLOAT64 = (byte) 0xcb;
+  private static final byte UINT8 = (byte) 0xcc;
+  private static final byte UINT16 = (byte) 0xcd;
+  private static final byte UINT32 = (byte) 0xce;
+  private static final byte UINT64 = (byte) 0xcf;
+  private static final byte INT8 = (byte) 0xd0;
+  private static final byte INT16 = (byte) 0xd1;
+  private static final byte INT32 = (byte) 0xd2;
+  private static final byte INT64 = (byte) 0xd3;
+  private static final byte STR8 = (byte) 0xd9;
+  private static final byte STR16 = (byte) 0xda;
+  private static final byte STR32 = (byte) 0xdb;
+  private static final byte ARRAY16 = (byte) 0xdc;
+  private static final byte ARRAY32 = (byte) 0xdd;
+  private static final byte MAP32 = (byte) 0xdf;
+
+  private final TraceSizeHistory traceSizeHistory = new TraceSizeHistory();
+  private final int sizeThresholdBytes;
+  private final int bufferSize;
+  private final boolean direct;
+
+  private ByteBufferTraceBuffer traceBuffer;
+  private ByteBuffer buffer;
+
+  public MsgPackByteBufferSerializer() {
+    this(
+        MsgPackStatefulSerializer.DEFAULT_BUFFER_THRESHOLD,
+        MsgPackStatefulSerializer.DEFAULT_BUFFER_THRESHOLD * 3 / 2,
+        false);
+  }
+
+  /**
+   * @param sizeThresholdBytes the size after which the buffer is reported to be at capacity
+   * @param bufferSize the initial size of each buffer, which grows if a trace doesn't fit
+   * @param direct whether to allocate buffers off-heap
+   */
+  public MsgPackByteBufferSerializer(int sizeThresholdBytes, int bufferSize, boolean direct) {
+    this.sizeThresholdBytes = sizeThresholdBytes;
+    this.bufferSize = Math.max(bufferSize, HEADER_RESERVED);
+    this.direct = direct;
+  }
+
+  @Override
+  public int serialize(List<DDSpan> trace) throws IOException {
+    int start = buffer.position();
+    writeArrayHeader(trace.size());
+    for (DDSpan span : trace) {
+      writeSpan(span);
+    }
+    int serializedSize = buffer.position() - start;
+    traceSizeHistory.update(serializedSize);
+    ++traceBuffer.traceCount;
+    traceBuffer.buffer = buffer;
+    return serializedSize;
+  }
+
+  @Override
+  public void dropBuffer() {
+    traceBuffer = null;
+    buffer = null;
+  }
+
+  @Override
+  public boolean isAtCapacity() {
+    return isAtCapacity(sizeThresholdBytes);
+  }
+
+  @Override
+  public boolean isAtCapacity(final int sizeThresholdBytes) {
+    // Return true if could not take another average trace without allocating,
+    // see MsgPackStatefulSerializer.
+    return buffer.position() - HEADER_RESERVED + traceSizeHistory.averageTraceSize()
+        >= sizeThresholdBytes;
+  }
+
+  @Override
+  public void reset(TraceBuffer buffer) {
+    if (buffer instanceof ByteBufferTraceBuffer) {
+      this.traceBuffer = (ByteBufferTraceBuffer) buffer;
+      this.traceBuffer.reset();
+    } else { // i.e. if (null == buffer || unuseable)
+      this.traceBuffer = newBuffer();
+    }
+    this.buffer = traceBuffer.buffer;
+  }
+
+  @Override
+  public ByteBufferTraceBuffer newBuffer() {
+    return new ByteBufferTraceBuffer(allocate(bufferSize));
+  }
+
+  private void writeSpan(DDSpan span) {
+    // must match FormatWriter.writeDDSpan
+    ensureCapacity(1);
+    buffer.put((byte) (FIXMAP | 12));
+    /* 1  */ writeKey(SERVICE);
+    writeString(span.getServiceName());
+    /* 2  */ writeKey(NAME);
+    writeString(span.getOperationName());
+    /* 3  */ writeKey(RESOURCE);
+    writeString(span.getResourceName());
+    /* 4  */ writeKey(TRACE_ID);
+    writeId(span.getDDTraceId());
+    /* 5  */ writeKey(SPAN_ID);
+    writeId(span.getDDSpanId());
+    /* 6  */ writeKey(PARENT_ID);
+    writeId(span.getDDParentId());
+    /* 7  */ writeKey(START);
+    writeLong(span.getStartTime());
+    /* 8  */ writeKey(DURATION);
+    writeLong(span.getDurationNano());
+    /* 9  */ writeKey(TYPE);
+    writeString(span.getType());
+    /* 10 */ writeKey(ERROR);
+    writeLong(span.getError());
+    /* 11 */ writeKey(METRICS);
+    writeMetrics(span.getMetrics());
+    /* 12 */ writeKey(META);
+    writeMeta(span.context().getBaggageItems(), span.context().getTags());
+  }
+
+  private void writeMetrics(Map<String, Number> metrics) {
+    // the map may be modified concurrently, so the header is filled in once the entries are written
+    int header = reserveMapHeader();
+    int count = 0;
+    for (Map.Entry<String, Number> entry : metrics.entrySet()) {
+      writeString(entry.getKey());
+      writeNumber(entry.getValue());
+      ++count;
+    }
+    buffer.putInt(header, count);
+  }
+
+  private void writeMeta(Map<String, String> baggage, Map<String, Object> tags) {
+    int header = reserveMapHeader();
+    int count = 0;
+    for (Map.Entry<String, String> entry : baggage.entrySet()) {
+      // tags and baggage may intersect, but tags take priority
+      if (!tags.containsKey(entry.getKey())) {
+        writeString(entry.getKey());
+        writeString(entry.getValue());
+        ++count;
+      }
+    }
+    for (Map.Entry<String, Object> entry : tags.entrySet()) {
+      writeString(entry.getKey());
+      Object value = entry.getValue();
+      writeString(value instanceof String ? (String) value : String.valueOf(value));
+      ++count;
+    }
+    buffer.putInt(header, count);
+  }
+
+  private int reserveMapHeader() {
+    ensureCapacity(5);
+    buffer.put(MAP32);
+    int position = buffer.position();
+    buffer.position(position + 4);
+    return position;
+  }
+
+  private void writeArrayHeader(int size) {
+    ensureCapacity(5);
+    if (size < 16) {
+      buffer.put((byte) (FIXARRAY | size));
+    } else if (size < (1 << 16)) {
+      buffer.put(ARRAY16);
+      buffer.putShort((short) size);
+    } else {
+      buffer.put(ARRAY32);
+      buffer.putInt(size);
+    }
+  }
+
+  private void writeKey(byte[] key) {
+    ensureCapacity(5 + key.length);
+    writeStringHeader(key.length);
+    buffer.put(key);
+  }
+
+  private void writeString(String value) {
+    if (null == value) {
+      ensureCapacity(1);
+      buffer.put(NIL);
+      return;
+    }
+    byte[] encoding = StringTables.getRuntimeBytesUTF8(value);
+    if (null != encoding) {
+      writeKey(encoding);
+      return;
+    }
+    int length = utf8Length(value);
+    ensureCapacity(5 + length);
+    writeStringHeader(length);
+    writeUtf8(value);
+  }
+
+  private void writeStringHeader(int length) {
+    if (length < 32) {
+      buffer.put((byte) (FIXSTR | length));
+    } else if (length < (1 << 8)) {
+      buffer.put(STR8);
+      buffer.put((byte) length);
+    } else if (length < (1 << 16)) {
+      buffer.put(STR16);
+      buffer.putShort((short) length);
+    } else {
+      buffer.put(STR32);
+      buffer.putInt(length);
+    }
+  }
+
+  private void writeId(DDId id) {
+    if (null == id) {
+      ensureCapacity(1);
+      buffer.put(NIL);
+      return;
+    }
+    long value = id.toLong();
+    if (value >= 0) {
+      writeLong(value);
+    } else {
+      // the id is above Long.MAX_VALUE, so must be written as uint64 rather than int64
+      ensureCapacity(9);
+      buffer.put(UINT64);
+      buffer.putLong(value);
+    }
+  }
+
+  private void writeNumber(Number value) {
+    if (value instanceof Long
+        || value instanceof Integer
+        || value instanceof Short
+        || value instanceof Byte) {
+      writeLong(value.longValue());
+    } else if (value instanceof Float) {
+      ensureCapacity(5);
+      buffer.put(FLOAT32);
+      buffer.putFloat(value.floatValue());
+    } else {
+      ensureCapacity(9);
+      buffer.put(FLOAT64);
+      buffer.putDouble(value.doubleValue());
+    }
+  }
+
+  private void writeLong(long value) {
+    // inlines behaviour from MessagePacker.packLong: the smallest representation is used
+    ensureCapacity(9);
+    if (value < -(1L << 5)) {
+      if (value < -(1L << 15)) {
+        if (value < -(1L << 31)) {
+          buffer.put(INT64);
+          buffer.putLong(value);
+        } else {
+          buffer.put(INT32);
+          buffer.putInt((int) value);
+        }
+      } else if (value < -(1 << 7)) {
+        buffer.put(INT16);
+        buffer.putShort((short) value);
+      } else {
+        buffer.put(INT8);
+        buffer.put((byte) value);
+      }
+    } else if (value < (1 << 7)) {
+      // fixnum
+      buffer.put((byte) value);
+    } else if (value < (1L << 16)) {
+      if (value < (1 << 8)) {
+        buffer.put(UINT8);
+        buffer.put((byte) value);
+      } else {
+        buffer.put(UINT16);
+        buffer.putShort((short) value);
+      }
+    } else if (value < (1L << 32)) {
+      buffer.put(UINT32);
+      buffer.putInt((int) value);
+    } else {
+      buffer.put(UINT64);
+      buffer.putLong(value);
+    }
+  }
+
+  private void writeUtf8(String value) {
+    // equivalent to String.getBytes(UTF_8), including replacing unpaired surrogates with '?'
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        buffer.put((byte) c);
+      } else if (c < 0x800) {
+        buffer.put((byte) (0xc0 | (c >> 6)));
+        buffer.put((byte) (0x80 | (c & 0x3f)));
+      } else if (Character.isSurrogate(c)) {
+        if (Character.isHighSurrogate(c)
+            && i + 1 < value.length()
+            && Character.isLowSurrogate(value.charAt(i + 1))) {
+          int codePoint = Character.toCodePoint(c, value.charAt(++i));
+          buffer.put((byte) (0xf0 | (codePoint >> 18)));
+          buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+          buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+          buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+        } else {
+          buffer.put((byte) '?');
+        }
+      } else {
+        buffer.put((byte) (0xe0 | (c >> 12)));
+        buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+        buffer.put((byte) (0x80 | (c & 0x3f)));
+      }
+    }
+  }
+
+  private static int utf8Length(String value) {
+    int length = value.length();
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      if (c >= 0x80) {
+        if (c < 0x800) {
+          length += 1;
+        } else if (Character.isSurrogate(c)) {
+          if (Character.isHighSurrogate(c)
+              && i + 1 < value.length()
+              && Character.isLowSurrogate(value.charAt(i + 1))) {
+            // two chars encoded as four bytes
+            length += 2;
+            ++i;
+          }
+        } else {
+          length += 2;
+        }
+      }
+    }
+    return length;
+  }
+
+  private void ensureCapacity(int bytes) {
+    if (buffer.remaining() < bytes) {
+      ByteBuffer grown = allocate(Math.max(buffer.capacity() << 1, buffer.position() + bytes));
+      buffer.flip();
+      grown.put(buffer);
+      buffer = grown;
+    }
+  }
+
+  private ByteBuffer allocate(int capacity) {
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+
+  static class ByteBufferTraceBuffer implements TraceBuffer {
+
+    private static final AtomicInteger BUFFER_ID = new AtomicInteger(0);
+
+    private ByteBuffer buffer;
+    final int id;
+    private int traceCount;
+    private int representativeCount;
+    private Runnable flush;
+
+    ByteBufferTraceBuffer(ByteBuffer buffer) {
+      this.buffer = buffer;
+      this.id = BUFFER_ID.getAndIncrement();
+      reset();
+    }
+
+    @Override
+    public void writeTo(WritableByteChannel channel) throws IOException {
+      // the header is written right-aligned into the reserved space, so
+      // the payload is contiguous; the buffer's own position is left alone
+      // so that the request can be retried
+      int start = HEADER_RESERVED - headerSize();
+      if (traceCount < 16) {
+        buffer.put(start, (byte) (FIXARRAY | traceCount));
+      } else if (traceCount < (1 << 16)) {
+        buffer.put(start, ARRAY16);
+        buffer.putShort(start + 1, (short) traceCount);
+      } else {
+        buffer.put(start, ARRAY32);
+        buffer.putInt(start + 1, traceCount);
+      }
+      ByteBuffer payload = buffer.duplicate();
+      payload.limit(buffer.position());
+      payload.position(start);
+      while (payload.hasRemaining()) {
+        channel.write(payload);
+      }
+    }
+
+    @Override
+    public int sizeInBytes() {
+      return buffer.position() - HEADER_RESERVED;
+    }
+
+    @Override
+    public int headerSize() {
+      if (traceCount < 16) {
+        return 1;
+      } else if (traceCount < (1 << 16)) {
+        return 3;
+      } else {
+        return 5;
+      }
+    }
+
+    @Override
+    public int traceCount() {
+      return traceCount;
+    }
+
+    @Override
+    public int representativeCount() {
+      return representativeCount;
+    }
+
+    @Override
+    public void setRepresentativeCount(int representativeCount) {
+      this.representativeCount = representativeCount;
+    }
+
+    @Override
+    public int id() {
+      return id;
+    }
+
+    @Override
+    public void setDispatchRunnable(Runnable flush) {
+      this.flush = flush;
+    }
+
+    @Override
+    public void onDispatched() {
+      if (null != flush) {
+        flush.run();
+        flush = null;
+      }
+    }
+
+    public void reset() {
+      buffer.clear();
+      buffer.position(HEADER_RESERVED);
+      traceCount = 0;
+      representativeCount = 0;
+    }
+  }
+}
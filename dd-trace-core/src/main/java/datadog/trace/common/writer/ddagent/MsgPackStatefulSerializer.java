@@ -8,15 +8,14 @@ import static org.msgpack.core.MessagePack.Code.FIXARRAY_PREFIX;
 import datadog.trace.core.DDSpan;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import lombok.extern.slf4j.Slf4j;
 import org.msgpack.core.MessagePack;
 import org.msgpack.core.MessagePacker;
 import org.msgpack.core.buffer.ArrayBufferOutput;
-import org.msgpack.core.buffer.MessageBuffer;
 
 /**
  * Serialises traces into a buffer and on demand releases the buffer. Aims to dynamically size
@@ -31,10 +30,6 @@ public class MsgPackStatefulSerializer implements StatefulSerializer {
 
   public static final int DEFAULT_BUFFER_THRESHOLD = 1 << 20; // 1MB
 
-  // assumed to be a power of 2 for arithmetic efficiency
-  private static final int TRACE_HISTORY_SIZE = 16;
-  private static final int INITIAL_TRACE_SIZE_ESTIMATE = 8 * 1024; // 8KB
-
   // limiting the size this optimisation applies to decreases the likelihood
   // that the MessagePacker will allocate a byte[] during UTF-8 encoding,
   // and restricts the optimisation to very small strings which may scalarise
@@ -45,12 +40,10 @@ public class MsgPackStatefulSerializer implements StatefulSerializer {
   // caches an Encoder
   private final MessagePacker messagePacker;
 
-  private final int[] traceSizeHistory = new int[TRACE_HISTORY_SIZE];
+  private final TraceSizeHistory traceSizeHistory = new TraceSizeHistory();
   private final int sizeThresholdBytes;
   private final int bufferSize;
 
-  private int runningTraceSizeSum;
-  private int position;
   private MsgPackTraceBuffer traceBuffer;
 
   private int currentSerializedBytes = 0;
@@ -60,8 +53,6 @@ public class MsgPackStatefulSerializer implements StatefulSerializer {
   }
 
   public MsgPackStatefulSerializer(int sizeThresholdBytes, int bufferSize) {
-    Arrays.fill(traceSizeHistory, INITIAL_TRACE_SIZE_ESTIMATE);
-    this.runningTraceSizeSum = INITIAL_TRACE_SIZE_ESTIMATE * TRACE_HISTORY_SIZE;
     this.sizeThresholdBytes = sizeThresholdBytes;
     this.bufferSize = bufferSize;
     this.messagePacker = MESSAGE_PACKER_CONFIG.newPacker(new ArrayBufferOutput(0));
@@ -73,7 +64,7 @@ public class MsgPackStatefulSerializer implements StatefulSerializer {
     int newSerializedSize = (int) messagePacker.getTotalWrittenBytes();
     int serializedSize = newSerializedSize - currentSerializedBytes;
     currentSerializedBytes = newSerializedSize;
-    updateTraceSizeEstimate(serializedSize);
+    traceSizeHistory.update(serializedSize);
     ++traceBuffer.traceCount;
     traceBuffer.length = newSerializedSize;
     return serializedSize;
@@ -87,11 +78,16 @@ public class MsgPackStatefulSerializer implements StatefulSerializer {
 
   @Override
   public boolean isAtCapacity() {
+    return isAtCapacity(sizeThresholdBytes);
+  }
+
+  @Override
+  public boolean isAtCapacity(final int sizeThresholdBytes) {
     // Return true if could not take another average trace without allocating.
     // There are many cases where this will lead to some amount of over allocation,
     // e.g. a very large trace after many very small traces, but it's a best effort
     // strategy to avoid buffer growth eventually.
-    return currentSerializedBytes + avgTraceSize() >= sizeThresholdBytes;
+    return currentSerializedBytes + traceSizeHistory.averageTraceSize() >= sizeThresholdBytes;
   }
 
   @Override
@@ -113,78 +109,76 @@ public class MsgPackStatefulSerializer implements StatefulSerializer {
 
   @Override
   public MsgPackTraceBuffer newBuffer() {
-    return new MsgPackTraceBuffer(new ArrayBufferOutput(bufferSize));
-  }
-
-  private void updateTraceSizeEstimate(int traceSize) {
-    // This is a moving average calculation based on the last
-    // TRACE_HISTORY_SIZE trace sizes, stored in a ring buffer.
-    // A ring buffer of recent trace sizes is maintained. On each
-    // update, the value at position is subtracted from the running
-    // sum, and the new value is added. The value at position is
-    // replaced by the new value. The position is incremented modulo
-    // TRACE_HISTORY_SIZE. TRACE_HISTORY_SIZE has been chosen as a
-    // power of two to keep this calculation as cheap as possible.
-    //
-    // The trace history is initialised to INITIAL_TRACE_SIZE_ESTIMATE to
-    // simplify the calculation during the initial filling of the history,
-    // and to bias early estimates toward small trace sizes.
-    runningTraceSizeSum = (runningTraceSizeSum - traceSizeHistory[position] + traceSize);
-    traceSizeHistory[position] = traceSize;
-    position = (position + 1) & (traceSizeHistory.length - 1);
-  }
-
-  private int avgTraceSize() {
-    return runningTraceSizeSum / TRACE_HISTORY_SIZE;
+    return new MsgPackTraceBuffer(new ChunkedBufferOutput(bufferSize));
   }
 
   static class MsgPackTraceBuffer implements TraceBuffer {
 
     private static final AtomicInteger BUFFER_ID = new AtomicInteger(0);
 
-    private final ArrayBufferOutput buffer;
+    private final ChunkedBufferOutput buffer;
+    // reused by every write, so that writing a payload allocates nothing
+    private final ByteBuffer header = ByteBuffer.allocate(5);
+    private ByteBuffer[] slices = new ByteBuffer[2];
     final int id;
     private int length;
     private int traceCount;
     private int representativeCount;
     private Runnable flush;
 
-    public MsgPackTraceBuffer(ArrayBufferOutput buffer) {
+    public MsgPackTraceBuffer(ChunkedBufferOutput buffer) {
       this.buffer = buffer;
       this.id = BUFFER_ID.getAndIncrement();
     }
 
+    /**
+     * Writes the array header followed by the packed traces, in a single gathering write if the
+     * channel supports it, so that the payload is written straight from the packed chunks.
+     */
     @Override
     public void writeTo(WritableByteChannel channel) throws IOException {
-      writeHeader(channel);
-      int remaining = length;
-      for (MessageBuffer messageBuffer : buffer.toBufferList()) {
-        int size = messageBuffer.size();
-        ByteBuffer buffer = messageBuffer.sliceAsByteBuffer(0, Math.min(size, remaining));
-        while (buffer.hasRemaining()) {
-          remaining -= channel.write(buffer);
+      int count = buffer.chunkCount() + 1;
+      if (slices.length < count) {
+        slices = new ByteBuffer[count];
+      }
+      slices[0] = writeHeader();
+      for (int i = 1; i < count; ++i) {
+        slices[i] = buffer.chunk(i - 1);
+      }
+      long remaining = headerSize() + length;
+      if (channel instanceof GatheringByteChannel) {
+        GatheringByteChannel gatheringChannel = (GatheringByteChannel) channel;
+        int offset = 0;
+        while (remaining > 0) {
+          remaining -= gatheringChannel.write(slices, offset, count - offset);
+          while (offset < count && !slices[offset].hasRemaining()) {
+            ++offset;
+          }
+        }
+      } else {
+        for (int i = 0; i < count; ++i) {
+          while (slices[i].hasRemaining()) {
+            remaining -= channel.write(slices[i]);
+          }
         }
       }
       assert remaining == 0;
     }
 
-    private void writeHeader(WritableByteChannel channel) throws IOException {
+    private ByteBuffer writeHeader() {
       // inlines behaviour from MessagePacker.packArrayHeader
+      header.clear();
       if (traceCount < (1 << 4)) {
-        ByteBuffer buffer = ByteBuffer.allocate(1);
-        buffer.put(0, (byte) (traceCount | FIXARRAY_PREFIX));
-        channel.write(buffer);
+        header.put((byte) (traceCount | FIXARRAY_PREFIX));
       } else if (traceCount < (1 << 16)) {
-        ByteBuffer buffer = ByteBuffer.allocate(3);
-        buffer.put(0, ARRAY16);
-        buffer.putShort(1, (short) traceCount);
-        channel.write(buffer);
+        header.put(ARRAY16);
+        header.putShort((short) traceCount);
       } else {
-        ByteBuffer buffer = ByteBuffer.allocate(5);
-        buffer.put(0, ARRAY32);
-        buffer.putInt(1, traceCount);
-        channel.write(buffer);
+        header.put(ARRAY32);
+        header.putInt(traceCount);
       }
+      header.flip();
+      return header;
     }
 
     @Override
@@ -0,0 +1,482 @@
+package datadog.trace.common.writer.ddagent;
+
+import datadog.trace.common.writer.DDAgentWriter;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Bounded on-disk queue of serialized trace buffers which couldn't be sent to the agent, so that
+ * they can be replayed in order once the agent is available again.
+ *
+ * <p>Buffers are appended to memory-mapped segment files in a directory. Each segment starts with a
+ * small index holding the offsets of the next record to write and to replay, which is updated after
+ * each record has been written, so that the queue survives a restart of the application. A record
+ * holds the payload as it would be sent, prefixed with its length, representative count, trace
+ * count and when it was spilled.
+ *
+ * <p>Once the segments would take more than the configured disk usage, the oldest segment is
+ * dropped, and records older than the configured age are skipped on replay.
+ *
+ * <p>After a failed send, buffers are spilled without attempting to send them for a second, so that
+ * an unavailable agent doesn't back-pressure serialization with request timeouts.
+ */
+@Slf4j
+public class SpillQueue implements AutoCloseable {
+
+  static final int SEGMENT_SIZE = 4 << 20;
+
+  private static final int MAGIC = 0x44445351; // DDSQ
+  // magic, write offset, read offset, unused
+  private static final int SEGMENT_HEADER_SIZE = 16;
+  private static final int WRITE_OFFSET = 4;
+  private static final int READ_OFFSET = 8;
+  // length, representative count, trace count, spilled at
+  private static final int RECORD_HEADER_SIZE = 20;
+  private static final String SUFFIX = ".spill";
+
+  private static final int REPLAY_BATCH = 16;
+  private static final long RETRY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final File directory;
+  private final long maxBytes;
+  private final long maxAgeMillis;
+  private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+  private final AtomicBoolean replaying = new AtomicBoolean();
+
+  private long nextSegmentId;
+  private long diskBytes;
+  private boolean closed;
+  private volatile long retryAtNanos = System.nanoTime();
+
+  /**
+   * Opens the queue, reloading any segments left in the directory.
+   *
+   * @param maxBytes the most disk the segments may take
+   * @param maxAgeMillis how long spilled traces are worth replaying
+   */
+  public SpillQueue(final File directory, final long maxBytes, final long maxAgeMillis)
+      throws IOException {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.maxAgeMillis = maxAgeMillis;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create spill directory " + directory);
+    }
+    final File[] files =
+        directory.listFiles(
+            new FilenameFilter() {
+              @Override
+              public boolean accept(final File dir, final String name) {
+                return name.endsWith(SUFFIX);
+              }
+            });
+    if (null != files) {
+      // names are zero padded ids, so sort in the order the segments were created
+      Arrays.sort(files);
+      for (final File file : files) {
+        final Segment segment = Segment.open(file);
+        if (null == segment) {
+          log.debug("Deleting unreadable spill segment {}", file);
+          file.delete();
+        } else {
+          segments.addLast(segment);
+          diskBytes += segment.capacity;
+          nextSegmentId = Math.max(nextSegmentId, segment.id + 1);
+        }
+      }
+    }
+  }
+
+  /** @return true if the agent failed recently, and buffers should be spilled without sending */
+  public boolean isBypassing() {
+    return System.nanoTime() - retryAtNanos < 0;
+  }
+
+  /** Stops sending for a while after a failed send. */
+  public void onSendFailed() {
+    retryAtNanos = System.nanoTime() + RETRY_INTERVAL_NANOS;
+  }
+
+  /**
+   * Appends a copy of the buffer's payload to the queue.
+   *
+   * @return false if the buffer couldn't be spilled and was dropped
+   */
+  public synchronized boolean append(final TraceBuffer traces) throws IOException {
+    if (closed) {
+      return false;
+    }
+    final int length = traces.headerSize() + traces.sizeInBytes();
+    final int recordSize = RECORD_HEADER_SIZE + length;
+    Segment tail = segments.peekLast();
+    if (null == tail || tail.remaining() < recordSize) {
+      final int capacity = Math.max(SEGMENT_SIZE, SEGMENT_HEADER_SIZE + recordSize);
+      if (capacity > maxBytes) {
+        return false;
+      }
+      while (diskBytes + capacity > maxBytes && !segments.isEmpty()) {
+        final Segment oldest = segments.removeFirst();
+        log.debug("Spill queue is full, dropping oldest segment {}", oldest.file);
+        diskBytes -= oldest.capacity;
+        oldest.delete();
+      }
+      tail =
+          Segment.create(
+              new File(directory, String.format("%016d%s", nextSegmentId, SUFFIX)),
+              nextSegmentId,
+              capacity);
+      ++nextSegmentId;
+      segments.addLast(tail);
+      diskBytes += capacity;
+    }
+    tail.append(traces, length, System.currentTimeMillis());
+    return true;
+  }
+
+  /** @return the oldest spilled buffer which isn't too old to replay, or null */
+  public synchronized TraceBuffer peek() {
+    if (closed) {
+      return null;
+    }
+    final long expiry = System.currentTimeMillis() - maxAgeMillis;
+    while (!segments.isEmpty()) {
+      final Segment head = segments.peekFirst();
+      if (head.readOffset < head.writeOffset) {
+        final SpilledTraceBuffer spilled = head.read();
+        if (spilled.spilledAtMillis >= expiry) {
+          return spilled;
+        }
+        head.advance(spilled);
+      } else if (head == segments.peekLast()) {
+        head.clear();
+        return null;
+      } else {
+        segments.removeFirst();
+        diskBytes -= head.capacity;
+        head.delete();
+      }
+    }
+    return null;
+  }
+
+  /** Removes a buffer returned by {@link #peek()} once it has been replayed. */
+  public synchronized void remove(final TraceBuffer replayed) {
+    final Segment head = segments.peekFirst();
+    if (replayed instanceof SpilledTraceBuffer
+        && ((SpilledTraceBuffer) replayed).segment == head
+        && ((SpilledTraceBuffer) replayed).offset == head.readOffset) {
+      head.advance((SpilledTraceBuffer) replayed);
+    }
+  }
+
+  public synchronized boolean isEmpty() {
+    for (final Segment segment : segments) {
+      if (segment.readOffset < segment.writeOffset) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public synchronized long getDiskBytes() {
+    return diskBytes;
+  }
+
+  /**
+   * Sends spilled buffers in the order they were spilled, until a send fails. Only one thread
+   * replays at a time, and a batch at most is replayed by each call, so that the thread replaying
+   * isn't held up for long. Called by a thread sending traces, since it blocks on the agent; while
+   * the api's circuit is open, the first send fails fast and ends the replay.
+   */
+  public void replay(final DDAgentApi api, final Monitor monitor, final DDAgentWriter writer) {
+    if (isBypassing() || !replaying.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      for (int i = 0; i < REPLAY_BATCH; ++i) {
+        final TraceBuffer spilled = peek();
+        if (null == spilled) {
+          return;
+        }
+        final long start = System.nanoTime();
+        final DDAgentApi.Response response = api.sendSerializedTraces(spilled);
+        final long latencyNanos = System.nanoTime() - start;
+        if (!response.success()) {
+          onSendFailed();
+          monitor.onFailedSend(
+              writer,
+              spilled.representativeCount(),
+              spilled.sizeInBytes(),
+              latencyNanos,
+              response);
+          return;
+        }
+        remove(spilled);
+        monitor.onSend(
+            writer, spilled.representativeCount(), spilled.sizeInBytes(), latencyNanos, response);
+      }
+    } finally {
+      replaying.set(false);
+    }
+  }
+
+  /** Spilling and replaying stop once closed, buffers appended later being dropped. */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    for (final Segment segment : segments) {
+      segment.close();
+    }
+    segments.clear();
+  }
+
+  private static final class Segment {
+    private final File file;
+    private final long id;
+    private final int capacity;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer map;
+    private int writeOffset;
+    private int readOffset;
+
+    private Segment(
+        final File file,
+        final long id,
+        final RandomAccessFile raf,
+        final MappedByteBuffer map,
+        final int writeOffset,
+        final int readOffset) {
+      this.file = file;
+      this.id = id;
+      this.capacity = map.capacity();
+      this.raf = raf;
+      this.map = map;
+      this.writeOffset = writeOffset;
+      this.readOffset = readOffset;
+    }
+
+    static Segment create(final File file, final long id, final int capacity) throws IOException {
+      final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(capacity);
+        final MappedByteBuffer map =
+            raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        map.putInt(0, MAGIC);
+        map.putInt(WRITE_OFFSET, SEGMENT_HEADER_SIZE);
+        map.putInt(READ_OFFSET, SEGMENT_HEADER_SIZE);
+        return new Segment(file, id, raf, map, SEGMENT_HEADER_SIZE, SEGMENT_HEADER_SIZE);
+      } catch (final IOException e) {
+        raf.close();
+        file.delete();
+        throw e;
+      }
+    }
+
+    /** @return the segment, or null if the file isn't a valid segment */
+    static Segment open(final File file) throws IOException {
+      final long id;
+      try {
+        id = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+      } catch (final NumberFormatException e) {
+        return null;
+      }
+      final long length = file.length();
+      if (length < SEGMENT_HEADER_SIZE || length > Integer.MAX_VALUE) {
+        return null;
+      }
+      final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        final MappedByteBuffer map =
+            raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        final int writeOffset = map.getInt(WRITE_OFFSET);
+        final int readOffset = map.getInt(READ_OFFSET);
+        if (map.getInt(0) != MAGIC
+            || readOffset < SEGMENT_HEADER_SIZE
+            || readOffset > writeOffset
+            || writeOffset > length) {
+          raf.close();
+          return null;
+        }
+        return new Segment(file, id, raf, map, writeOffset, readOffset);
+      } catch (final IOException | RuntimeException e) {
+        raf.close();
+        throw e;
+      }
+    }
+
+    int remaining() {
+      return capacity - writeOffset;
+    }
+
+    void append(final TraceBuffer traces, final int length, final long spilledAtMillis)
+        throws IOException {
+      final ByteBuffer record = map.duplicate();
+      record.position(writeOffset + RECORD_HEADER_SIZE);
+      record.limit(writeOffset + RECORD_HEADER_SIZE + length);
+      traces.writeTo(new ByteBufferChannel(record));
+      map.putInt(writeOffset, length);
+      map.putInt(writeOffset + 4, traces.representativeCount());
+      map.putInt(writeOffset + 8, traces.traceCount());
+      map.putLong(writeOffset + 12, spilledAtMillis);
+      // only index the record once it has been written
+      writeOffset += RECORD_HEADER_SIZE + length;
+      map.putInt(WRITE_OFFSET, writeOffset);
+    }
+
+    SpilledTraceBuffer read() {
+      final int length = map.getInt(readOffset);
+      final ByteBuffer payload = map.duplicate();
+      payload.position(readOffset + RECORD_HEADER_SIZE);
+      payload.limit(readOffset + RECORD_HEADER_SIZE + length);
+      return new SpilledTraceBuffer(
+          this,
+          readOffset,
+          payload.slice(),
+          map.getInt(readOffset + 4),
+          map.getInt(readOffset + 8),
+          map.getLong(readOffset + 12));
+    }
+
+    void advance(final SpilledTraceBuffer replayed) {
+      readOffset += RECORD_HEADER_SIZE + replayed.sizeInBytes();
+      map.putInt(READ_OFFSET, readOffset);
+    }
+
+    void clear() {
+      // reuse the tail once it has been replayed
+      writeOffset = SEGMENT_HEADER_SIZE;
+      readOffset = SEGMENT_HEADER_SIZE;
+      map.putInt(WRITE_OFFSET, writeOffset);
+      map.putInt(READ_OFFSET, readOffset);
+    }
+
+    void close() {
+      try {
+        map.force();
+        raf.close();
+      } catch (final IOException e) {
+        log.debug("Failed to close spill segment {}", file, e);
+      }
+    }
+
+    void delete() {
+      try {
+        raf.close();
+      } catch (final IOException e) {
+        log.debug("Failed to close spill segment {}", file, e);
+      }
+      // the mapping is released when it is garbage collected
+      if (!file.delete()) {
+        log.debug("Failed to delete spill segment {}", file);
+      }
+    }
+  }
+
+  private static final class ByteBufferChannel implements WritableByteChannel {
+    private final ByteBuffer target;
+
+    private ByteBufferChannel(final ByteBuffer target) {
+      this.target = target;
+    }
+
+    @Override
+    public int write(final ByteBuffer src) {
+      final int written = src.remaining();
+      target.put(src);
+      return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  static final class SpilledTraceBuffer implements TraceBuffer {
+    private static final AtomicInteger BUFFER_ID = new AtomicInteger(0);
+
+    private final Segment segment;
+    private final int offset;
+    private final ByteBuffer payload;
+    private final int traceCount;
+    private final long spilledAtMillis;
+    private final int id;
+    private int representativeCount;
+
+    private SpilledTraceBuffer(
+        final Segment segment,
+        final int offset,
+        final ByteBuffer payload,
+        final int representativeCount,
+        final int traceCount,
+        final long spilledAtMillis) {
+      this.segment = segment;
+      this.offset = offset;
+      this.payload = payload;
+      this.representativeCount = representativeCount;
+      this.traceCount = traceCount;
+      this.spilledAtMillis = spilledAtMillis;
+      this.id = BUFFER_ID.getAndIncrement();
+    }
+
+    @Override
+    public int sizeInBytes() {
+      return payload.remaining();
+    }
+
+    @Override
+    public int headerSize() {
+      // the spilled payload includes the header
+      return 0;
+    }
+
+    @Override
+    public int traceCount() {
+      return traceCount;
+    }
+
+    @Override
+    public int representativeCount() {
+      return representativeCount;
+    }
+
+    @Override
+    public void setRepresentativeCount(final int representativeCount) {
+      this.representativeCount = representativeCount;
+    }
+
+    @Override
+    public int id() {
+      return id;
+    }
+
+    @Override
+    public void setDispatchRunnable(final Runnable runnable) {}
+
+    @Override
+    public void onDispatched() {}
+
+    @Override
+    public void writeTo(final WritableByteChannel channel) throws IOException {
+      final ByteBuffer buffer = payload.duplicate();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+}
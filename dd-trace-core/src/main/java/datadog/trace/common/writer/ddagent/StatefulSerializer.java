@@ -34,6 +34,15 @@ public interface StatefulSerializer {
    */
   boolean isAtCapacity();
 
+  /**
+   * Returns true if the current buffer is near or exceeding the given size, rather than the size
+   * the serializer was created with.
+   *
+   * @param sizeThresholdBytes the size the buffer should not grow past
+   * @return true if the buffer should be reset
+   */
+  boolean isAtCapacity(int sizeThresholdBytes);
+
   /**
    * Resets the buffer to use
    *
@@ -0,0 +1,176 @@
+package datadog.trace.common.writer.ddagent;
+
+import datadog.trace.common.writer.DDAgentWriter;
+import datadog.trace.core.DDSpan;
+import java.util.List;
+
+/**
+ * Stages completed traces in front of the {@link TraceProcessingDisruptor}, so that application
+ * threads don't all contend on the disruptor's sequence.
+ *
+ * <p>Each thread is mapped to one of a power of two number of stripes by its id. A stripe
+ * accumulates traces under its own lock and publishes them to the disruptor in groups, claiming the
+ * slots for a whole group at once. If the disruptor is full, traces stay in their stripe until the
+ * next attempt, so that bursts are absorbed; a trace is only dropped when its stripe is full too.
+ * Stripes are also drained periodically and before flushing, so that traces don't wait for a group
+ * to fill up.
+ *
+ * <p>Traces are reported to the monitor as published once they reach the disruptor, and as failed
+ * publications if they are still staged when the buffer is closed.
+ */
+public class StripedSubmissionBuffer {
+
+  private static final int STRIPE_CAPACITY = 256;
+  private static final int BATCH_SIZE = 16;
+
+  private final Stripe[] stripes;
+  private final int mask;
+  private final TraceProcessingDisruptor traceProcessingDisruptor;
+  private final TraceMemoryBudget budget;
+  private final Monitor monitor;
+  private final DDAgentWriter writer;
+
+  /** @param budget the budget holding the footprints of the staged traces, or null */
+  public StripedSubmissionBuffer(
+      final int stripeCount,
+      final TraceProcessingDisruptor traceProcessingDisruptor,
+      final TraceMemoryBudget budget,
+      final Monitor monitor,
+      final DDAgentWriter writer) {
+    final int size = stripeCount <= 1 ? 1 : Integer.highestOneBit(stripeCount - 1) << 1;
+    this.stripes = new Stripe[size];
+    for (int i = 0; i < size; ++i) {
+      stripes[i] = new Stripe();
+    }
+    this.mask = size - 1;
+    this.traceProcessingDisruptor = traceProcessingDisruptor;
+    this.budget = budget;
+    this.monitor = monitor;
+    this.writer = writer;
+  }
+
+  /**
+   * Stage a trace in the current thread's stripe.
+   *
+   * @return false if the stripe is full or the buffer closed, in which case the trace was dropped
+   */
+  public boolean offer(
+      final List<DDSpan> trace, final int representativeCount, final int footprint) {
+    final long threadId = Thread.currentThread().getId();
+    return stripes[(int) (threadId ^ (threadId >>> 32)) & mask].offer(
+        trace, representativeCount, footprint, this);
+  }
+
+  /** Publish as many staged traces as the disruptor has room for. */
+  public void drain() {
+    for (final Stripe stripe : stripes) {
+      stripe.drain(this);
+    }
+  }
+
+  /**
+   * Publish as many staged traces as the disruptor has room for, then drop the others. Traces
+   * offered afterwards are dropped too.
+   */
+  public void close() {
+    for (final Stripe stripe : stripes) {
+      stripe.close(this);
+    }
+  }
+
+  /** Report the depth of each stripe, and how many traces it dropped since the last report. */
+  public void report(final Monitor monitor, final DDAgentWriter writer) {
+    for (int i = 0; i < stripes.length; ++i) {
+      final Stripe stripe = stripes[i];
+      final int depth;
+      final long dropped;
+      synchronized (stripe) {
+        depth = stripe.size;
+        dropped = stripe.dropped - stripe.reportedDropped;
+        stripe.reportedDropped = stripe.dropped;
+      }
+      monitor.onSubmissionStripe(writer, i, depth, dropped);
+    }
+  }
+
+  public int stripeCount() {
+    return stripes.length;
+  }
+
+  private static final class Stripe {
+    @SuppressWarnings("unchecked")
+    private final List<DDSpan>[] traces = new List[STRIPE_CAPACITY];
+
+    private final int[] representativeCounts = new int[STRIPE_CAPACITY];
+    private final int[] footprints = new int[STRIPE_CAPACITY];
+    private int size;
+    private boolean closed;
+    private long dropped;
+    private long reportedDropped;
+
+    synchronized boolean offer(
+        final List<DDSpan> trace,
+        final int representativeCount,
+        final int footprint,
+        final StripedSubmissionBuffer buffer) {
+      if (closed) {
+        return false;
+      }
+      if (size == STRIPE_CAPACITY) {
+        publish(buffer);
+        if (size == STRIPE_CAPACITY) {
+          ++dropped;
+          return false;
+        }
+      }
+      traces[size] = trace;
+      representativeCounts[size] = representativeCount;
+      footprints[size] = footprint;
+      if (++size >= BATCH_SIZE) {
+        publish(buffer);
+      }
+      return true;
+    }
+
+    synchronized void drain(final StripedSubmissionBuffer buffer) {
+      if (size > 0) {
+        publish(buffer);
+      }
+    }
+
+    synchronized void close(final StripedSubmissionBuffer buffer) {
+      closed = true;
+      if (size > 0) {
+        publish(buffer);
+      }
+      for (int i = 0; i < size; ++i) {
+        if (null != buffer.budget) {
+          buffer.budget.release(footprints[i]);
+        }
+        buffer.monitor.onFailedPublish(buffer.writer, traces[i]);
+        traces[i] = null;
+      }
+      dropped += size;
+      size = 0;
+    }
+
+    private void publish(final StripedSubmissionBuffer buffer) {
+      final int published =
+          buffer.traceProcessingDisruptor.publish(
+              traces, representativeCounts, footprints, size);
+      if (published > 0) {
+        for (int i = 0; i < published; ++i) {
+          buffer.monitor.onPublish(buffer.writer, traces[i]);
+        }
+        final int remaining = size - published;
+        System.arraycopy(traces, published, traces, 0, remaining);
+        System.arraycopy(representativeCounts, published, representativeCounts, 0, remaining);
+        System.arraycopy(footprints, published, footprints, 0, remaining);
+        for (int i = remaining; i < size; ++i) {
+          traces[i] = null;
+        }
+        size = remaining;
+      }
+    }
+  }
+}
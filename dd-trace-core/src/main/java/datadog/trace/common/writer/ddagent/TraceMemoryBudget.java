@@ -0,0 +1,108 @@
+package datadog.trace.common.writer.ddagent;
+
+import datadog.trace.api.sampling.PrioritySampling;
+import datadog.trace.core.DDSpan;
+import datadog.trace.core.DDSpanContext;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the heap held by traces waiting to be serialized, instead of only bounding how many of
+ * them there are.
+ *
+ * <p>A trace's footprint is estimated when it is written, from its span count and the volume of
+ * its tags, and held against the budget until it has been serialized. Traces with a lower sampling
+ * priority may only use part of the budget, so that when the queue fills up with large traces,
+ * dropped traces are rejected first and kept traces last:
+ *
+ * <ul>
+ *   <li>{@link PrioritySampling#USER_DROP} and {@link PrioritySampling#SAMPLER_DROP}: half
+ *   <li>{@link PrioritySampling#UNSET}: three quarters
+ *   <li>{@link PrioritySampling#SAMPLER_KEEP}: seven eighths
+ *   <li>{@link PrioritySampling#USER_KEEP}: all of it
+ * </ul>
+ */
+public class TraceMemoryBudget {
+
+  // rough shallow sizes of a span with its context, and of a map entry with its boxed value
+  private static final int SPAN_OVERHEAD = 256;
+  private static final int ENTRY_OVERHEAD = 64;
+
+  private final long budgetBytes;
+  private final AtomicLong usedBytes = new AtomicLong();
+
+  public TraceMemoryBudget(final long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+  }
+
+  /** @return an estimate of the heap retained by the trace, in bytes */
+  public int estimate(final List<DDSpan> trace) {
+    long size = 0;
+    for (final DDSpan span : trace) {
+      final DDSpanContext context = span.context();
+      size += SPAN_OVERHEAD;
+      for (final Map.Entry<String, Object> tag : context.getUnrenderedTags().entrySet()) {
+        size += ENTRY_OVERHEAD + stringSize(tag.getKey());
+        final Object value = tag.getValue();
+        if (value instanceof CharSequence) {
+          size += stringSize((CharSequence) value);
+        }
+      }
+      for (final String key : context.getMetrics().keySet()) {
+        size += ENTRY_OVERHEAD + stringSize(key);
+      }
+    }
+    return (int) Math.min(size, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Holds {@code bytes} against the budget if the trace's priority allows it.
+   *
+   * @return false if the trace should be dropped
+   */
+  public boolean tryAcquire(final int bytes, final int samplingPriority) {
+    final long limit = limit(samplingPriority);
+    while (true) {
+      final long used = usedBytes.get();
+      if (used + bytes > limit) {
+        return false;
+      }
+      if (usedBytes.compareAndSet(used, used + bytes)) {
+        return true;
+      }
+    }
+  }
+
+  /** Returns bytes acquired for a trace once it no longer waits in the queue. */
+  public void release(final int bytes) {
+    usedBytes.addAndGet(-bytes);
+  }
+
+  public long getUsedBytes() {
+    return usedBytes.get();
+  }
+
+  public long getBudgetBytes() {
+    return budgetBytes;
+  }
+
+  private long limit(final int samplingPriority) {
+    switch (samplingPriority) {
+      case PrioritySampling.USER_KEEP:
+        return budgetBytes;
+      case PrioritySampling.SAMPLER_KEEP:
+        return budgetBytes - (budgetBytes >>> 3);
+      case PrioritySampling.USER_DROP:
+      case PrioritySampling.SAMPLER_DROP:
+        return budgetBytes >>> 1;
+      default:
+        return budgetBytes - (budgetBytes >>> 2);
+    }
+  }
+
+  private static int stringSize(final CharSequence string) {
+    // header and array of a java.lang.String
+    return 40 + 2 * string.length();
+  }
+}
@@ -4,17 +4,19 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
 import com.lmax.disruptor.SleepingWaitStrategy;
 import com.lmax.disruptor.dsl.Disruptor;
 import com.lmax.disruptor.dsl.ProducerType;
 import datadog.common.exec.CommonTaskExecutor;
 import datadog.common.exec.DaemonThreadFactory;
+import datadog.trace.api.sampling.PrioritySampling;
 import datadog.trace.common.writer.DDAgentWriter;
 import datadog.trace.core.DDSpan;
 import datadog.trace.core.processor.TraceProcessor;
 import java.io.IOException;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import lombok.extern.slf4j.Slf4j;
@@ -25,6 +27,26 @@ import lombok.extern.slf4j.Slf4j;
  *
  * <p>publishing to the buffer will not block the calling thread, but instead will return false if
  * the buffer is full. This is to avoid impacting an application thread.
+ *
+ * <p>Traces can be processed and serialized by several workers, each with its own serializer and
+ * transaction against the {@link DispatchingDisruptor}. Traces are partitioned between workers
+ * round-robin by their sequence, while heartbeats and flushes are seen by every worker. A worker
+ * only claims a buffer once it has a trace to serialize or a flush to make, and with several
+ * workers and a flush interval commits it when the interval elapses even if it is empty, so that an
+ * idle worker doesn't hold up the buffers committed by the others. A worker which can't claim a
+ * buffer, because the others hold the rest while the senders are stalled, drops the traces it
+ * receives until one is released, rather than blocking: blocked, it would stop consuming events,
+ * including the heartbeats the others need to commit their buffers. A flush fails if a worker
+ * can't claim the buffer it would flush.
+ *
+ * <p>When the writer bounds the queue with a {@link TraceMemoryBudget}, each trace carries its
+ * estimated footprint, which is returned to the budget once the trace has been serialized.
+ *
+ * <p>When stats are aggregated by a {@link ClientStatsAggregator} and the agent accepts them, every
+ * trace is recorded, and traces dropped by the sampler are not serialized at all, only counted.
+ *
+ * <p>With an {@link AdaptiveFlushController}, workers flush their buffers at the interval and
+ * payload size it has chosen from the agent's recent responses, rather than fixed ones.
  */
 @Slf4j
 public class TraceProcessingDisruptor implements AutoCloseable {
@@ -35,6 +57,7 @@ public class TraceProcessingDisruptor implements AutoCloseable {
   private final DisruptorEvent.HeartbeatTranslator<List<DDSpan>> heartbeatTranslator =
       new DisruptorEvent.HeartbeatTranslator<>();
   private final boolean doHeartbeat;
+  private final int workers;
 
   private volatile ScheduledFuture<?> heartbeat;
 
@@ -43,7 +66,10 @@ public class TraceProcessingDisruptor implements AutoCloseable {
       final DispatchingDisruptor dispatchingDisruptor,
       final Monitor monitor,
       final DDAgentWriter writer,
-      final StatefulSerializer serializer,
+      final StatefulSerializer[] serializers,
+      final TraceMemoryBudget budget,
+      final ClientStatsAggregator clientStats,
+      final AdaptiveFlushController flushController,
       final long flushInterval,
       final TimeUnit timeUnit,
       final boolean heartbeat) {
@@ -56,9 +82,24 @@ public class TraceProcessingDisruptor implements AutoCloseable {
             // use sleeping wait strategy because it reduces CPU usage,
             // and is cheaper for application threads publishing traces
             new SleepingWaitStrategy(0, MILLISECONDS.toNanos(10)));
-    disruptor.handleEventsWith(
-        new TraceSerializingHandler(
-            dispatchingDisruptor, monitor, writer, serializer, flushInterval, timeUnit));
+    this.workers = serializers.length;
+    final TraceSerializingHandler[] handlers = new TraceSerializingHandler[workers];
+    for (int i = 0; i < workers; ++i) {
+      handlers[i] =
+          new TraceSerializingHandler(
+              dispatchingDisruptor,
+              monitor,
+              writer,
+              serializers[i],
+              budget,
+              clientStats,
+              flushController,
+              flushInterval,
+              timeUnit,
+              i,
+              workers);
+    }
+    disruptor.handleEventsWith(handlers);
     this.dataTranslator = new DisruptorEvent.DataTranslator<>();
     this.flushTranslator = new DisruptorEvent.FlushTranslator<>();
     this.doHeartbeat = heartbeat;
@@ -75,10 +116,11 @@ public class TraceProcessingDisruptor implements AutoCloseable {
   }
 
   public boolean flush(long timeout, TimeUnit timeUnit) {
-    CountDownLatch latch = new CountDownLatch(1);
+    // every worker dispatches a buffer
+    final DisruptorEvent.FlushLatch latch = new DisruptorEvent.FlushLatch(workers);
     disruptor.publishEvent(flushTranslator, 0, latch);
     try {
-      return latch.await(timeout, timeUnit);
+      return latch.await(timeout, timeUnit) && !latch.failed();
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
       return false;
@@ -93,8 +135,46 @@ public class TraceProcessingDisruptor implements AutoCloseable {
     disruptor.halt();
   }
 
-  public boolean publish(final List<DDSpan> data, final int representativeCount) {
-    return disruptor.getRingBuffer().tryPublishEvent(dataTranslator, data, representativeCount);
+  public boolean publish(
+      final List<DDSpan> data, final int representativeCount, final int footprint) {
+    return disruptor
+        .getRingBuffer()
+        .tryPublishEvent(dataTranslator, data, representativeCount, footprint);
+  }
+
+  /**
+   * Publishes as many of the first {@code count} traces as there is room for, claiming their slots
+   * together.
+   *
+   * @return how many traces, from the start of the arrays, were published
+   */
+  public int publish(
+      final List<DDSpan>[] data,
+      final int[] representativeCounts,
+      final int[] footprints,
+      final int count) {
+    final RingBuffer<DisruptorEvent<List<DDSpan>>> ringBuffer = disruptor.getRingBuffer();
+    final int batchSize = (int) Math.min(count, ringBuffer.remainingCapacity());
+    if (batchSize <= 0) {
+      return 0;
+    }
+    final long last;
+    try {
+      last = ringBuffer.tryNext(batchSize);
+    } catch (final InsufficientCapacityException e) {
+      return 0;
+    }
+    // filled in place rather than through the translator, which would box the counts
+    final long first = last - batchSize + 1;
+    for (int i = 0; i < batchSize; ++i) {
+      final DisruptorEvent<List<DDSpan>> event = ringBuffer.get(first + i);
+      event.data = data[i];
+      event.representativeCount = representativeCounts[i];
+      event.footprint = footprints[i];
+      event.flushLatch = null;
+    }
+    ringBuffer.publish(first, last);
+    return batchSize;
   }
 
   void heartbeat() {
@@ -111,13 +191,20 @@ public class TraceProcessingDisruptor implements AutoCloseable {
 
   public static class TraceSerializingHandler
       implements EventHandler<DisruptorEvent<List<DDSpan>>> {
+    private static final long CLAIM_TIMEOUT_NANOS = MILLISECONDS.toNanos(1);
+
     private final TraceProcessor processor = new TraceProcessor();
     private final DispatchingDisruptor dispatchingDisruptor;
     private final Monitor monitor;
     private final DDAgentWriter writer;
     private final StatefulSerializer serializer;
+    private final TraceMemoryBudget budget;
+    private final ClientStatsAggregator clientStats;
+    private final AdaptiveFlushController flushController;
     private final long flushIntervalMillis;
     private final boolean doTimeFlush;
+    private final int ordinal;
+    private final int workers;
 
     private long publicationTxn = -1;
     private int representativeCount = 0;
@@ -128,12 +215,22 @@ public class TraceProcessingDisruptor implements AutoCloseable {
         final Monitor monitor,
         final DDAgentWriter writer,
         final StatefulSerializer serializer,
+        final TraceMemoryBudget budget,
+        final ClientStatsAggregator clientStats,
+        final AdaptiveFlushController flushController,
         final long flushInterval,
-        final TimeUnit timeUnit) {
+        final TimeUnit timeUnit,
+        final int ordinal,
+        final int workers) {
       this.dispatchingDisruptor = dispatchingDisruptor;
       this.monitor = monitor;
       this.writer = writer;
       this.serializer = serializer;
+      this.budget = budget;
+      this.clientStats = clientStats;
+      this.flushController = flushController;
+      this.ordinal = ordinal;
+      this.workers = workers;
       this.doTimeFlush = flushInterval > 0;
       if (doTimeFlush) {
         this.flushIntervalMillis = timeUnit.toMillis(flushInterval);
@@ -146,50 +243,94 @@ public class TraceProcessingDisruptor implements AutoCloseable {
     @Override
     public void onEvent(
         final DisruptorEvent<List<DDSpan>> event, final long sequence, final boolean endOfBatch) {
-      if (-1L == publicationTxn) {
-        beginTransaction();
-      }
+      // only the worker a trace is partitioned to may read or reset its event
+      final boolean owner = workers == 1 || sequence % workers == ordinal;
+      final DisruptorEvent.FlushLatch flushLatch = event.flushLatch;
+      final List<DDSpan> data = owner ? event.data : null;
       try {
-        if (representativeCount > 0 || event.flushLatch != null) {
-          // publish the batch if
-          // 1. the buffer is full
-          // 2. we get a heartbeat, and it's time to send (early heartbeats will be ignored)
-          // 3. a synchronous flush command is received (at shutdown)
-          if (serializer.isAtCapacity()
-              || (doTimeFlush && millisecondTime() > nextFlushMillis)
-              || event.flushLatch != null) {
-            commitTransaction(event.flushLatch);
+        if (flushLatch != null) {
+          // a synchronous flush command is received (at shutdown): dispatch a buffer, even empty,
+          // to learn once the buffers committed before it have been sent
+          if (claimTransaction()) {
+            commitTransaction(flushLatch);
+          } else {
+            flushLatch.fail();
+          }
+        } else if (-1L != publicationTxn) {
+          final boolean timeToFlush = doTimeFlush && millisecondTime() > nextFlushMillis;
+          if (representativeCount > 0 || (workers > 1 && timeToFlush)) {
+            // publish the batch if
+            // 1. the buffer is full
+            // 2. we get a heartbeat, and it's time to send (early heartbeats will be ignored)
+            if (isAtCapacity() || timeToFlush) {
+              commitTransaction(null);
+            }
           }
         }
-        if (event.data != null) {
-          serialize(event.data, event.representativeCount);
+        if (data != null) {
+          if (claimTransaction()) {
+            serialize(data, event.representativeCount);
+          } else {
+            // every buffer is claimed, the dropped traces are still represented by the next one
+            representativeCount += event.representativeCount;
+            monitor.onFailedPublish(writer, data);
+          }
         }
       } catch (final Throwable e) {
         if (log.isDebugEnabled()) {
           log.debug("Error while serializing trace", e);
         }
-        monitor.onFailedSerialize(writer, event.data, e);
+        monitor.onFailedSerialize(writer, data, e);
       } finally {
-        event.reset();
+        if (data != null && null != budget) {
+          budget.release(event.footprint);
+        }
+        if (workers == 1 || data != null) {
+          event.reset();
+        }
       }
     }
 
+    private boolean isAtCapacity() {
+      return null == flushController
+          ? serializer.isAtCapacity()
+          : serializer.isAtCapacity(flushController.getPayloadBytes());
+    }
+
     private void serialize(List<DDSpan> trace, int representativeCount) throws IOException {
       // TODO populate `_sample_rate` metric in a way that accounts for lost/dropped traces
-      this.representativeCount += representativeCount;
+      final boolean empty = trace.isEmpty();
       trace = processor.onTraceComplete(trace);
+      if (trace.isEmpty() && !empty) {
+        // discarded by a trace interceptor, or dropped by the sampler and counted by the tracer:
+        // the other traces it represented are represented by the next one
+        this.representativeCount += representativeCount - 1;
+        return;
+      }
+      this.representativeCount += representativeCount;
+      if (null != clientStats && writer.isClientComputedStats()) {
+        clientStats.record(trace);
+        if (!trace.isEmpty()
+            && trace.get(0).context().getSamplingPriority() == PrioritySampling.SAMPLER_DROP) {
+          // already counted, the agent would only drop it
+          return;
+        }
+      }
       int sizeInBytes = serializer.serialize(trace);
       monitor.onSerialize(writer, trace, sizeInBytes);
     }
 
-    private void commitTransaction(final CountDownLatch flushLatch) throws IOException {
+    private void commitTransaction(final DisruptorEvent.FlushLatch flushLatch)
+        throws IOException {
       serializer.dropBuffer();
       TraceBuffer buffer = dispatchingDisruptor.getTraceBuffer(publicationTxn);
       if (null != flushLatch) {
+        final long sequence = publicationTxn;
         buffer.setDispatchRunnable(
             new Runnable() {
               @Override
               public void run() {
+                dispatchingDisruptor.awaitSentBefore(sequence);
                 flushLatch.countDown();
               }
             });
@@ -203,19 +344,36 @@ public class TraceProcessingDisruptor implements AutoCloseable {
             buffer.traceCount());
       }
       dispatchingDisruptor.commit(publicationTxn);
-      beginTransaction();
+      representativeCount = 0;
+      // the next buffer is claimed once needed, so that an idle worker holds none
+      publicationTxn = -1;
     }
 
-    private void beginTransaction() {
-      this.publicationTxn = dispatchingDisruptor.beginTransaction();
-      this.representativeCount = 0;
+    /** @return true if the worker holds a buffer, claiming one if needed */
+    private boolean claimTransaction() {
+      if (-1L != publicationTxn) {
+        return true;
+      }
+      // a single worker can wait for the senders, but several must not hold up each other
+      this.publicationTxn =
+          workers == 1
+              ? dispatchingDisruptor.beginTransaction()
+              : dispatchingDisruptor.tryBeginTransaction(CLAIM_TIMEOUT_NANOS);
+      if (-1L == publicationTxn) {
+        return false;
+      }
       serializer.reset(dispatchingDisruptor.getTraceBuffer(publicationTxn));
       scheduleNextTimeFlush();
+      return true;
     }
 
     private void scheduleNextTimeFlush() {
       if (doTimeFlush) {
-        nextFlushMillis = millisecondTime() + flushIntervalMillis;
+        nextFlushMillis =
+            millisecondTime()
+                + (null == flushController
+                    ? flushIntervalMillis
+                    : flushController.getFlushIntervalMillis());
       }
     }
 
@@ -0,0 +1,204 @@
+package datadog.trace.common.writer.ddagent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Records serialized trace buffers to rolling segment files, which can be read back with a {@link
+ * TraceRecordingReader} and replayed into a {@link DDAgentApi}.
+ *
+ * <p>Each segment starts with a header carrying the metadata which would have been sent to the
+ * agent as request headers, followed by one record per buffer: its length, representative count,
+ * trace count and when it was recorded, then the payload as it would have been sent. A segment is
+ * rolled over once it would grow beyond the configured size, or has been open for longer than the
+ * configured time. Segments are named after when they were started, the recording runtime and a
+ * sequence number, so that names never collide and sort in the order they were written.
+ *
+ * <p>Records are synced to disk in groups, at most once per sync interval, when a segment is
+ * rolled over and on {@link #sync()}, rather than once per record.
+ *
+ * <p>A record which can't be written whole is truncated away, so that a segment never ends with a
+ * torn record; if even that fails, the segment is abandoned and the next record starts a new one.
+ */
+@Slf4j
+public class TraceRecorder implements AutoCloseable {
+
+  static final int MAGIC = 0x44445452; // DDTR
+  static final int VERSION = 1;
+  // length, representative count, trace count, recorded at
+  static final int RECORD_HEADER_SIZE = 20;
+  static final String SUFFIX = ".ddtrace";
+
+  private final File directory;
+  private final String runtimeId;
+  private final long maxSegmentBytes;
+  private final long maxSegmentMillis;
+  private final long syncIntervalMillis;
+  private final byte[] header;
+  private final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+  private FileOutputStream segment;
+  private FileChannel channel;
+  private long segmentBytes;
+  private long segmentStartMillis;
+  private long lastSyncMillis;
+  private boolean dirty;
+  private int sequence;
+
+  /**
+   * @param runtimeId distinguishes segments of concurrent recordings to the same directory
+   * @param syncIntervalMillis how often records are synced to disk, or 0 to sync every record
+   */
+  public TraceRecorder(
+      final File directory,
+      final String runtimeId,
+      final long maxSegmentBytes,
+      final long maxSegmentMillis,
+      final long syncIntervalMillis)
+      throws IOException {
+    this(
+        directory,
+        runtimeId,
+        maxSegmentBytes,
+        maxSegmentMillis,
+        syncIntervalMillis,
+        DDAgentApi.metadata());
+  }
+
+  TraceRecorder(
+      final File directory,
+      final String runtimeId,
+      final long maxSegmentBytes,
+      final long maxSegmentMillis,
+      final long syncIntervalMillis,
+      final Map<String, String> metadata)
+      throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create recording directory " + directory);
+    }
+    this.directory = directory;
+    this.runtimeId = runtimeId;
+    this.maxSegmentBytes = maxSegmentBytes;
+    this.maxSegmentMillis = maxSegmentMillis;
+    this.syncIntervalMillis = syncIntervalMillis;
+    this.header = header(metadata);
+  }
+
+  /** Appends the buffer to the current segment, rolling over to a new segment if needed. */
+  public synchronized void record(final TraceBuffer traces) throws IOException {
+    final int length = traces.headerSize() + traces.sizeInBytes();
+    final long now = System.currentTimeMillis();
+    if (null != channel
+        && segmentBytes > header.length
+        && (segmentBytes + RECORD_HEADER_SIZE + length > maxSegmentBytes
+            || now - segmentStartMillis >= maxSegmentMillis)) {
+      closeSegment();
+    }
+    if (null == channel) {
+      openSegment(now);
+    }
+    recordHeader.clear();
+    recordHeader.putInt(length);
+    recordHeader.putInt(traces.representativeCount());
+    recordHeader.putInt(traces.traceCount());
+    recordHeader.putLong(now);
+    recordHeader.flip();
+    try {
+      writeFully(recordHeader);
+      traces.writeTo(channel);
+    } catch (final IOException e) {
+      truncate();
+      throw e;
+    }
+    segmentBytes += RECORD_HEADER_SIZE + length;
+    dirty = true;
+    if (now - lastSyncMillis >= syncIntervalMillis) {
+      sync();
+    }
+  }
+
+  /** Syncs records appended since the last sync to disk. */
+  public synchronized void sync() throws IOException {
+    if (dirty && null != channel) {
+      channel.force(false);
+      dirty = false;
+    }
+    lastSyncMillis = System.currentTimeMillis();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (null != channel) {
+      closeSegment();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "TraceRecorder { directory=" + directory + " }";
+  }
+
+  private void openSegment(final long now) throws IOException {
+    final File file =
+        new File(
+            directory, String.format("%013d-%s-%06d%s", now, runtimeId, sequence++, SUFFIX));
+    segment = new FileOutputStream(file);
+    channel = segment.getChannel();
+    writeFully(ByteBuffer.wrap(header));
+    segmentBytes = header.length;
+    segmentStartMillis = now;
+    dirty = true;
+    log.debug("Recording traces to {}", file);
+  }
+
+  /** Removes what was written of the last record, or abandons the segment if that fails. */
+  private void truncate() {
+    try {
+      channel.truncate(segmentBytes);
+      channel.position(segmentBytes);
+    } catch (final IOException e) {
+      log.debug("Failed to truncate a partial record, abandoning the segment", e);
+      try {
+        closeSegment();
+      } catch (final IOException ignored) {
+      }
+    }
+  }
+
+  private void closeSegment() throws IOException {
+    try {
+      sync();
+    } finally {
+      segment.close();
+      segment = null;
+      channel = null;
+    }
+  }
+
+  private void writeFully(final ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static byte[] header(final Map<String, String> metadata) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(metadata.size());
+    for (final Map.Entry<String, String> entry : metadata.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeUTF(entry.getValue());
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+}
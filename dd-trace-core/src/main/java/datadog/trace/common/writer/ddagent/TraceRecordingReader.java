@@ -0,0 +1,212 @@
+package datadog.trace.common.writer.ddagent;
+
+import static datadog.trace.common.writer.ddagent.TraceRecorder.MAGIC;
+import static datadog.trace.common.writer.ddagent.TraceRecorder.RECORD_HEADER_SIZE;
+import static datadog.trace.common.writer.ddagent.TraceRecorder.SUFFIX;
+import static datadog.trace.common.writer.ddagent.TraceRecorder.VERSION;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Reads back a segment written by a {@link TraceRecorder}, one buffer at a time.
+ *
+ * <p>A record which was only partly written when the recording stopped ends the segment.
+ */
+@Slf4j
+public class TraceRecordingReader implements Closeable {
+
+  private final File file;
+  private final DataInputStream in;
+  private final Map<String, String> metadata;
+  private int id;
+
+  public TraceRecordingReader(final File file) throws IOException {
+    this.file = file;
+    this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      this.metadata = readHeader(in, file);
+    } catch (final IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /** Reads the header at the start of a segment, returning the metadata it carries. */
+  static Map<String, String> readHeader(final DataInput in, final File file) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException(file + " is not a trace recording");
+    }
+    final int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException(file + " has unsupported recording version " + version);
+    }
+    final int size = in.readInt();
+    final Map<String, String> metadata = new LinkedHashMap<>(size * 2);
+    for (int i = 0; i < size; ++i) {
+      metadata.put(in.readUTF(), in.readUTF());
+    }
+    return Collections.unmodifiableMap(metadata);
+  }
+
+  /** @return the metadata the traces were recorded with */
+  public Map<String, String> getMetadata() {
+    return metadata;
+  }
+
+  /** @return the next recorded buffer, or null at the end of the segment */
+  public TraceBuffer next() throws IOException {
+    final byte[] recordHeader = new byte[RECORD_HEADER_SIZE];
+    final byte[] payload;
+    try {
+      in.readFully(recordHeader);
+      final int length = ByteBuffer.wrap(recordHeader).getInt();
+      if (length < 0) {
+        log.debug("Corrupt record in {}", file);
+        return null;
+      }
+      payload = new byte[length];
+      in.readFully(payload);
+    } catch (final EOFException e) {
+      return null;
+    }
+    final ByteBuffer header = ByteBuffer.wrap(recordHeader);
+    header.getInt();
+    final int representativeCount = header.getInt();
+    final int traceCount = header.getInt();
+    return new RecordedTraceBuffer(
+        ByteBuffer.wrap(payload), representativeCount, traceCount, id++);
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  @Override
+  public String toString() {
+    return "TraceRecordingReader { file=" + file + " }";
+  }
+
+  /** @return the recorded segments, in the order they were written */
+  public static List<File> segments(final File fileOrDirectory) {
+    if (!fileOrDirectory.isDirectory()) {
+      return Collections.singletonList(fileOrDirectory);
+    }
+    final File[] files =
+        fileOrDirectory.listFiles(
+            new FilenameFilter() {
+              @Override
+              public boolean accept(final File dir, final String name) {
+                return name.endsWith(SUFFIX);
+              }
+            });
+    if (null == files) {
+      return Collections.emptyList();
+    }
+    Arrays.sort(files);
+    return new ArrayList<>(Arrays.asList(files));
+  }
+
+  /**
+   * Sends every buffer recorded in a segment, or in a directory of segments, to the agent with the
+   * metadata it was recorded with.
+   *
+   * @return how many buffers the agent accepted
+   */
+  public static int replay(final File fileOrDirectory, final DDAgentApi api) throws IOException {
+    int sent = 0;
+    for (final File segment : segments(fileOrDirectory)) {
+      try (final TraceRecordingReader reader = new TraceRecordingReader(segment)) {
+        TraceBuffer traces;
+        while (null != (traces = reader.next())) {
+          if (api.sendSerializedTraces(traces, reader.getMetadata()).success()) {
+            ++sent;
+          } else {
+            log.debug("Failed to replay {} traces from {}", traces.traceCount(), segment);
+          }
+        }
+      }
+    }
+    return sent;
+  }
+
+  private static final class RecordedTraceBuffer implements TraceBuffer {
+    private final ByteBuffer payload;
+    private final int traceCount;
+    private final int id;
+    private int representativeCount;
+
+    private RecordedTraceBuffer(
+        final ByteBuffer payload,
+        final int representativeCount,
+        final int traceCount,
+        final int id) {
+      this.payload = payload;
+      this.representativeCount = representativeCount;
+      this.traceCount = traceCount;
+      this.id = id;
+    }
+
+    @Override
+    public int sizeInBytes() {
+      return payload.remaining();
+    }
+
+    @Override
+    public int headerSize() {
+      // the recorded payload includes the header
+      return 0;
+    }
+
+    @Override
+    public int traceCount() {
+      return traceCount;
+    }
+
+    @Override
+    public int representativeCount() {
+      return representativeCount;
+    }
+
+    @Override
+    public void setRepresentativeCount(final int representativeCount) {
+      this.representativeCount = representativeCount;
+    }
+
+    @Override
+    public int id() {
+      return id;
+    }
+
+    @Override
+    public void setDispatchRunnable(final Runnable runnable) {}
+
+    @Override
+    public void onDispatched() {}
+
+    @Override
+    public void writeTo(final WritableByteChannel channel) throws IOException {
+      final ByteBuffer buffer = payload.duplicate();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+}
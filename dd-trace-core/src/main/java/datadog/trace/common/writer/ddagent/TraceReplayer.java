@@ -0,0 +1,459 @@
+package datadog.trace.common.writer.ddagent;
+
+import static datadog.trace.api.Config.DEFAULT_AGENT_HOST;
+import static datadog.trace.api.Config.DEFAULT_TRACE_AGENT_PORT;
+import static datadog.trace.common.writer.ddagent.TraceRecorder.RECORD_HEADER_SIZE;
+
+import datadog.trace.common.writer.unixdomainsockets.UnixDomainSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Sends recorded trace segments to an agent as fast as it accepts them, or at a limited rate, for
+ * example to load test an agent with captured traffic.
+ *
+ * <p>Segments are memory-mapped to read their index, and each recorded payload is sent as is, with
+ * the metadata it was recorded with and the trace count from its record, over a persistent
+ * connection. Over TCP payloads are transferred from the file to the socket without being copied
+ * through the heap. Over a unix domain socket they are written from the mapped segment.
+ *
+ * <p>Throughput is logged periodically while replaying, and summarised once done.
+ */
+@Slf4j
+public class TraceReplayer implements Closeable {
+
+  private static final Charset US_ASCII = Charset.forName("US-ASCII");
+  private static final int TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(10);
+
+  private final String host;
+  private final int port;
+  private final String unixDomainSocket;
+  private final String endpoint;
+  private final double tracesPerSecond;
+  private final double bytesPerSecond;
+  private final long reportIntervalNanos;
+
+  private Connection connection;
+
+  // Apply defaults to the class generated by lombok.
+  public static class TraceReplayerBuilder {
+    String agentHost = DEFAULT_AGENT_HOST;
+    int traceAgentPort = DEFAULT_TRACE_AGENT_PORT;
+    String endpoint = "v0.4/traces";
+    long reportIntervalMillis = TimeUnit.SECONDS.toMillis(10);
+  }
+
+  /**
+   * @param unixDomainSocket sends to the agent over this socket rather than over TCP
+   * @param tracesPerSecond the most traces to send a second, or 0 for no limit
+   * @param bytesPerSecond the most payload bytes to send a second, or 0 for no limit
+   */
+  @lombok.Builder
+  private TraceReplayer(
+      final String agentHost,
+      final int traceAgentPort,
+      final String unixDomainSocket,
+      final String endpoint,
+      final double tracesPerSecond,
+      final double bytesPerSecond,
+      final long reportIntervalMillis) {
+    this.host = agentHost;
+    this.port = traceAgentPort;
+    this.unixDomainSocket = unixDomainSocket;
+    this.endpoint = endpoint.startsWith("/") ? endpoint : "/" + endpoint;
+    this.tracesPerSecond = tracesPerSecond;
+    this.bytesPerSecond = bytesPerSecond;
+    this.reportIntervalNanos = TimeUnit.MILLISECONDS.toNanos(reportIntervalMillis);
+  }
+
+  /** Replays a segment, or every segment in a directory in the order they were recorded. */
+  public Summary replay(final File fileOrDirectory) throws IOException {
+    final Summary summary = new Summary(System.nanoTime());
+    long nextReport = summary.startNanos + reportIntervalNanos;
+    for (final File segment : TraceRecordingReader.segments(fileOrDirectory)) {
+      try (final RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+        final FileChannel channel = file.getChannel();
+        final MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        final Map<String, String> metadata =
+            TraceRecordingReader.readHeader(
+                new DataInputStream(new ByteBufferInputStream(index)), segment);
+        while (index.remaining() >= RECORD_HEADER_SIZE) {
+          final int offset = index.position();
+          final int length = index.getInt();
+          final int representativeCount = index.getInt();
+          final int traceCount = index.getInt();
+          index.getLong(); // recorded at
+          if (length < 0 || length > index.remaining()) {
+            log.debug("Stopping at partly written record in {}", segment);
+            break;
+          }
+          index.position(offset + RECORD_HEADER_SIZE + length);
+          pace(summary);
+          final int status =
+              send(
+                  channel,
+                  index,
+                  offset + RECORD_HEADER_SIZE,
+                  length,
+                  representativeCount,
+                  metadata);
+          summary.onSend(traceCount, length, status == 200);
+          if (status != 200) {
+            log.debug("Agent responded {} to {} traces from {}", status, traceCount, segment);
+          }
+          final long now = System.nanoTime();
+          if (now - nextReport >= 0) {
+            log.info("Replaying: {}", summary.snapshot(now));
+            nextReport = now + reportIntervalNanos;
+          }
+        }
+      }
+    }
+    summary.endNanos = System.nanoTime();
+    return summary;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (null != connection) {
+      connection.close();
+      connection = null;
+    }
+  }
+
+  /** Waits until sending more would stay within the rate limits. */
+  private void pace(final Summary summary) {
+    double seconds = 0;
+    if (tracesPerSecond > 0) {
+      seconds = summary.traces / tracesPerSecond;
+    }
+    if (bytesPerSecond > 0) {
+      seconds = Math.max(seconds, summary.bytes / bytesPerSecond);
+    }
+    final long due = summary.startNanos + (long) (seconds * TimeUnit.SECONDS.toNanos(1));
+    long wait;
+    while ((wait = due - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(wait);
+    }
+  }
+
+  private int send(
+      final FileChannel file,
+      final MappedByteBuffer mapped,
+      final int offset,
+      final int length,
+      final int representativeCount,
+      final Map<String, String> metadata)
+      throws IOException {
+    if (null == connection) {
+      connection = connect();
+    }
+    try {
+      final ByteBuffer head = head(length, representativeCount, metadata);
+      final int status = connection.send(file, mapped, offset, length, head);
+      if (!connection.keepAlive) {
+        close();
+      }
+      return status;
+    } catch (final IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  private ByteBuffer head(
+      final int length, final int representativeCount, final Map<String, String> metadata) {
+    final StringBuilder head = new StringBuilder(512);
+    head.append("PUT ").append(endpoint).append(" HTTP/1.1\r\n");
+    head.append("Host: ").append(host).append(':').append(port).append("\r\n");
+    head.append("Content-Type: application/msgpack\r\n");
+    head.append("Content-Length: ").append(length).append("\r\n");
+    head.append("X-Datadog-Trace-Count: ").append(representativeCount).append("\r\n");
+    for (final Map.Entry<String, String> header : metadata.entrySet()) {
+      head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+    }
+    head.append("\r\n");
+    return ByteBuffer.wrap(head.toString().getBytes(US_ASCII));
+  }
+
+  private Connection connect() throws IOException {
+    if (null != unixDomainSocket) {
+      final Socket socket =
+          new UnixDomainSocketFactory(new File(unixDomainSocket)).createSocket(host, port);
+      socket.setSoTimeout(TIMEOUT_MILLIS);
+      return new Connection(
+          socket, Channels.newChannel(socket.getOutputStream()), socket.getInputStream());
+    }
+    final SocketChannel channel = SocketChannel.open();
+    channel.socket().connect(new InetSocketAddress(host, port), TIMEOUT_MILLIS);
+    channel.socket().setSoTimeout(TIMEOUT_MILLIS);
+    channel.socket().setTcpNoDelay(true);
+    return new Connection(channel.socket(), channel, channel.socket().getInputStream());
+  }
+
+  /**
+   * Replays recordings from the command line.
+   *
+   * <p>Usage: {@code TraceReplayer <recording> [--host <host>] [--port <port>] [--uds <path>]
+   * [--traces-per-second <n>] [--mb-per-second <n>]}
+   */
+  public static void main(final String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println(
+          "Usage: TraceReplayer <recording> [--host <host>] [--port <port>] [--uds <path>]"
+              + " [--traces-per-second <n>] [--mb-per-second <n>]");
+      System.exit(1);
+    }
+    final TraceReplayerBuilder builder = builder();
+    for (int i = 1; i + 1 < args.length; i += 2) {
+      final String value = args[i + 1];
+      switch (args[i]) {
+        case "--host":
+          builder.agentHost(value);
+          break;
+        case "--port":
+          builder.traceAgentPort(Integer.parseInt(value));
+          break;
+        case "--uds":
+          builder.unixDomainSocket(value);
+          break;
+        case "--traces-per-second":
+          builder.tracesPerSecond(Double.parseDouble(value));
+          break;
+        case "--mb-per-second":
+          builder.bytesPerSecond(Double.parseDouble(value) * 1024 * 1024);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+    try (final TraceReplayer replayer = builder.build()) {
+      System.out.println(replayer.replay(new File(args[0])));
+    }
+  }
+
+  private static final class Connection implements Closeable {
+    private final Socket socket;
+    private final WritableByteChannel out;
+    private final InputStream in;
+    private boolean keepAlive = true;
+
+    private Connection(final Socket socket, final WritableByteChannel out, final InputStream in) {
+      this.socket = socket;
+      this.out = out;
+      this.in = new BufferedInputStream(in);
+    }
+
+    int send(
+        final FileChannel file,
+        final MappedByteBuffer mapped,
+        final int offset,
+        final int length,
+        final ByteBuffer head)
+        throws IOException {
+      writeFully(head);
+      if (out instanceof SocketChannel) {
+        long position = offset;
+        long remaining = length;
+        while (remaining > 0) {
+          final long transferred = file.transferTo(position, remaining, out);
+          position += transferred;
+          remaining -= transferred;
+        }
+      } else {
+        final ByteBuffer payload = mapped.duplicate();
+        payload.limit(offset + length);
+        payload.position(offset);
+        writeFully(payload);
+      }
+      return readResponse();
+    }
+
+    private void writeFully(final ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        out.write(buffer);
+      }
+    }
+
+    /** Reads the response, discarding its body, and returns its status. */
+    private int readResponse() throws IOException {
+      final String statusLine = readLine();
+      final String[] parts = statusLine.split(" ", 3);
+      if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+        throw new IOException("Malformed response: " + statusLine);
+      }
+      final int status = Integer.parseInt(parts[1]);
+      long contentLength = -1;
+      boolean chunked = false;
+      keepAlive = !"HTTP/1.0".equals(parts[0]);
+      String line;
+      while (!(line = readLine()).isEmpty()) {
+        final int colon = line.indexOf(':');
+        if (colon < 0) {
+          continue;
+        }
+        final String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+        final String value = line.substring(colon + 1).trim();
+        if ("content-length".equals(name)) {
+          contentLength = Long.parseLong(value);
+        } else if ("transfer-encoding".equals(name)) {
+          chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+        } else if ("connection".equals(name)) {
+          keepAlive = !"close".equalsIgnoreCase(value);
+        }
+      }
+      if (chunked) {
+        long chunk;
+        while ((chunk = Long.parseLong(readLine().split(";")[0].trim(), 16)) > 0) {
+          skip(chunk);
+          readLine();
+        }
+        // trailers
+        while (!readLine().isEmpty()) {}
+      } else if (contentLength >= 0) {
+        skip(contentLength);
+      } else {
+        // the body ends when the connection is closed
+        keepAlive = false;
+      }
+      return status;
+    }
+
+    private String readLine() throws IOException {
+      final StringBuilder line = new StringBuilder();
+      int b;
+      while ((b = in.read()) != '\n') {
+        if (b < 0) {
+          throw new EOFException("Connection closed by the agent");
+        }
+        if (b != '\r') {
+          line.append((char) b);
+        }
+      }
+      return line.toString();
+    }
+
+    private void skip(long bytes) throws IOException {
+      while (bytes > 0) {
+        final long skipped = in.skip(bytes);
+        if (skipped <= 0) {
+          if (in.read() < 0) {
+            throw new EOFException("Connection closed by the agent");
+          }
+          --bytes;
+        } else {
+          bytes -= skipped;
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    private ByteBufferInputStream(final ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int offset, final int length) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      final int read = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, read);
+      return read;
+    }
+  }
+
+  /** Counts what was replayed, and how quickly. */
+  public static final class Summary {
+    private final long startNanos;
+    private long endNanos;
+    private long requests;
+    private long failedRequests;
+    private long traces;
+    private long bytes;
+
+    private Summary(final long startNanos) {
+      this.startNanos = startNanos;
+    }
+
+    private void onSend(final int traceCount, final int length, final boolean success) {
+      ++requests;
+      if (!success) {
+        ++failedRequests;
+      }
+      traces += traceCount;
+      bytes += length;
+    }
+
+    private String snapshot(final long now) {
+      final double seconds = Math.max(1, now - startNanos) / 1e9;
+      return String.format(
+          "%d requests (%d failed), %d traces, %.1f MB in %.1f s: %.0f traces/s, %.2f MB/s",
+          requests,
+          failedRequests,
+          traces,
+          bytes / (1024.0 * 1024),
+          seconds,
+          traces / seconds,
+          bytes / (1024.0 * 1024) / seconds);
+    }
+
+    public long getRequests() {
+      return requests;
+    }
+
+    public long getFailedRequests() {
+      return failedRequests;
+    }
+
+    public long getTraces() {
+      return traces;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    public long getDurationNanos() {
+      return endNanos - startNanos;
+    }
+
+    @Override
+    public String toString() {
+      return snapshot(endNanos);
+    }
+  }
+}
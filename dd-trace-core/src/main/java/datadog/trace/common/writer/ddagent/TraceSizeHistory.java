@@ -0,0 +1,48 @@
+package datadog.trace.common.writer.ddagent;
+
+import java.util.Arrays;
+
+/**
+ * Moving average of the serialized sizes of recent traces, used by serializers to decide when a
+ * buffer could not take another trace without growing.
+ *
+ * <p>Intentionally not thread-safe; each serializer has its own instance.
+ */
+final class TraceSizeHistory {
+
+  // assumed to be a power of 2 for arithmetic efficiency
+  private static final int TRACE_HISTORY_SIZE = 16;
+  private static final int INITIAL_TRACE_SIZE_ESTIMATE = 8 * 1024; // 8KB
+
+  private final int[] traceSizeHistory = new int[TRACE_HISTORY_SIZE];
+
+  private int runningTraceSizeSum;
+  private int position;
+
+  TraceSizeHistory() {
+    Arrays.fill(traceSizeHistory, INITIAL_TRACE_SIZE_ESTIMATE);
+    this.runningTraceSizeSum = INITIAL_TRACE_SIZE_ESTIMATE * TRACE_HISTORY_SIZE;
+  }
+
+  void update(int traceSize) {
+    // This is a moving average calculation based on the last
+    // TRACE_HISTORY_SIZE trace sizes, stored in a ring buffer.
+    // A ring buffer of recent trace sizes is maintained. On each
+    // update, the value at position is subtracted from the running
+    // sum, and the new value is added. The value at position is
+    // replaced by the new value. The position is incremented modulo
+    // TRACE_HISTORY_SIZE. TRACE_HISTORY_SIZE has been chosen as a
+    // power of two to keep this calculation as cheap as possible.
+    //
+    // The trace history is initialised to INITIAL_TRACE_SIZE_ESTIMATE to
+    // simplify the calculation during the initial filling of the history,
+    // and to bias early estimates toward small trace sizes.
+    runningTraceSizeSum = (runningTraceSizeSum - traceSizeHistory[position] + traceSize);
+    traceSizeHistory[position] = traceSize;
+    position = (position + 1) & (traceSizeHistory.length - 1);
+  }
+
+  int averageTraceSize() {
+    return runningTraceSizeSum / TRACE_HISTORY_SIZE;
+  }
+}
@@ -11,6 +11,7 @@ import datadog.trace.bootstrap.instrumentation.api.AgentTracer;
 import datadog.trace.common.sampling.PrioritySampler;
 import datadog.trace.common.sampling.Sampler;
 import datadog.trace.common.writer.DDAgentWriter;
+import datadog.trace.common.writer.InterceptingWriter;
 import datadog.trace.common.writer.Writer;
 import datadog.trace.common.writer.ddagent.DDAgentResponseListener;
 import datadog.trace.context.ScopeListener;
@@ -28,7 +29,9 @@ import java.io.Closeable;
 import java.lang.ref.WeakReference;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -37,9 +40,7 @@ import java.util.Properties;
 import java.util.ServiceConfigurationError;
 import java.util.ServiceLoader;
 import java.util.SortedSet;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.concurrent.ThreadLocalRandom;
 import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
 
@@ -56,10 +57,15 @@ public class CoreTracer
       BigInteger.valueOf(2).pow(64).subtract(BigInteger.ONE);
   public static final BigInteger TRACE_ID_MIN = BigInteger.ZERO;
 
+  // enough for the handful of tags set on most spans through the builder, without resizing
+  private static final int BUILDER_TAGS_CAPACITY = 8;
+
   /** Default service name if none provided on the trace or span */
   final String serviceName;
   /** Writer is an charge of reporting traces and spans to the desired endpoint */
   final Writer writer;
+  /** Whether the writer applies the interceptors itself, rather than the tracer before writing */
+  private final boolean writerIntercepts;
   /** Sampler defines the sampling policy in order to reduce the number of traces for instance */
   final Sampler sampler;
   /** Scope manager is in charge of managing the scopes from which spans are created */
@@ -69,21 +75,40 @@ public class CoreTracer
   private final Map<String, String> localRootSpanTags;
   /** A set of tags that are added to every span */
   private final Map<String, String> defaultSpanTags;
+  /** The tags added to child spans and root spans, shared by the spans rather than copied */
+  private final TagMap.Block sharedSpanTags;
+  private final TagMap.Block sharedRootSpanTags;
   /** A configured mapping of service names to update with new values */
   private final Map<String, String> serviceNameMappings;
 
   /** number of spans in a pending trace before they get flushed */
   @lombok.Getter private final int partialFlushMinSpans;
 
+  /**
+   * seconds without activity after which the finished spans of a pending trace are flushed, rather
+   * than the trace being dropped as leaked after {@link #staleTraceTimeout}
+   */
+  @lombok.Getter private final int partialFlushTimeout;
+
+  /**
+   * seconds without activity after which the finished spans of a pending trace with unfinished
+   * spans are flushed, and after which it is dropped if it stays idle
+   */
+  @lombok.Getter private final int staleTraceTimeout;
+
   /**
    * JVM shutdown callback, keeping a reference to it to remove this if DDTracer gets destroyed
    * earlier
    */
   private final Thread shutdownCallback;
 
-  /** Span context decorators */
-  private final Map<String, List<AbstractDecorator>> spanContextDecorators =
-      new ConcurrentHashMap<>();
+  /** Renders the stacks of the errors added to spans */
+  private final ErrorStacks errorStacks;
+
+  /** Span context decorators, in the order they were added */
+  private final List<AbstractDecorator> decorators = new ArrayList<>();
+  /** Span context decorators by matching tag, rebuilt whenever a decorator is added */
+  private volatile DecoratorTable spanContextDecorators = DecoratorTable.EMPTY;
 
   private final SortedSet<TraceInterceptor> interceptors =
       new ConcurrentSkipListSet<>(
@@ -129,6 +154,8 @@ public class CoreTracer
       serviceNameMappings(config.getServiceMapping());
       taggedHeaders(config.getHeaderTags());
       partialFlushMinSpans(config.getPartialFlushMinSpans());
+      partialFlushTimeout(config.getPartialFlushTimeout());
+      staleTraceTimeout(config.getStaleTraceTimeout());
       return this;
     }
   }
@@ -147,7 +174,9 @@ public class CoreTracer
       final Map<String, String> defaultSpanTags,
       final Map<String, String> serviceNameMappings,
       final Map<String, String> taggedHeaders,
-      final int partialFlushMinSpans) {
+      final int partialFlushMinSpans,
+      final int partialFlushTimeout,
+      final int staleTraceTimeout) {
 
     assert localRootSpanTags != null;
     assert defaultSpanTags != null;
@@ -160,14 +189,22 @@ public class CoreTracer
     } else {
       this.writer = writer;
     }
+    this.writerIntercepts = this.writer instanceof InterceptingWriter;
     this.sampler = sampler;
     this.injector = injector;
     this.extractor = extractor;
     this.scopeManager = scopeManager;
     this.localRootSpanTags = localRootSpanTags;
     this.defaultSpanTags = defaultSpanTags;
+    final Map<String, String> rootSpanTags = new LinkedHashMap<>(defaultSpanTags);
+    rootSpanTags.putAll(localRootSpanTags);
+    this.sharedSpanTags = new TagMap.Block(defaultSpanTags);
+    this.sharedRootSpanTags = new TagMap.Block(rootSpanTags);
     this.serviceNameMappings = serviceNameMappings;
     this.partialFlushMinSpans = partialFlushMinSpans;
+    this.partialFlushTimeout = partialFlushTimeout;
+    this.staleTraceTimeout = staleTraceTimeout;
+    this.errorStacks = ErrorStacks.forConfig(config);
 
     this.writer.start();
 
@@ -184,10 +221,7 @@ public class CoreTracer
 
     log.info("New instance: {}", this);
 
-    final List<AbstractDecorator> decorators = DDDecoratorsFactory.createBuiltinDecorators();
-    for (final AbstractDecorator decorator : decorators) {
-      addDecorator(decorator);
-    }
+    addDecorators(DDDecoratorsFactory.createBuiltinDecorators());
 
     registerClassLoader(ClassLoader.getSystemClassLoader());
 
@@ -208,12 +242,22 @@ public class CoreTracer
     }
   }
 
+  ErrorStacks getErrorStacks() {
+    return errorStacks;
+  }
+
   /**
    * Returns the list of span context decorators
    *
    * @return the list of span context decorators
    */
   public List<AbstractDecorator> getSpanContextDecorators(final String tag) {
+    final AbstractDecorator[] decorators = spanContextDecorators.get(tag);
+    return null == decorators ? null : Arrays.asList(decorators);
+  }
+
+  /** @return the span context decorators matching the tag, or null if there are none */
+  AbstractDecorator[] decoratorsFor(final String tag) {
     return spanContextDecorators.get(tag);
   }
 
@@ -223,16 +267,18 @@ public class CoreTracer
    * @param decorator The decorator in the list
    */
   public void addDecorator(final AbstractDecorator decorator) {
+    addDecorators(Collections.singletonList(decorator));
+  }
 
-    List<AbstractDecorator> list = spanContextDecorators.get(decorator.getMatchingTag());
-    if (list == null) {
-      list = new ArrayList<>();
+  private synchronized void addDecorators(final List<AbstractDecorator> added) {
+    decorators.addAll(added);
+    spanContextDecorators = new DecoratorTable(decorators);
+    for (final AbstractDecorator decorator : added) {
+      log.debug(
+          "Decorator added: '{}' -> {}",
+          decorator.getMatchingTag(),
+          decorator.getClass().getName());
     }
-    list.add(decorator);
-
-    spanContextDecorators.put(decorator.getMatchingTag(), list);
-    log.debug(
-        "Decorator added: '{}' -> {}", decorator.getMatchingTag(), decorator.getClass().getName());
   }
 
   /**
@@ -281,6 +327,13 @@ public class CoreTracer
         .start();
   }
 
+  @Override
+  public AgentSpan startSpan(
+      final String spanName, final AgentSpan.Context parent, final Map<String, ?> tags) {
+    return DDSpan.create(
+        0, buildSpanContext(spanName, parent, true, null, null, false, null, tags));
+  }
+
   @Override
   public AgentScope activateSpan(final AgentSpan span) {
     return scopeManager.activate(span);
@@ -335,38 +388,83 @@ public class CoreTracer
    * We use the sampler to know if the trace has to be reported/written. The sampler is called on
    * the first span (root span) of the trace. If the trace is marked as a sample, we report it.
    *
-   * @param trace a list of the spans related to the same trace
+   * <p>The {@link TraceInterceptor interceptors} are applied before the sampling priority is set
+   * and the trace is sampled, so that they can change the decision. The trace is handed to an
+   * {@link InterceptingWriter} as is, and is intercepted then sampled by {@link
+   * #interceptAndSample(List)} when the writer processes the trace. It is intercepted and sampled
+   * here for other writers.
+   *
+   * @param trace a list of the spans related to the same trace, owned by the tracer from now on
    */
-  void write(final Collection<DDSpan> trace) {
+  void write(final List<DDSpan> trace) {
     if (trace.isEmpty()) {
       return;
     }
-    final ArrayList<DDSpan> writtenTrace;
-    if (interceptors.isEmpty()) {
-      writtenTrace = new ArrayList<>(trace);
+    if (writerIntercepts) {
+      writer.write(trace);
+      return;
+    }
+    interceptCompleteTrace(trace);
+    if (trace.isEmpty()) {
+      return;
+    }
+    if (sample(trace)) {
+      writer.write(trace);
     } else {
-      Collection<? extends MutableSpan> interceptedTrace = new ArrayList<>(trace);
-      for (final TraceInterceptor interceptor : interceptors) {
-        interceptedTrace = interceptor.onTraceComplete(interceptedTrace);
+      incrementTraceCount();
+    }
+  }
+
+  /**
+   * Applies the interceptors to a trace an {@link InterceptingWriter} is processing, then sets its
+   * sampling priority and samples it. A trace dropped by the sampler is emptied and counted, like
+   * the traces {@link #write(List)} drops for other writers.
+   *
+   * @param trace a mutable list of the spans related to the same trace
+   */
+  void interceptAndSample(final List<DDSpan> trace) {
+    interceptCompleteTrace(trace);
+    if (!trace.isEmpty() && !sample(trace)) {
+      trace.clear();
+      incrementTraceCount();
+    }
+  }
+
+  private boolean sample(final List<DDSpan> trace) {
+    final DDSpan rootSpan = trace.get(0).getLocalRootSpan();
+    setSamplingPriorityIfNecessary(rootSpan);
+
+    final DDSpan spanToSample = rootSpan == null ? trace.get(0) : rootSpan;
+    return sampler.sample(spanToSample);
+  }
+
+  /**
+   * Applies the interceptors to a trace about to be written. Interceptors which return the trace
+   * they were given cost no copy; if one returns another collection, the spans of the trace are
+   * replaced with the spans it returned.
+   *
+   * @param trace a mutable list of the spans related to the same trace
+   */
+  void interceptCompleteTrace(final List<DDSpan> trace) {
+    if (interceptors.isEmpty()) {
+      return;
+    }
+    Collection<? extends MutableSpan> interceptedTrace = trace;
+    for (final TraceInterceptor interceptor : interceptors) {
+      interceptedTrace = interceptor.onTraceComplete(interceptedTrace);
+      if (null == interceptedTrace) {
+        interceptedTrace = Collections.emptyList();
       }
-      writtenTrace = new ArrayList<>(interceptedTrace.size());
+    }
+    if (interceptedTrace != trace) {
+      final List<DDSpan> spans = new ArrayList<>(interceptedTrace.size());
       for (final MutableSpan span : interceptedTrace) {
         if (span instanceof DDSpan) {
-          writtenTrace.add((DDSpan) span);
+          spans.add((DDSpan) span);
         }
       }
-    }
-
-    if (!writtenTrace.isEmpty()) {
-      final DDSpan rootSpan = writtenTrace.get(0).getLocalRootSpan();
-      setSamplingPriorityIfNecessary(rootSpan);
-
-      final DDSpan spanToSample = rootSpan == null ? writtenTrace.get(0) : rootSpan;
-      if (sampler.sample(spanToSample)) {
-        writer.write(writtenTrace);
-      } else {
-        incrementTraceCount();
-      }
+      trace.clear();
+      trace.addAll(spans);
     }
   }
 
@@ -392,7 +490,7 @@ public class CoreTracer
   public String getTraceId() {
     final AgentSpan activeSpan = activeSpan();
     if (activeSpan instanceof DDSpan) {
-      return ((DDSpan) activeSpan).getTraceId().toString();
+      return ((DDSpan) activeSpan).getDDTraceId().toString();
     }
     return "0";
   }
@@ -401,7 +499,7 @@ public class CoreTracer
   public String getSpanId() {
     final AgentSpan activeSpan = activeSpan();
     if (activeSpan instanceof DDSpan) {
-      return ((DDSpan) activeSpan).getSpanId().toString();
+      return ((DDSpan) activeSpan).getDDSpanId().toString();
     }
     return "0";
   }
@@ -454,7 +552,8 @@ public class CoreTracer
     private final String operationName;
 
     // Builder attributes
-    private final Map<String, Object> tags = new LinkedHashMap<String, Object>(defaultSpanTags);
+    // the tags set on the span, allocated with the first one; null values unset the default tags
+    private Map<String, Object> tags;
     private long timestampMicro;
     private Object parent;
     private String serviceName;
@@ -529,152 +628,209 @@ public class CoreTracer
     }
 
     public CoreSpanBuilder withTag(final String tag, final Object value) {
+      if (tags == null) {
+        tags = new LinkedHashMap<>(BUILDER_TAGS_CAPACITY);
+      }
       if (value == null || (value instanceof String && ((String) value).isEmpty())) {
-        tags.remove(tag);
+        tags.put(tag, null);
       } else {
         tags.put(tag, value);
       }
       return this;
     }
 
-    private BigInteger generateNewId() {
-      // It is **extremely** unlikely to generate the value "0" but we still need to handle that
-      // case
-      BigInteger value;
-      do {
-        value = new StringCachingBigInteger(63, ThreadLocalRandom.current());
-      } while (value.signum() == 0);
+    private DDSpanContext buildSpanContext() {
+      return CoreTracer.this.buildSpanContext(
+          operationName,
+          parent,
+          ignoreScope,
+          serviceName,
+          resourceName,
+          errorFlag,
+          spanType,
+          tags);
+    }
+  }
 
-      return value;
+  /**
+   * Build the SpanContext, if the actual span has a parent, the following attributes must be
+   * propagated: - ServiceName - Baggage - Trace (a list of all spans related) - SpanType
+   *
+   * <p>The default tags, and the local root span tags of root spans, are shared with the other
+   * spans rather than copied, unless they are overridden.
+   *
+   * @param tags the tags set on the span, or null, where null values unset the default tags
+   * @return the context
+   */
+  private DDSpanContext buildSpanContext(
+      final String operationName,
+      final Object parent,
+      final boolean ignoreScope,
+      final String serviceName,
+      final String resourceName,
+      final boolean errorFlag,
+      final String spanType,
+      final Map<String, ?> tags) {
+    final DDId traceId;
+    final DDId spanId = DDId.generate();
+    final DDId parentSpanId;
+    final Map<String, String> baggage;
+    final PendingTrace parentTrace;
+    final int samplingPriority;
+    final String origin;
+    final TagMap.Block sharedTags;
+    Map<String, ?> spanTags = tags;
+    String spanServiceName = serviceName;
+
+    final DDSpanContext context;
+
+    // FIXME [API] parentContext should be an interface implemented by ExtractedContext,
+    // TagContext, DDSpanContext, AgentSpan.Context
+    Object parentContext = parent;
+    if (parentContext == null && !ignoreScope) {
+      // use the Scope as parent unless overridden or ignored.
+      final AgentSpan activeSpan = scopeManager.activeSpan();
+      if (activeSpan != null) {
+        parentContext = activeSpan.context();
+      }
     }
 
-    /**
-     * Build the SpanContext, if the actual span has a parent, the following attributes must be
-     * propagated: - ServiceName - Baggage - Trace (a list of all spans related) - SpanType
-     *
-     * @return the context
-     */
-    private DDSpanContext buildSpanContext() {
-      final BigInteger traceId;
-      final BigInteger spanId = generateNewId();
-      final BigInteger parentSpanId;
-      final Map<String, String> baggage;
-      final PendingTrace parentTrace;
-      final int samplingPriority;
-      final String origin;
-
-      final DDSpanContext context;
-
-      // FIXME [API] parentContext should be an interface implemented by ExtractedContext,
-      // TagContext, DDSpanContext, AgentSpan.Context
-      Object parentContext = parent;
-      if (parentContext == null && !ignoreScope) {
-        // use the Scope as parent unless overridden or ignored.
-        final AgentSpan activeSpan = scopeManager.activeSpan();
-        if (activeSpan != null) {
-          parentContext = activeSpan.context();
-        }
+    // Propagate internal trace.
+    // Note: if we are not in the context of distributed tracing and we are starting the first
+    // root span, parentContext will be null at this point.
+    if (parentContext instanceof DDSpanContext) {
+      final DDSpanContext ddsc = (DDSpanContext) parentContext;
+      traceId = ddsc.getDDTraceId();
+      parentSpanId = ddsc.getDDSpanId();
+      baggage = ddsc.getBaggageItems();
+      parentTrace = ddsc.getTrace();
+      samplingPriority = PrioritySampling.UNSET;
+      origin = null;
+      if (spanServiceName == null) {
+        spanServiceName = ddsc.getServiceName();
       }
+      sharedTags = sharedSpanTags;
 
-      // Propagate internal trace.
-      // Note: if we are not in the context of distributed tracing and we are starting the first
-      // root span, parentContext will be null at this point.
-      if (parentContext instanceof DDSpanContext) {
-        final DDSpanContext ddsc = (DDSpanContext) parentContext;
-        traceId = ddsc.getTraceId();
-        parentSpanId = ddsc.getSpanId();
-        baggage = ddsc.getBaggageItems();
-        parentTrace = ddsc.getTrace();
+    } else {
+      if (parentContext instanceof ExtractedContext) {
+        // Propagate external trace
+        final ExtractedContext extractedContext = (ExtractedContext) parentContext;
+        traceId = extractedContext.getDDTraceId();
+        parentSpanId = extractedContext.getDDSpanId();
+        samplingPriority = extractedContext.getSamplingPriority();
+        baggage = extractedContext.getBaggage();
+      } else {
+        // Start a new trace
+        traceId = DDId.generate();
+        parentSpanId = DDId.ZERO;
         samplingPriority = PrioritySampling.UNSET;
-        origin = null;
-        if (serviceName == null) {
-          serviceName = ddsc.getServiceName();
-        }
+        baggage = null;
+      }
 
-      } else {
-        if (parentContext instanceof ExtractedContext) {
-          // Propagate external trace
-          final ExtractedContext extractedContext = (ExtractedContext) parentContext;
-          traceId = extractedContext.getTraceId();
-          parentSpanId = extractedContext.getSpanId();
-          samplingPriority = extractedContext.getSamplingPriority();
-          baggage = extractedContext.getBaggage();
-        } else {
-          // Start a new trace
-          traceId = generateNewId();
-          parentSpanId = BigInteger.ZERO;
-          samplingPriority = PrioritySampling.UNSET;
-          baggage = null;
+      // Get header tags and set origin whether propagating or not.
+      if (parentContext instanceof TagContext) {
+        final Map<String, String> headerTags = ((TagContext) parentContext).getTags();
+        if (!headerTags.isEmpty()) {
+          final Map<String, Object> merged =
+              spanTags == null
+                  ? new LinkedHashMap<String, Object>(headerTags)
+                  : new LinkedHashMap<String, Object>(spanTags);
+          merged.putAll(headerTags);
+          spanTags = merged;
         }
+        origin = ((TagContext) parentContext).getOrigin();
+      } else {
+        origin = null;
+      }
 
-        // Get header tags and set origin whether propagating or not.
-        if (parentContext instanceof TagContext) {
-          tags.putAll(((TagContext) parentContext).getTags());
-          origin = ((TagContext) parentContext).getOrigin();
-        } else {
-          origin = null;
+      // the local root span tags take precedence over the tags set on the span
+      if (spanTags != null && !localRootSpanTags.isEmpty()) {
+        for (final String tag : localRootSpanTags.keySet()) {
+          if (spanTags.containsKey(tag)) {
+            final Map<String, Object> kept = new LinkedHashMap<>(spanTags);
+            kept.keySet().removeAll(localRootSpanTags.keySet());
+            spanTags = kept;
+            break;
+          }
         }
-
-        tags.putAll(localRootSpanTags);
-
-        parentTrace = PendingTrace.create(CoreTracer.this, traceId);
       }
-
-      if (serviceName == null) {
-        serviceName = CoreTracer.this.serviceName;
+      sharedTags = sharedRootSpanTags;
+
+      parentTrace = PendingTrace.create(CoreTracer.this, traceId);
+    }
+
+    if (spanServiceName == null) {
+      spanServiceName = CoreTracer.this.serviceName;
+    }
+
+    final String spanOperationName = operationName != null ? operationName : resourceName;
+
+    // some attributes are inherited from the parent
+    context =
+        new DDSpanContext(
+            traceId,
+            spanId,
+            parentSpanId,
+            spanServiceName,
+            spanOperationName,
+            resourceName,
+            samplingPriority,
+            origin,
+            baggage,
+            errorFlag,
+            spanType,
+            spanTags,
+            sharedTags,
+            parentTrace,
+            CoreTracer.this,
+            serviceNameMappings);
+
+    // Apply Decorators to handle any tags that may have been set via the builder, in the order
+    // the tags were merged: the shared tags first, with the values the span overrides them with.
+    for (int i = 0; i < sharedTags.size(); i++) {
+      final String tag = sharedTags.keyAt(i);
+      if (spanTags != null && spanTags.containsKey(tag)) {
+        decorateTag(context, tag, spanTags.get(tag));
+      } else {
+        decorateTag(context, tag, sharedTags.valueAt(i));
       }
-
-      final String operationName = this.operationName != null ? this.operationName : resourceName;
-
-      // some attributes are inherited from the parent
-      context =
-          new DDSpanContext(
-              traceId,
-              spanId,
-              parentSpanId,
-              serviceName,
-              operationName,
-              resourceName,
-              samplingPriority,
-              origin,
-              baggage,
-              errorFlag,
-              spanType,
-              tags,
-              parentTrace,
-              CoreTracer.this,
-              serviceNameMappings);
-
-      // Apply Decorators to handle any tags that may have been set via the builder.
-      for (final Map.Entry<String, Object> tag : tags.entrySet()) {
-        if (tag.getValue() == null) {
-          context.setTag(tag.getKey(), null);
-          continue;
+    }
+    if (spanTags != null) {
+      for (final Map.Entry<String, ?> tag : spanTags.entrySet()) {
+        if (null == sharedTags.get(tag.getKey())) {
+          decorateTag(context, tag.getKey(), tag.getValue());
         }
+      }
+    }
 
-        boolean addTag = true;
-
-        // Call decorators
-        final List<AbstractDecorator> decorators = getSpanContextDecorators(tag.getKey());
-        if (decorators != null) {
-          for (final AbstractDecorator decorator : decorators) {
-            try {
-              addTag &= decorator.shouldSetTag(context, tag.getKey(), tag.getValue());
-            } catch (final Throwable ex) {
-              log.debug(
-                  "Could not decorate the span decorator={}: {}",
-                  decorator.getClass().getSimpleName(),
-                  ex.getMessage());
-            }
-          }
-        }
+    return context;
+  }
 
-        if (!addTag) {
-          context.setTag(tag.getKey(), null);
+  private void decorateTag(final DDSpanContext context, final String tag, final Object value) {
+    if (value == null) {
+      context.setTag(tag, null);
+      return;
+    }
+
+    boolean addTag = true;
+
+    // Call decorators
+    final AbstractDecorator[] decorators = decoratorsFor(tag);
+    if (decorators != null) {
+      for (final AbstractDecorator decorator : decorators) {
+        try {
+          addTag &= decorator.shouldSetTag(context, tag, value);
+        } catch (final Throwable ex) {
+          log.debug(
+              "Could not decorate the span decorator={}: {}",
+              decorator.getClass().getSimpleName(),
+              ex.getMessage());
         }
       }
+    }
 
-      return context;
+    if (!addTag) {
+      context.setTag(tag, null);
     }
   }
 
@@ -0,0 +1,186 @@
+package datadog.trace.core;
+
+import java.math.BigInteger;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Unsigned 64 bit id used for trace ids, span ids and parent ids, stored in a primitive {@code
+ * long}. Using this instead of {@link BigInteger} avoids allocating and doing arbitrary precision
+ * arithmetic on every span start, finish, sampling decision and serialization.
+ *
+ * <p>Values with the top bit set (i.e. larger than {@link Long#MAX_VALUE}) are stored as negative
+ * longs; all comparisons, parsing and formatting treat the value as unsigned.
+ */
+public final class DDId {
+
+  public static final DDId ZERO = new DDId(0);
+  public static final DDId MAX = new DDId(-1);
+
+  private static final BigInteger TWO_64 = BigInteger.ONE.shiftLeft(64);
+
+  /**
+   * Create a new id from the bits of a long, i.e. {@code -1} will be interpreted as 2^64-1.
+   *
+   * @param id the long bits of the id
+   * @return the id
+   */
+  public static DDId from(final long id) {
+    return id == 0 ? ZERO : new DDId(id);
+  }
+
+  /**
+   * Parse an unsigned decimal id.
+   *
+   * @param s the String to parse
+   * @return the id
+   * @throws NumberFormatException if the String is not a valid id or is outside [0, 2^64-1]
+   */
+  public static DDId from(final String s) throws NumberFormatException {
+    return from(parseUnsignedLong(s, 10));
+  }
+
+  /**
+   * Parse an unsigned hexadecimal id.
+   *
+   * @param s the String to parse
+   * @return the id
+   * @throws NumberFormatException if the String is not a valid id or is outside [0, 2^64-1]
+   */
+  public static DDId fromHex(final String s) throws NumberFormatException {
+    return from(parseUnsignedLong(s, 16));
+  }
+
+  /**
+   * Compatibility adapter for code still handing out {@link BigInteger} ids.
+   *
+   * @param value the id as a BigInteger
+   * @return the id
+   * @throws NumberFormatException if the value is outside [0, 2^64-1]
+   */
+  public static DDId from(final BigInteger value) throws NumberFormatException {
+    if (value.signum() < 0 || value.bitLength() > 64) {
+      throw new NumberFormatException(
+          "ID out of range, must be between 0 and 2^64-1, got: " + value);
+    }
+    return from(value.longValue());
+  }
+
+  /**
+   * Generate a new random, non-zero 63 bit id.
+   *
+   * @return the id
+   */
+  public static DDId generate() {
+    // It is **extremely** unlikely to generate the value "0" but we still need to handle that case
+    long value;
+    do {
+      value = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+    } while (value == 0);
+    return new DDId(value);
+  }
+
+  private final long id;
+
+  // Cache the String representation since ids are formatted repeatedly (logging, injection, ...)
+  private String str;
+
+  private DDId(final long id) {
+    this.id = id;
+  }
+
+  /** @return the raw bits of the id, to be interpreted as unsigned */
+  public long toLong() {
+    return id;
+  }
+
+  public BigInteger toBigInteger() {
+    final BigInteger value = BigInteger.valueOf(id);
+    return id < 0 ? value.add(TWO_64) : value;
+  }
+
+  public String toHexString() {
+    return Long.toHexString(id);
+  }
+
+  @Override
+  public String toString() {
+    String s = str;
+    if (s == null) {
+      str = s = toUnsignedString(id);
+    }
+    return s;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof DDId)) {
+      return false;
+    }
+    return id == ((DDId) o).id;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (id ^ (id >>> 32));
+  }
+
+  /** Compares two longs as if they were unsigned. */
+  static int compareUnsigned(final long a, final long b) {
+    return Long.compare(a + Long.MIN_VALUE, b + Long.MIN_VALUE);
+  }
+
+  private static String toUnsignedString(final long value) {
+    if (value >= 0) {
+      return Long.toString(value);
+    }
+    final long quotient = (value >>> 1) / 5;
+    final long remainder = value - quotient * 10;
+    return Long.toString(quotient) + remainder;
+  }
+
+  private static long parseUnsignedLong(final String s, final int radix)
+      throws NumberFormatException {
+    if (s == null) {
+      throw new NumberFormatException("null");
+    }
+    final int length = s.length();
+    int i = 0;
+    if (length > 0 && s.charAt(0) == '+') {
+      i = 1;
+    }
+    if (i == length) {
+      throw new NumberFormatException("Invalid id: \"" + s + "\"");
+    }
+    // largest value which can be multiplied by radix without overflowing,
+    // and the largest digit which can be added to it afterwards
+    final long limit = divideUnsigned(-1L, radix);
+    final int maxLastDigit = (int) (-1L - limit * radix);
+    long result = 0;
+    for (; i < length; i++) {
+      final int digit = Character.digit(s.charAt(i), radix);
+      if (digit < 0) {
+        throw new NumberFormatException("Invalid id: \"" + s + "\"");
+      }
+      final int cmp = compareUnsigned(result, limit);
+      if (cmp > 0 || (cmp == 0 && digit > maxLastDigit)) {
+        throw new NumberFormatException(
+            "ID out of range, must be between 0 and 2^64-1, got: " + s);
+      }
+      result = result * radix + digit;
+    }
+    return result;
+  }
+
+  private static long divideUnsigned(final long dividend, final long divisor) {
+    // divisor is always a small positive radix here
+    long quotient = ((dividend >>> 1) / divisor) << 1;
+    final long remainder = dividend - quotient * divisor;
+    if (compareUnsigned(remainder, divisor) >= 0) {
+      quotient++;
+    }
+    return quotient;
+  }
+}
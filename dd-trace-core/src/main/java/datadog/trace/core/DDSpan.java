@@ -5,9 +5,6 @@ import datadog.trace.api.interceptor.MutableSpan;
 import datadog.trace.api.sampling.PrioritySampling;
 import datadog.trace.bootstrap.instrumentation.api.AgentSpan;
 import datadog.trace.core.util.Clock;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.lang.ref.WeakReference;
 import java.math.BigInteger;
 import java.util.Collections;
 import java.util.Map;
@@ -53,9 +50,6 @@ public class DDSpan implements MutableSpan, AgentSpan {
    */
   private final AtomicLong durationNano = new AtomicLong();
 
-  /** Implementation detail. Stores the weak reference to this span. Used by TraceCollection. */
-  volatile WeakReference<DDSpan> ref;
-
   /**
    * Spans should be constructed using the builder, not by calling the constructor directly.
    *
@@ -118,7 +112,7 @@ public class DDSpan implements MutableSpan, AgentSpan {
    * @return true if root, false otherwise
    */
   public final boolean isRootSpan() {
-    return BigInteger.ZERO.equals(context.getParentId());
+    return DDId.ZERO.equals(context.getDDParentId());
   }
 
   @Override
@@ -136,8 +130,7 @@ public class DDSpan implements MutableSpan, AgentSpan {
   public boolean isSameTrace(final AgentSpan otherSpan) {
     // FIXME [API] AgentSpan or AgentSpan.Context should have a "getTraceId()" type method
     if (otherSpan instanceof DDSpan) {
-      // minor optimization to avoid BigInteger.toString()
-      return getTraceId().equals(((DDSpan) otherSpan).getTraceId());
+      return getDDTraceId().equals(((DDSpan) otherSpan).getDDTraceId());
     }
 
     return false;
@@ -155,9 +148,7 @@ public class DDSpan implements MutableSpan, AgentSpan {
     setTag(DDTags.ERROR_MSG, error.getMessage());
     setTag(DDTags.ERROR_TYPE, error.getClass().getName());
 
-    final StringWriter errorString = new StringWriter();
-    error.printStackTrace(new PrintWriter(errorString));
-    setTag(DDTags.ERROR_STACK, errorString.toString());
+    setTag(DDTags.ERROR_STACK, context.getErrorStacks().stackOf(error));
 
     return this;
   }
@@ -285,15 +276,30 @@ public class DDSpan implements MutableSpan, AgentSpan {
     return context.getServiceName();
   }
 
+  public DDId getDDTraceId() {
+    return context.getDDTraceId();
+  }
+
+  public DDId getDDSpanId() {
+    return context.getDDSpanId();
+  }
+
+  public DDId getDDParentId() {
+    return context.getDDParentId();
+  }
+
+  /** Compatibility adapter, prefer {@link #getDDTraceId()} */
   @Override
   public BigInteger getTraceId() {
     return context.getTraceId();
   }
 
+  /** Compatibility adapter, prefer {@link #getDDSpanId()} */
   public BigInteger getSpanId() {
     return context.getSpanId();
   }
 
+  /** Compatibility adapter, prefer {@link #getDDParentId()} */
   public BigInteger getParentId() {
     return context.getParentId();
   }
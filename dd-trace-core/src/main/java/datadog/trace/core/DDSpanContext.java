@@ -6,11 +6,9 @@ import datadog.trace.bootstrap.instrumentation.api.AgentSpan;
 import datadog.trace.core.decorators.AbstractDecorator;
 import java.math.BigInteger;
 import java.util.Collections;
-import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicReference;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -29,6 +27,9 @@ public class DDSpanContext implements AgentSpan.Context {
 
   private static final Map<String, Number> EMPTY_METRICS = Collections.emptyMap();
 
+  // room for a dozen tags, besides the thread name and id, before growing
+  private static final int TAGS_CAPACITY = 16;
+
   // Shared with other span contexts
   /** For technical reasons, the ref to the original tracer */
   private final CoreTracer tracer;
@@ -40,12 +41,18 @@ public class DDSpanContext implements AgentSpan.Context {
   private final Map<String, String> baggageItems;
 
   // Not Shared with other span contexts
-  private final BigInteger traceId;
-  private final BigInteger spanId;
-  private final BigInteger parentId;
+  private final DDId traceId;
+  private final DDId spanId;
+  private final DDId parentId;
 
-  /** Tags are associated to the current span, they will not propagate to the children span */
-  private final Map<String, Object> tags = new ConcurrentHashMap<>();
+  /**
+   * Tags are associated to the current span, they will not propagate to the children span.
+   *
+   * <p>For thread safety, tags are only modified under instance lock, until the span is finished.
+   */
+  private final TagMap<Object> tags;
+  /** True when the error stack tag was added lazily and may not have been rendered yet */
+  private volatile boolean lazyErrorStack;
 
   /** The service name is required, otherwise the span are dropped by the agent */
   private volatile String serviceName;
@@ -66,8 +73,8 @@ public class DDSpanContext implements AgentSpan.Context {
   private boolean samplingPriorityLocked = false;
   /** The origin of the trace. (eg. Synthetics) */
   private final String origin;
-  /** Metrics on the span */
-  private final AtomicReference<Map<String, Number>> metrics = new AtomicReference<>();
+  /** Metrics on the span, only modified under instance lock like the tags */
+  private volatile TagMap<Number> metrics;
 
   // Additional Metadata
   private final String threadName = Thread.currentThread().getName();
@@ -76,9 +83,9 @@ public class DDSpanContext implements AgentSpan.Context {
   private final Map<String, String> serviceNameMappings;
 
   public DDSpanContext(
-      final BigInteger traceId,
-      final BigInteger spanId,
-      final BigInteger parentId,
+      final DDId traceId,
+      final DDId spanId,
+      final DDId parentId,
       final String serviceName,
       final String operationName,
       final String resourceName,
@@ -91,6 +98,46 @@ public class DDSpanContext implements AgentSpan.Context {
       final PendingTrace trace,
       final CoreTracer tracer,
       final Map<String, String> serviceNameMappings) {
+    this(
+        traceId,
+        spanId,
+        parentId,
+        serviceName,
+        operationName,
+        resourceName,
+        samplingPriority,
+        origin,
+        baggageItems,
+        errorFlag,
+        spanType,
+        tags,
+        TagMap.Block.EMPTY,
+        trace,
+        tracer,
+        serviceNameMappings);
+  }
+
+  /**
+   * @param tags the tags of the span, null values being skipped
+   * @param sharedTags tags shared with other spans, which the tags of the span take precedence over
+   */
+  DDSpanContext(
+      final DDId traceId,
+      final DDId spanId,
+      final DDId parentId,
+      final String serviceName,
+      final String operationName,
+      final String resourceName,
+      final int samplingPriority,
+      final String origin,
+      final Map<String, String> baggageItems,
+      final boolean errorFlag,
+      final String spanType,
+      final Map<String, ?> tags,
+      final TagMap.Block sharedTags,
+      final PendingTrace trace,
+      final CoreTracer tracer,
+      final Map<String, String> serviceNameMappings) {
 
     assert tracer != null;
     assert trace != null;
@@ -111,7 +158,14 @@ public class DDSpanContext implements AgentSpan.Context {
     }
 
     if (tags != null) {
-      this.tags.putAll(tags);
+      this.tags = new TagMap<>(tags.size() + TAGS_CAPACITY, sharedTags);
+      for (final Map.Entry<String, ?> tag : tags.entrySet()) {
+        if (null != tag.getValue()) {
+          this.tags.put(tag.getKey(), tag.getValue());
+        }
+      }
+    } else {
+      this.tags = new TagMap<>(TAGS_CAPACITY, sharedTags);
     }
 
     this.serviceNameMappings = serviceNameMappings;
@@ -133,18 +187,33 @@ public class DDSpanContext implements AgentSpan.Context {
     this.tags.put(DDTags.THREAD_ID, threadId);
   }
 
-  public BigInteger getTraceId() {
+  public DDId getDDTraceId() {
     return traceId;
   }
 
-  public BigInteger getParentId() {
+  public DDId getDDParentId() {
     return parentId;
   }
 
-  public BigInteger getSpanId() {
+  public DDId getDDSpanId() {
     return spanId;
   }
 
+  /** Compatibility adapter, prefer {@link #getDDTraceId()} */
+  public BigInteger getTraceId() {
+    return traceId.toBigInteger();
+  }
+
+  /** Compatibility adapter, prefer {@link #getDDParentId()} */
+  public BigInteger getParentId() {
+    return parentId.toBigInteger();
+  }
+
+  /** Compatibility adapter, prefer {@link #getDDSpanId()} */
+  public BigInteger getSpanId() {
+    return spanId.toBigInteger();
+  }
+
   public String getServiceName() {
     return serviceName;
   }
@@ -300,19 +369,34 @@ public class DDSpanContext implements AgentSpan.Context {
     return tracer;
   }
 
+  ErrorStacks getErrorStacks() {
+    return tracer.getErrorStacks();
+  }
+
+  /** Replaces an error stack which was added lazily by its rendering, releasing the error. */
+  private synchronized void renderErrorStack() {
+    final Object stack = tags.get(DDTags.ERROR_STACK);
+    if (stack instanceof ErrorStacks.LazyStack) {
+      tags.put(DDTags.ERROR_STACK, stack.toString());
+    }
+    lazyErrorStack = false;
+  }
+
   public Map<String, Number> getMetrics() {
-    final Map<String, Number> metrics = this.metrics.get();
+    final Map<String, Number> metrics = this.metrics;
     return metrics == null ? EMPTY_METRICS : metrics;
   }
 
-  public void setMetric(final String key, final Number value) {
-    if (metrics.get() == null) {
-      metrics.compareAndSet(null, new ConcurrentHashMap<String, Number>());
+  public synchronized void setMetric(final String key, final Number value) {
+    TagMap<Number> metrics = this.metrics;
+    if (metrics == null) {
+      metrics = new TagMap<>(0);
+      this.metrics = metrics;
     }
     if (value instanceof Float) {
-      metrics.get().put(key, value.doubleValue());
+      metrics.put(key, value.doubleValue());
     } else {
-      metrics.get().put(key, value);
+      metrics.put(key, value);
     }
   }
   /**
@@ -330,7 +414,7 @@ public class DDSpanContext implements AgentSpan.Context {
     boolean addTag = true;
 
     // Call decorators
-    final List<AbstractDecorator> decorators = tracer.getSpanContextDecorators(tag);
+    final AbstractDecorator[] decorators = tracer.decoratorsFor(tag);
     if (decorators != null) {
       for (final AbstractDecorator decorator : decorators) {
         try {
@@ -346,15 +430,43 @@ public class DDSpanContext implements AgentSpan.Context {
 
     if (addTag) {
       tags.put(tag, value);
+      if (value instanceof ErrorStacks.LazyStack) {
+        lazyErrorStack = true;
+      }
     }
   }
 
+  /**
+   * Renders the error stack first if it was added lazily, so that it's seen as a string.
+   *
+   * @return the live tags, which may miss or still show concurrent writes until the span finishes,
+   *     see {@link TagMap}
+   */
   public Map<String, Object> getTags() {
+    if (lazyErrorStack) {
+      renderErrorStack();
+    }
+    return tags;
+  }
+
+  /**
+   * @return the live tags like {@link #getTags()}, but without rendering an error stack added
+   *     lazily, which is then held by a value that isn't a string: for estimates which mustn't
+   *     render it on the thread reporting the span
+   */
+  public Map<String, Object> getUnrenderedTags() {
     return tags;
   }
 
   @Override
   public String toString() {
+    final Map<String, Number> sortedMetrics;
+    final Map<String, Object> sortedTags;
+    // spans are often logged by other threads while they are still being tagged
+    synchronized (this) {
+      sortedMetrics = new TreeMap<>(getMetrics());
+      sortedTags = new TreeMap<>(tags);
+    }
     final StringBuilder s =
         new StringBuilder()
             .append("DDSpan [ t_id=")
@@ -370,12 +482,12 @@ public class DDSpanContext implements AgentSpan.Context {
             .append("/")
             .append(getResourceName())
             .append(" metrics=")
-            .append(new TreeMap<>(getMetrics()));
+            .append(sortedMetrics);
     if (errorFlag) {
       s.append(" *errored*");
     }
 
-    s.append(" tags=").append(new TreeMap<>(tags));
+    s.append(" tags=").append(sortedTags);
     return s.toString();
   }
 }
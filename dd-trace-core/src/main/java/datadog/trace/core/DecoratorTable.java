@@ -0,0 +1,100 @@
+package datadog.trace.core;
+
+import datadog.trace.core.decorators.AbstractDecorator;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Frozen table of the span context decorators, by the tag they match. Consulted for every tag set
+ * on a span, almost always for a tag which no decorator matches, so the table is sized until every
+ * matched tag hashes to its own slot: a lookup is then a single array probe, and misses mostly find
+ * an empty slot. If no size up to {@link #MAX_SIZE} separates the tags, lookups probe linearly.
+ *
+ * <p>Immutable, so it can be read without synchronization; adding a decorator builds a new table.
+ */
+final class DecoratorTable {
+
+  static final DecoratorTable EMPTY = new DecoratorTable(new ArrayList<AbstractDecorator>());
+
+  private static final int MAX_SIZE = 1 << 12;
+
+  private final String[] tags;
+  private final int[] hashes;
+  private final AbstractDecorator[][] decorators;
+  private final int mask;
+  private final boolean collisionFree;
+
+  /** @param decorators the decorators, in the order they are called for a tag */
+  DecoratorTable(final List<AbstractDecorator> decorators) {
+    final Map<String, List<AbstractDecorator>> byTag = new LinkedHashMap<>();
+    for (final AbstractDecorator decorator : decorators) {
+      List<AbstractDecorator> matching = byTag.get(decorator.getMatchingTag());
+      if (null == matching) {
+        matching = new ArrayList<>();
+        byTag.put(decorator.getMatchingTag(), matching);
+      }
+      matching.add(decorator);
+    }
+    final int[] keyHashes = new int[byTag.size()];
+    int i = 0;
+    for (final String tag : byTag.keySet()) {
+      keyHashes[i++] = spread(tag.hashCode());
+    }
+    int size = 1;
+    while (size < byTag.size() << 1) {
+      size <<= 1;
+    }
+    while (size < MAX_SIZE && !separates(keyHashes, size - 1)) {
+      size <<= 1;
+    }
+    this.mask = size - 1;
+    this.collisionFree = separates(keyHashes, mask);
+    this.tags = new String[size];
+    this.hashes = new int[size];
+    this.decorators = new AbstractDecorator[size][];
+    for (final Map.Entry<String, List<AbstractDecorator>> entry : byTag.entrySet()) {
+      final int hash = spread(entry.getKey().hashCode());
+      int slot = hash & mask;
+      while (null != tags[slot]) {
+        slot = (slot + 1) & mask;
+      }
+      tags[slot] = entry.getKey();
+      hashes[slot] = hash;
+      this.decorators[slot] = entry.getValue().toArray(new AbstractDecorator[0]);
+    }
+  }
+
+  /** @return the decorators matching the tag, or null if there are none */
+  AbstractDecorator[] get(final String tag) {
+    final int hash = spread(tag.hashCode());
+    int slot = hash & mask;
+    do {
+      final String candidate = tags[slot];
+      if (null == candidate) {
+        return null;
+      }
+      if (hashes[slot] == hash && (candidate == tag || candidate.equals(tag))) {
+        return decorators[slot];
+      }
+      slot = (slot + 1) & mask;
+    } while (!collisionFree);
+    return null;
+  }
+
+  private static boolean separates(final int[] hashes, final int mask) {
+    final boolean[] used = new boolean[mask + 1];
+    for (final int hash : hashes) {
+      if (used[hash & mask]) {
+        return false;
+      }
+      used[hash & mask] = true;
+    }
+    return true;
+  }
+
+  private static int spread(final int hash) {
+    return hash ^ (hash >>> 16);
+  }
+}
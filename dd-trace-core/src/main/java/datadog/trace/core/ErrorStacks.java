@@ -0,0 +1,239 @@
+package datadog.trace.core;
+
+import datadog.trace.api.Config;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Renders the stack traces of the errors added to spans, as the {@link
+ * datadog.trace.api.DDTags#ERROR_STACK} tag.
+ *
+ * <p>Errors tend to repeat, e.g. while a downstream dependency is failing, so the frames and causes
+ * rendered for an error are kept in a small direct-mapped cache and shared by later errors of the
+ * same type, with causes of the same types, thrown from the same top frames. Only the stack of the
+ * error is read to look the cache up, and only its description is rendered again on a hit: the
+ * causes are rendered as they were for the first of these errors. Stacks may be limited to a
+ * number of frames per error and a number of characters.
+ *
+ * <p>In lazy mode, the tag holds the error rather than its stack, which is only rendered when the
+ * tags of the span are read, on the thread writing the trace, instead of on the thread reporting
+ * the error. The error, and whatever it references, is retained until then. {@link
+ * DDSpanContext#getTags()} renders the stack first, so that the tag is always seen as a string.
+ */
+final class ErrorStacks {
+
+  private static final int CACHE_CAPACITY = 256;
+  private static final int FINGERPRINT_DEPTH = 16;
+  private static final int MAX_CAUSES = 16;
+  private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+  private final boolean lazy;
+  private final int maxDepth;
+  private final int maxLength;
+  private final AtomicReferenceArray<Entry> cache = new AtomicReferenceArray<>(CACHE_CAPACITY);
+
+  /**
+   * @param lazy whether to render stacks when they are serialized rather than when they are added
+   * @param maxDepth the number of frames rendered per error, or 0 to render every frame
+   * @param maxLength the number of characters rendered, or 0 to render every character
+   */
+  ErrorStacks(final boolean lazy, final int maxDepth, final int maxLength) {
+    this.lazy = lazy;
+    this.maxDepth = maxDepth > 0 ? maxDepth : Integer.MAX_VALUE;
+    this.maxLength = Math.max(0, maxLength);
+  }
+
+  static ErrorStacks forConfig(final Config config) {
+    return new ErrorStacks(
+        config.isErrorStackLazy(), config.getErrorStackMaxDepth(), config.getErrorStackMaxLength());
+  }
+
+  /** @return the value of the error stack tag for the error */
+  Object stackOf(final Throwable error) {
+    return lazy ? new LazyStack(this, error) : render(error);
+  }
+
+  /** @return the stack trace of the error, as printed by {@link Throwable#printStackTrace()} */
+  String render(final Throwable error) {
+    final StackTraceElement[] frames = error.getStackTrace();
+    final Fingerprint fingerprint = Fingerprint.of(error, frames);
+    final String enclosed;
+    if (null == fingerprint) {
+      enclosed = renderFramesAndCauses(error, frames);
+    } else {
+      final int slot = (fingerprint.hash ^ (fingerprint.hash >>> 16)) & (CACHE_CAPACITY - 1);
+      final Entry entry = cache.get(slot);
+      if (null != entry && entry.fingerprint.equals(fingerprint)) {
+        enclosed = entry.enclosed;
+      } else {
+        enclosed = renderFramesAndCauses(error, frames);
+        cache.lazySet(slot, new Entry(fingerprint, enclosed));
+      }
+    }
+    return truncate(error + LINE_SEPARATOR + enclosed);
+  }
+
+  /** @return what printStackTrace prints after the description of the error */
+  private String renderFramesAndCauses(final Throwable error, final StackTraceElement[] frames) {
+    final StringBuilder stack = new StringBuilder();
+    final Set<Throwable> seen =
+        Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+    seen.add(error);
+    appendFrames(stack, frames, frames.length, "");
+    appendEnclosed(stack, error, frames, "", seen);
+    return stack.toString();
+  }
+  /** Appends the suppressed errors and cause of the error, like printStackTrace does. */
+  private void appendEnclosed(
+      final StringBuilder stack,
+      final Throwable error,
+      final StackTraceElement[] frames,
+      final String prefix,
+      final Set<Throwable> seen) {
+    for (final Throwable suppressed : error.getSuppressed()) {
+      appendEnclosed(stack, suppressed, frames, "Suppressed: ", prefix + "\t", seen);
+    }
+    final Throwable cause = error.getCause();
+    if (null != cause) {
+      appendEnclosed(stack, cause, frames, "Caused by: ", prefix, seen);
+    }
+  }
+
+  private void appendEnclosed(
+      final StringBuilder stack,
+      final Throwable error,
+      final StackTraceElement[] enclosingFrames,
+      final String caption,
+      final String prefix,
+      final Set<Throwable> seen) {
+    if (!seen.add(error)) {
+      stack.append(prefix).append(caption).append("[CIRCULAR REFERENCE: ").append(error);
+      stack.append(']').append(LINE_SEPARATOR);
+      return;
+    }
+    final StackTraceElement[] frames = error.getStackTrace();
+    int unique = frames.length;
+    for (int enclosing = enclosingFrames.length;
+        unique > 0 && enclosing > 0 && frames[unique - 1].equals(enclosingFrames[enclosing - 1]);
+        --enclosing) {
+      --unique;
+    }
+    stack.append(prefix).append(caption).append(error).append(LINE_SEPARATOR);
+    appendFrames(stack, frames, unique, prefix);
+    appendEnclosed(stack, error, frames, prefix, seen);
+  }
+
+  /** Appends up to {@link #maxDepth} of the unique frames, and how many frames were left out. */
+  private void appendFrames(
+      final StringBuilder stack,
+      final StackTraceElement[] frames,
+      final int unique,
+      final String prefix) {
+    final int rendered = Math.min(unique, maxDepth);
+    for (int i = 0; i < rendered; ++i) {
+      stack.append(prefix).append("\tat ").append(frames[i]).append(LINE_SEPARATOR);
+    }
+    if (rendered < frames.length) {
+      stack.append(prefix).append("\t... ").append(frames.length - rendered).append(" more");
+      stack.append(LINE_SEPARATOR);
+    }
+  }
+
+  private String truncate(final String stack) {
+    return 0 == maxLength || stack.length() <= maxLength ? stack : stack.substring(0, maxLength);
+  }
+
+  /** Identifies errors of a type, with causes of the same types, thrown from the same frames. */
+  private static final class Fingerprint {
+    private final Class<?>[] types;
+    private final StackTraceElement[] topFrames;
+    private final int depth;
+    private final int hash;
+
+    private Fingerprint(
+        final Class<?>[] types, final StackTraceElement[] topFrames, final int depth) {
+      this.types = types;
+      this.topFrames = topFrames;
+      this.depth = depth;
+      this.hash = 31 * (31 * Arrays.hashCode(types) + Arrays.hashCode(topFrames)) + depth;
+    }
+
+    /**
+     * @param frames the stack of the error, the only one read
+     * @return the fingerprint, or null if the error's stack isn't worth caching
+     */
+    static Fingerprint of(final Throwable error, final StackTraceElement[] frames) {
+      int count = 0;
+      for (Throwable t = error; null != t; t = t.getCause()) {
+        // suppressed errors and long or circular chains of causes are rare, so aren't cached
+        if (++count > MAX_CAUSES || t.getSuppressed().length > 0) {
+          return null;
+        }
+      }
+      final Class<?>[] types = new Class<?>[count];
+      Throwable t = error;
+      for (int i = 0; i < count; ++i, t = t.getCause()) {
+        types[i] = t.getClass();
+      }
+      return new Fingerprint(
+          types,
+          Arrays.copyOf(frames, Math.min(frames.length, FINGERPRINT_DEPTH)),
+          frames.length);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Fingerprint)) {
+        return false;
+      }
+      final Fingerprint that = (Fingerprint) o;
+      return hash == that.hash
+          && depth == that.depth
+          && Arrays.equals(types, that.types)
+          && Arrays.equals(topFrames, that.topFrames);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private static final class Entry {
+    final Fingerprint fingerprint;
+    final String enclosed;
+
+    private Entry(final Fingerprint fingerprint, final String enclosed) {
+      this.fingerprint = fingerprint;
+      this.enclosed = enclosed;
+    }
+  }
+
+  /** The error stack tag in lazy mode, rendered the first time it's read. */
+  static final class LazyStack {
+    private final ErrorStacks stacks;
+    private Throwable error;
+    private String stack;
+
+    LazyStack(final ErrorStacks stacks, final Throwable error) {
+      this.stacks = stacks;
+      this.error = error;
+    }
+
+    @Override
+    public synchronized String toString() {
+      if (null == stack) {
+        stack = stacks.render(error);
+        // the error may retain much more than its stack
+        error = null;
+      }
+      return stack;
+    }
+  }
+}
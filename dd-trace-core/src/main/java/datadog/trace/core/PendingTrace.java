@@ -9,24 +9,40 @@ import java.io.Closeable;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.math.BigInteger;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Collects the finished spans of a trace until every span and continuation registered with it has
+ * been finished or cancelled, and then writes it.
+ *
+ * <p>Finished spans are kept in a lock-free {@link SpanBuffer} and outstanding spans are only
+ * counted, so starting and finishing a span is a couple of atomic operations. Spans which are never
+ * finished are detected by the trace going without any span starting or finishing for the stale
+ * trace timeout ({@link datadog.trace.api.Config#STALE_TRACE_TIMEOUT}, 5 minutes by default)
+ * rather than by tracking a weak reference to every span.
+ *
+ * <p>Unlike with weak references, this can't tell leaked spans from spans which are still
+ * referenced but idle, such as a long running root span. So when the timeout first elapses, the
+ * finished spans are written as a partial flush and the trace stays pending; it is only dropped if
+ * it then goes idle for another timeout with no span finished in between. Dropped traces are
+ * counted by {@link #staleTracesDropped()} and logged at debug level. If a partial flush timeout is
+ * configured, the finished spans are written after that timeout instead, and the trace is done.
+ */
 @Slf4j
-public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> implements AgentTrace {
+public class PendingTrace implements AgentTrace {
 
-  static PendingTrace create(final CoreTracer tracer, final BigInteger traceId) {
+  static PendingTrace create(final CoreTracer tracer, final DDId traceId) {
     final PendingTrace pendingTrace = new PendingTrace(tracer, traceId);
     pendingTrace.addPendingTrace();
     return pendingTrace;
@@ -34,8 +50,24 @@ public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> implements Agent
 
   private static final AtomicReference<SpanCleaner> SPAN_CLEANER = new AtomicReference<>();
 
+  /** Traces dropped after the stale trace timeout, since the tracer was loaded */
+  private static final AtomicLong STALE_TRACES_DROPPED = new AtomicLong();
+
+  /**
+   * Continuations of all traces are tracked with weak references sharing a single queue, so that
+   * collected continuations can be found without visiting every pending trace.
+   */
+  private static final ReferenceQueue CONTINUATION_REFERENCE_QUEUE = new ReferenceQueue();
+
+  private static final Map<WeakReference<AgentScope.Continuation>, PendingTrace>
+      CONTINUATION_TRACES = new ConcurrentHashMap<>();
+
+  /** Registered continuations remove their reference from this view when cancelled */
+  private static final Set<WeakReference<AgentScope.Continuation>> WEAK_CONTINUATIONS =
+      CONTINUATION_TRACES.keySet();
+
   private final CoreTracer tracer;
-  private final BigInteger traceId;
+  private final DDId traceId;
 
   // TODO: consider moving these time fields into DDTracer to ensure that traces have precise
   // relative time
@@ -44,25 +76,16 @@ public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> implements Agent
   /** Nano second ticks value at trace start */
   private final long startNanoTicks;
 
-  private final ReferenceQueue spanReferenceQueue = new ReferenceQueue();
-  private final Set<WeakReference<DDSpan>> weakSpans =
-      Collections.newSetFromMap(new ConcurrentHashMap<WeakReference<DDSpan>, Boolean>());
-  private final ReferenceQueue continuationReferenceQueue = new ReferenceQueue();
-  private final Set<WeakReference<AgentScope.Continuation>> weakContinuations =
-      Collections.newSetFromMap(
-          new ConcurrentHashMap<WeakReference<AgentScope.Continuation>, Boolean>());
-
   private final AtomicInteger pendingReferenceCount = new AtomicInteger(0);
 
-  // We must maintain a separate count because ConcurrentLinkedDeque.size() is a linear operation.
-  private final AtomicInteger completedSpanCount = new AtomicInteger(0);
+  /** Finished spans, replaced by an empty buffer on each partial flush */
+  private volatile SpanBuffer finishedSpans = new SpanBuffer();
+
+  /** Nano second ticks value of the last time a span was started or finished */
+  private volatile long lastReferencedNanoTicks;
 
-  // FIXME: In async frameworks we may have situations where traces do not report due to references
-  //  being held by async operators. In order to support testing in these cases we should have a way
-  //  to keep track of the fact that this trace is ready to report but is still pending. This would
-  //  likely require a change to the writer interface to allow signaling this intent. This could
-  //  also give us the benefit of being able to recover for reporting traces that get stuck due to
-  //  references being held for long periods of time.
+  /** The SpanCleaner time wheel bucket this trace is scheduled in, only updated by the cleaner */
+  private volatile int cleanerBucket;
 
   /**
    * During a trace there are cases where the root span must be accessed (e.g. priority sampling and
@@ -79,12 +102,16 @@ public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> implements Agent
   /** Ensure a trace is never written multiple times */
   private final AtomicBoolean isWritten = new AtomicBoolean(false);
 
-  private PendingTrace(final CoreTracer tracer, final BigInteger traceId) {
+  /** Whether finished spans were written when the stale trace timeout elapsed, under lock */
+  private boolean flushedWhenStale;
+
+  private PendingTrace(final CoreTracer tracer, final DDId traceId) {
     this.tracer = tracer;
     this.traceId = traceId;
 
     startTimeNano = Clock.currentNanoTime();
     startNanoTicks = Clock.currentNanoTicks();
+    lastReferencedNanoTicks = startNanoTicks;
   }
 
   /**
@@ -108,44 +135,17 @@ public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> implements Agent
           span);
       return;
     }
-    if (!traceId.equals(span.context().getTraceId())) {
+    if (!traceId.equals(span.context().getDDTraceId())) {
       log.debug("t_id={} -> registered for wrong trace {}", traceId, span);
       return;
     }
-    rootSpan.compareAndSet(null, new WeakReference<>(span));
-    synchronized (span) {
-      if (null == span.ref) {
-        span.ref = new WeakReference<DDSpan>(span, spanReferenceQueue);
-        weakSpans.add(span.ref);
-        final int count = pendingReferenceCount.incrementAndGet();
-        if (log.isDebugEnabled()) {
-          log.debug("t_id={} -> registered span {}. count = {}", traceId, span, count);
-        }
-      } else {
-        log.debug("t_id={} -> span already registered {}", traceId, span);
-      }
-    }
-  }
-
-  private void expireSpan(final DDSpan span) {
-    if (traceId == null || span.context() == null) {
-      log.error(
-          "Failed to expire span ({}) due to null PendingTrace traceId or null span context", span);
-      return;
-    }
-    if (!traceId.equals(span.context().getTraceId())) {
-      log.debug("t_id={} -> span expired for wrong trace {}", traceId, span);
-      return;
+    if (null == rootSpan.get()) {
+      rootSpan.compareAndSet(null, new WeakReference<>(span));
     }
-    synchronized (span) {
-      if (null == span.ref) {
-        log.debug("t_id={} -> not registered in trace: {}", traceId, span);
-      } else {
-        weakSpans.remove(span.ref);
-        span.ref.clear();
-        span.ref = null;
-        expireReference();
-      }
+    lastReferencedNanoTicks = Clock.currentNanoTicks();
+    final int count = pendingReferenceCount.incrementAndGet();
+    if (log.isDebugEnabled()) {
+      log.debug("t_id={} -> registered span {}. count = {}", traceId, span, count);
     }
   }
 
@@ -159,17 +159,29 @@ public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> implements Agent
           "Failed to add span ({}) due to null PendingTrace traceId or null span context", span);
       return;
     }
-    if (!traceId.equals(span.getTraceId())) {
+    if (!traceId.equals(span.getDDTraceId())) {
       log.debug("t_id={} -> added to a mismatched trace: {}", traceId, span);
       return;
     }
 
-    if (!isWritten.get()) {
-      addFirst(span);
-    } else {
+    if (isWritten.get() || !addFinishedSpan(span)) {
       log.debug("t_id={} -> finished after trace reported: {}", traceId, span);
     }
-    expireSpan(span);
+    lastReferencedNanoTicks = Clock.currentNanoTicks();
+    expireReference();
+  }
+
+  private boolean addFinishedSpan(final DDSpan span) {
+    SpanBuffer buffer;
+    do {
+      buffer = finishedSpans;
+      if (buffer.add(span)) {
+        return true;
+      }
+      // the buffer was sealed, either by a partial flush which has already swapped in a new buffer
+      // to retry with, or because the trace timed out
+    } while (buffer != finishedSpans);
+    return false;
   }
 
   public DDSpan getRootSpan() {
@@ -185,7 +197,8 @@ public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> implements Agent
   public void registerContinuation(final AgentScope.Continuation continuation) {
     synchronized (continuation) {
       if (!continuation.isRegistered()) {
-        weakContinuations.add(continuation.register(continuationReferenceQueue));
+        CONTINUATION_TRACES.put(continuation.register(CONTINUATION_REFERENCE_QUEUE), this);
+        lastReferencedNanoTicks = Clock.currentNanoTicks();
         final int count = pendingReferenceCount.incrementAndGet();
         if (log.isDebugEnabled()) {
           log.debug(
@@ -201,7 +214,7 @@ public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> implements Agent
   public void cancelContinuation(final AgentScope.Continuation continuation) {
     synchronized (continuation) {
       if (continuation.isRegistered()) {
-        continuation.cancel(weakContinuations);
+        continuation.cancel(WEAK_CONTINUATIONS);
         expireReference();
       } else {
         log.debug("t_id={} -> not registered in trace: {}", traceId, continuation);
@@ -216,17 +229,14 @@ public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> implements Agent
     } else {
       if (tracer.getPartialFlushMinSpans() > 0 && size() > tracer.getPartialFlushMinSpans()) {
         synchronized (this) {
-          if (size() > tracer.getPartialFlushMinSpans()) {
+          if (!isWritten.get() && size() > tracer.getPartialFlushMinSpans()) {
+            final SpanBuffer flushed = finishedSpans;
+            finishedSpans = new SpanBuffer();
+            final List<DDSpan> partialTrace = flushed.sealAndDrain();
+            // keep the root span with the rest of the trace
             final DDSpan rootSpan = getRootSpan();
-            final List<DDSpan> partialTrace = new ArrayList(size());
-            final Iterator<DDSpan> it = iterator();
-            while (it.hasNext()) {
-              final DDSpan span = it.next();
-              if (span != rootSpan) {
-                partialTrace.add(span);
-                completedSpanCount.decrementAndGet();
-                it.remove();
-              }
+            if (partialTrace.remove(rootSpan)) {
+              finishedSpans.add(rootSpan);
             }
             log.debug("Writing partial trace {} of size {}", traceId, partialTrace.size());
             tracer.write(partialTrace);
@@ -235,81 +245,149 @@ public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> implements Agent
       }
     }
     if (log.isDebugEnabled()) {
-      log.debug(
-          "t_id={} -> expired reference. count={} spans={} continuations={}",
-          traceId,
-          count,
-          weakSpans.size(),
-          weakContinuations.size());
+      log.debug("t_id={} -> expired reference. count={}", traceId, count);
     }
   }
 
   private synchronized void write() {
     if (isWritten.compareAndSet(false, true)) {
       removePendingTrace();
-      if (!isEmpty()) {
-        log.debug("Writing {} spans to {}.", size(), tracer.writer);
-        tracer.write(this);
+      final List<DDSpan> trace = finishedSpans.snapshot();
+      if (!trace.isEmpty()) {
+        log.debug("Writing {} spans to {}.", trace.size(), tracer.writer);
+        tracer.write(trace);
       }
     }
   }
 
-  public synchronized boolean clean() {
+  /**
+   * Applies the tracer's interceptors to spans of this trace handed to the writer, then samples
+   * them, on the thread processing them rather than on the thread which finished the trace.
+   *
+   * @param spans the spans written, which are replaced in place if an interceptor changes them,
+   *     and emptied if an interceptor discards them or the sampler drops them
+   */
+  public void intercept(final List<DDSpan> spans) {
+    tracer.interceptAndSample(spans);
+  }
+
+  /**
+   * Check for garbage collected continuations of any trace, and whether this trace has timed out.
+   *
+   * @return true if this trace timed out
+   */
+  public boolean clean() {
+    return clean(Clock.currentNanoTicks());
+  }
+
+  boolean clean(final long nowNanoTicks) {
+    expireCollectedContinuations();
+    return timeOutIfDue(nowNanoTicks);
+  }
+
+  private static void expireCollectedContinuations() {
     Reference ref;
-    int count = 0;
-    while ((ref = continuationReferenceQueue.poll()) != null) {
-      weakContinuations.remove(ref);
-      count++;
-      expireReference();
-    }
-    if (count > 0) {
-      log.debug("t_id={} -> {} unfinished continuations garbage collected.", traceId, count);
+    while ((ref = CONTINUATION_REFERENCE_QUEUE.poll()) != null) {
+      final PendingTrace trace = CONTINUATION_TRACES.remove(ref);
+      if (trace != null) {
+        log.debug("t_id={} -> unfinished continuation garbage collected.", trace.traceId);
+        trace.expireReference();
+      }
     }
+  }
 
-    count = 0;
-    while ((ref = spanReferenceQueue.poll()) != null) {
-      weakSpans.remove(ref);
-      if (isWritten.compareAndSet(false, true)) {
-        removePendingTrace();
-        // preserve throughput count.
-        // Don't report the trace because the data comes from buggy uses of the api and is suspect.
+  /** @return the nano second ticks value after which this trace is considered timed out */
+  private long timeoutNanoTicks() {
+    final int partialFlushTimeout = tracer.getPartialFlushTimeout();
+    return lastReferencedNanoTicks
+        + (partialFlushTimeout > 0
+            ? TimeUnit.SECONDS.toNanos(partialFlushTimeout)
+            : TimeUnit.SECONDS.toNanos(tracer.getStaleTraceTimeout()));
+  }
+
+  private synchronized boolean timeOutIfDue(final long nowNanoTicks) {
+    if (pendingReferenceCount.get() <= 0
+        || nowNanoTicks - timeoutNanoTicks() <= 0
+        || isWritten.get()) {
+      return false;
+    }
+    if (tracer.getPartialFlushTimeout() <= 0 && size() > 0) {
+      // the unfinished spans may be long running rather than leaked: write what has finished,
+      // and only drop the trace if it stays idle for another timeout
+      final SpanBuffer flushed = finishedSpans;
+      finishedSpans = new SpanBuffer();
+      final List<DDSpan> partialTrace = flushed.sealAndDrain();
+      lastReferencedNanoTicks = nowNanoTicks;
+      flushedWhenStale = true;
+      log.debug(
+          "t_id={} -> {} unfinished references idle. Writing partial trace of size {}.",
+          traceId,
+          pendingReferenceCount.get(),
+          partialTrace.size());
+      tracer.write(partialTrace);
+      return false;
+    }
+    if (!isWritten.compareAndSet(false, true)) {
+      return false;
+    }
+    removePendingTrace();
+    if (tracer.getPartialFlushTimeout() > 0) {
+      // seal the buffer so that spans finishing from now on are known to be too late
+      final List<DDSpan> trace = finishedSpans.sealAndDrain();
+      log.debug(
+          "t_id={} -> {} unfinished references timed out. Flushing {} finished spans.",
+          traceId,
+          pendingReferenceCount.get(),
+          trace.size());
+      if (trace.isEmpty()) {
         tracer.incrementTraceCount();
+      } else {
+        tracer.write(trace);
       }
-      count++;
-      expireReference();
-    }
-    if (count > 0) {
-      // TODO attempt to flatten and report if top level spans are finished. (for accurate metrics)
+    } else {
+      // preserve throughput count, unless the finished spans were already written.
+      // Don't report the trace because the data comes from buggy uses of the api and is suspect.
+      finishedSpans.sealAndDrain();
+      if (!flushedWhenStale) {
+        tracer.incrementTraceCount();
+      }
+      final long dropped = STALE_TRACES_DROPPED.incrementAndGet();
       log.debug(
-          "t_id={} -> {} unfinished spans garbage collected. Trace will not be reported.",
+          "t_id={} -> {} unfinished references timed out. Trace will not be reported. "
+              + "{} stale traces dropped so far.",
           traceId,
-          count);
+          pendingReferenceCount.get(),
+          dropped);
     }
-    return count > 0;
+    return true;
   }
 
-  @Override
-  public void addFirst(final DDSpan span) {
-    super.addFirst(span);
-    completedSpanCount.incrementAndGet();
+  /** @return the number of traces dropped because their unfinished spans timed out */
+  public static long staleTracesDropped() {
+    return STALE_TRACES_DROPPED.get();
   }
 
-  @Override
+  /** @return the number of finished spans waiting to be written */
   public int size() {
-    return completedSpanCount.get();
+    return finishedSpans.size();
+  }
+
+  /** @return the finished spans waiting to be written, most recently finished first */
+  List<DDSpan> asList() {
+    return finishedSpans.snapshot();
   }
 
   private void addPendingTrace() {
     final SpanCleaner cleaner = SPAN_CLEANER.get();
     if (cleaner != null) {
-      cleaner.pendingTraces.add(this);
+      cleaner.schedule(this, timeoutNanoTicks(), cleaner.currentTick + 1);
     }
   }
 
   private void removePendingTrace() {
     final SpanCleaner cleaner = SPAN_CLEANER.get();
     if (cleaner != null) {
-      cleaner.pendingTraces.remove(this);
+      cleaner.unschedule(this);
     }
   }
 
@@ -327,15 +405,30 @@ public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> implements Agent
     }
   }
 
+  /**
+   * Checks pending traces for timeouts using a time wheel: each trace sits in the bucket of the
+   * tick its timeout falls in, and every tick only the traces in the current bucket are visited. A
+   * trace which saw activity since it was scheduled is moved to the bucket of its new timeout, so
+   * each trace is visited about once per timeout period rather than on every tick.
+   */
   // FIXME: it should be possible to simplify this logic and avod having SpanCleaner and
   // SpanCleanerTask
   private static class SpanCleaner implements Runnable, Closeable {
     private static final long CLEAN_FREQUENCY = 1;
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(CLEAN_FREQUENCY);
+    // power of two, traces further away than this many ticks get visited once per wheel turn
+    private static final int WHEEL_SIZE = 128;
 
-    private final Set<PendingTrace> pendingTraces =
-        Collections.newSetFromMap(new ConcurrentHashMap<PendingTrace, Boolean>());
+    private final Set<PendingTrace>[] wheel;
+    private final long originNanoTicks = Clock.currentNanoTicks();
+    /** The last tick visited, only updated by the cleaner thread */
+    private volatile long currentTick = 0;
 
     public SpanCleaner() {
+      wheel = new Set[WHEEL_SIZE];
+      for (int i = 0; i < WHEEL_SIZE; i++) {
+        wheel[i] = Collections.newSetFromMap(new ConcurrentHashMap<PendingTrace, Boolean>());
+      }
       CommonTaskExecutor.INSTANCE.scheduleAtFixedRate(
           SpanCleanerTask.INSTANCE,
           this,
@@ -345,17 +438,69 @@ public class PendingTrace extends ConcurrentLinkedDeque<DDSpan> implements Agent
           "Pending trace cleaner");
     }
 
+    /** Schedule the trace for its timeout, but no earlier than minTick */
+    void schedule(final PendingTrace trace, final long timeoutNanoTicks, final long minTick) {
+      final long tick = Math.max((timeoutNanoTicks - originNanoTicks) / TICK_NANOS, minTick);
+      final int bucket = (int) (tick & (WHEEL_SIZE - 1));
+      trace.cleanerBucket = bucket;
+      wheel[bucket].add(trace);
+    }
+
+    void unschedule(final PendingTrace trace) {
+      // if the cleaner is concurrently moving the trace it may remain in its new bucket, where it
+      // gets removed on the next visit since it has been written
+      wheel[trace.cleanerBucket].remove(trace);
+    }
+
+    boolean contains(final PendingTrace trace) {
+      for (final Set<PendingTrace> bucket : wheel) {
+        if (bucket.contains(trace)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
     @Override
     public void run() {
-      for (final PendingTrace trace : pendingTraces) {
-        trace.clean();
+      expireCollectedContinuations();
+      final long now = Clock.currentNanoTicks();
+      final long nowTick = (now - originNanoTicks) / TICK_NANOS;
+      // catch up on ticks missed because the executor was busy, each bucket only needs one visit
+      for (long tick = Math.max(currentTick + 1, nowTick - WHEEL_SIZE + 1); tick <= nowTick; tick++) {
+        visit(wheel[(int) (tick & (WHEEL_SIZE - 1))], now, nowTick);
+      }
+      currentTick = Math.max(currentTick, nowTick);
+    }
+
+    private void visit(final Set<PendingTrace> bucket, final long now, final long nowTick) {
+      final Iterator<PendingTrace> it = bucket.iterator();
+      while (it.hasNext()) {
+        final PendingTrace trace = it.next();
+        if (trace.isWritten.get() || trace.timeOutIfDue(now)) {
+          it.remove();
+        } else {
+          final long timeoutNanoTicks = trace.timeoutNanoTicks();
+          final long tick = (timeoutNanoTicks - originNanoTicks) / TICK_NANOS;
+          if (tick <= nowTick || (tick & (WHEEL_SIZE - 1)) != trace.cleanerBucket) {
+            it.remove();
+            // never reschedule into a bucket which is being visited in this run
+            schedule(trace, timeoutNanoTicks, nowTick + 1);
+          }
+        }
       }
     }
 
     @Override
     public void close() {
       // Make sure that whatever was left over gets cleaned up
-      run();
+      expireCollectedContinuations();
+      final long now = Clock.currentNanoTicks();
+      for (final Set<PendingTrace> bucket : wheel) {
+        for (final PendingTrace trace : bucket) {
+          trace.timeOutIfDue(now);
+        }
+      }
     }
   }
 
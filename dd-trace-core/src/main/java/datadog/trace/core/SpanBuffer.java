@@ -0,0 +1,115 @@
+package datadog.trace.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free, append-only buffer of the finished spans of a {@link PendingTrace}.
+ *
+ * <p>Adding a span claims a slot with a single atomic increment and publishes the span into it.
+ * Slots live in chunks which double in size, so the buffer grows without ever copying or locking
+ * and a small trace only pays for the first chunk.
+ *
+ * <p>A buffer can be sealed once, after which adds fail. This lets a partial flush swap in a fresh
+ * buffer and drain the old one while other threads keep finishing spans.
+ */
+final class SpanBuffer {
+  private static final int FIRST_CHUNK_BITS = 3;
+  private static final int FIRST_CHUNK_SIZE = 1 << FIRST_CHUNK_BITS;
+
+  /** Added to the size when sealing, every slot index claimed after that is >= SEALED */
+  private static final int SEALED = 1 << 30;
+
+  // chunk k holds FIRST_CHUNK_SIZE << k slots, enough chunks to address SEALED slots
+  private static final int MAX_CHUNKS = 31 - FIRST_CHUNK_BITS;
+
+  private static final AtomicIntegerFieldUpdater<SpanBuffer> SIZE =
+      AtomicIntegerFieldUpdater.newUpdater(SpanBuffer.class, "size");
+
+  private final AtomicReferenceArray<AtomicReferenceArray<DDSpan>> chunks =
+      new AtomicReferenceArray<>(MAX_CHUNKS);
+
+  private volatile int size = 0;
+
+  SpanBuffer() {
+    chunks.set(0, new AtomicReferenceArray<DDSpan>(FIRST_CHUNK_SIZE));
+  }
+
+  /**
+   * Add a span to this buffer.
+   *
+   * @return false if the buffer has been sealed, in which case the span wasn't added
+   */
+  boolean add(final DDSpan span) {
+    final int index = SIZE.getAndIncrement(this);
+    if (index >= SEALED) {
+      return false;
+    }
+    final int n = index + FIRST_CHUNK_SIZE;
+    final int highestBit = 31 - Integer.numberOfLeadingZeros(n);
+    chunk(highestBit - FIRST_CHUNK_BITS).set(n - (1 << highestBit), span);
+    return true;
+  }
+
+  /** @return the number of spans added to this buffer */
+  int size() {
+    final int current = size;
+    return current >= SEALED ? current - SEALED : current;
+  }
+
+  /**
+   * Collect the spans published so far, from the most to the least recently added. A span whose
+   * add is still in progress may be missing.
+   */
+  List<DDSpan> snapshot() {
+    final int count = size();
+    final List<DDSpan> spans = new ArrayList<>(count);
+    for (int index = count - 1; index >= 0; index--) {
+      final DDSpan span = get(index, false);
+      if (null != span) {
+        spans.add(span);
+      }
+    }
+    return spans;
+  }
+
+  /**
+   * Seal the buffer so that further adds fail, and collect every span added before that from the
+   * most to the least recently added.
+   */
+  List<DDSpan> sealAndDrain() {
+    final int count = SIZE.getAndAdd(this, SEALED);
+    final List<DDSpan> spans = new ArrayList<>(count);
+    for (int index = count - 1; index >= 0; index--) {
+      spans.add(get(index, true));
+    }
+    return spans;
+  }
+
+  private DDSpan get(final int index, final boolean waitForPublication) {
+    final int n = index + FIRST_CHUNK_SIZE;
+    final int highestBit = 31 - Integer.numberOfLeadingZeros(n);
+    final AtomicReferenceArray<DDSpan> chunk = chunk(highestBit - FIRST_CHUNK_BITS);
+    final int offset = n - (1 << highestBit);
+    DDSpan span = chunk.get(offset);
+    // the slot has been claimed by a concurrent add which is about to publish into it
+    while (null == span && waitForPublication) {
+      Thread.yield();
+      span = chunk.get(offset);
+    }
+    return span;
+  }
+
+  private AtomicReferenceArray<DDSpan> chunk(final int chunkIndex) {
+    AtomicReferenceArray<DDSpan> chunk = chunks.get(chunkIndex);
+    if (null == chunk) {
+      chunk = new AtomicReferenceArray<>(FIRST_CHUNK_SIZE << chunkIndex);
+      if (!chunks.compareAndSet(chunkIndex, null, chunk)) {
+        chunk = chunks.get(chunkIndex);
+      }
+    }
+    return chunk;
+  }
+}
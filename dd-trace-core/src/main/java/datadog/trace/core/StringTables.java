@@ -8,6 +8,7 @@ import datadog.trace.bootstrap.instrumentation.api.DDComponents;
 import datadog.trace.bootstrap.instrumentation.api.DDSpanNames;
 import datadog.trace.bootstrap.instrumentation.api.InstrumentationTags;
 import datadog.trace.bootstrap.instrumentation.api.Tags;
+import datadog.trace.core.serialization.Utf8Cache;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.nio.charset.Charset;
@@ -35,6 +36,9 @@ public class StringTables {
   private static final Map<String, byte[]> UTF8_INTERN_KEYS_TABLE = new HashMap<>(256);
   private static final Map<String, byte[]> UTF8_INTERN_TAGS_TABLE = new HashMap<>(256);
 
+  // unlike the tables above, grows at runtime with whichever strings are serialized most often
+  public static final Utf8Cache RUNTIME_UTF8_CACHE = new Utf8Cache(4096, 256);
+
   static {
     internConstantsUTF8(Tags.class, UTF8_INTERN_KEYS_TABLE);
     internConstantsUTF8(InstrumentationTags.class, UTF8_INTERN_KEYS_TABLE);
@@ -52,6 +56,10 @@ public class StringTables {
     return UTF8_INTERN_TAGS_TABLE.get(value);
   }
 
+  public static byte[] getRuntimeBytesUTF8(String value) {
+    return RUNTIME_UTF8_CACHE.get(value);
+  }
+
   private static void internConstantsUTF8(Class<?> clazz, Map<String, byte[]> map) {
     for (Field field : clazz.getDeclaredFields()) {
       if (Modifier.isStatic(field.getModifiers())
@@ -0,0 +1,412 @@
+package datadog.trace.core;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compact map of the tags or metrics of a span. Keys, their hashes and values are kept in flat
+ * arrays in insertion order, and keys are found by scanning the hashes, which for the dozen or so
+ * tags of a typical span is cheaper than hashing into buckets and allocates nothing per entry. Maps
+ * which grow past {@link #INDEX_THRESHOLD} entries also keep an open-addressed index of positions,
+ * probed linearly.
+ *
+ * <p>A map may be layered over a {@link Block} of shared tags, e.g. the default tags of the tracer,
+ * which are then never copied into it: its own entries hide the shared ones with the same key, and
+ * removing a shared tag leaves a removed marker among its own entries. The layers are merged when
+ * the map is read, mostly once when the span is serialized.
+ *
+ * <p>Not thread-safe: the tags of a span are written under the lock of its {@link DDSpanContext},
+ * which is uncontended because spans are almost always written by one thread, and are published to
+ * the threads processing and serializing the trace when the span finishes. Lookups and iterations
+ * racing with writes, including removals of shared tags, read the arrays and their size once, so
+ * they may miss entries or see entries which were since removed, but never fail. Threads which need
+ * a consistent view must copy the map under the lock.
+ */
+final class TagMap<V> extends AbstractMap<String, V> {
+
+  private static final int MIN_CAPACITY = 4;
+  private static final int INDEX_THRESHOLD = 16;
+  // the value of own entries hiding a shared entry which was removed
+  private static final Object REMOVED = new Object();
+
+  private String[] keys;
+  private int[] hashes;
+  private Object[] values;
+  private int size;
+  // position + 1 of the entry in each slot, or 0 if the slot is empty
+  private int[] index;
+
+  private Block shared;
+  // own entries whose key is shared, and those among them which are removed markers
+  private int shadowed;
+  private int removed;
+
+  private EntrySet entrySet;
+
+  TagMap(final int capacity) {
+    this(capacity, Block.EMPTY);
+  }
+
+  TagMap(final int capacity, final Block shared) {
+    final int length = Math.max(MIN_CAPACITY, capacity);
+    this.keys = new String[length];
+    this.hashes = new int[length];
+    this.values = new Object[length];
+    this.shared = shared;
+  }
+
+  @Override
+  public int size() {
+    return size - removed + shared.size() - shadowed;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return 0 == size();
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return key instanceof String && null != valueOf((String) key);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V get(final Object key) {
+    return key instanceof String ? (V) valueOf((String) key) : null;
+  }
+
+  private Object valueOf(final String key) {
+    final Object[] values = this.values;
+    final int position = positionOf(key);
+    if (position >= 0 && position < values.length) {
+      final Object value = values[position];
+      return REMOVED == value ? null : value;
+    }
+    return shared.get(key);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V put(final String key, final V value) {
+    if (null == key || null == value) {
+      throw new NullPointerException();
+    }
+    final int position = positionOf(key);
+    if (position >= 0) {
+      final Object previous = values[position];
+      values[position] = value;
+      if (REMOVED == previous) {
+        --removed;
+        return null;
+      }
+      return (V) previous;
+    }
+    final Object previous = shared.get(key);
+    if (null != previous) {
+      ++shadowed;
+    }
+    append(key, value);
+    return (V) previous;
+  }
+
+  private void append(final String key, final Object value) {
+    if (size == keys.length) {
+      final int length = size << 1;
+      keys = Arrays.copyOf(keys, length);
+      hashes = Arrays.copyOf(hashes, length);
+      values = Arrays.copyOf(values, length);
+    }
+    final int hash = key.hashCode();
+    keys[size] = key;
+    hashes[size] = hash;
+    values[size] = value;
+    ++size;
+    if (null != index && size << 1 <= index.length) {
+      addToIndex(index, hash, size);
+    } else if (size > INDEX_THRESHOLD) {
+      rebuildIndex();
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V remove(final Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    final int position = positionOf((String) key);
+    if (position >= 0) {
+      return REMOVED == values[position] ? null : removeAt(position);
+    }
+    final Object previous = shared.get((String) key);
+    if (null != previous) {
+      ++shadowed;
+      ++removed;
+      append((String) key, REMOVED);
+    }
+    return (V) previous;
+  }
+
+  @Override
+  public void clear() {
+    Arrays.fill(keys, 0, size, null);
+    Arrays.fill(values, 0, size, null);
+    size = 0;
+    index = null;
+    shared = Block.EMPTY;
+    shadowed = 0;
+    removed = 0;
+  }
+
+  @Override
+  public Set<Entry<String, V>> entrySet() {
+    if (null == entrySet) {
+      entrySet = new EntrySet();
+    }
+    return entrySet;
+  }
+
+  private int positionOf(final String key) {
+    final int hash = key.hashCode();
+    final String[] keys = this.keys;
+    final int[] hashes = this.hashes;
+    final int count = Math.min(size, Math.min(keys.length, hashes.length));
+    final int[] index = this.index;
+    if (null != index) {
+      final int mask = index.length - 1;
+      for (int slot = spread(hash) & mask; 0 != index[slot]; slot = (slot + 1) & mask) {
+        final int position = index[slot] - 1;
+        if (position < count && hashes[position] == hash && key.equals(keys[position])) {
+          return position;
+        }
+      }
+      return -1;
+    }
+    for (int position = 0; position < count; ++position) {
+      if (hashes[position] == hash && key.equals(keys[position])) {
+        return position;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Moves the last entry into the position, so entries stay dense, unless the entry hides a shared
+   * one, in which case it becomes a removed marker.
+   */
+  @SuppressWarnings("unchecked")
+  private V removeAt(final int position) {
+    final V previous = (V) values[position];
+    if (null != shared.get(keys[position])) {
+      values[position] = REMOVED;
+      ++removed;
+      return previous;
+    }
+    final int last = size - 1;
+    keys[position] = keys[last];
+    hashes[position] = hashes[last];
+    values[position] = values[last];
+    keys[last] = null;
+    values[last] = null;
+    size = last;
+    if (null != index) {
+      rebuildIndex();
+    }
+    return previous;
+  }
+
+  private void rebuildIndex() {
+    if (size <= INDEX_THRESHOLD) {
+      index = null;
+      return;
+    }
+    // keep the index at most a quarter full after rebuilding, so probes stay short
+    final int[] index = new int[Integer.highestOneBit(size) << 2];
+    for (int position = 0; position < size; ++position) {
+      addToIndex(index, hashes[position], position + 1);
+    }
+    this.index = index;
+  }
+
+  private static void addToIndex(final int[] index, final int hash, final int entry) {
+    final int mask = index.length - 1;
+    int slot = spread(hash) & mask;
+    while (0 != index[slot]) {
+      slot = (slot + 1) & mask;
+    }
+    index[slot] = entry;
+  }
+
+  private static int spread(final int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private final class EntrySet extends AbstractSet<Entry<String, V>> {
+    @Override
+    public int size() {
+      return TagMap.this.size();
+    }
+
+    @Override
+    public void clear() {
+      TagMap.this.clear();
+    }
+
+    @Override
+    public Iterator<Entry<String, V>> iterator() {
+      return new EntryIterator();
+    }
+  }
+
+  /**
+   * Visits the own entries, then the shared entries which they don't hide, over the arrays and size
+   * read when the iterator was created.
+   */
+  private final class EntryIterator implements Iterator<Entry<String, V>> {
+    private final Block shared = TagMap.this.shared;
+    private String[] keys;
+    private Object[] values;
+    private int size;
+    private int next;
+    private int nextShared;
+    private int last = -1;
+    private String lastShared;
+
+    EntryIterator() {
+      snapshot();
+    }
+
+    private void snapshot() {
+      keys = TagMap.this.keys;
+      values = TagMap.this.values;
+      size = Math.min(TagMap.this.size, Math.min(keys.length, values.length));
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next < size && (null == keys[next] || skip(values[next]))) {
+        ++next;
+      }
+      if (next < size) {
+        return true;
+      }
+      while (nextShared < shared.size() && positionOf(shared.keys[nextShared]) >= 0) {
+        ++nextShared;
+      }
+      return nextShared < shared.size();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Entry<String, V> next() {
+      while (hasNext() && next < size) {
+        // read once, as a racing write may have cleared the entry since it was checked
+        final String key = keys[next];
+        final Object value = values[next];
+        if (null != key && !skip(value)) {
+          last = next++;
+          lastShared = null;
+          return new TagEntry(key, (V) value);
+        }
+        ++next;
+      }
+      if (nextShared >= shared.size()) {
+        throw new NoSuchElementException();
+      }
+      last = -1;
+      lastShared = shared.keys[nextShared];
+      return new TagEntry(lastShared, (V) shared.values[nextShared++]);
+    }
+
+    @Override
+    public void remove() {
+      if (last >= 0) {
+        removeAt(last);
+        snapshot();
+        if (!skip(values[last])) {
+          // the last entry was moved into the removed position, so visit it next
+          next = last;
+        }
+      } else if (null != lastShared) {
+        // appends a removed marker, which is skipped
+        TagMap.this.remove(lastShared);
+        snapshot();
+      } else {
+        throw new IllegalStateException();
+      }
+      last = -1;
+      lastShared = null;
+    }
+  }
+
+  private static boolean skip(final Object value) {
+    return null == value || REMOVED == value;
+  }
+
+  /** Immutable tags shared by many maps, kept in insertion order and found by scanning hashes. */
+  static final class Block {
+    static final Block EMPTY = new Block(Collections.<String, Object>emptyMap());
+
+    private final String[] keys;
+    private final int[] hashes;
+    private final Object[] values;
+
+    Block(final Map<String, ?> tags) {
+      keys = new String[tags.size()];
+      hashes = new int[tags.size()];
+      values = new Object[tags.size()];
+      int position = 0;
+      for (final Map.Entry<String, ?> tag : tags.entrySet()) {
+        if (null == tag.getKey() || null == tag.getValue()) {
+          throw new NullPointerException();
+        }
+        keys[position] = tag.getKey();
+        hashes[position] = tag.getKey().hashCode();
+        values[position] = tag.getValue();
+        ++position;
+      }
+    }
+
+    int size() {
+      return keys.length;
+    }
+
+    String keyAt(final int position) {
+      return keys[position];
+    }
+
+    Object valueAt(final int position) {
+      return values[position];
+    }
+
+    /** @return the value of the tag, or null if it isn't shared */
+    Object get(final String key) {
+      final int hash = key.hashCode();
+      for (int position = 0; position < keys.length; ++position) {
+        if (hashes[position] == hash && key.equals(keys[position])) {
+          return values[position];
+        }
+      }
+      return null;
+    }
+  }
+
+  private final class TagEntry extends SimpleEntry<String, V> {
+    TagEntry(final String key, final V value) {
+      super(key, value);
+    }
+
+    @Override
+    public V setValue(final V value) {
+      put(getKey(), value);
+      return super.setValue(value);
+    }
+  }
+}
@@ -0,0 +1,204 @@
+package datadog.trace.core.processor;
+
+import datadog.trace.api.Config;
+import datadog.trace.api.DDSpanTypes;
+import datadog.trace.api.DDTags;
+import datadog.trace.bootstrap.instrumentation.api.Tags;
+import datadog.trace.core.DDSpan;
+import datadog.trace.core.DDSpanContext;
+import datadog.trace.core.processor.rule.AnalyticsSampleRateRule;
+import datadog.trace.core.processor.rule.DBStatementRule;
+import datadog.trace.core.processor.rule.ErrorRule;
+import datadog.trace.core.processor.rule.HttpStatusErrorRule;
+import datadog.trace.core.processor.rule.ResourceNameRule;
+import datadog.trace.core.processor.rule.SpanTypeRule;
+import datadog.trace.core.processor.rule.Status404Rule;
+import datadog.trace.core.processor.rule.URLAsResourceNameRule;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The enabled default rules compiled into a single pass over each span. Rather than every rule
+ * looking up and removing its own tags, the tags the enabled rules depend on are read once, the
+ * rules are evaluated in their usual order against those values, and only the tags which were
+ * present are removed.
+ *
+ * <p>Each step must behave exactly like the rule it replaces, which remains the reference
+ * implementation.
+ */
+final class RulePlan {
+
+  private final boolean dbStatement;
+  private final boolean resourceName;
+  private final boolean spanType;
+  private final boolean error;
+  private final boolean httpStatusError;
+  private final URLAsResourceNameRule urlAsResourceName;
+  private final boolean status404;
+  private final boolean analyticsSampleRate;
+  private final boolean httpStatus;
+
+  private RulePlan(
+      final boolean dbStatement,
+      final boolean resourceName,
+      final boolean spanType,
+      final boolean error,
+      final boolean httpStatusError,
+      final URLAsResourceNameRule urlAsResourceName,
+      final boolean status404,
+      final boolean analyticsSampleRate) {
+    this.dbStatement = dbStatement;
+    this.resourceName = resourceName;
+    this.spanType = spanType;
+    this.error = error;
+    this.httpStatusError = httpStatusError;
+    this.urlAsResourceName = urlAsResourceName;
+    this.status404 = status404;
+    this.analyticsSampleRate = analyticsSampleRate;
+    this.httpStatus = httpStatusError || null != urlAsResourceName || status404;
+  }
+
+  /**
+   * @param rules the enabled rules, in the order they are applied
+   * @return the plan, or null if the rules can't be compiled because they aren't the default rules
+   *     in their default order
+   */
+  static RulePlan compile(final List<TraceProcessor.Rule> rules) {
+    final Class<?>[] order = {
+      DBStatementRule.class,
+      ResourceNameRule.class,
+      SpanTypeRule.class,
+      ErrorRule.class,
+      HttpStatusErrorRule.class,
+      URLAsResourceNameRule.class,
+      Status404Rule.class,
+      AnalyticsSampleRateRule.class
+    };
+    final boolean[] enabled = new boolean[order.length];
+    URLAsResourceNameRule urlAsResourceName = null;
+    int next = 0;
+    for (final TraceProcessor.Rule rule : rules) {
+      while (next < order.length && rule.getClass() != order[next]) {
+        ++next;
+      }
+      if (next == order.length) {
+        return null;
+      }
+      enabled[next] = true;
+      if (rule instanceof URLAsResourceNameRule) {
+        urlAsResourceName = (URLAsResourceNameRule) rule;
+      }
+    }
+    return new RulePlan(
+        enabled[0],
+        enabled[1],
+        enabled[2],
+        enabled[3],
+        enabled[4],
+        urlAsResourceName,
+        enabled[6],
+        enabled[7]);
+  }
+
+  void apply(final DDSpan span) {
+    final DDSpanContext context = span.context();
+    final Map<String, Object> tags = context.getTags();
+    final Object dbStatementValue = dbStatement ? tags.get(Tags.DB_STATEMENT) : null;
+    final Object resourceNameValue = resourceName ? tags.get(DDTags.RESOURCE_NAME) : null;
+    final Object spanTypeValue = spanType ? tags.get(DDTags.SPAN_TYPE) : null;
+    final Object errorValue = error ? tags.get(Tags.ERROR) : null;
+    final Object httpStatusValue = httpStatus ? tags.get(Tags.HTTP_STATUS) : null;
+    final Object sampleRateValue =
+        analyticsSampleRate ? tags.get(DDTags.ANALYTICS_SAMPLE_RATE) : null;
+
+    // DBStatementRule, which leaves Mongo statements alone
+    boolean removeDbStatement = null != dbStatementValue;
+    if (dbStatementValue instanceof String) {
+      if ("java-mongo".equals(tags.get(Tags.COMPONENT))) {
+        removeDbStatement = false;
+      } else if (!((String) dbStatementValue).isEmpty()) {
+        context.setResourceName((String) dbStatementValue);
+      }
+    }
+    // ResourceNameRule
+    if (null != resourceNameValue) {
+      context.setResourceName(resourceNameValue.toString());
+    }
+    // SpanTypeRule
+    if (null != spanTypeValue) {
+      context.setSpanType(spanTypeValue.toString());
+    }
+    // ErrorRule
+    if (errorValue instanceof Boolean) {
+      context.setErrorFlag((Boolean) errorValue);
+    } else if (null != errorValue) {
+      context.setErrorFlag(Boolean.parseBoolean(errorValue.toString()));
+    }
+    // HttpStatusErrorRule
+    if (httpStatusError && null != httpStatusValue && !context.getErrorFlag()) {
+      applyHttpStatusError(context, httpStatusValue);
+    }
+    final boolean is404 =
+        null != httpStatusValue && (httpStatusValue.equals(404) || httpStatusValue.equals("404"));
+    // URLAsResourceNameRule
+    if (null != urlAsResourceName && !is404 && !context.isResourceNameSet()) {
+      final Object url = tags.get(Tags.HTTP_URL);
+      if (null != url) {
+        context.setResourceName(
+            urlAsResourceName.resourceName(url, tags.get(Tags.HTTP_METHOD)));
+      }
+    }
+    // Status404Rule
+    if (status404 && is404 && !context.isResourceNameSet()) {
+      context.setResourceName("404");
+    }
+    // AnalyticsSampleRateRule
+    if (sampleRateValue instanceof Number) {
+      context.setMetric(DDTags.ANALYTICS_SAMPLE_RATE, (Number) sampleRateValue);
+    } else if (sampleRateValue instanceof String) {
+      try {
+        context.setMetric(
+            DDTags.ANALYTICS_SAMPLE_RATE, Double.parseDouble((String) sampleRateValue));
+      } catch (final NumberFormatException ex) {
+        // ignore
+      }
+    }
+
+    // the tags consumed by the rules are removed together, and only if they were present
+    if (removeDbStatement) {
+      tags.remove(Tags.DB_STATEMENT);
+    }
+    if (null != resourceNameValue) {
+      tags.remove(DDTags.RESOURCE_NAME);
+    }
+    if (null != spanTypeValue) {
+      tags.remove(DDTags.SPAN_TYPE);
+    }
+    if (null != errorValue) {
+      tags.remove(Tags.ERROR);
+    }
+    if (null != sampleRateValue) {
+      tags.remove(DDTags.ANALYTICS_SAMPLE_RATE);
+    }
+  }
+
+  private static void applyHttpStatusError(final DDSpanContext context, final Object value) {
+    try {
+      final int status =
+          value instanceof Integer ? (Integer) value : Integer.parseInt(value.toString());
+      final String type = context.getSpanType();
+      if (DDSpanTypes.HTTP_SERVER.equals(type)) {
+        if (Config.get().getHttpServerErrorStatuses().contains(status)) {
+          context.setErrorFlag(true);
+        }
+      } else if (DDSpanTypes.HTTP_CLIENT.equals(type)) {
+        if (Config.get().getHttpClientErrorStatuses().contains(status)) {
+          context.setErrorFlag(true);
+        }
+      }
+    } catch (final NumberFormatException ex) {
+      // If using Tags.HTTP_STATUS, value should always be an Integer,
+      // but lets catch NumberFormatException just to be safe.
+    }
+  }
+}
@@ -16,6 +16,11 @@ import java.util.List;
 import java.util.Map;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Applies the trace interceptors of the tracer and samples the trace, then applies the enabled
+ * {@link Rule rules} to every span of a completed trace. The default rules are compiled into a
+ * {@link RulePlan}, which evaluates them all in a single pass over each span.
+ */
 @Slf4j
 public class TraceProcessor {
   final Rule[] DEFAULT_RULES =
@@ -32,15 +37,22 @@ public class TraceProcessor {
       };
 
   private final List<Rule> rules;
+  // null if the rules are applied one after the other
+  private final RulePlan plan;
 
   public TraceProcessor() {
+    this(true);
+  }
 
+  /** @param compile whether to compile the rules into a plan, or apply them one after the other */
+  TraceProcessor(final boolean compile) {
     rules = new ArrayList<>(DEFAULT_RULES.length);
     for (final Rule rule : DEFAULT_RULES) {
       if (isEnabled(rule)) {
         rules.add(rule);
       }
     }
+    plan = compile ? RulePlan.compile(rules) : null;
   }
 
   private static boolean isEnabled(final Rule rule) {
@@ -60,12 +72,24 @@ public class TraceProcessor {
     void processSpan(DDSpan span, Map<String, Object> tags, Collection<DDSpan> trace);
   }
 
+  /**
+   * @param trace a mutable list of the spans related to the same trace, processed in place
+   * @return the trace, which is empty if an interceptor discarded it or the sampler dropped it
+   */
   public List<DDSpan> onTraceComplete(final List<DDSpan> trace) {
-    for (final DDSpan span : trace) {
-      applyRules(trace, span);
+    if (trace.isEmpty()) {
+      return trace;
+    }
+    trace.get(0).context().getTrace().intercept(trace);
+    if (null != plan) {
+      for (final DDSpan span : trace) {
+        plan.apply(span);
+      }
+    } else {
+      for (final DDSpan span : trace) {
+        applyRules(trace, span);
+      }
     }
-
-    // TODO: apply DDTracer's TraceInterceptors
     return trace;
   }
 
@@ -0,0 +1,106 @@
+package datadog.trace.core.processor.rule;
+
+import datadog.trace.core.util.FrequencySketch;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, thread-safe cache of the resource names of requests, keyed by the request's method and
+ * raw path. The path is looked up in place in the url, so a hit allocates nothing.
+ *
+ * <p>Like {@link datadog.trace.core.serialization.Utf8Cache}, the cache is direct-mapped and
+ * admission is decided by a {@link FrequencySketch}, so that paths containing ids, which rarely
+ * repeat, don't displace the paths which do.
+ */
+final class ResourceNameCache {
+
+  private static final int ADMISSION_FREQUENCY = 2;
+
+  private final AtomicReferenceArray<Entry> entries;
+  private final int mask;
+  private final int maxLength;
+  private final FrequencySketch sketch;
+
+  /**
+   * @param capacity the number of slots, rounded up to a power of 2
+   * @param maxLength paths longer than this are never cached
+   */
+  ResourceNameCache(final int capacity, final int maxLength) {
+    final int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    this.entries = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    this.maxLength = maxLength;
+    this.sketch = new FrequencySketch(size);
+  }
+
+  /**
+   * @param url the url the path is in
+   * @param start the index of the path in the url
+   * @param end the index after the end of the path in the url
+   * @param method the method of the request, or null
+   * @return the cached resource name, or null if there isn't one
+   */
+  String get(final String url, final int start, final int end, final String method) {
+    final int length = end - start;
+    if (length > maxLength) {
+      return null;
+    }
+    final int hash = hash(url, start, end, method);
+    sketch.recordAccess(hash);
+    final Entry entry = entries.get(spread(hash) & mask);
+    if (null != entry
+        && entry.hash == hash
+        && entry.path.length() == length
+        && url.regionMatches(start, entry.path, 0, length)
+        && (null == method ? null == entry.method : method.equals(entry.method))) {
+      return entry.resourceName;
+    }
+    return null;
+  }
+
+  /**
+   * Caches the resource name, if the path has been requested often enough recently, after {@link
+   * #get} missed.
+   */
+  void put(final String path, final String method, final String resourceName) {
+    if (path.length() > maxLength) {
+      return;
+    }
+    final int hash = hash(path, 0, path.length(), method);
+    final int frequency = sketch.frequencyOf(hash);
+    if (frequency < ADMISSION_FREQUENCY) {
+      return;
+    }
+    final int slot = spread(hash) & mask;
+    final Entry entry = entries.get(slot);
+    if (null == entry || frequency > sketch.frequencyOf(entry.hash)) {
+      entries.lazySet(slot, new Entry(path, method, hash, resourceName));
+    }
+  }
+
+  private static int hash(final String url, final int start, final int end, final String method) {
+    int hash = null == method ? 0 : method.hashCode();
+    for (int i = start; i < end; ++i) {
+      hash = 31 * hash + url.charAt(i);
+    }
+    return hash;
+  }
+
+  private static int spread(final int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static final class Entry {
+    final String path;
+    final String method;
+    final int hash;
+    final String resourceName;
+
+    private Entry(
+        final String path, final String method, final int hash, final String resourceName) {
+      this.path = path;
+      this.method = method;
+      this.hash = hash;
+      this.resourceName = resourceName;
+    }
+  }
+}
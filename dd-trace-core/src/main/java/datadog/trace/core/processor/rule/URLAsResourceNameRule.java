@@ -11,9 +11,24 @@ import java.util.regex.Pattern;
 public class URLAsResourceNameRule implements TraceProcessor.Rule {
 
   // Matches any path segments with numbers in them. (exception for versioning: "/v1/")
+  // normalizePath implements the same replacement without a regex.
   public static final Pattern PATH_MIXED_ALPHANUMERICS =
       Pattern.compile("(?<=/)(?![vV]\\d{1,2}/)(?:[^\\/\\d\\?]*[\\d]+[^\\/\\?]*)");
 
+  private static final int CACHE_CAPACITY = 2048;
+  private static final int MAX_CACHED_PATH_LENGTH = 256;
+
+  private final ResourceNameCache cache;
+
+  public URLAsResourceNameRule() {
+    this(new ResourceNameCache(CACHE_CAPACITY, MAX_CACHED_PATH_LENGTH));
+  }
+
+  /** @param cache the cache of resource names, or null to normalize every path */
+  URLAsResourceNameRule(final ResourceNameCache cache) {
+    this.cache = cache;
+  }
+
   @Override
   public String[] aliases() {
     return new String[] {"URLAsResourceName"};
@@ -30,23 +45,60 @@ public class URLAsResourceNameRule implements TraceProcessor.Rule {
       return;
     }
 
-    final String rawPath = rawPathFromUrlString(tags.get(Tags.HTTP_URL).toString().trim());
-    final String normalizedPath = normalizePath(rawPath);
-    final String resourceName = addMethodIfAvailable(tags, normalizedPath);
+    context.setResourceName(resourceName(tags.get(Tags.HTTP_URL), tags.get(Tags.HTTP_METHOD)));
+  }
 
-    context.setResourceName(resourceName);
+  /**
+   * @param url the value of the {@link Tags#HTTP_URL} tag
+   * @param method the value of the {@link Tags#HTTP_METHOD} tag, or null
+   * @return the resource name of a request to the url
+   */
+  public String resourceName(final Object url, final Object method) {
+    String source = url.toString().trim();
+    final String verb = null == method ? null : method.toString();
+    final long bounds = pathBounds(source);
+    final int start;
+    final int end;
+    if (bounds < 0) {
+      source = "/";
+      start = 0;
+      end = 1;
+    } else {
+      start = (int) (bounds >>> 32);
+      end = (int) bounds;
+    }
+    if (null != cache) {
+      final String cached = cache.get(source, start, end, verb);
+      if (null != cached) {
+        return cached;
+      }
+    }
+    final String rawPath = source.substring(start, end);
+    final String resourceName = addMethodIfAvailable(verb, normalizePath(rawPath));
+    if (null != cache) {
+      cache.put(rawPath, verb, resourceName);
+    }
+    return resourceName;
   }
 
-  private String rawPathFromUrlString(final String url) {
-    // Get the path without host:port
-    // url may already be just the path.
+  String rawPathFromUrlString(final String url) {
+    final long bounds = pathBounds(url);
+    return bounds < 0 ? "/" : url.substring((int) (bounds >>> 32), (int) bounds);
+  }
 
+  /**
+   * Gets the path without host:port; url may already be just the path.
+   *
+   * @return the start index of the path in the high and its end index in the low 32 bits, or -1 if
+   *     the path is "/" because the url is empty or has no path
+   */
+  private static long pathBounds(final String url) {
     if (url.isEmpty()) {
-      return "/";
+      return -1;
     }
 
-    final int queryLoc = url.indexOf("?");
-    final int fragmentLoc = url.indexOf("#");
+    final int queryLoc = url.indexOf('?');
+    final int fragmentLoc = url.indexOf('#');
     final int endLoc;
     if (queryLoc < 0) {
       if (fragmentLoc < 0) {
@@ -64,35 +116,76 @@ public class URLAsResourceNameRule implements TraceProcessor.Rule {
 
     final int protoLoc = url.indexOf("://");
     if (protoLoc < 0) {
-      return url.substring(0, endLoc);
+      return endLoc;
     }
 
-    final int pathLoc = url.indexOf("/", protoLoc + 3);
-    if (pathLoc < 0) {
-      return "/";
+    final int pathLoc = url.indexOf('/', protoLoc + 3);
+    if (pathLoc < 0 || (queryLoc >= 0 && endLoc < pathLoc)) {
+      return -1;
     }
 
-    if (queryLoc < 0) {
-      return url.substring(pathLoc);
-    } else {
-      return url.substring(pathLoc, endLoc);
-    }
+    return ((long) pathLoc << 32) | (queryLoc < 0 ? url.length() : endLoc);
   }
 
-  // Method to normalise the url string
-  private String normalizePath(final String path) {
+  /**
+   * Replaces each path segment containing a digit, up to any '?', with a single '?', except for
+   * version segments such as "/v1/" (see {@link #PATH_MIXED_ALPHANUMERICS}).
+   */
+  String normalizePath(final String path) {
     if (path.isEmpty() || path.equals("/")) {
       return "/";
     }
 
-    return PATH_MIXED_ALPHANUMERICS.matcher(path).replaceAll("?");
+    StringBuilder normalized = null;
+    int copied = 0;
+    int slash = path.indexOf('/');
+    while (slash >= 0) {
+      final int segmentStart = slash + 1;
+      int segmentEnd = segmentStart;
+      boolean hasDigit = false;
+      while (segmentEnd < path.length()) {
+        final char c = path.charAt(segmentEnd);
+        if (c == '/' || c == '?') {
+          break;
+        }
+        hasDigit |= isDigit(c);
+        ++segmentEnd;
+      }
+      if (hasDigit && !isVersion(path, segmentStart)) {
+        if (null == normalized) {
+          normalized = new StringBuilder(path.length());
+        }
+        normalized.append(path, copied, segmentStart).append('?');
+        copied = segmentEnd;
+      }
+      slash = path.indexOf('/', segmentEnd);
+    }
+    return null == normalized ? path : normalized.append(path, copied, path.length()).toString();
+  }
+
+  /** @return true if the segment is 'v' followed by 1 or 2 digits, and isn't the last segment */
+  private static boolean isVersion(final String path, final int segmentStart) {
+    final int length = path.length();
+    if (segmentStart + 2 >= length) {
+      return false;
+    }
+    final char first = path.charAt(segmentStart);
+    if ((first != 'v' && first != 'V') || !isDigit(path.charAt(segmentStart + 1))) {
+      return false;
+    }
+    final char third = path.charAt(segmentStart + 2);
+    return third == '/'
+        || (isDigit(third) && segmentStart + 3 < length && path.charAt(segmentStart + 3) == '/');
+  }
+
+  private static boolean isDigit(final char c) {
+    return c >= '0' && c <= '9';
   }
 
-  private String addMethodIfAvailable(final Map<String, Object> meta, String path) {
+  private String addMethodIfAvailable(final String method, String path) {
     // if the method (GET, POST ...) is present, add it
-    final Object method = meta.get(Tags.HTTP_METHOD);
     if (method != null) {
-      final String verb = method.toString().toUpperCase().trim();
+      final String verb = method.toUpperCase().trim();
       if (!verb.isEmpty()) {
         path = verb + " " + path;
       }
@@ -5,8 +5,8 @@ import static datadog.trace.core.propagation.HttpCodec.validateUInt64BitsID;
 
 import datadog.trace.api.sampling.PrioritySampling;
 import datadog.trace.bootstrap.instrumentation.api.AgentPropagation;
+import datadog.trace.core.DDId;
 import datadog.trace.core.DDSpanContext;
-import java.math.BigInteger;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -39,8 +39,8 @@ class B3HttpCodec {
     public <C> void inject(
         final DDSpanContext context, final C carrier, final AgentPropagation.Setter<C> setter) {
       try {
-        setter.set(carrier, TRACE_ID_KEY, context.getTraceId().toString(HEX_RADIX).toLowerCase());
-        setter.set(carrier, SPAN_ID_KEY, context.getSpanId().toString(HEX_RADIX).toLowerCase());
+        setter.set(carrier, TRACE_ID_KEY, context.getDDTraceId().toHexString());
+        setter.set(carrier, SPAN_ID_KEY, context.getDDSpanId().toHexString());
 
         if (context.lockSamplingPriority()) {
           setter.set(
@@ -48,11 +48,11 @@ class B3HttpCodec {
               SAMPLING_PRIORITY_KEY,
               convertSamplingPriority(context.getSamplingPriority()));
         }
-        log.debug("{} - B3 parent context injected", context.getTraceId());
+        log.debug("{} - B3 parent context injected", context.getDDTraceId());
       } catch (final NumberFormatException e) {
         if (log.isDebugEnabled()) {
           log.debug(
-              "Cannot parse context id(s): {} {}", context.getTraceId(), context.getSpanId(), e);
+              "Cannot parse context id(s): {} {}", context.getDDTraceId(), context.getDDSpanId(), e);
         }
       }
     }
@@ -77,8 +77,8 @@ class B3HttpCodec {
     public <C> TagContext extract(final C carrier, final AgentPropagation.Getter<C> getter) {
       try {
         Map<String, String> tags = Collections.emptyMap();
-        BigInteger traceId = BigInteger.ZERO;
-        BigInteger spanId = BigInteger.ZERO;
+        DDId traceId = DDId.ZERO;
+        DDId spanId = DDId.ZERO;
         int samplingPriority = PrioritySampling.UNSET;
 
         for (final String uncasedKey : getter.keys(carrier)) {
@@ -94,7 +94,7 @@ class B3HttpCodec {
             final int length = value.length();
             if (length > 32) {
               log.debug("Header {} exceeded max length of 32: {}", TRACE_ID_KEY, value);
-              traceId = BigInteger.ZERO;
+              traceId = DDId.ZERO;
               continue;
             } else if (length > 16) {
               trimmedValue = value.substring(length - 16);
@@ -116,7 +116,7 @@ class B3HttpCodec {
           }
         }
 
-        if (!BigInteger.ZERO.equals(traceId)) {
+        if (!DDId.ZERO.equals(traceId)) {
           final ExtractedContext context =
               new ExtractedContext(
                   traceId,
@@ -127,7 +127,7 @@ class B3HttpCodec {
                   tags);
           context.lockSamplingPriority();
 
-          log.debug("{} - Parent context extracted", context.getTraceId());
+          log.debug("{} - Parent context extracted", context.getDDTraceId());
           return context;
         } else if (!tags.isEmpty()) {
           log.debug("Tags context extracted");
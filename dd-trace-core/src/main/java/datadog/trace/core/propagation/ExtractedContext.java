@@ -1,5 +1,6 @@
 package datadog.trace.core.propagation;
 
+import datadog.trace.core.DDId;
 import java.math.BigInteger;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -8,15 +9,15 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * Propagated data resulting from calling tracer.extract with header data from an incoming request.
  */
 public class ExtractedContext extends TagContext {
-  private final BigInteger traceId;
-  private final BigInteger spanId;
+  private final DDId traceId;
+  private final DDId spanId;
   private final int samplingPriority;
   private final Map<String, String> baggage;
   private final AtomicBoolean samplingPriorityLocked = new AtomicBoolean(false);
 
   public ExtractedContext(
-      final BigInteger traceId,
-      final BigInteger spanId,
+      final DDId traceId,
+      final DDId spanId,
       final int samplingPriority,
       final String origin,
       final Map<String, String> baggage,
@@ -37,14 +38,24 @@ public class ExtractedContext extends TagContext {
     samplingPriorityLocked.set(true);
   }
 
-  public BigInteger getTraceId() {
+  public DDId getDDTraceId() {
     return traceId;
   }
 
-  public BigInteger getSpanId() {
+  public DDId getDDSpanId() {
     return spanId;
   }
 
+  /** Compatibility adapter, prefer {@link #getDDTraceId()} */
+  public BigInteger getTraceId() {
+    return traceId.toBigInteger();
+  }
+
+  /** Compatibility adapter, prefer {@link #getDDSpanId()} */
+  public BigInteger getSpanId() {
+    return spanId.toBigInteger();
+  }
+
   public int getSamplingPriority() {
     return samplingPriority;
   }
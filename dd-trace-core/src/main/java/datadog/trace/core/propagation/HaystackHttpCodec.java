@@ -5,8 +5,8 @@ import static datadog.trace.core.propagation.HttpCodec.validateUInt64BitsID;
 
 import datadog.trace.api.sampling.PrioritySampling;
 import datadog.trace.bootstrap.instrumentation.api.AgentPropagation;
+import datadog.trace.core.DDId;
 import datadog.trace.core.DDSpanContext;
-import java.math.BigInteger;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -34,14 +34,14 @@ public class HaystackHttpCodec {
     @Override
     public <C> void inject(
         final DDSpanContext context, final C carrier, final AgentPropagation.Setter<C> setter) {
-      setter.set(carrier, TRACE_ID_KEY, context.getTraceId().toString());
-      setter.set(carrier, SPAN_ID_KEY, context.getSpanId().toString());
-      setter.set(carrier, PARENT_ID_KEY, context.getParentId().toString());
+      setter.set(carrier, TRACE_ID_KEY, context.getDDTraceId().toString());
+      setter.set(carrier, SPAN_ID_KEY, context.getDDSpanId().toString());
+      setter.set(carrier, PARENT_ID_KEY, context.getDDParentId().toString());
 
       for (final Map.Entry<String, String> entry : context.baggageItems()) {
         setter.set(carrier, OT_BAGGAGE_PREFIX + entry.getKey(), HttpCodec.encode(entry.getValue()));
       }
-      log.debug("{} - Haystack parent context injected", context.getTraceId());
+      log.debug("{} - Haystack parent context injected", context.getDDTraceId());
     }
   }
 
@@ -61,8 +61,8 @@ public class HaystackHttpCodec {
       try {
         Map<String, String> baggage = Collections.emptyMap();
         Map<String, String> tags = Collections.emptyMap();
-        BigInteger traceId = BigInteger.ZERO;
-        BigInteger spanId = BigInteger.ZERO;
+        DDId traceId = DDId.ZERO;
+        DDId spanId = DDId.ZERO;
         final int samplingPriority = PrioritySampling.SAMPLER_KEEP;
         final String origin = null; // Always null
 
@@ -93,12 +93,12 @@ public class HaystackHttpCodec {
           }
         }
 
-        if (!BigInteger.ZERO.equals(traceId)) {
+        if (!DDId.ZERO.equals(traceId)) {
           final ExtractedContext context =
               new ExtractedContext(traceId, spanId, samplingPriority, origin, baggage, tags);
           context.lockSamplingPriority();
 
-          log.debug("{} - Parent context extracted", context.getTraceId());
+          log.debug("{} - Parent context extracted", context.getDDTraceId());
           return context;
         } else if (origin != null || !tags.isEmpty()) {
           log.debug("Tags context extracted");
@@ -2,11 +2,9 @@ package datadog.trace.core.propagation;
 
 import datadog.trace.api.Config;
 import datadog.trace.bootstrap.instrumentation.api.AgentPropagation;
-import datadog.trace.core.CoreTracer;
+import datadog.trace.core.DDId;
 import datadog.trace.core.DDSpanContext;
-import datadog.trace.core.StringCachingBigInteger;
 import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.ArrayList;
@@ -109,21 +107,15 @@ public class HttpCodec {
    * Helper method to validate an ID String to verify within range
    *
    * @param value the String that contains the ID
-   * @param radix radix to use to parse the ID
+   * @param radix radix to use to parse the ID, either 10 or 16
    * @return the parsed ID
    * @throws IllegalArgumentException if value cannot be converted to integer or doesn't conform to
    *     required boundaries
    */
-  static BigInteger validateUInt64BitsID(final String value, final int radix)
+  static DDId validateUInt64BitsID(final String value, final int radix)
       throws IllegalArgumentException {
-    final BigInteger parsedValue = new StringCachingBigInteger(value, radix);
-    if (parsedValue.compareTo(CoreTracer.TRACE_ID_MIN) < 0
-        || parsedValue.compareTo(CoreTracer.TRACE_ID_MAX) > 0) {
-      throw new IllegalArgumentException(
-          "ID out of range, must be between 0 and 2^64-1, got: " + value);
-    }
-
-    return parsedValue;
+    // NumberFormatException is an IllegalArgumentException, thrown for out of range values too
+    return radix == 16 ? DDId.fromHex(value) : DDId.from(value);
   }
 
   /** URL encode value */
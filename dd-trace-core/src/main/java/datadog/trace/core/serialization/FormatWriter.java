@@ -13,10 +13,10 @@ import static datadog.trace.core.StringTables.START;
 import static datadog.trace.core.StringTables.TRACE_ID;
 import static datadog.trace.core.StringTables.TYPE;
 
+import datadog.trace.core.DDId;
 import datadog.trace.core.DDSpan;
 import datadog.trace.core.StringTables;
 import java.io.IOException;
-import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
@@ -59,8 +59,8 @@ public abstract class FormatWriter<DEST> {
   public abstract void writeDouble(final byte[] key, final double value, final DEST destination)
       throws IOException;
 
-  public abstract void writeBigInteger(
-      final byte[] key, final BigInteger value, final DEST destination) throws IOException;
+  public abstract void writeId(final byte[] key, final DDId id, final DEST destination)
+      throws IOException;
 
   public void writeNumber(final byte[] key, final Number value, final DEST destination)
       throws IOException {
@@ -125,9 +125,9 @@ public abstract class FormatWriter<DEST> {
     /* 1  */ writeString(SERVICE, span.getServiceName(), destination);
     /* 2  */ writeString(NAME, span.getOperationName(), destination);
     /* 3  */ writeString(RESOURCE, span.getResourceName(), destination);
-    /* 4  */ writeBigInteger(TRACE_ID, span.getTraceId(), destination);
-    /* 5  */ writeBigInteger(SPAN_ID, span.getSpanId(), destination);
-    /* 6  */ writeBigInteger(PARENT_ID, span.getParentId(), destination);
+    /* 4  */ writeId(TRACE_ID, span.getDDTraceId(), destination);
+    /* 5  */ writeId(SPAN_ID, span.getDDSpanId(), destination);
+    /* 6  */ writeId(PARENT_ID, span.getDDParentId(), destination);
     /* 7  */ writeLong(START, span.getStartTime(), destination);
     /* 8  */ writeLong(DURATION, span.getDurationNano(), destination);
     /* 9  */ writeTag(TYPE, span.getType(), destination);
@@ -138,8 +138,10 @@ public abstract class FormatWriter<DEST> {
   }
 
   private byte[] stringToBytes(final String string) {
-    // won't reassign key or string in this method
-    final byte[] key = StringTables.getKeyBytesUTF8(string);
+    byte[] key = StringTables.getKeyBytesUTF8(string);
+    if (null == key) {
+      key = StringTables.getRuntimeBytesUTF8(string);
+    }
     return null == key ? string.getBytes(StandardCharsets.UTF_8) : key;
   }
 }
@@ -5,11 +5,11 @@ import com.squareup.moshi.JsonReader;
 import com.squareup.moshi.JsonWriter;
 import com.squareup.moshi.Moshi;
 import com.squareup.moshi.Types;
+import datadog.trace.core.DDId;
 import datadog.trace.core.DDSpan;
 import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
-import java.math.BigInteger;
 import java.util.List;
 import java.util.Set;
 
@@ -97,10 +97,15 @@ public class JsonFormatWriter extends FormatWriter<JsonWriter> {
   }
 
   @Override
-  public void writeBigInteger(
-      final byte[] key, final BigInteger value, final JsonWriter destination) throws IOException {
+  public void writeId(final byte[] key, final DDId id, final JsonWriter destination)
+      throws IOException {
     writeKey(key, destination);
-    destination.value(value);
+    final long value = id.toLong();
+    if (value >= 0) {
+      destination.value(value);
+    } else {
+      destination.value(id.toBigInteger());
+    }
   }
 
   static class DDSpanAdapter extends JsonAdapter<DDSpan> {
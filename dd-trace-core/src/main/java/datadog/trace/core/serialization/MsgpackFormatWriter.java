@@ -1,13 +1,29 @@
 package datadog.trace.core.serialization;
 
+import static org.msgpack.core.MessagePack.Code.UINT64;
+
+import datadog.trace.core.DDId;
 import datadog.trace.core.StringTables;
 import java.io.IOException;
-import java.math.BigInteger;
 import org.msgpack.core.MessagePacker;
 
 public class MsgpackFormatWriter extends FormatWriter<MessagePacker> {
   public static MsgpackFormatWriter MSGPACK_WRITER = new MsgpackFormatWriter();
 
+  /**
+   * Holds a uint64 while it is written: the packer can't write one without a prefix of its own, and
+   * copies payloads this small into its buffer, so the array can be reused.
+   */
+  private static final ThreadLocal<byte[]> UINT64_BYTES =
+      new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+          final byte[] bytes = new byte[9];
+          bytes[0] = UINT64;
+          return bytes;
+        }
+      };
+
   @Override
   public void writeKey(final byte[] key, MessagePacker destination) throws IOException {
     destination.packRawStringHeader(key.length);
@@ -37,7 +53,7 @@ public class MsgpackFormatWriter extends FormatWriter<MessagePacker> {
     if (value == null) {
       destination.packNil();
     } else {
-      destination.packString(value);
+      writeUTF8(StringTables.getRuntimeBytesUTF8(value), value, destination);
     }
   }
 
@@ -91,29 +107,52 @@ public class MsgpackFormatWriter extends FormatWriter<MessagePacker> {
   }
 
   @Override
-  public void writeBigInteger(
-      final byte[] key, final BigInteger value, final MessagePacker destination)
+  public void writeId(final byte[] key, final DDId id, final MessagePacker destination)
       throws IOException {
     writeKey(key, destination);
-    if (value == null) {
+    if (id == null) {
       destination.packNil();
     } else {
-      destination.packBigInteger(value);
+      final long value = id.toLong();
+      if (value >= 0) {
+        destination.packLong(value);
+      } else {
+        // the id is above Long.MAX_VALUE, so must be written as uint64 rather than int64
+        writeUInt64(value, destination);
+      }
     }
   }
 
+  private static void writeUInt64(final long value, final MessagePacker destination)
+      throws IOException {
+    final byte[] bytes = UINT64_BYTES.get();
+    for (int i = 8; i > 0; --i) {
+      bytes[i] = (byte) (value >>> ((8 - i) << 3));
+    }
+    destination.writePayload(bytes);
+  }
+
   private static void writeUTF8Tag(final String value, final MessagePacker destination)
       throws IOException {
     if (null == value) {
       destination.packNil();
     } else {
       byte[] interned = StringTables.getTagBytesUTF8(value);
-      if (null != interned) {
-        destination.packRawStringHeader(interned.length);
-        destination.addPayload(interned);
-      } else {
-        destination.packString(value);
+      if (null == interned) {
+        interned = StringTables.getRuntimeBytesUTF8(value);
       }
+      writeUTF8(interned, value, destination);
+    }
+  }
+
+  private static void writeUTF8(
+      final byte[] encoded, final String value, final MessagePacker destination)
+      throws IOException {
+    if (null != encoded) {
+      destination.packRawStringHeader(encoded.length);
+      destination.addPayload(encoded);
+    } else {
+      destination.packString(value);
     }
   }
 }
@@ -0,0 +1,99 @@
+package datadog.trace.core.serialization;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import datadog.trace.core.util.FrequencySketch;
+import datadog.trace.core.util.StripedCounter;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, thread-safe cache of the UTF-8 encodings of the strings which are serialized most
+ * often, such as service, resource and operation names, URLs and custom tag keys and values.
+ *
+ * <p>The cache is direct-mapped: each string hashes to a single slot, so memory is bounded by the
+ * number of slots and the maximum cached length. Admission is decided by an approximate access
+ * frequency, kept in a {@link FrequencySketch}: a string is only cached once it has been seen more
+ * than once, and only evicts the string in its slot if it has been seen more often recently. This
+ * stops one-off values, e.g. URLs containing ids, from displacing the values which repeat.
+ *
+ * <p>Frequencies are approximate under contention; entries themselves are immutable and safely
+ * published. The hit and miss counts are striped, so that serializing threads don't contend on
+ * them.
+ */
+public final class Utf8Cache {
+
+  private static final int ADMISSION_FREQUENCY = 2;
+
+  private final AtomicReferenceArray<Entry> entries;
+  private final int mask;
+  private final int maxLength;
+  private final FrequencySketch sketch;
+
+  private final StripedCounter hits = new StripedCounter();
+  private final StripedCounter misses = new StripedCounter();
+
+  /**
+   * @param capacity the number of slots, rounded up to a power of 2
+   * @param maxLength strings longer than this are never cached
+   */
+  public Utf8Cache(final int capacity, final int maxLength) {
+    final int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    this.entries = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    this.maxLength = maxLength;
+    this.sketch = new FrequencySketch(size);
+  }
+
+  /**
+   * @return the UTF-8 encoding of the string, or null if it isn't cached, in which case the caller
+   *     should encode it itself
+   */
+  public byte[] get(final String value) {
+    if (value.length() > maxLength) {
+      misses.increment();
+      return null;
+    }
+    final int hash = value.hashCode();
+    final int frequency = sketch.recordAccess(hash);
+    final int slot = spread(hash) & mask;
+    final Entry entry = entries.get(slot);
+    if (null != entry && entry.hash == hash && value.equals(entry.string)) {
+      hits.increment();
+      return entry.encoding;
+    }
+    misses.increment();
+    if (frequency >= ADMISSION_FREQUENCY
+        && (null == entry || frequency > sketch.frequencyOf(entry.hash))) {
+      final Entry admitted = new Entry(value, hash, value.getBytes(UTF_8));
+      entries.lazySet(slot, admitted);
+      return admitted.encoding;
+    }
+    return null;
+  }
+
+  /** @return how many lookups found the string's encoding */
+  public long hits() {
+    return hits.sum();
+  }
+
+  /** @return how many lookups didn't find the string's encoding */
+  public long misses() {
+    return misses.sum();
+  }
+
+  private static int spread(final int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static final class Entry {
+    final String string;
+    final int hash;
+    final byte[] encoding;
+
+    private Entry(final String string, final int hash, final byte[] encoding) {
+      this.string = string;
+      this.hash = hash;
+      this.encoding = encoding;
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package datadog.trace.core.util;
+
+/**
+ * Approximate access frequencies of hashed keys, for deciding what a bounded cache should admit.
+ * The frequencies are kept in a small count-min sketch of 4-bit counters, packed sixteen to a long,
+ * which are halved periodically so that they follow changes in the workload.
+ *
+ * <p>The sketch is updated without synchronization, so frequencies are approximate under
+ * contention.
+ */
+public final class FrequencySketch {
+
+  private static final int MIN_COUNTERS = 64;
+  private static final int MAX_FREQUENCY = 15;
+  private static final long HALVING_MASK = 0x7777777777777777L;
+
+  private final long[] table;
+  private final int mask;
+  private final int samplePeriod;
+  private int samples;
+
+  /** @param capacity the number of entries in the cache, a power of 2 */
+  public FrequencySketch(final int capacity) {
+    final int counters = Math.max(MIN_COUNTERS, capacity << 1);
+    this.table = new long[counters >>> 4];
+    this.mask = counters - 1;
+    this.samplePeriod = counters * 10;
+  }
+
+  /** @return the frequency of the key, including this access */
+  public int recordAccess(final int hash) {
+    final int first = spread(hash) & mask;
+    final int second = spread(hash * 0x9E3779B9) & mask;
+    final int frequency = Math.min(increment(first), increment(second));
+    if (++samples >= samplePeriod) {
+      age();
+    }
+    return frequency;
+  }
+
+  /** @return the frequency of the key */
+  public int frequencyOf(final int hash) {
+    return Math.min(counter(spread(hash) & mask), counter(spread(hash * 0x9E3779B9) & mask));
+  }
+
+  private int counter(final int index) {
+    return (int) (table[index >>> 4] >>> shift(index)) & MAX_FREQUENCY;
+  }
+
+  /** @return the counter, after incrementing it unless it is saturated */
+  private int increment(final int index) {
+    final int counter = counter(index);
+    if (counter < MAX_FREQUENCY) {
+      table[index >>> 4] += 1L << shift(index);
+      return counter + 1;
+    }
+    return counter;
+  }
+
+  private void age() {
+    samples = 0;
+    for (int i = 0; i < table.length; ++i) {
+      table[i] = (table[i] >>> 1) & HALVING_MASK;
+    }
+  }
+
+  private static int shift(final int index) {
+    return (index & 15) << 2;
+  }
+
+  private static int spread(final int hash) {
+    return hash ^ (hash >>> 16);
+  }
+}
@@ -0,0 +1,39 @@
+package datadog.trace.core.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter incremented by many threads and read rarely. Threads increment one of several cells,
+ * picked by their id, so that they seldom contend on the same cache line; reads sum the cells.
+ *
+ * <p>The sum is exact once increments have stopped, and otherwise may miss concurrent increments.
+ */
+public final class StripedCounter {
+
+  // longs per cell, so that two cells never share a 64-byte cache line
+  private static final int PADDING = 8;
+
+  private final AtomicLongArray cells;
+  private final int mask;
+
+  public StripedCounter() {
+    final int processors = Runtime.getRuntime().availableProcessors();
+    final int stripes = processors <= 1 ? 1 : Integer.highestOneBit(processors - 1) << 1;
+    this.cells = new AtomicLongArray(stripes * PADDING);
+    this.mask = stripes - 1;
+  }
+
+  public void increment() {
+    final long threadId = Thread.currentThread().getId();
+    cells.getAndIncrement(((int) (threadId ^ (threadId >>> 32)) & mask) * PADDING);
+  }
+
+  /** @return the sum of the increments */
+  public long sum() {
+    long sum = 0;
+    for (int i = 0; i < cells.length(); i += PADDING) {
+      sum += cells.get(i);
+    }
+    return sum;
+  }
+}
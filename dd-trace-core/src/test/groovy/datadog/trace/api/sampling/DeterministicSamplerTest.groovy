@@ -1,5 +1,6 @@
 package datadog.trace.api.sampling
 
+import datadog.trace.core.DDId
 import datadog.trace.core.DDSpan
 import datadog.trace.common.sampling.DeterministicSampler
 import datadog.trace.util.test.DDSpecification
@@ -10,7 +11,7 @@ class DeterministicSamplerTest extends DDSpecification {
     given:
     DeterministicSampler sampler = new DeterministicSampler(0.5)
     DDSpan span = Mock(DDSpan) {
-      getTraceId() >> traceId
+      getDDTraceId() >> DDId.from(traceId)
     }
 
     when:
@@ -127,7 +128,7 @@ class DeterministicSamplerTest extends DDSpecification {
     given:
     DeterministicSampler sampler = new DeterministicSampler(0)
     DDSpan span = Mock(DDSpan) {
-      getTraceId() >> traceId
+      getDDTraceId() >> DDId.from(traceId)
     }
 
     when:
@@ -246,7 +247,7 @@ class DeterministicSamplerTest extends DDSpecification {
     given:
     DeterministicSampler sampler = new DeterministicSampler(1)
     DDSpan span = Mock(DDSpan) {
-      getTraceId() >> traceId
+      getDDTraceId() >> DDId.from(traceId)
     }
 
     when:
@@ -10,8 +10,6 @@ import datadog.trace.core.DDSpanContext
 import datadog.trace.core.SpanFactory
 import datadog.trace.util.test.DDSpecification
 
-import static datadog.trace.common.sampling.RateByServiceSampler.DEFAULT_KEY
-
 class RateByServiceSamplerTest extends DDSpecification {
   static serializer = DDAgentApi.RESPONSE_ADAPTER
 
@@ -21,7 +19,7 @@ class RateByServiceSamplerTest extends DDSpecification {
     String response = '{"rate_by_service": {"service:,env:":' + rate + '}}'
     serviceSampler.onResponse("traces", serializer.fromJson(response))
     expect:
-    serviceSampler.serviceRates[DEFAULT_KEY].sampleRate == expectedRate
+    serviceSampler.serviceRates.defaultSampler.sampleRate == expectedRate
 
     where:
     rate | expectedRate
@@ -56,6 +54,26 @@ class RateByServiceSamplerTest extends DDSpecification {
     serviceSampler.sample(span2)
   }
 
+  def "rate lookup by service and env"() {
+    setup:
+    RateByServiceSampler serviceSampler = new RateByServiceSampler()
+    String response = '{"rate_by_service": {"service:,env:":0.1, "service:spock,env:test":0.2, ' +
+      '"service:spock,env:":0.3, "service:a,b,env:prod":0.4, "invalid":0.5}}'
+    serviceSampler.onResponse("traces", serializer.fromJson(response))
+
+    expect:
+    serviceSampler.serviceRates.getSampler(service, env).sampleRate == expectedRate
+
+    where:
+    service | env    | expectedRate
+    "spock" | "test" | 0.2
+    "spock" | ""     | 0.3
+    "spock" | "prod" | 0.1
+    "a,b"   | "prod" | 0.4
+    "foo"   | "test" | 0.1
+    null    | ""     | 0.1
+  }
+
   def "sampling priority set on context"() {
     setup:
     RateByServiceSampler serviceSampler = new RateByServiceSampler()
@@ -0,0 +1,82 @@
+package datadog.trace.api.writer
+
+import datadog.trace.common.writer.ddagent.AdaptiveFlushController
+import datadog.trace.util.test.DDSpecification
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS
+
+class AdaptiveFlushControllerTest extends DDSpecification {
+
+  static final long FAST = MILLISECONDS.toNanos(10)
+  static final long SLOW = MILLISECONDS.toNanos(500)
+
+  def controller = new AdaptiveFlushController(200, 1800, 64 << 10, (64 << 10) + (16 << 20), 250)
+
+  def "starts at the fixed defaults"() {
+    expect:
+    controller.flushIntervalMillis == 1000
+    controller.payloadBytes == 1 << 20
+  }
+
+  def "defaults are clamped to the bounds"() {
+    setup:
+    def bounded = new AdaptiveFlushController(2000, 3000, 1024, 2048, 250)
+
+    expect:
+    bounded.flushIntervalMillis == 2000
+    bounded.payloadBytes == 2048
+  }
+
+  def "#description halves the payload size and doubles the flush interval"() {
+    when:
+    controller.onSend(1 << 20, latency, success, 0, 1024)
+
+    then:
+    controller.payloadBytes == 1 << 19
+    controller.flushIntervalMillis == 1800
+
+    where:
+    description        | latency | success
+    "a slow response"  | SLOW    | true
+    "a failed request" | FAST    | false
+  }
+
+  def "#description grows the payload size and shortens the flush interval"() {
+    when:
+    controller.onSend(size, FAST, true, queued, 1024)
+
+    then:
+    controller.payloadBytes == (1 << 20) + (1 << 20)
+    controller.flushIntervalMillis == 900
+
+    where:
+    description         | size    | queued
+    "a full payload"    | 1 << 20 | 0
+    "a backed up queue" | 1024    | 600
+  }
+
+  def "small payloads sent quickly lengthen the flush interval"() {
+    when:
+    controller.onSend(1024, FAST, true, 0, 1024)
+
+    then:
+    controller.payloadBytes == 1 << 20
+    controller.flushIntervalMillis == 1100
+  }
+
+  def "values stay within their bounds"() {
+    when:
+    100.times { controller.onSend(1024, SLOW, false, 0, 1024) }
+
+    then:
+    controller.payloadBytes == 64 << 10
+    controller.flushIntervalMillis == 1800
+
+    when:
+    100.times { controller.onSend(controller.payloadBytes, FAST, true, 1024, 1024) }
+
+    then:
+    controller.payloadBytes == (64 << 10) + (16 << 20)
+    controller.flushIntervalMillis == 200
+  }
+}
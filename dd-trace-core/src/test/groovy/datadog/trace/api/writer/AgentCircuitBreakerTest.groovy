@@ -0,0 +1,122 @@
+package datadog.trace.api.writer
+
+import datadog.trace.common.writer.ddagent.AgentCircuitBreaker
+import datadog.trace.util.test.DDSpecification
+
+import static datadog.trace.common.writer.ddagent.AgentCircuitBreaker.State.CLOSED
+import static datadog.trace.common.writer.ddagent.AgentCircuitBreaker.State.HALF_OPEN
+import static datadog.trace.common.writer.ddagent.AgentCircuitBreaker.State.OPEN
+
+class AgentCircuitBreakerTest extends DDSpecification {
+
+  def listener = Mock(AgentCircuitBreaker.Listener)
+  def breaker = new AgentCircuitBreaker(3, 50, 150)
+
+  def setup() {
+    breaker.addListener(listener)
+  }
+
+  def "opens after #failures consecutive failures"() {
+    when:
+    failures.times { breaker.onFailure() }
+
+    then:
+    breaker.state == expected
+    breaker.allowRequest() == (expected == CLOSED)
+
+    where:
+    failures | expected
+    1        | CLOSED
+    2        | CLOSED
+    3        | OPEN
+  }
+
+  def "a success resets the count of consecutive failures"() {
+    when:
+    2.times { breaker.onFailure() }
+    breaker.onSuccess()
+    2.times { breaker.onFailure() }
+
+    then:
+    breaker.state == CLOSED
+    0 * listener._
+  }
+
+  def "lets a single probe through once the backoff has elapsed"() {
+    setup:
+    3.times { breaker.onFailure() }
+
+    when:
+    Thread.sleep(100)
+    def first = breaker.allowRequest()
+    def second = breaker.allowRequest()
+
+    then:
+    first
+    !second
+    breaker.state == HALF_OPEN
+    1 * listener.onStateChange(HALF_OPEN, 0)
+  }
+
+  def "a successful probe closes the circuit"() {
+    setup:
+    3.times { breaker.onFailure() }
+    Thread.sleep(100)
+    breaker.allowRequest()
+
+    when:
+    def closed = breaker.onSuccess()
+
+    then:
+    closed
+    breaker.state == CLOSED
+    breaker.allowRequest()
+    1 * listener.onStateChange(CLOSED, 0)
+  }
+
+  def "a failed probe opens the circuit for longer, up to the maximum backoff"() {
+    when:
+    3.times { breaker.onFailure() }
+
+    then:
+    1 * listener.onStateChange(OPEN, { it >= 50 && it <= 55 })
+
+    when:
+    Thread.sleep(100)
+    breaker.allowRequest()
+    breaker.onFailure()
+
+    then:
+    1 * listener.onStateChange(HALF_OPEN, 0)
+    1 * listener.onStateChange(OPEN, { it >= 100 && it <= 110 })
+
+    when:
+    Thread.sleep(150)
+    breaker.allowRequest()
+    breaker.onFailure()
+
+    then:
+    1 * listener.onStateChange(HALF_OPEN, 0)
+    1 * listener.onStateChange(OPEN, { it >= 150 && it <= 165 })
+    breaker.state == OPEN
+    !breaker.allowRequest()
+  }
+
+  def "a probe which never reports back opens the circuit again"() {
+    setup:
+    3.times { breaker.onFailure() }
+    Thread.sleep(100)
+
+    when:
+    def probe = breaker.allowRequest()
+    Thread.sleep(200)
+    def afterTimeout = breaker.allowRequest()
+
+    then:
+    probe
+    !afterTimeout
+    breaker.state == OPEN
+    1 * listener.onStateChange(HALF_OPEN, 0)
+    1 * listener.onStateChange(OPEN, { it >= 100 && it <= 110 })
+  }
+}
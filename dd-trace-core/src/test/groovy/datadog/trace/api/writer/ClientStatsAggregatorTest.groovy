@@ -0,0 +1,107 @@
+package datadog.trace.api.writer
+
+import com.fasterxml.jackson.core.type.TypeReference
+import com.fasterxml.jackson.databind.ObjectMapper
+import datadog.trace.common.writer.ListWriter
+import datadog.trace.common.writer.ddagent.ClientStatsAggregator
+import datadog.trace.core.CoreTracer
+import datadog.trace.util.test.DDSpecification
+import org.msgpack.jackson.dataformat.MessagePackFactory
+
+class ClientStatsAggregatorTest extends DDSpecification {
+  static mapper = new ObjectMapper(new MessagePackFactory())
+
+  def tracer = CoreTracer.builder().writer(new ListWriter()).build()
+
+  def cleanup() {
+    tracer.close()
+  }
+
+  def "aggregates spans by service, resource, operation, type and status"() {
+    setup:
+    def aggregator = new ClientStatsAggregator("host", "test", "1.0", "runtime")
+    3.times {
+      aggregator.record(trace(200, false))
+    }
+    aggregator.record(trace(500, true))
+
+    when:
+    def payload = decode(aggregator.drain())
+    def stats = payload["Stats"][0]["Stats"].sort {
+      it["Service"] + it["Name"] + it["HTTPStatusCode"]
+    }
+
+    then:
+    payload["Hostname"] == "host"
+    payload["Env"] == "test"
+    payload["Version"] == "1.0"
+    payload["RuntimeID"] == "runtime"
+    payload["Sequence"] == 1
+    stats.size() == 4
+    stats[0]["Service"] == "db"
+    stats[0]["Name"] == "database.query"
+    stats[0]["Hits"] == 4
+    stats[0]["TopLevelHits"] == 4
+    stats[0]["Errors"] == 0
+    // the span of the same service as its parent is not top-level
+    stats[1]["Name"] == "cache.get"
+    stats[1]["Hits"] == 4
+    stats[1]["TopLevelHits"] == 0
+    stats[2]["Service"] == "web"
+    stats[2]["Resource"] == "GET /users"
+    stats[2]["Type"] == "web"
+    stats[2]["HTTPStatusCode"] == 200
+    stats[2]["Hits"] == 3
+    stats[2]["TopLevelHits"] == 3
+    stats[2]["Errors"] == 0
+    stats[2]["Duration"] > 0
+    stats[3]["HTTPStatusCode"] == 500
+    stats[3]["Hits"] == 1
+    stats[3]["Errors"] == 1
+    stats.every { it["OkSummary"] instanceof byte[] && it["ErrorSummary"] instanceof byte[] }
+  }
+
+  def "nothing is sent when nothing was recorded since the last drain"() {
+    setup:
+    def aggregator = new ClientStatsAggregator(null, "test", null, "runtime")
+    aggregator.record(trace(200, false))
+
+    expect:
+    aggregator.drain() != null
+    aggregator.drain() == null
+
+    when:
+    aggregator.record(trace(200, false))
+
+    then:
+    decode(aggregator.drain())["Stats"][0]["Stats"].size() == 3
+  }
+
+  def trace(int status, boolean error) {
+    def root = tracer.buildSpan("servlet.request")
+      .withServiceName("web")
+      .withResourceName("GET /users")
+      .withSpanType("web")
+      .withTag("http.status_code", status)
+      .start()
+    root.setError(error)
+    def cache = tracer.buildSpan("cache.get")
+      .withServiceName("web")
+      .asChildOf(root.context())
+      .start()
+    cache.finish()
+    def db = tracer.buildSpan("database.query")
+      .withServiceName("db")
+      .withResourceName("SELECT * FROM users")
+      .withSpanType("sql")
+      .asChildOf(root.context())
+      .start()
+    db.finish()
+    root.finish()
+    return [root, cache, db]
+  }
+
+  static Map<String, Object> decode(byte[] bytes) {
+    return mapper.readValue(bytes, new TypeReference<Map<String, Object>>() {})
+  }
+}
@@ -2,12 +2,13 @@ package datadog.trace.api.writer
 
 import com.fasterxml.jackson.core.type.TypeReference
 import com.fasterxml.jackson.databind.ObjectMapper
-import com.google.common.io.Files
-import datadog.trace.MsgPackStatefulDeserializer
 import datadog.trace.common.sampling.RateByServiceSampler
+import datadog.trace.common.writer.ddagent.AgentCircuitBreaker
+import datadog.trace.common.writer.ddagent.CompressionType
 import datadog.trace.common.writer.ddagent.DDAgentApi
 import datadog.trace.common.writer.ddagent.DDAgentResponseListener
 import datadog.trace.common.writer.ddagent.MsgPackStatefulSerializer
+import datadog.trace.common.writer.ddagent.TraceBuffer
 import datadog.trace.core.DDSpan
 import datadog.trace.core.DDSpanContext
 import datadog.trace.core.SpanFactory
@@ -15,7 +16,10 @@ import datadog.trace.util.test.DDSpecification
 import org.msgpack.jackson.dataformat.MessagePackFactory
 import spock.lang.Timeout
 
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.GZIPInputStream
 import java.util.concurrent.atomic.AtomicReference
 
 import static datadog.trace.agent.test.server.http.TestHttpServer.httpServer
@@ -280,30 +284,185 @@ class DDAgentApiTest extends DDSpecification {
     65541          | (1..(1 << 16)).collect { [] }
   }
 
-  def "parse file"() {
+  def "payloads of at least #threshold bytes are gzipped"() {
     setup:
-    def deserializer = new MsgPackStatefulDeserializer();
+    def agent = httpServer {
+      handlers {
+        put("v0.4/traces") {
+          response.status(200).send()
+        }
+      }
+    }
+    def client = new DDAgentApi("localhost", agent.address.port, null, CompressionType.GZIP, threshold)
+    def traces = (1..10).collect { [SpanFactory.newSpanOf(1L)] }
+    def request = prepareTraces(traces)
+
     when:
-//    File file = new File("/home/jacek/.snapwatch/recordings/2020-05-30T15-47-46");
-    File dir = new File("/home/jacek/.snapwatch/recordings");
-    dir.listFiles().toList().each {
-      def file = it
-      def bytes = Files.toByteArray(file)
-      println "file: " + file.getCanonicalPath() + ", size: " + bytes.length;
-      if(bytes.length > 0) {
-        def deserialized = deserializer.deserialize(bytes);
-
-        deserialized.each {
-          println "trace"
-          it.each {
-            print "span "
-            println "name:" + it['name'] + " span_id:" + it['span_id'] + " parent_id:" + it['parent_id'] + " # all details:" + it
+    def success = client.sendSerializedTraces(request).success()
+    def encoding = agent.lastRequest.headers.get("Content-Encoding")
+    def body = agent.lastRequest.body
+
+    then:
+    success
+    encoding == (gzipped ? "gzip" : null)
+    convertList(gzipped ? new GZIPInputStream(new ByteArrayInputStream(body)).bytes : body).size() == 10
+    !gzipped || body.length < request.headerSize() + request.sizeInBytes()
+
+    cleanup:
+    agent.close()
+
+    where:
+    threshold | gzipped
+    0         | true
+    100       | true
+    1 << 20   | false
+  }
+
+  def "client computed stats are only declared once the agent accepts stats"() {
+    setup:
+    def agent = httpServer {
+      handlers {
+        put("v0.4/traces") {
+          response.send()
+        }
+        if (statsAvailable) {
+          put("v0.6/stats") {
+            // the probe's empty payload isn't a valid stats payload
+            response.status(400).send()
           }
         }
       }
     }
+    def client = new DDAgentApi("localhost", agent.address.port, null)
+    client.setClientComputedStats(true)
+
+    expect:
+    client.sendSerializedTraces(prepareTraces([])).success()
+    client.clientComputedStats == statsAvailable
+    agent.lastRequest.headers.get("Datadog-Client-Computed-Stats") == header
+
+    cleanup:
+    agent.close()
+
+    where:
+    statsAvailable | header
+    true           | "yes"
+    false          | null
+  }
+
+  def "requests fail fast while the circuit is open"() {
+    setup:
+    def status = new AtomicInteger(200)
+    def requests = new AtomicInteger()
+    def agent = httpServer {
+      handlers {
+        put("v0.4/traces") {
+          requests.incrementAndGet()
+          response.status(status.get()).send()
+        }
+      }
+    }
+    def breaker = new AgentCircuitBreaker(2, 100, 1000)
+    def client = new DDAgentApi("localhost", agent.address.port, null, CompressionType.OFF, 0, breaker)
+
+    when: "the agent starts failing"
+    client.sendSerializedTraces(prepareTraces([]))
+    status.set(500)
+    def failures = (1..2).collect { client.sendSerializedTraces(prepareTraces([])) }
+    def sent = requests.get()
+    def fastFailure = client.sendSerializedTraces(prepareTraces([]))
+
+    then:
+    failures*.status() == [500, 500]
+    breaker.state == AgentCircuitBreaker.State.OPEN
+    !fastFailure.success()
+    fastFailure.status() == null
+    fastFailure.exception() instanceof IOException
+    requests.get() == sent
+
+    when: "the agent recovers after the backoff"
+    status.set(200)
+    Thread.sleep(200)
+    def probe = client.sendSerializedTraces(prepareTraces([]))
+
+    then:
+    probe.success()
+    breaker.state == AgentCircuitBreaker.State.CLOSED
+    requests.get() == sent + 1
+
+    cleanup:
+    agent.close()
+  }
+
+  def "a probe which throws opens the circuit again"() {
+    setup:
+    def agent = httpServer {
+      handlers {
+        put("v0.4/traces") {
+          response.status(500).send()
+        }
+      }
+    }
+    def breaker = new AgentCircuitBreaker(1, 50, 1000)
+    def client = new DDAgentApi("localhost", agent.address.port, null, CompressionType.OFF, 0, breaker)
+    def broken = Stub(TraceBuffer) {
+      representativeCount() >> { throw new IllegalStateException("broken buffer") }
+    }
+
+    when:
+    client.sendSerializedTraces(prepareTraces([]))
+    Thread.sleep(100)
+    client.sendSerializedTraces(broken)
+
     then:
-    println "all OK"
+    thrown(IllegalStateException)
+    breaker.state == AgentCircuitBreaker.State.OPEN
+
+    cleanup:
+    agent.close()
+  }
+
+  def "v0.4 is probed again once a recovered agent is reachable"() {
+    setup:
+    def v4Available = new AtomicBoolean(false)
+    def v3Status = new AtomicInteger(503)
+    def agent = httpServer {
+      handlers {
+        put("v0.4/traces") {
+          response.status(v4Available.get() ? 200 : 404).send()
+        }
+        put("v0.3/traces") {
+          response.status(v3Status.get()).send()
+        }
+      }
+    }
+    def breaker = new AgentCircuitBreaker(1, 50, 1000)
+    def client = new DDAgentApi("localhost", agent.address.port, null, CompressionType.OFF, 0, breaker)
+
+    when:
+    def downgraded = client.sendSerializedTraces(prepareTraces([]))
+
+    then:
+    downgraded.status() == 503
+    agent.lastRequest.path == "/v0.3/traces"
+    breaker.state == AgentCircuitBreaker.State.OPEN
+
+    when:
+    v4Available.set(true)
+    v3Status.set(200)
+    Thread.sleep(100)
+    def recovered = client.sendSerializedTraces(prepareTraces([]))
+    def recoveredPath = agent.lastRequest.path
+    def upgraded = client.sendSerializedTraces(prepareTraces([]))
+
+    then:
+    recovered.success()
+    recoveredPath == "/v0.3/traces"
+    upgraded.success()
+    agent.lastRequest.path == "/v0.4/traces"
+
+    cleanup:
+    agent.close()
   }
 
   static List<List<TreeMap<String, Object>>> convertList(byte[] bytes) {
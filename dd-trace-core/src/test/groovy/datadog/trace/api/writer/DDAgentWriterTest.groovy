@@ -1,13 +1,18 @@
 package datadog.trace.api.writer
 
+import com.google.common.io.Files
 import com.timgroup.statsd.StatsDClient
 import datadog.trace.api.sampling.PrioritySampling
 import datadog.trace.common.writer.DDAgentWriter
+import datadog.trace.common.writer.ddagent.ClientStatsAggregator
 import datadog.trace.common.writer.ddagent.DDAgentApi 
 import datadog.trace.common.writer.ddagent.Monitor
 import datadog.trace.common.writer.ddagent.MsgPackStatefulSerializer
+import datadog.trace.common.writer.ddagent.SpillQueue
 import datadog.trace.common.writer.ddagent.TraceBuffer
+import datadog.trace.common.writer.ddagent.TraceMemoryBudget
 import datadog.trace.core.CoreTracer
+import datadog.trace.core.DDId
 import datadog.trace.core.DDSpan
 import datadog.trace.core.DDSpanContext
 import datadog.trace.core.PendingTrace
@@ -17,6 +22,7 @@ import org.msgpack.core.buffer.ArrayBufferOutput
 import spock.lang.Retry
 import spock.lang.Timeout
 
+import java.util.concurrent.CountDownLatch
 import java.util.concurrent.Phaser
 import java.util.concurrent.Semaphore
 import java.util.concurrent.TimeUnit
@@ -122,6 +128,384 @@ class DDAgentWriterTest extends DDSpecification {
     traceCount = 100 // Shouldn't trigger payload, but bigger than the disruptor size.
   }
 
+  def "test traces are partitioned across #threads serializer threads"() {
+    setup:
+    def sent = new AtomicInteger()
+    def api = Stub(DDAgentApi) {
+      sendSerializedTraces(_) >> { TraceBuffer buffer ->
+        sent.addAndGet(buffer.traceCount())
+        return DDAgentApi.Response.success(200)
+      }
+    }
+    def writer = DDAgentWriter.builder()
+      .agentApi(api)
+      .traceBufferSize(1024)
+      .flushFrequencySeconds(-1)
+      .serializerThreads(threads)
+      .build()
+    writer.start()
+
+    when:
+    (1..traceCount).each {
+      writer.write(trace)
+    }
+    writer.flush()
+
+    then:
+    sent.get() == traceCount
+
+    cleanup:
+    writer.close()
+
+    where:
+    threads << [1, 2, 4]
+    trace = [newSpanOf(0, "fixed-thread-name")]
+    traceCount = 500
+  }
+
+  def "test #threads serializer threads recover from a stalled sender"() {
+    setup:
+    def released = new CountDownLatch(1)
+    def sent = new AtomicInteger()
+    def api = Stub(DDAgentApi) {
+      sendSerializedTraces(_) >> { TraceBuffer buffer ->
+        released.await(10, TimeUnit.SECONDS)
+        sent.addAndGet(buffer.traceCount())
+        return DDAgentApi.Response.success(200)
+      }
+    }
+    def writer = DDAgentWriter.builder()
+      .agentApi(api)
+      .traceBufferSize(16)
+      .flushFrequencySeconds(1)
+      .serializerThreads(threads)
+      .build()
+    writer.start()
+
+    when: "the workers keep committing buffers while the sender is stalled, until none is left"
+    (1..30).each {
+      writer.write(trace)
+      Thread.sleep(100)
+    }
+    def flushedWhileStalled = writer.flush()
+    released.countDown()
+    writer.flush()
+
+    and:
+    def before = sent.get()
+    (1..traceCount).each {
+      writer.write(trace)
+    }
+
+    then:
+    !flushedWhileStalled
+    writer.flush()
+    sent.get() - before >= traceCount
+
+    cleanup:
+    writer.close()
+
+    where:
+    threads << [2, 4]
+    trace = [newSpanOf(0, "fixed-thread-name")]
+    traceCount = 10
+  }
+
+  def "test up to #inflight requests are in flight at once"() {
+    setup:
+    def inFlight = new AtomicInteger()
+    def maxInFlight = new AtomicInteger()
+    def allInFlight = new CountDownLatch(inflight)
+    def sent = new AtomicInteger()
+    def api = Stub(DDAgentApi) {
+      sendSerializedTraces(_) >> { TraceBuffer buffer ->
+        def current = inFlight.incrementAndGet()
+        synchronized (maxInFlight) {
+          maxInFlight.set(Math.max(maxInFlight.get(), current))
+        }
+        allInFlight.countDown()
+        allInFlight.await(5, TimeUnit.SECONDS)
+        inFlight.decrementAndGet()
+        sent.addAndGet(buffer.traceCount())
+        return DDAgentApi.Response.success(200)
+      }
+    }
+    // every trace fills a buffer
+    def writer = DDAgentWriter.builder()
+      .agentApi(api)
+      .serializer(new MsgPackStatefulSerializer(1, 1024))
+      .flushFrequencySeconds(-1)
+      .inflightRequests(inflight)
+      .build()
+    writer.start()
+
+    when:
+    (1..traceCount).each {
+      writer.write(trace)
+    }
+    writer.flush()
+
+    then:
+    sent.get() == traceCount
+    maxInFlight.get() == inflight
+
+    cleanup:
+    writer.close()
+
+    where:
+    inflight << [1, 4]
+    trace = [newSpanOf(0, "fixed-thread-name")]
+    traceCount = 16
+  }
+
+  def "test traces staged in #stripes submission stripes are all sent"() {
+    setup:
+    def sent = new AtomicInteger()
+    def api = Stub(DDAgentApi) {
+      sendSerializedTraces(_) >> { TraceBuffer buffer ->
+        sent.addAndGet(buffer.traceCount())
+        return DDAgentApi.Response.success(200)
+      }
+    }
+    def writer = DDAgentWriter.builder()
+      .agentApi(api)
+      .traceBufferSize(1024)
+      .flushFrequencySeconds(-1)
+      .submissionStripes(stripes)
+      .build()
+    writer.start()
+
+    when:
+    def threads = (1..4).collect {
+      Thread.start {
+        (1..tracesPerThread).each {
+          writer.write(trace)
+        }
+      }
+    }
+    threads*.join()
+    writer.flush()
+
+    then:
+    sent.get() == 4 * tracesPerThread
+
+    cleanup:
+    writer.close()
+
+    where:
+    stripes << [1, 4]
+    trace = [newSpanOf(0, "fixed-thread-name")]
+    tracesPerThread = 100
+  }
+
+  def "test staged traces are reported once published, and dropped if left when closing"() {
+    setup:
+    def trace = [newSpanOf(0, "fixed-thread-name")]
+    def writer = DDAgentWriter.builder()
+      .agentApi(api)
+      .monitor(monitor)
+      .traceBufferSize(2)
+      .flushFrequencySeconds(-1)
+      .submissionStripes(1)
+      .build()
+
+    // the writer isn't started, so published traces stay in the disruptor
+    when:
+    (1..3).each {
+      writer.write(trace)
+    }
+
+    then:
+    0 * _
+
+    when:
+    writer.submissionBuffer.close()
+
+    then:
+    2 * monitor.onPublish(writer, trace)
+    1 * monitor.onFailedPublish(writer, trace)
+    0 * _
+
+    when:
+    writer.write(trace)
+
+    then:
+    1 * monitor.onFailedPublish(writer, trace)
+    0 * _
+
+    when:
+    writer.start()
+    writer.flush()
+
+    then:
+    _ * api.sendSerializedTraces(_) >> DDAgentApi.Response.success(200)
+
+    cleanup:
+    writer.close()
+  }
+
+  def "test lower priority traces are dropped first when over the queue budget"() {
+    setup:
+    def dropTrace = [newSpanOf(0, "fixed-thread-name")]
+    dropTrace[0].setSamplingPriority(PrioritySampling.SAMPLER_DROP)
+    def keepTrace = [newSpanOf(0, "fixed-thread-name")]
+    keepTrace[0].setSamplingPriority(PrioritySampling.USER_KEEP)
+    def footprint = new TraceMemoryBudget(0).estimate(dropTrace)
+    def writer = DDAgentWriter.builder()
+      .agentApi(api)
+      .monitor(monitor)
+      .flushFrequencySeconds(-1)
+      .queueBudgetBytes(4 * footprint)
+      .build()
+
+    // the writer isn't started, so queued traces hold on to their footprint
+    when:
+    (1..3).each {
+      writer.write(dropTrace)
+    }
+
+    then:
+    2 * monitor.onBudgetedPublish(writer, dropTrace, footprint, true)
+    2 * monitor.onPublish(writer, dropTrace)
+    1 * monitor.onBudgetedPublish(writer, dropTrace, footprint, false)
+    1 * monitor.onFailedPublish(writer, dropTrace)
+    0 * _
+    writer.queuedBytes == 2 * footprint
+
+    when:
+    (1..3).each {
+      writer.write(keepTrace)
+    }
+
+    then:
+    2 * monitor.onBudgetedPublish(writer, keepTrace, footprint, true)
+    2 * monitor.onPublish(writer, keepTrace)
+    1 * monitor.onBudgetedPublish(writer, keepTrace, footprint, false)
+    1 * monitor.onFailedPublish(writer, keepTrace)
+    0 * _
+    writer.queuedBytes == 4 * footprint
+
+    when:
+    writer.start()
+    writer.flush()
+
+    then:
+    _ * api.sendSerializedTraces(_) >> DDAgentApi.Response.success(200)
+    writer.queuedBytes == 0
+
+    cleanup:
+    writer.close()
+  }
+
+  def "test traces dropped by the sampler are counted but not serialized with client stats"() {
+    setup:
+    def sent = new AtomicInteger()
+    def represented = new AtomicInteger()
+    def api = Stub(DDAgentApi) {
+      isClientComputedStats() >> true
+      sendSerializedTraces(_) >> { TraceBuffer buffer ->
+        sent.addAndGet(buffer.traceCount())
+        represented.addAndGet(buffer.representativeCount())
+        return DDAgentApi.Response.success(200)
+      }
+    }
+    def clientStats = new ClientStatsAggregator(null, "test", null, "runtime")
+    def dropTrace = [newSpanOf(0, "fixed-thread-name")]
+    dropTrace[0].setSamplingPriority(PrioritySampling.SAMPLER_DROP)
+    def keepTrace = [newSpanOf(0, "fixed-thread-name")]
+    keepTrace[0].setSamplingPriority(PrioritySampling.SAMPLER_KEEP)
+    def writer = DDAgentWriter.builder()
+      .agentApi(api)
+      .flushFrequencySeconds(-1)
+      .clientStats(clientStats)
+      .build()
+    writer.start()
+
+    when:
+    writer.write(dropTrace)
+    writer.write(keepTrace)
+    writer.flush()
+
+    then:
+    sent.get() == 1
+    represented.get() == 2
+    ClientStatsAggregatorTest.decode(clientStats.drain())["Stats"][0]["Stats"][0]["Hits"] == 2
+
+    cleanup:
+    writer.close()
+  }
+
+  def "test traces dropped by the sampler are serialized until the agent accepts client stats"() {
+    setup:
+    def sent = new AtomicInteger()
+    def represented = new AtomicInteger()
+    def api = Stub(DDAgentApi) {
+      isClientComputedStats() >> false
+      sendSerializedTraces(_) >> { TraceBuffer buffer ->
+        sent.addAndGet(buffer.traceCount())
+        represented.addAndGet(buffer.representativeCount())
+        return DDAgentApi.Response.success(200)
+      }
+    }
+    def clientStats = new ClientStatsAggregator(null, "test", null, "runtime")
+    def dropTrace = [newSpanOf(0, "fixed-thread-name")]
+    dropTrace[0].setSamplingPriority(PrioritySampling.SAMPLER_DROP)
+    def keepTrace = [newSpanOf(0, "fixed-thread-name")]
+    keepTrace[0].setSamplingPriority(PrioritySampling.SAMPLER_KEEP)
+    def writer = DDAgentWriter.builder()
+      .agentApi(api)
+      .flushFrequencySeconds(-1)
+      .clientStats(clientStats)
+      .build()
+    writer.start()
+
+    when:
+    writer.write(dropTrace)
+    writer.write(keepTrace)
+    writer.flush()
+
+    then:
+    sent.get() == 2
+    represented.get() == 2
+    clientStats.drain() == null
+
+    cleanup:
+    writer.close()
+  }
+
+  def "test buffers of traces dropped by the sampler only are still sent with client stats"() {
+    setup:
+    def sent = new AtomicInteger()
+    def represented = new AtomicInteger()
+    def api = Stub(DDAgentApi) {
+      isClientComputedStats() >> true
+      sendSerializedTraces(_) >> { TraceBuffer buffer ->
+        sent.addAndGet(buffer.traceCount())
+        represented.addAndGet(buffer.representativeCount())
+        return DDAgentApi.Response.success(200)
+      }
+    }
+    def dropTrace = [newSpanOf(0, "fixed-thread-name")]
+    dropTrace[0].setSamplingPriority(PrioritySampling.SAMPLER_DROP)
+    def writer = DDAgentWriter.builder()
+      .agentApi(api)
+      .flushFrequencySeconds(-1)
+      .clientStats(new ClientStatsAggregator(null, "test", null, "runtime"))
+      .build()
+    writer.start()
+
+    when:
+    writer.write(dropTrace)
+    writer.flush()
+
+    then:
+    sent.get() == 0
+    represented.get() == 1
+
+    cleanup:
+    writer.close()
+  }
+
   def "test flush by time"() {
     setup:
     def writer = DDAgentWriter.builder()
@@ -146,7 +530,7 @@ class DDAgentWriterTest extends DDSpecification {
     1 * api.sendSerializedTraces( { it.traceCount() == 5 }) >> DDAgentApi.Response.success(200)
     _ * monitor.onPublish(_, _)
     _ * monitor.onSerialize(_, _, _)
-    1 * monitor.onSend(_, _, _, _) >> {
+    1 * monitor.onSend(_, _, _, _, _) >> {
       phaser.arrive()
     }
     0 * _
@@ -189,9 +573,9 @@ class DDAgentWriterTest extends DDSpecification {
 
     where:
     minimalContext = new DDSpanContext(
-      1G,
-      1G,
-      0G,
+      DDId.from(1),
+      DDId.from(1),
+      DDId.ZERO,
       "",
       "",
       "",
@@ -269,9 +653,9 @@ class DDAgentWriterTest extends DDSpecification {
 
   def createMinimalTrace() {
     def minimalContext = new DDSpanContext(
-      1G,
-      1G,
-      0G,
+      DDId.from(1),
+      DDId.from(1),
+      DDId.ZERO,
       "",
       "",
       "",
@@ -318,7 +702,7 @@ class DDAgentWriterTest extends DDSpecification {
     1 * monitor.onPublish(writer, minimalTrace)
     1 * monitor.onSerialize(writer, minimalTrace, _)
     1 * monitor.onFlush(writer, false)
-    1 * monitor.onSend(writer, 1, _, { response -> response.success() && response.status() == 200 })
+    1 * monitor.onSend(writer, 1, _, _, { response -> response.success() && response.status() == 200 })
 
     when:
     writer.close()
@@ -365,7 +749,7 @@ class DDAgentWriterTest extends DDSpecification {
     1 * monitor.onPublish(writer, minimalTrace)
     1 * monitor.onSerialize(writer, minimalTrace, _)
     1 * monitor.onFlush(writer, false)
-    1 * monitor.onFailedSend(writer, 1, _, { response -> !response.success() && response.status() == 500 })
+    1 * monitor.onFailedSend(writer, 1, _, _, { response -> !response.success() && response.status() == 500 })
 
     when:
     writer.close()
@@ -377,6 +761,52 @@ class DDAgentWriterTest extends DDSpecification {
     agent.close()
   }
 
+  def "monitor traces spilled or dropped while the agent fails (maxBytes=#maxBytes)"() {
+    setup:
+    def minimalTrace = createMinimalTrace()
+    def agent = httpServer {
+      handlers {
+        put("v0.4/traces") {
+          response.status(request.headers.get("X-Datadog-Trace-Count") == null ? 200 : 500).send()
+        }
+      }
+    }
+    def directory = Files.createTempDir()
+    def spillQueue = new SpillQueue(directory, maxBytes, 60_000)
+    def writer = DDAgentWriter.builder()
+      .traceAgentPort(agent.address.port)
+      .monitor(monitor)
+      .spillQueue(spillQueue)
+      .build()
+    writer.start()
+
+    when:
+    writer.write(minimalTrace)
+    writer.flush()
+
+    then:
+    1 * monitor.onFailedSend(writer, 1, _, _, { response -> response.status() == 500 })
+    1 * monitor.onSpill(writer, 1, _, spilled)
+
+    when: "the agent failed recently, so the next buffer is spilled without sending it"
+    writer.write(minimalTrace)
+    writer.flush()
+
+    then:
+    0 * monitor.onFailedSend(*_)
+    1 * monitor.onSpill(writer, 1, _, spilled)
+
+    cleanup:
+    writer.close()
+    agent.close()
+    directory.deleteDir()
+
+    where:
+    maxBytes         | spilled
+    64 * 1024 * 1024 | true
+    1                | false
+  }
+
   def "unreachable agent test"() {
     setup:
     def minimalTrace = createMinimalTrace()
@@ -403,7 +833,7 @@ class DDAgentWriterTest extends DDSpecification {
     1 * monitor.onPublish(writer, minimalTrace)
     1 * monitor.onSerialize(writer, minimalTrace, _)
     1 * monitor.onFlush(writer, false)
-    1 * monitor.onFailedSend(writer, 1, _, { response -> !response.success() && response.status() == null })
+    1 * monitor.onFailedSend(writer, 1, _, _, { response -> !response.success() && response.status() == null })
 
     when:
     writer.close()
@@ -451,7 +881,7 @@ class DDAgentWriterTest extends DDSpecification {
       onFlush(_, _) >> {
         numFlushes.incrementAndGet()
       }
-      onSend(_, _, _, _) >> {
+      onSend(_, _, _, _, _) >> {
         numRequests.incrementAndGet()
       }
       onFailedPublish(_, _, _, _) >> {
@@ -545,7 +975,7 @@ class DDAgentWriterTest extends DDSpecification {
       onFailedPublish(_, _) >> {
         numFailedPublish.incrementAndGet()
       }
-      onSend(_, _, _, _) >> { writer, repCount, sizeInBytes, response ->
+      onSend(_, _, _, _, _) >> { writer, repCount, sizeInBytes, latencyNanos, response ->
         numRepSent.addAndGet(repCount)
       }
     }
@@ -0,0 +1,167 @@
+package datadog.trace.api.writer
+
+import com.fasterxml.jackson.core.type.TypeReference
+import com.fasterxml.jackson.databind.ObjectMapper
+import datadog.trace.api.sampling.PrioritySampling
+import datadog.trace.common.writer.ListWriter
+import datadog.trace.common.writer.ddagent.MsgPackByteBufferSerializer
+import datadog.trace.common.writer.ddagent.MsgPackStatefulSerializer
+import datadog.trace.common.writer.ddagent.StatefulSerializer
+import datadog.trace.core.CoreTracer
+import datadog.trace.core.DDId
+import datadog.trace.core.DDSpan
+import datadog.trace.core.DDSpanContext
+import datadog.trace.core.PendingTrace
+import datadog.trace.core.StringTables
+import datadog.trace.util.test.DDSpecification
+import org.msgpack.jackson.dataformat.MessagePackFactory
+
+import java.nio.channels.Channels
+
+class MsgPackByteBufferSerializerTest extends DDSpecification {
+  static mapper = new ObjectMapper(new MessagePackFactory())
+
+  def tracer = CoreTracer.builder().writer(new ListWriter()).build()
+
+  def cleanup() {
+    tracer.close()
+  }
+
+  def "produces the same payload as MsgPackStatefulSerializer for #traceCount traces of #spanCount spans"() {
+    setup:
+    def traces = (1..traceCount).collect { trace(spanCount) }
+
+    expect:
+    decode(serialize(new MsgPackByteBufferSerializer(1 << 20, bufferSize, direct), traces)) ==
+      decode(serialize(new MsgPackStatefulSerializer(), traces))
+
+    where:
+    traceCount | spanCount | bufferSize | direct
+    1          | 1         | 1 << 16    | false
+    3          | 10        | 1 << 16    | true
+    20         | 100       | 1 << 16    | false
+    // the buffer has to grow many times
+    1          | 1000      | 16         | false
+    1          | 1000      | 16         | true
+  }
+
+  def "strings are encoded like String.getBytes"() {
+    setup:
+    def span = tracer.buildSpan("operation").start()
+    span.setTag("key", value)
+    span.finish()
+
+    when:
+    def decoded = decode(serialize(new MsgPackByteBufferSerializer(), [[span]]))
+
+    then:
+    decoded[0][0]["meta"]["key"] == new String(value.getBytes("UTF-8"), "UTF-8")
+
+    where:
+    value << ["a" * 31, "a" * 32, "a" * 256, "a" * 65536, "ü", "€", "😀", "\uD83D", "\uDE00a"]
+  }
+
+  def "ids above Long.MAX_VALUE are written as unsigned"() {
+    setup:
+    def context = new DDSpanContext(
+      DDId.MAX,
+      DDId.from(Long.MIN_VALUE),
+      DDId.ZERO,
+      "service",
+      "operation",
+      "resource",
+      PrioritySampling.UNSET,
+      null,
+      Collections.emptyMap(),
+      false,
+      "type",
+      Collections.emptyMap(),
+      PendingTrace.create(tracer, DDId.MAX),
+      tracer, [:])
+    def span = DDSpan.create(1, context)
+
+    when:
+    def decoded = decode(serialize(new MsgPackByteBufferSerializer(), [[span]]))
+
+    then:
+    decoded[0][0]["trace_id"] == DDId.MAX.toBigInteger()
+    decoded[0][0]["span_id"] == DDId.from(Long.MIN_VALUE).toBigInteger()
+  }
+
+  def "repeated strings are cached"() {
+    setup:
+    def cache = StringTables.RUNTIME_UTF8_CACHE
+    def traces = (1..10).collect { trace(10) }
+    def hits = cache.hits()
+    def misses = cache.misses()
+
+    when:
+    serialize(new MsgPackByteBufferSerializer(), traces)
+
+    then:
+    cache.hits() - hits > cache.misses() - misses
+  }
+
+  def "buffer can be written more than once"() {
+    setup:
+    def serializer = new MsgPackByteBufferSerializer()
+    def buffer = serializer.newBuffer()
+    serializer.reset(buffer)
+    serializer.serialize(trace(10))
+    serializer.dropBuffer()
+
+    when:
+    def first = new ByteArrayOutputStream()
+    buffer.writeTo(Channels.newChannel(first))
+    def second = new ByteArrayOutputStream()
+    buffer.writeTo(Channels.newChannel(second))
+
+    then:
+    first.size() == buffer.headerSize() + buffer.sizeInBytes()
+    first.toByteArray() == second.toByteArray()
+  }
+
+  def trace(int spanCount) {
+    def root = tracer.buildSpan("servlet.request")
+      .withServiceName("web")
+      .withResourceName("GET /users/?")
+      .withSpanType("web")
+      .withTag("http.url", "http://localhost/users/" + spanCount)
+      .withTag("http.status_code", 200)
+      .start()
+    root.setBaggageItem("baggage", "value")
+    def spans = [root]
+    for (int i = 1; i < spanCount; i++) {
+      def child = tracer.buildSpan("database.query")
+        .withServiceName("db")
+        .withResourceName("SELECT * FROM users WHERE id = ?")
+        .withSpanType("sql")
+        .withTag("db.instance", "users")
+        .withTag("db.rows", i)
+        .withTag("ratio", i / 3.0d)
+        .asChildOf(root.context())
+        .start()
+      child.setMetric("metric", 0.5f)
+      child.finish()
+      spans << child
+    }
+    root.finish()
+    return spans
+  }
+
+  static byte[] serialize(StatefulSerializer serializer, List<List<DDSpan>> traces) {
+    def buffer = serializer.newBuffer()
+    serializer.reset(buffer)
+    for (trace in traces) {
+      serializer.serialize(trace)
+    }
+    serializer.dropBuffer()
+    def out = new ByteArrayOutputStream()
+    buffer.writeTo(Channels.newChannel(out))
+    return out.toByteArray()
+  }
+
+  static List<List<TreeMap<String, Object>>> decode(byte[] bytes) {
+    return mapper.readValue(bytes, new TypeReference<List<List<TreeMap<String, Object>>>>() {})
+  }
+}
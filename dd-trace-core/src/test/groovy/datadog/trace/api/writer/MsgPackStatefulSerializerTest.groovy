@@ -0,0 +1,105 @@
+package datadog.trace.api.writer
+
+import datadog.trace.common.writer.ddagent.MsgPackStatefulSerializer
+import datadog.trace.core.DDSpan
+import datadog.trace.util.test.DDSpecification
+
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.GatheringByteChannel
+
+import static datadog.trace.api.writer.MsgPackByteBufferSerializerTest.decode
+import static datadog.trace.core.SpanFactory.newSpanOf
+
+class MsgPackStatefulSerializerTest extends DDSpecification {
+
+  def "#traceCount traces packed into #bufferSize byte chunks are written whole"() {
+    setup:
+    def serializer = new MsgPackStatefulSerializer(1 << 20, bufferSize)
+    def buffer = serializer.newBuffer()
+    def traces = (1..traceCount).collect { [newSpanOf(it)] }
+
+    when:
+    serializer.reset(buffer)
+    traces.each { serializer.serialize(it) }
+    serializer.dropBuffer()
+    def sequential = new ByteArrayOutputStream()
+    buffer.writeTo(Channels.newChannel(sequential))
+    def gathering = new TrickleChannel(7)
+    buffer.writeTo(gathering)
+
+    then:
+    sequential.size() == buffer.headerSize() + buffer.sizeInBytes()
+    gathering.bytes.toByteArray() == sequential.toByteArray()
+    gathering.writes > 0
+    decode(sequential.toByteArray()).size() == traceCount
+
+    where:
+    traceCount | bufferSize
+    1          | 1 << 16
+    20         | 1 << 16
+    20         | 64
+    100        | 16
+  }
+
+  def "a buffer reused for fewer traces only writes the new traces"() {
+    setup:
+    def serializer = new MsgPackStatefulSerializer(1 << 20, 64)
+    def buffer = serializer.newBuffer()
+
+    when:
+    write(serializer, buffer, (1..50).collect { [newSpanOf(it)] })
+    def bytes = write(serializer, buffer, [[newSpanOf(1)], [newSpanOf(2)]])
+
+    then:
+    bytes.length == buffer.headerSize() + buffer.sizeInBytes()
+    decode(bytes).size() == 2
+  }
+
+  static byte[] write(MsgPackStatefulSerializer serializer, buffer, List<List<DDSpan>> traces) {
+    serializer.reset(buffer)
+    traces.each { serializer.serialize(it) }
+    serializer.dropBuffer()
+    def out = new ByteArrayOutputStream()
+    buffer.writeTo(new TrickleChannel(1 << 20))
+    buffer.writeTo(Channels.newChannel(out))
+    return out.toByteArray()
+  }
+
+  /** Accepts at most a few bytes per write, like a socket with a full send buffer. */
+  static class TrickleChannel implements GatheringByteChannel {
+    final int maxBytesPerWrite
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+    int writes
+
+    TrickleChannel(int maxBytesPerWrite) {
+      this.maxBytesPerWrite = maxBytesPerWrite
+    }
+
+    long write(ByteBuffer[] srcs, int offset, int length) {
+      ++writes
+      long written = 0
+      for (int i = offset; i < offset + length && written < maxBytesPerWrite; ++i) {
+        while (srcs[i].hasRemaining() && written < maxBytesPerWrite) {
+          bytes.write(srcs[i].get())
+          ++written
+        }
+      }
+      return written
+    }
+
+    long write(ByteBuffer[] srcs) {
+      return write(srcs, 0, srcs.length)
+    }
+
+    int write(ByteBuffer src) {
+      return (int) write([src] as ByteBuffer[])
+    }
+
+    boolean isOpen() {
+      return true
+    }
+
+    void close() {}
+  }
+}
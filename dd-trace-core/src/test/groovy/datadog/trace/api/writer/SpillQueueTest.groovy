@@ -0,0 +1,236 @@
+package datadog.trace.api.writer
+
+import com.google.common.io.Files
+import datadog.trace.common.writer.ddagent.DDAgentApi
+import datadog.trace.common.writer.ddagent.Monitor
+import datadog.trace.common.writer.ddagent.SpillQueue
+import datadog.trace.common.writer.ddagent.TraceBuffer
+import datadog.trace.util.test.DDSpecification
+import spock.lang.Timeout
+
+import java.nio.ByteBuffer
+import java.nio.channels.WritableByteChannel
+import java.util.concurrent.CopyOnWriteArrayList
+
+import static datadog.trace.agent.test.server.http.TestHttpServer.httpServer
+
+@Timeout(20)
+class SpillQueueTest extends DDSpecification {
+
+  static final long MB = 1 << 20
+
+  def directory = Files.createTempDir()
+
+  def cleanup() {
+    directory.deleteDir()
+  }
+
+  def "spilled buffers are replayed in order"() {
+    setup:
+    def queue = new SpillQueue(directory, 64 * MB, 60_000)
+
+    when:
+    queue.append(new BytesBuffer(1, 100))
+    queue.append(new BytesBuffer(2, 200))
+    queue.append(new BytesBuffer(3, 300))
+
+    then:
+    !queue.empty
+    replayAll(queue) == [[1, 100], [2, 200], [3, 300]]
+    queue.empty
+    queue.peek() == null
+
+    cleanup:
+    queue.close()
+  }
+
+  def "spilled buffers survive reopening the queue"() {
+    setup:
+    def queue = new SpillQueue(directory, 64 * MB, 60_000)
+    queue.append(new BytesBuffer(1, 100))
+    queue.append(new BytesBuffer(2, 200))
+    queue.remove(queue.peek())
+    queue.append(new BytesBuffer(3, 300))
+    queue.close()
+
+    when:
+    def reopened = new SpillQueue(directory, 64 * MB, 60_000)
+
+    then:
+    replayAll(reopened) == [[2, 200], [3, 300]]
+
+    cleanup:
+    reopened.close()
+  }
+
+  def "oldest segment is dropped when the queue is full"() {
+    setup:
+    def size = (int) (3 * MB)
+    def queue = new SpillQueue(directory, 8 * MB, 60_000)
+
+    when:
+    def spilled = (1..3).collect { queue.append(new BytesBuffer(it, size)) }
+
+    then:
+    spilled == [true, true, true]
+    queue.diskBytes <= 8 * MB
+    replayAll(queue) == [[2, size], [3, size]]
+
+    cleanup:
+    queue.close()
+  }
+
+  def "buffers larger than the queue are dropped"() {
+    setup:
+    def queue = new SpillQueue(directory, 4 * MB, 60_000)
+
+    expect:
+    !queue.append(new BytesBuffer(1, (int) (4 * MB)))
+    queue.empty
+
+    cleanup:
+    queue.close()
+  }
+
+  def "buffers are neither spilled nor replayed once closed"() {
+    setup:
+    def queue = new SpillQueue(directory, 64 * MB, 60_000)
+    queue.append(new BytesBuffer(1, 100))
+
+    when:
+    queue.close()
+
+    then:
+    !queue.append(new BytesBuffer(2, 200))
+    queue.peek() == null
+    directory.listFiles().length == 1
+  }
+
+  def "buffers older than the maximum age are not replayed"() {
+    setup:
+    def queue = new SpillQueue(directory, 64 * MB, 0)
+    queue.append(new BytesBuffer(1, 100))
+    Thread.sleep(10)
+
+    expect:
+    queue.peek() == null
+    queue.empty
+
+    cleanup:
+    queue.close()
+  }
+
+  def "replay stops at the first failure and resumes once the agent recovers"() {
+    setup:
+    def status = 500
+    def received = new CopyOnWriteArrayList<String>()
+    def agent = httpServer {
+      handlers {
+        put("v0.4/traces") {
+          def count = request.headers.get("X-Datadog-Trace-Count")
+          if (count == null) {
+            // endpoint detection
+            response.status(200).send()
+          } else {
+            received.add(count)
+            response.status(status).send()
+          }
+        }
+      }
+    }
+    def api = new DDAgentApi("localhost", agent.address.port, null)
+    def queue = new SpillQueue(directory, 64 * MB, 60_000)
+    (1..3).each { queue.append(new BytesBuffer(it, 100)) }
+
+    when:
+    queue.replay(api, new Monitor.Noop(), null)
+
+    then:
+    received == ["1"]
+    queue.bypassing
+    !queue.empty
+
+    when:
+    status = 200
+    Thread.sleep(1100)
+    queue.replay(api, new Monitor.Noop(), null)
+
+    then:
+    !queue.bypassing
+    received == ["1", "1", "2", "3"]
+    queue.empty
+
+    cleanup:
+    queue.close()
+    agent.close()
+  }
+
+  def replayAll(SpillQueue queue) {
+    def replayed = []
+    def buffer
+    while ((buffer = queue.peek()) != null) {
+      def bytes = new ByteArrayOutputStream()
+      buffer.writeTo(new WritableByteChannel() {
+        int write(ByteBuffer src) {
+          def written = src.remaining()
+          while (src.hasRemaining()) {
+            bytes.write(src.get())
+          }
+          return written
+        }
+
+        boolean isOpen() {
+          return true
+        }
+
+        void close() {}
+      })
+      assert bytes.toByteArray().every { it == (byte) buffer.representativeCount() }
+      replayed.add([buffer.representativeCount(), bytes.size()])
+      queue.remove(buffer)
+    }
+    return replayed
+  }
+
+  static class BytesBuffer implements TraceBuffer {
+    final int representativeCount
+    final int size
+
+    BytesBuffer(int representativeCount, int size) {
+      this.representativeCount = representativeCount
+      this.size = size
+    }
+
+    int sizeInBytes() {
+      return size
+    }
+
+    int headerSize() {
+      return 0
+    }
+
+    int traceCount() {
+      return 1
+    }
+
+    int representativeCount() {
+      return representativeCount
+    }
+
+    void setRepresentativeCount(int representativeCount) {}
+
+    int id() {
+      return representativeCount
+    }
+
+    void setDispatchRunnable(Runnable runnable) {}
+
+    void onDispatched() {}
+
+    void writeTo(WritableByteChannel channel) {
+      def bytes = new byte[size]
+      Arrays.fill(bytes, (byte) representativeCount)
+      channel.write(ByteBuffer.wrap(bytes))
+    }
+  }
+}
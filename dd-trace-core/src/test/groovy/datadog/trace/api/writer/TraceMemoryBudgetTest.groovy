@@ -0,0 +1,47 @@
+package datadog.trace.api.writer
+
+import datadog.trace.api.sampling.PrioritySampling
+import datadog.trace.common.writer.ddagent.TraceMemoryBudget
+import datadog.trace.util.test.DDSpecification
+
+import static datadog.trace.core.SpanFactory.newSpanOf
+
+class TraceMemoryBudgetTest extends DDSpecification {
+
+  def "estimate grows with span count and tag volume"() {
+    setup:
+    def budget = new TraceMemoryBudget(0)
+    def span = newSpanOf(0)
+    def bigTag = newSpanOf(0)
+    bigTag.setTag("key", "v" * 1000)
+
+    expect:
+    budget.estimate([]) == 0
+    budget.estimate([span, span]) > budget.estimate([span])
+    budget.estimate([bigTag]) > budget.estimate([span]) + 2000
+  }
+
+  def "#priority may use #allowed of the budget"() {
+    setup:
+    def budget = new TraceMemoryBudget(800)
+
+    expect:
+    budget.tryAcquire(allowed, priority)
+    budget.usedBytes == allowed
+    !budget.tryAcquire(1, priority)
+
+    when:
+    budget.release(allowed)
+
+    then:
+    budget.usedBytes == 0
+
+    where:
+    priority                       | allowed
+    PrioritySampling.USER_DROP     | 400
+    PrioritySampling.SAMPLER_DROP  | 400
+    PrioritySampling.UNSET         | 600
+    PrioritySampling.SAMPLER_KEEP  | 700
+    PrioritySampling.USER_KEEP     | 800
+  }
+}
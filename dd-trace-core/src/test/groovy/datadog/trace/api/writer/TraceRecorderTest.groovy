@@ -0,0 +1,221 @@
+package datadog.trace.api.writer
+
+import com.google.common.io.Files
+import datadog.trace.MsgPackStatefulDeserializer
+import datadog.trace.common.writer.RecordingWriter
+import datadog.trace.common.writer.ddagent.DDAgentApi
+import datadog.trace.common.writer.ddagent.Monitor
+import datadog.trace.common.writer.ddagent.MsgPackStatefulSerializer
+import datadog.trace.common.writer.ddagent.TraceBuffer
+import datadog.trace.common.writer.ddagent.TraceRecorder
+import datadog.trace.common.writer.ddagent.TraceRecordingReader
+import datadog.trace.core.DDSpan
+import datadog.trace.util.test.DDSpecification
+import spock.lang.Timeout
+
+import java.nio.ByteBuffer
+import java.nio.channels.WritableByteChannel
+import java.util.concurrent.CopyOnWriteArrayList
+
+import static datadog.trace.agent.test.server.http.TestHttpServer.httpServer
+import static datadog.trace.core.SpanFactory.newSpanOf
+
+@Timeout(20)
+class TraceRecorderTest extends DDSpecification {
+
+  def directory = Files.createTempDir()
+  def serializer = new MsgPackStatefulSerializer()
+  def deserializer = new MsgPackStatefulDeserializer()
+
+  def cleanup() {
+    directory.deleteDir()
+  }
+
+  def prepareTraces(List<List<DDSpan>> traces) {
+    def traceRequest = serializer.newBuffer()
+    serializer.reset(traceRequest)
+    for (trace in traces) {
+      serializer.serialize(trace)
+    }
+    serializer.dropBuffer()
+    traceRequest.setRepresentativeCount(traces.size())
+    return traceRequest
+  }
+
+  def tracesOf(int count) {
+    return (1..count).collect { [newSpanOf(1L)] }
+  }
+
+  def "recorded traces are read back in order with their metadata"() {
+    setup:
+    def recorder = new TraceRecorder(directory, "runtime", 1 << 20, 60_000, 1000)
+
+    when:
+    (1..3).each { recorder.record(prepareTraces(tracesOf(it))) }
+    recorder.close()
+    def segments = TraceRecordingReader.segments(directory)
+    def reader = new TraceRecordingReader(segments[0])
+
+    then:
+    segments.size() == 1
+    reader.metadata["Datadog-Meta-Lang"] == "java"
+    reader.metadata["Datadog-Meta-Tracer-Version"] == "Stubbed-Test-Version"
+    (1..3).each {
+      def traces = reader.next()
+      assert traces.representativeCount() == it
+      assert traces.traceCount() == it
+      assert deserializer.deserialize(bytesOf(traces)).size() == it
+    }
+    reader.next() == null
+
+    cleanup:
+    reader?.close()
+  }
+
+  def "segments roll over after #segmentBytes bytes or #segmentMillis ms"() {
+    setup:
+    def recorder = new TraceRecorder(directory, "runtime", segmentBytes, segmentMillis, 1000)
+
+    when:
+    (1..3).each {
+      recorder.record(prepareTraces(tracesOf(it)))
+      Thread.sleep(2)
+    }
+    recorder.close()
+    def segments = TraceRecordingReader.segments(directory)
+
+    then:
+    segments.size() == expectedSegments
+    segments*.name.unique().size() == expectedSegments
+    readAll(segments)*.representativeCount() == [1, 2, 3]
+
+    where:
+    segmentBytes | segmentMillis | expectedSegments
+    1 << 20      | 60_000        | 1
+    1            | 60_000        | 3
+    1 << 20      | 0             | 3
+  }
+
+  def "a partly written record ends the segment"() {
+    setup:
+    def recorder = new TraceRecorder(directory, "runtime", 1 << 20, 60_000, 0)
+    recorder.record(prepareTraces(tracesOf(1)))
+    recorder.record(prepareTraces(tracesOf(2)))
+    recorder.close()
+    def segment = TraceRecordingReader.segments(directory)[0]
+    def file = new RandomAccessFile(segment, "rw")
+    file.setLength(file.length() - 5)
+    file.close()
+
+    expect:
+    readAll([segment])*.representativeCount() == [1]
+  }
+
+  def "recordings are replayed to the agent with their metadata"() {
+    setup:
+    def received = new CopyOnWriteArrayList<String>()
+    def agent = httpServer {
+      handlers {
+        put("v0.4/traces") {
+          def count = request.headers.get("X-Datadog-Trace-Count")
+          if (count != null) {
+            received.add(count + ":" + request.headers.get("Datadog-Meta-Tracer-Version"))
+          }
+          response.status(200).send()
+        }
+      }
+    }
+    def recorder = new TraceRecorder(directory, "runtime", 1, 60_000, 1000)
+    (1..3).each { recorder.record(prepareTraces(tracesOf(it))) }
+    recorder.close()
+
+    when:
+    def sent = TraceRecordingReader.replay(directory, new DDAgentApi("localhost", agent.address.port, null))
+
+    then:
+    sent == 3
+    received == ["1:Stubbed-Test-Version", "2:Stubbed-Test-Version", "3:Stubbed-Test-Version"]
+
+    cleanup:
+    agent.close()
+  }
+
+  def "a record which fails to be written is truncated away"() {
+    setup:
+    def recorder = new TraceRecorder(directory, "runtime", 1 << 20, 60_000, 1000)
+    def failing = Stub(TraceBuffer) {
+      sizeInBytes() >> 64
+      representativeCount() >> 1
+      traceCount() >> 1
+      writeTo(_) >> { WritableByteChannel channel ->
+        channel.write(ByteBuffer.wrap(new byte[16]))
+        throw new IOException("disk full")
+      }
+    }
+
+    when:
+    recorder.record(prepareTraces(tracesOf(1)))
+    recorder.record(failing)
+
+    then:
+    thrown(IOException)
+
+    when:
+    recorder.record(prepareTraces(tracesOf(2)))
+    recorder.close()
+
+    then:
+    readAll(TraceRecordingReader.segments(directory))*.traceCount() == [1, 2]
+  }
+
+  def "recording writer records written traces"() {
+    setup:
+    def recorder = new TraceRecorder(directory, "runtime", 1 << 20, 60_000, 1000)
+    def writer = new RecordingWriter(recorder, new Monitor.Noop(), 1000)
+    writer.start()
+
+    when:
+    writer.write([newSpanOf(1L)])
+    writer.write([newSpanOf(1L)])
+    writer.flush()
+    writer.close()
+    def recorded = readAll(TraceRecordingReader.segments(directory))
+
+    then:
+    recorded*.traceCount().sum() == 2
+    recorded.collect { deserializer.deserialize(bytesOf(it)).size() }.sum() == 2
+  }
+
+  def readAll(List<File> segments) {
+    def recorded = []
+    for (segment in segments) {
+      def reader = new TraceRecordingReader(segment)
+      def traces
+      while ((traces = reader.next()) != null) {
+        recorded.add(traces)
+      }
+      reader.close()
+    }
+    return recorded
+  }
+
+  static byte[] bytesOf(traces) {
+    def bytes = new ByteArrayOutputStream()
+    traces.writeTo(new WritableByteChannel() {
+      int write(ByteBuffer src) {
+        def written = src.remaining()
+        while (src.hasRemaining()) {
+          bytes.write(src.get())
+        }
+        return written
+      }
+
+      boolean isOpen() {
+        return true
+      }
+
+      void close() {}
+    })
+    return bytes.toByteArray()
+  }
+}
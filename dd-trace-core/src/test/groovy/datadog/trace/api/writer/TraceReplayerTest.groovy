@@ -0,0 +1,136 @@
+package datadog.trace.api.writer
+
+import com.google.common.io.Files
+import datadog.trace.MsgPackStatefulDeserializer
+import datadog.trace.common.writer.ddagent.MsgPackStatefulSerializer
+import datadog.trace.common.writer.ddagent.TraceRecorder
+import datadog.trace.common.writer.ddagent.TraceReplayer
+import datadog.trace.core.DDSpan
+import datadog.trace.util.test.DDSpecification
+import spock.lang.Timeout
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+
+import static datadog.trace.agent.test.server.http.TestHttpServer.httpServer
+import static datadog.trace.core.SpanFactory.newSpanOf
+
+@Timeout(20)
+class TraceReplayerTest extends DDSpecification {
+
+  def directory = Files.createTempDir()
+  def serializer = new MsgPackStatefulSerializer()
+  def deserializer = new MsgPackStatefulDeserializer()
+
+  def cleanup() {
+    directory.deleteDir()
+  }
+
+  def prepareTraces(List<List<DDSpan>> traces) {
+    def traceRequest = serializer.newBuffer()
+    serializer.reset(traceRequest)
+    for (trace in traces) {
+      serializer.serialize(trace)
+    }
+    serializer.dropBuffer()
+    traceRequest.setRepresentativeCount(traces.size() * 10)
+    return traceRequest
+  }
+
+  def record(int... traceCounts) {
+    // one record per segment, so that replay spans several segments
+    def recorder = new TraceRecorder(directory, "runtime", 1, 60_000, 1000)
+    traceCounts.each { count ->
+      recorder.record(prepareTraces((1..count).collect { [newSpanOf(1L)] }))
+    }
+    recorder.close()
+  }
+
+  def "recorded segments are replayed in order"() {
+    setup:
+    def received = new CopyOnWriteArrayList()
+    def agent = httpServer {
+      handlers {
+        put("v0.4/traces") {
+          received.add([
+            request.headers.get("X-Datadog-Trace-Count"),
+            request.headers.get("Datadog-Meta-Tracer-Version"),
+            deserializer.deserialize(request.body).size()
+          ])
+          response.status(200).send()
+        }
+      }
+    }
+    record(1, 2, 3)
+    def replayer = TraceReplayer.builder().traceAgentPort(agent.address.port).build()
+
+    when:
+    def summary = replayer.replay(directory)
+
+    then:
+    received == [["10", "Stubbed-Test-Version", 1], ["20", "Stubbed-Test-Version", 2], ["30", "Stubbed-Test-Version", 3]]
+    summary.requests == 3
+    summary.failedRequests == 0
+    summary.traces == 6
+    summary.bytes > 0
+
+    cleanup:
+    replayer.close()
+    agent.close()
+  }
+
+  def "failed requests are counted"() {
+    setup:
+    def agent = httpServer {
+      handlers {
+        put("v0.4/traces") {
+          response.status(500).send("unavailable")
+        }
+      }
+    }
+    record(1, 1)
+    def replayer = TraceReplayer.builder().traceAgentPort(agent.address.port).build()
+
+    when:
+    def summary = replayer.replay(directory)
+
+    then:
+    summary.requests == 2
+    summary.failedRequests == 2
+
+    cleanup:
+    replayer.close()
+    agent.close()
+  }
+
+  def "replay is limited to #tracesPerSecond traces a second"() {
+    setup:
+    def agent = httpServer {
+      handlers {
+        put("v0.4/traces") {
+          response.status(200).send()
+        }
+      }
+    }
+    record(2, 2, 2)
+    def replayer = TraceReplayer.builder()
+      .traceAgentPort(agent.address.port)
+      .tracesPerSecond(tracesPerSecond)
+      .build()
+
+    when:
+    def summary = replayer.replay(directory)
+
+    then:
+    summary.traces == 6
+    // the last request waits until the first four traces have had their time
+    summary.durationNanos >= TimeUnit.MILLISECONDS.toNanos((long) (4000 / tracesPerSecond))
+
+    cleanup:
+    replayer.close()
+    agent.close()
+
+    where:
+    tracesPerSecond << [10, 20]
+  }
+}
@@ -117,6 +117,78 @@ class CoreSpanBuilderTest extends DDSpecification {
     "empty.tag" | ""
   }
 
+  def "setting a default tag to null should remove it"() {
+    setup:
+    System.setProperty("dd.trace.span.tags", "default.tag:x")
+    def config = new Config()
+    tracer = CoreTracer.builder().config(config).writer(writer).build()
+
+    when:
+    def root = tracer.buildSpan("op name").withTag("default.tag", null).withTag(Config.RUNTIME_ID_TAG, null).start()
+    def child = tracer.buildSpan("op name").asChildOf(root).withTag("default.tag", null).start()
+
+    then:
+    !root.tags.containsKey("default.tag")
+    !child.tags.containsKey("default.tag")
+    // the local root span tags take precedence
+    root.tags[Config.RUNTIME_ID_TAG] == config.getRuntimeId()
+
+    cleanup:
+    System.clearProperty("dd.trace.span.tags")
+  }
+
+  def "start span without a builder"() {
+    setup:
+    System.setProperty("dd.trace.span.tags", "default.tag:x")
+    def config = new Config()
+    tracer = CoreTracer.builder().config(config).writer(writer).build()
+    def tags = ["component": "test", "default.tag": "y", (DDTags.SERVICE_NAME): "other-service"]
+
+    when:
+    def root = tracer.startSpan("root", null, tags)
+    def child = tracer.startSpan("child", root.context(), null)
+
+    then:
+    root.parentId == 0G
+    root.operationName == "root"
+    root.serviceName == "other-service"
+    root.tags == [
+      "component"              : "test",
+      "default.tag"            : "y",
+      (DDTags.THREAD_NAME)     : Thread.currentThread().getName(),
+      (DDTags.THREAD_ID)       : Thread.currentThread().getId(),
+      (Config.RUNTIME_ID_TAG)  : config.getRuntimeId(),
+      (Config.LANGUAGE_TAG_KEY): Config.LANGUAGE_TAG_VALUE,
+    ]
+
+    child.traceId == root.traceId
+    child.parentId == root.spanId
+    child.tags == [
+      "default.tag"       : "x",
+      (DDTags.THREAD_NAME): Thread.currentThread().getName(),
+      (DDTags.THREAD_ID)  : Thread.currentThread().getId(),
+    ]
+
+    cleanup:
+    System.clearProperty("dd.trace.span.tags")
+  }
+
+  def "default tags are decorated before the span's own tags"() {
+    setup:
+    System.setProperty("dd.trace.span.tags", "peer.service:default-peer")
+    def config = new Config()
+    tracer = CoreTracer.builder().config(config).writer(writer).build()
+
+    when:
+    def span = tracer.buildSpan("op name").withTag(DDTags.SERVICE_NAME, "own-service").start()
+
+    then:
+    span.serviceName == "own-service"
+
+    cleanup:
+    System.clearProperty("dd.trace.span.tags")
+  }
+
   def "should build span timestamp in nano"() {
     setup:
     // time in micro
@@ -152,11 +224,11 @@ class CoreSpanBuilderTest extends DDSpecification {
     final BigInteger expectedParentId = spanId
 
     final DDSpanContext mockedContext = Mock()
-    1 * mockedContext.getTraceId() >> spanId
-    1 * mockedContext.getSpanId() >> spanId
+    1 * mockedContext.getDDTraceId() >> DDId.from(spanId)
+    1 * mockedContext.getDDSpanId() >> DDId.from(spanId)
     _ * mockedContext.getServiceName() >> "foo"
     1 * mockedContext.getBaggageItems() >> [:]
-    1 * mockedContext.getTrace() >> PendingTrace.create(tracer, 1G)
+    1 * mockedContext.getTrace() >> PendingTrace.create(tracer, DDId.from(1))
 
     final String expectedName = "fakeName"
 
@@ -281,8 +353,8 @@ class CoreSpanBuilderTest extends DDSpecification {
 
     expect:
     root.context().getTrace().size() == nbSamples + 1
-    root.context().getTrace().containsAll(spans)
-    spans[(int) (Math.random() * nbSamples)].context.trace.containsAll(spans)
+    root.context().getTrace().asList().containsAll(spans)
+    spans[(int) (Math.random() * nbSamples)].context.trace.asList().containsAll(spans)
   }
 
   def "ExtractedContext should populate new span details"() {
@@ -302,9 +374,9 @@ class CoreSpanBuilderTest extends DDSpecification {
                                                      (DDTags.THREAD_NAME)     : thread.name, (DDTags.THREAD_ID): thread.id]
 
     where:
-    extractedContext                                                                                                | _
-    new ExtractedContext(1G, 2G, 0, null, [:], [:])                                                                 | _
-    new ExtractedContext(3G, 4G, 1, "some-origin", ["asdf": "qwer"], [(ORIGIN_KEY): "some-origin", "zxcv": "1234"]) | _
+    extractedContext                                                                                                                    | _
+    new ExtractedContext(DDId.from(1), DDId.from(2), 0, null, [:], [:])                                                                 | _
+    new ExtractedContext(DDId.from(3), DDId.from(4), 1, "some-origin", ["asdf": "qwer"], [(ORIGIN_KEY): "some-origin", "zxcv": "1234"]) | _
   }
 
   def "TagContext should populate default span details"() {
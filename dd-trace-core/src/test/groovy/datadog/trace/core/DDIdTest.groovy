@@ -0,0 +1,86 @@
+package datadog.trace.core
+
+import datadog.trace.util.test.DDSpecification
+
+class DDIdTest extends DDSpecification {
+
+  def "convert ids from/to String and BigInteger #stringId"() {
+    when:
+    final ddid = DDId.from(stringId)
+
+    then:
+    ddid.toLong() == expectedId
+    ddid.toString() == stringId
+    ddid.toBigInteger() == new BigInteger(stringId)
+    DDId.from(new BigInteger(stringId)) == ddid
+
+    where:
+    stringId                                        | expectedId
+    "0"                                             | 0
+    "1"                                             | 1
+    "18446744073709551615"                          | DDId.MAX.toLong()
+    "${Long.MAX_VALUE}"                             | Long.MAX_VALUE
+    "${BigInteger.valueOf(Long.MAX_VALUE).plus(1)}" | Long.MIN_VALUE
+  }
+
+  def "fail on illegal String #stringId"() {
+    when:
+    DDId.from(stringId)
+
+    then:
+    thrown NumberFormatException
+
+    where:
+    stringId << [
+      null,
+      "",
+      "-1",
+      "18446744073709551616",
+      "18446744073709551625",
+      "184467440737095516150",
+      "18446744073709551615m",
+      "/",
+      "number"
+    ]
+  }
+
+  def "convert ids from/to hex String #hexId"() {
+    when:
+    final ddid = DDId.fromHex(hexId)
+
+    then:
+    ddid.toLong() == expectedId
+    ddid.toHexString() == hexId.replaceAll("^0+(?=.)", "")
+
+    where:
+    hexId              | expectedId
+    "0"                | 0
+    "1"                | 1
+    "f" * 16           | DDId.MAX.toLong()
+    "7" + "f" * 15     | Long.MAX_VALUE
+    "8" + "0" * 15     | Long.MIN_VALUE
+    "000" + "f" * 16   | DDId.MAX.toLong()
+    "cafebabe"         | 3405691582
+  }
+
+  def "fail on illegal hex String #hexId"() {
+    when:
+    DDId.fromHex(hexId)
+
+    then:
+    thrown NumberFormatException
+
+    where:
+    hexId << [null, "", "-1", "1" + "0" * 16, "f" * 17, "g"]
+  }
+
+  def "generated ids are positive and non-zero"() {
+    expect:
+    final id = DDId.generate()
+    id.toLong() > 0
+    id.toBigInteger() <= CoreTracer.TRACE_ID_MAX
+
+    where:
+    i << (1..1000)
+  }
+}
@@ -48,9 +48,9 @@ class DDSpanSerializationTest extends DDSpecification {
     def tracer = CoreTracer.builder().writer(writer).build()
     final DDSpanContext context =
       new DDSpanContext(
-        1G,
-        2G,
-        0G,
+        DDId.from(1),
+        DDId.from(2),
+        DDId.ZERO,
         "service",
         "operation",
         null,
@@ -60,7 +60,7 @@ class DDSpanSerializationTest extends DDSpecification {
         false,
         spanType,
         ["k1": "v1"],
-        PendingTrace.create(tracer, 1G),
+        PendingTrace.create(tracer, DDId.from(1)),
         tracer,
         [:])
 
@@ -84,9 +84,9 @@ class DDSpanSerializationTest extends DDSpecification {
     def writer = new ListWriter()
     def tracer = CoreTracer.builder().writer(writer).build()
     def context = new DDSpanContext(
-      value,
-      value,
-      0G,
+      DDId.from(value),
+      DDId.from(value),
+      DDId.ZERO,
       "fakeService",
       "fakeOperation",
       "fakeResource",
@@ -96,7 +96,7 @@ class DDSpanSerializationTest extends DDSpecification {
       false,
       spanType,
       Collections.emptyMap(),
-      PendingTrace.create(tracer, 1G),
+      PendingTrace.create(tracer, DDId.from(1)),
       tracer,
       [:])
     def span = DDSpan.create(0, context)
@@ -0,0 +1,62 @@
+package datadog.trace.core
+
+import datadog.trace.common.writer.ListWriter
+import datadog.trace.core.decorators.AbstractDecorator
+import datadog.trace.util.test.DDSpecification
+
+class DecoratorTableTest extends DDSpecification {
+
+  def "finds the decorators of #count tags, in the order they were added"() {
+    setup:
+    def decorators = tags.collectMany { tag -> [decorator(tag), decorator(tag)] }
+    def table = new DecoratorTable(decorators)
+
+    expect:
+    tags.each { tag ->
+      assert table.get(tag).toList() == decorators.findAll { it.matchingTag == tag }
+      assert table.get(new String(tag)).toList() == decorators.findAll { it.matchingTag == tag }
+    }
+    table.get("no.decorator") == null
+
+    where:
+    tags << [[], ["service"], ["service", "peer.service", "db.type", "manual.keep"], (0..<100).collect { "tag." + it }]
+    count = tags.size()
+  }
+
+  def "tags with the same hash are told apart"() {
+    setup:
+    // "Aa" and "BB" have the same hash code, so no table size separates them
+    def aa = decorator("Aa")
+    def bb = decorator("BB")
+    def table = new DecoratorTable([aa, bb])
+
+    expect:
+    table.get("Aa").toList() == [aa]
+    table.get("BB").toList() == [bb]
+    table.get("C#") == null
+  }
+
+  def "adding a decorator rebuilds the table"() {
+    setup:
+    def tracer = CoreTracer.builder().writer(new ListWriter()).build()
+    def added = decorator("custom.tag")
+
+    expect:
+    tracer.getSpanContextDecorators("custom.tag") == null
+
+    when:
+    tracer.addDecorator(added)
+
+    then:
+    tracer.getSpanContextDecorators("custom.tag") == [added]
+
+    cleanup:
+    tracer.close()
+  }
+
+  static AbstractDecorator decorator(String tag) {
+    def decorator = new AbstractDecorator() {}
+    decorator.matchingTag = tag
+    return decorator
+  }
+}
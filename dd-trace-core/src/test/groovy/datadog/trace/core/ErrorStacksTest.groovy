@@ -0,0 +1,121 @@
+package datadog.trace.core
+
+import datadog.trace.api.Config
+import datadog.trace.api.DDTags
+import datadog.trace.common.writer.ListWriter
+import datadog.trace.util.test.DDSpecification
+
+class ErrorStacksTest extends DDSpecification {
+
+  def "renders stacks like printStackTrace"() {
+    setup:
+    def stacks = new ErrorStacks(false, depth, 0)
+
+    expect:
+    stacks.render(error) == printed(error)
+
+    where:
+    depth             | error
+    0                 | new RuntimeException("outer", new IOException("inner"))
+    Integer.MAX_VALUE | new RuntimeException("outer", new IOException("inner"))
+    Integer.MAX_VALUE | withSuppressed()
+  }
+
+  def "errors thrown from the same frames share the rendered frames and causes"() {
+    setup:
+    def stacks = new ErrorStacks(false, 0, 0)
+    def errors = (0..<2).collect {
+      new IllegalStateException("failed $it", new IOException("cause $it"))
+    }
+
+    expect:
+    stacks.render(errors[0]) == printed(errors[0])
+    stacks.render(errors[1]).readLines()[0] == "java.lang.IllegalStateException: failed 1"
+    stacks.render(errors[1]).readLines().tail() == printed(errors[0]).readLines().tail()
+    stacks.render(new IllegalStateException("other")) == printed(new IllegalStateException("other"))
+  }
+
+  def "limits the frames per error and the length of the stack"() {
+    setup:
+    def error = new RuntimeException("outer", new IOException("inner"))
+    def frames = error.stackTrace.length
+    def lines = new ErrorStacks(false, 2, 0).render(error).readLines()
+
+    expect:
+    lines[0] == "java.lang.RuntimeException: outer"
+    lines[1..2] == error.stackTrace[0..1].collect { "\tat $it".toString() }
+    lines[3] == "\t... ${frames - 2} more"
+    lines[4] == "Caused by: java.io.IOException: inner"
+    new ErrorStacks(false, 0, 20).render(error) == printed(error).substring(0, 20)
+  }
+
+  def "lazy stacks are rendered when the tag is read"() {
+    setup:
+    def stacks = new ErrorStacks(true, 0, 0)
+    def error = new RuntimeException("lazy")
+
+    when:
+    def tag = stacks.stackOf(error)
+
+    then:
+    !(tag instanceof String)
+    tag.toString() == printed(error)
+    tag.toString().is(tag.toString())
+  }
+
+  def "adding a throwable to a span sets the error stack"() {
+    setup:
+    def properties = new Properties()
+    properties.setProperty(Config.ERROR_STACK_MAX_DEPTH, "0")
+    def tracer = CoreTracer.builder().withProperties(properties).writer(new ListWriter()).build()
+    def span = tracer.buildSpan("operation").start()
+    def error = new RuntimeException("failed")
+
+    when:
+    span.addThrowable(error)
+
+    then:
+    span.isError()
+    span.getTags()[DDTags.ERROR_MSG] == "failed"
+    span.getTags()[DDTags.ERROR_TYPE] == RuntimeException.name
+    span.getTags()[DDTags.ERROR_STACK] == printed(error)
+
+    cleanup:
+    tracer.close()
+  }
+
+  def "lazy stacks are seen as strings through the span's tags"() {
+    setup:
+    def properties = new Properties()
+    properties.setProperty(Config.ERROR_STACK_LAZY, "true")
+    properties.setProperty(Config.ERROR_STACK_MAX_DEPTH, "0")
+    def tracer = CoreTracer.builder().withProperties(properties).writer(new ListWriter()).build()
+    def span = tracer.buildSpan("operation").start()
+    def error = new RuntimeException("failed")
+
+    when:
+    span.addThrowable(error)
+
+    then:
+    !(span.context().getUnrenderedTags()[DDTags.ERROR_STACK] instanceof String)
+    span.context().getTags()[DDTags.ERROR_STACK] == printed(error)
+    span.context().getUnrenderedTags()[DDTags.ERROR_STACK] instanceof String
+    span.getTags()[DDTags.ERROR_STACK] == printed(error)
+
+    cleanup:
+    tracer.close()
+  }
+
+  static String printed(Throwable error) {
+    def writer = new StringWriter()
+    error.printStackTrace(new PrintWriter(writer))
+    return writer.toString()
+  }
+
+  static Throwable withSuppressed() {
+    def error = new IllegalStateException("closing")
+    error.addSuppressed(new IOException("first"))
+    error.addSuppressed(new IOException("second", new RuntimeException("cause")))
+    return error
+  }
+}
@@ -2,6 +2,7 @@ package datadog.trace.core
 
 import datadog.trace.api.Config
 import datadog.trace.common.writer.ListWriter
+import datadog.trace.core.util.Clock
 import datadog.trace.util.gc.GCUtils
 import datadog.trace.util.test.DDSpecification
 import spock.lang.Subject
@@ -11,13 +12,15 @@ import java.lang.ref.WeakReference
 import java.util.concurrent.TimeUnit
 
 import static datadog.trace.api.Config.PARTIAL_FLUSH_MIN_SPANS
+import static datadog.trace.api.Config.PARTIAL_FLUSH_TIMEOUT
+import static datadog.trace.api.Config.STALE_TRACE_TIMEOUT
 
 class PendingTraceTest extends DDSpecification {
 
   def writer = new ListWriter()
   def tracer = CoreTracer.builder().writer(writer).build()
 
-  BigInteger traceId = BigInteger.valueOf(System.identityHashCode(this))
+  DDId traceId = DDId.from(System.identityHashCode(this))
 
   @Subject
   PendingTrace trace = PendingTrace.create(tracer, traceId)
@@ -27,10 +30,8 @@ class PendingTraceTest extends DDSpecification {
   def setup() {
     assert trace.size() == 0
     assert trace.pendingReferenceCount.get() == 1
-    assert trace.weakSpans.size() == 1
-    assert trace.weakContinuations.size() == 0
     assert trace.isWritten.get() == false
-    assert PendingTrace.SPAN_CLEANER.get().pendingTraces.contains(trace)
+    assert PendingTrace.SPAN_CLEANER.get().contains(trace)
   }
 
   def "single span gets added to trace and written when finished"() {
@@ -49,14 +50,12 @@ class PendingTraceTest extends DDSpecification {
 
     then:
     trace.pendingReferenceCount.get() == 2
-    trace.weakSpans.size() == 2
 
     when:
     child.finish()
 
     then:
     trace.pendingReferenceCount.get() == 1
-    trace.weakSpans.size() == 1
     trace.asList() == [child]
     writer == []
 
@@ -65,7 +64,6 @@ class PendingTraceTest extends DDSpecification {
 
     then:
     trace.pendingReferenceCount.get() == 0
-    trace.weakSpans.size() == 0
     trace.asList() == [rootSpan, child]
     writer == [[rootSpan, child]]
     writer.traceCount.get() == 1
@@ -77,14 +75,12 @@ class PendingTraceTest extends DDSpecification {
 
     then:
     trace.pendingReferenceCount.get() == 2
-    trace.weakSpans.size() == 2
 
     when:
     rootSpan.finish()
 
     then:
     trace.pendingReferenceCount.get() == 1
-    trace.weakSpans.size() == 1
     trace.asList() == [rootSpan]
     writer == []
 
@@ -93,39 +89,137 @@ class PendingTraceTest extends DDSpecification {
 
     then:
     trace.pendingReferenceCount.get() == 0
-    trace.weakSpans.size() == 0
     trace.asList() == [child, rootSpan]
     writer == [[child, rootSpan]]
     writer.traceCount.get() == 1
   }
 
-  @Timeout(value = 60, unit = TimeUnit.SECONDS)
-  def "trace does not report when unfinished span discarded"() {
+  def "finished spans are flushed when unfinished span times out, and the trace dropped if idle"() {
     when:
     def child = tracer.buildSpan("child").asChildOf(rootSpan).start()
     rootSpan.finish()
 
     then:
     trace.pendingReferenceCount.get() == 1
-    trace.weakSpans.size() == 1
     trace.asList() == [rootSpan]
     writer == []
 
     when:
-    def childRef = new WeakReference<>(child)
-    child = null
-    GCUtils.awaitGC(childRef)
-    while (trace.pendingReferenceCount.get() > 0) {
-      trace.clean()
-    }
+    def dropped = PendingTrace.staleTracesDropped()
+    def staleNanos = TimeUnit.SECONDS.toNanos(tracer.staleTraceTimeout)
+    def timedOut = trace.clean(Clock.currentNanoTicks() + staleNanos + 1)
+
+    then:
+    !timedOut
+    !trace.isWritten.get()
+    writer == [[rootSpan]]
+    writer.traceCount.get() == 1
+    PendingTrace.staleTracesDropped() == dropped
+
+    when:
+    timedOut = trace.clean(Clock.currentNanoTicks() + 2 * (staleNanos + 1))
+
+    then:
+    timedOut
+    trace.isWritten.get()
+    writer == [[rootSpan]]
+    writer.traceCount.get() == 1
+    PendingTrace.staleTracesDropped() == dropped + 1
+    !PendingTrace.SPAN_CLEANER.get().contains(trace)
+
+    when:
+    child.finish()
 
     then:
     trace.pendingReferenceCount.get() == 0
-    trace.weakSpans.size() == 0
-    trace.asList() == [rootSpan]
+    writer == [[rootSpan]]
+    writer.traceCount.get() == 1
+  }
+
+  def "idle long running root span is written once it finishes"() {
+    when:
+    def child = tracer.buildSpan("child").asChildOf(rootSpan).start()
+    child.finish()
+    def staleNanos = TimeUnit.SECONDS.toNanos(tracer.staleTraceTimeout)
+
+    then:
+    !trace.clean(Clock.currentNanoTicks() + staleNanos + 1)
+    writer == [[child]]
+
+    when:
+    rootSpan.finish()
+
+    then:
+    trace.pendingReferenceCount.get() == 0
+    trace.isWritten.get()
+    writer == [[child], [rootSpan]]
+  }
+
+  def "finished spans are flushed when unfinished span times out with partial flush timeout"() {
+    setup:
+    def properties = new Properties()
+    properties.setProperty(PARTIAL_FLUSH_TIMEOUT, "10")
+    def tracer = CoreTracer.builder().config(Config.get(properties)).writer(writer).build()
+    def trace = PendingTrace.create(tracer, traceId)
+    def rootSpan = SpanFactory.newSpanOf(trace)
+    def child = tracer.buildSpan("child").asChildOf(rootSpan).start()
+    rootSpan.finish()
+
+    expect:
+    !trace.clean(Clock.currentNanoTicks() + TimeUnit.SECONDS.toNanos(5))
     writer == []
+
+    when:
+    def timedOut = trace.clean(Clock.currentNanoTicks() + TimeUnit.SECONDS.toNanos(11))
+
+    then:
+    timedOut
+    writer == [[rootSpan]]
+    writer.traceCount.get() == 1
+    !PendingTrace.SPAN_CLEANER.get().contains(trace)
+
+    when:
+    child.finish()
+
+    then:
+    trace.pendingReferenceCount.get() == 0
+    writer == [[rootSpan]]
+    writer.traceCount.get() == 1
+  }
+
+  def "stale trace timeout is configurable"() {
+    setup:
+    def properties = new Properties()
+    properties.setProperty(STALE_TRACE_TIMEOUT, "60")
+    def tracer = CoreTracer.builder().config(Config.get(properties)).writer(writer).build()
+    def trace = PendingTrace.create(tracer, traceId)
+    def rootSpan = SpanFactory.newSpanOf(trace)
+    tracer.buildSpan("child").asChildOf(rootSpan).start()
+    rootSpan.finish()
+
+    expect:
+    !trace.clean(Clock.currentNanoTicks() + TimeUnit.SECONDS.toNanos(30))
+    !trace.clean(Clock.currentNanoTicks() + TimeUnit.SECONDS.toNanos(61))
+    writer == [[rootSpan]]
+    trace.clean(Clock.currentNanoTicks() + TimeUnit.SECONDS.toNanos(123))
     writer.traceCount.get() == 1
-    !PendingTrace.SPAN_CLEANER.get().pendingTraces.contains(trace)
+  }
+
+  def "trace with recent activity does not time out"() {
+    setup:
+    def child = tracer.buildSpan("child").asChildOf(rootSpan).start()
+
+    expect:
+    !trace.clean()
+    !trace.isWritten.get()
+
+    when:
+    child.finish()
+    rootSpan.finish()
+
+    then:
+    trace.pendingReferenceCount.get() == 0
+    writer == [[rootSpan, child]]
   }
 
   @Timeout(value = 60, unit = TimeUnit.SECONDS)
@@ -139,8 +233,7 @@ class PendingTraceTest extends DDSpecification {
 
     then:
     trace.pendingReferenceCount.get() == 1
-    trace.weakSpans.size() == 0
-    trace.weakContinuations.size() == 1
+    PendingTrace.CONTINUATION_TRACES.containsValue(trace)
     trace.asList() == [rootSpan]
     writer == []
 
@@ -152,11 +245,10 @@ class PendingTraceTest extends DDSpecification {
 
     then:
     trace.pendingReferenceCount.get() == 0
-    trace.weakSpans.size() == 0
     trace.asList() == [rootSpan]
     writer == [[rootSpan]]
     writer.traceCount.get() == 1
-    !PendingTrace.SPAN_CLEANER.get().pendingTraces.contains(trace)
+    !PendingTrace.SPAN_CLEANER.get().contains(trace)
   }
 
   def "add unfinished span to trace fails"() {
@@ -165,31 +257,28 @@ class PendingTraceTest extends DDSpecification {
 
     expect:
     trace.pendingReferenceCount.get() == 1
-    trace.weakSpans.size() == 1
     trace.asList() == []
     writer.traceCount.get() == 0
   }
 
   def "register span to wrong trace fails"() {
     setup:
-    def otherTrace = PendingTrace.create(tracer, traceId - 10)
+    def otherTrace = PendingTrace.create(tracer, DDId.from(traceId.toLong() - 10))
     otherTrace.registerSpan(new DDSpan(0, rootSpan.context()))
 
     expect:
     otherTrace.pendingReferenceCount.get() == 0
-    otherTrace.weakSpans.size() == 0
     otherTrace.asList() == []
   }
 
   def "add span to wrong trace fails"() {
     setup:
-    def otherTrace = PendingTrace.create(tracer, traceId - 10)
+    def otherTrace = PendingTrace.create(tracer, DDId.from(traceId.toLong() - 10))
     rootSpan.finish()
     otherTrace.addSpan(rootSpan)
 
     expect:
     otherTrace.pendingReferenceCount.get() == 0
-    otherTrace.weakSpans.size() == 0
     otherTrace.asList() == []
   }
 
@@ -228,14 +317,12 @@ class PendingTraceTest extends DDSpecification {
 
     then:
     trace.pendingReferenceCount.get() == 3
-    trace.weakSpans.size() == 3
 
     when:
     rootSpan.finish()
 
     then:
     trace.pendingReferenceCount.get() == 2
-    trace.weakSpans.size() == 2
     trace.asList() == [rootSpan]
     writer == []
     writer.traceCount.get() == 0
@@ -245,7 +332,6 @@ class PendingTraceTest extends DDSpecification {
 
     then:
     trace.pendingReferenceCount.get() == 1
-    trace.weakSpans.size() == 1
     trace.asList() == [rootSpan]
     writer == [[child1]]
     writer.traceCount.get() == 1
@@ -255,7 +341,6 @@ class PendingTraceTest extends DDSpecification {
 
     then:
     trace.pendingReferenceCount.get() == 0
-    trace.weakSpans.size() == 0
     trace.asList() == [child2, rootSpan]
     writer == [[child1], [child2, rootSpan]]
     writer.traceCount.get() == 2
@@ -274,14 +359,12 @@ class PendingTraceTest extends DDSpecification {
 
     then:
     trace.pendingReferenceCount.get() == 3
-    trace.weakSpans.size() == 3
 
     when:
     child1.finish()
 
     then:
     trace.pendingReferenceCount.get() == 2
-    trace.weakSpans.size() == 2
     trace.asList() == [child1]
     writer == []
     writer.traceCount.get() == 0
@@ -291,7 +374,6 @@ class PendingTraceTest extends DDSpecification {
 
     then:
     trace.pendingReferenceCount.get() == 1
-    trace.weakSpans.size() == 1
     trace.asList() == []
     writer == [[child2, child1]]
     writer.traceCount.get() == 1
@@ -301,7 +383,6 @@ class PendingTraceTest extends DDSpecification {
 
     then:
     trace.pendingReferenceCount.get() == 0
-    trace.weakSpans.size() == 0
     trace.asList() == [rootSpan]
     writer == [[child2, child1], [rootSpan]]
     writer.traceCount.get() == 2
@@ -0,0 +1,68 @@
+package datadog.trace.core
+
+import datadog.trace.util.test.DDSpecification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class SpanBufferTest extends DDSpecification {
+
+  def "spans are collected most recent first across chunks"() {
+    setup:
+    def buffer = new SpanBuffer()
+    def spans = (1..count).collect { Mock(DDSpan) }
+
+    when:
+    spans.each { assert buffer.add(it) }
+
+    then:
+    buffer.size() == count
+    buffer.snapshot() == spans.reverse()
+
+    where:
+    count << [0, 1, 8, 9, 24, 25, 1000]
+  }
+
+  def "sealed buffer rejects adds"() {
+    setup:
+    def buffer = new SpanBuffer()
+    def first = Mock(DDSpan)
+    def second = Mock(DDSpan)
+    buffer.add(first)
+
+    when:
+    def drained = buffer.sealAndDrain()
+
+    then:
+    drained == [first]
+    buffer.size() == 1
+    !buffer.add(second)
+    buffer.size() == 1
+    buffer.snapshot() == [first]
+  }
+
+  def "concurrent adds are all drained"() {
+    setup:
+    def buffer = new SpanBuffer()
+    def threads = 8
+    def perThread = 1000
+    def executor = Executors.newFixedThreadPool(threads)
+    def start = new CountDownLatch(1)
+    def span = Mock(DDSpan)
+
+    when:
+    threads.times {
+      executor.submit {
+        start.await()
+        perThread.times { buffer.add(span) }
+      }
+    }
+    start.countDown()
+    executor.shutdown()
+    executor.awaitTermination(10, TimeUnit.SECONDS)
+
+    then:
+    buffer.sealAndDrain().size() == threads * perThread
+  }
+}
@@ -0,0 +1,171 @@
+package datadog.trace.core
+
+import datadog.trace.util.test.DDSpecification
+
+import java.util.concurrent.atomic.AtomicBoolean
+
+class TagMapTest extends DDSpecification {
+
+  def "behaves like a hash map with #count keys"() {
+    setup:
+    def tags = new TagMap<Object>(0)
+    def expected = [:]
+    def random = new Random(count)
+
+    when:
+    1000.times {
+      def key = "tag." + random.nextInt(count)
+      switch (random.nextInt(4)) {
+        case 0:
+          assert tags.remove(key) == expected.remove(key)
+          break
+        case 1:
+          assert tags.get(key) == expected.get(key)
+          assert tags.containsKey(key) == expected.containsKey(key)
+          break
+        default:
+          assert tags.put(key, it) == expected.put(key, it)
+      }
+    }
+
+    then:
+    tags == expected
+    tags.size() == expected.size()
+
+    where:
+    count << [1, 8, 16, 17, 100]
+  }
+
+  def "entries can be removed while iterating"() {
+    setup:
+    def tags = new TagMap<Object>(4)
+    (0..<40).each { tags.put("tag." + it, it) }
+
+    when:
+    def visited = []
+    def iterator = tags.entrySet().iterator()
+    while (iterator.hasNext()) {
+      def entry = iterator.next()
+      visited << entry.value
+      if (entry.value % 2 == 0) {
+        iterator.remove()
+      }
+    }
+
+    then:
+    visited.sort() == (0..<40).toList()
+    tags == (0..<40).findAll { it % 2 == 1 }.collectEntries { ["tag." + it, it] }
+    (0..<40).every { tags.containsKey("tag." + it) == (it % 2 == 1) }
+  }
+
+  def "setting the value of an entry writes through"() {
+    setup:
+    def tags = new TagMap<Object>(0)
+    tags.put("key", "before")
+
+    when:
+    tags.entrySet().first().value = "after"
+
+    then:
+    tags.get("key") == "after"
+  }
+
+  def "rejects null values"() {
+    when:
+    new TagMap<Object>(0).put("key", null)
+
+    then:
+    thrown(NullPointerException)
+  }
+
+  def "shared tags are visible until overridden or removed"() {
+    setup:
+    def shared = new TagMap.Block([env: "prod", version: "1.0", team: "apm"])
+    def tags = new TagMap<Object>(0, shared)
+
+    expect:
+    tags == [env: "prod", version: "1.0", team: "apm"]
+
+    when:
+    tags.put("version", "2.0")
+    tags.remove("team")
+    tags.put("own", "tag")
+
+    then:
+    tags == [env: "prod", version: "2.0", own: "tag"]
+    tags.size() == 3
+    !tags.containsKey("team")
+    tags.get("team") == null
+    tags.keySet().toList() == ["version", "own", "env"]
+
+    when:
+    tags.put("team", "profiling")
+    tags.remove("version")
+
+    then:
+    tags == [env: "prod", team: "profiling", own: "tag"]
+  }
+
+  def "removing shared tags while iterating"() {
+    setup:
+    def shared = new TagMap.Block((0..<8).collectEntries { ["shared." + it, it] })
+    def tags = new TagMap<Object>(0, shared)
+    (0..<8).each { tags.put("own." + it, it) }
+    tags.put("shared.0", 10)
+
+    when:
+    def iterator = tags.entrySet().iterator()
+    while (iterator.hasNext()) {
+      if (iterator.next().value % 2 == 0) {
+        iterator.remove()
+      }
+    }
+
+    then:
+    tags == [1, 3, 5, 7].collectEntries { ["own." + it, it] } + [1, 3, 5, 7].collectEntries { ["shared." + it, it] }
+  }
+
+  def "clearing drops the shared tags"() {
+    setup:
+    def tags = new TagMap<Object>(0, new TagMap.Block([env: "prod"]))
+
+    when:
+    tags.clear()
+
+    then:
+    tags.isEmpty()
+    tags.get("env") == null
+  }
+
+  def "iterating while another thread writes never fails"() {
+    setup:
+    def tags = new TagMap<Object>(0, new TagMap.Block([env: "prod", version: "1.0"]))
+    def done = new AtomicBoolean()
+    def writer = Thread.start {
+      def random = new Random(0)
+      while (!done.get()) {
+        def key = ["env", "version", "tag." + random.nextInt(64)][random.nextInt(3)]
+        if (random.nextBoolean()) {
+          tags.remove(key)
+        } else {
+          tags.put(key, random.nextInt())
+        }
+      }
+    }
+
+    when:
+    1000.times {
+      for (def entry : tags.entrySet()) {
+        assert entry.key != null
+        assert entry.value != null
+      }
+    }
+
+    then:
+    noExceptionThrown()
+
+    cleanup:
+    done.set(true)
+    writer.join()
+  }
+}
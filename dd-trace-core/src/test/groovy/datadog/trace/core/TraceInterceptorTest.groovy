@@ -4,7 +4,11 @@ import datadog.trace.TestInterceptor
 import datadog.trace.api.GlobalTracer
 import datadog.trace.api.interceptor.MutableSpan
 import datadog.trace.api.interceptor.TraceInterceptor
+import datadog.trace.api.sampling.PrioritySampling
+import datadog.trace.common.writer.InterceptingWriter
 import datadog.trace.common.writer.ListWriter
+import datadog.trace.common.writer.Writer
+import datadog.trace.core.processor.TraceProcessor
 import datadog.trace.util.test.DDSpecification
 
 import java.util.concurrent.atomic.AtomicBoolean
@@ -148,6 +152,169 @@ class TraceInterceptorTest extends DDSpecification {
     tags.size() == 7
   }
 
+  def "interceptors run when the writer processes the trace"() {
+    setup:
+    def written = []
+    def heldTracer = CoreTracer.builder().writer(new InterceptingWriter() {
+      @Override
+      void write(List<DDSpan> trace) {
+        written.add(trace)
+      }
+
+      @Override
+      void start() {
+      }
+
+      @Override
+      void close() {
+      }
+
+      @Override
+      void incrementTraceCount() {
+      }
+    }).build()
+    def called = new AtomicBoolean(false)
+    heldTracer.interceptors.add(new TraceInterceptor() {
+      @Override
+      Collection<? extends MutableSpan> onTraceComplete(Collection<? extends MutableSpan> trace) {
+        called.set(true)
+        return trace.findAll { it.operationName == "kept" }
+      }
+
+      @Override
+      int priority() {
+        return 1
+      }
+    })
+    def root = heldTracer.buildSpan("kept").start()
+    heldTracer.buildSpan("dropped").asChildOf(root.context()).start().finish()
+    root.finish()
+
+    expect:
+    written.size() == 1
+    written[0].size() == 2
+    !called.get()
+
+    when:
+    def trace = written[0]
+    def processed = new TraceProcessor().onTraceComplete(trace)
+
+    then:
+    called.get()
+    processed.is(trace)
+    trace == [root]
+
+    cleanup:
+    heldTracer.close()
+  }
+
+  def "interceptors run before writing to a custom writer (kept=#keptName)"() {
+    setup:
+    def written = []
+    def customTracer = CoreTracer.builder().writer(new Writer() {
+      @Override
+      void write(List<DDSpan> trace) {
+        written.add(trace)
+      }
+
+      @Override
+      void start() {
+      }
+
+      @Override
+      void close() {
+      }
+
+      @Override
+      void incrementTraceCount() {
+      }
+    }).build()
+    def kept = keptName
+    customTracer.interceptors.add(new TraceInterceptor() {
+      @Override
+      Collection<? extends MutableSpan> onTraceComplete(Collection<? extends MutableSpan> trace) {
+        return trace.findAll { it.operationName == kept }
+      }
+
+      @Override
+      int priority() {
+        return 1
+      }
+    })
+    def root = customTracer.buildSpan("root").start()
+    customTracer.buildSpan("child").asChildOf(root.context()).start().finish()
+    root.finish()
+
+    expect:
+    written.size() == (keptName == null ? 0 : 1)
+    keptName == null || written[0]*.operationName == [keptName]
+
+    cleanup:
+    customTracer.close()
+
+    where:
+    keptName | _
+    "root"   | _
+    "child"  | _
+    null     | _
+  }
+
+  def "interceptor setting the priority overrides the sampler (intercepting=#intercepting)"() {
+    setup:
+    def written = []
+    def customWriter = new Writer() {
+      @Override
+      void write(List<DDSpan> trace) {
+        written.add(trace)
+      }
+
+      @Override
+      void start() {
+      }
+
+      @Override
+      void close() {
+      }
+
+      @Override
+      void incrementTraceCount() {
+      }
+    }
+    def listWriter = new ListWriter()
+    def sampler = new ControllableSampler()
+    def sampledTracer = CoreTracer.builder()
+      .writer(intercepting ? listWriter : customWriter)
+      .sampler(sampler)
+      .build()
+    sampledTracer.interceptors.add(new TraceInterceptor() {
+      @Override
+      Collection<? extends MutableSpan> onTraceComplete(Collection<? extends MutableSpan> trace) {
+        trace.each { it.localRootSpan.setSamplingPriority(PrioritySampling.USER_DROP) }
+        return trace
+      }
+
+      @Override
+      int priority() {
+        return 1
+      }
+    })
+    def root = sampledTracer.buildSpan("root").start()
+    sampledTracer.buildSpan("child").asChildOf(root.context()).start().finish()
+    root.finish()
+    def traces = intercepting ? listWriter : written
+
+    expect:
+    traces.size() == 1
+    traces[0].size() == 2
+    root.samplingPriority == PrioritySampling.USER_DROP
+
+    cleanup:
+    sampledTracer.close()
+
+    where:
+    intercepting << [true, false]
+  }
+
   def "register interceptor through bridge"() {
     setup:
     GlobalTracer.registerIfAbsent(tracer)
@@ -2,6 +2,7 @@ package datadog.trace.core.processor
 
 import datadog.trace.agent.test.utils.ConfigUtils
 import datadog.trace.api.DDSpanTypes
+import datadog.trace.api.DDTags
 import datadog.trace.bootstrap.instrumentation.api.Tags
 import datadog.trace.core.SpanFactory
 import datadog.trace.core.processor.rule.Status404Rule
@@ -121,4 +122,40 @@ class TraceProcessorTest extends DDSpecification {
     "GET"  | "/asdf"  | 404    | "404"
     null   | "/error" | 500    | "/error"
   }
+
+  def "compiled rules behave like the rules applied in turn for #tags"() {
+    setup:
+    def compiled = SpanFactory.newSpanOf(0)
+    def ruleByRule = SpanFactory.newSpanOf(0)
+    [compiled, ruleByRule].each { span ->
+      span.context.resourceName = null
+      span.setSpanType(type)
+      tags.each { key, value -> span.setTag(key, value) }
+    }
+
+    when:
+    new TraceProcessor(true).onTraceComplete([compiled])
+    new TraceProcessor(false).onTraceComplete([ruleByRule])
+
+    then:
+    compiled.resourceName == ruleByRule.resourceName
+    compiled.type == ruleByRule.type
+    compiled.isError() == ruleByRule.isError()
+    compiled.tags == ruleByRule.tags
+    compiled.metrics == ruleByRule.metrics
+
+    where:
+    type                         | tags
+    DDSpanTypes.HTTP_SERVER      | [(Tags.HTTP_URL): "http://localhost/users/123?q=1", (Tags.HTTP_METHOD): "get", (Tags.HTTP_STATUS): 500]
+    DDSpanTypes.HTTP_CLIENT      | [(Tags.HTTP_URL): "/missing", (Tags.HTTP_STATUS): "404"]
+    DDSpanTypes.HTTP_CLIENT      | [(Tags.HTTP_URL): "/users", (Tags.HTTP_STATUS): 404, (Tags.ERROR): false]
+    null                         | [(DDTags.SPAN_TYPE): DDSpanTypes.HTTP_SERVER, (Tags.HTTP_STATUS): "503"]
+    DDSpanTypes.HTTP_SERVER      | [(Tags.HTTP_STATUS): "not a status"]
+    DDSpanTypes.SQL              | [(Tags.DB_STATEMENT): "select * from users", (Tags.COMPONENT): "java-jdbc"]
+    DDSpanTypes.MONGO            | [(Tags.DB_STATEMENT): "{find: users}", (Tags.COMPONENT): "java-mongo"]
+    DDSpanTypes.MESSAGE_CONSUMER | [(DDTags.RESOURCE_NAME): "Consume queue", (DDTags.ANALYTICS_SAMPLE_RATE): 0.5]
+    null                         | [(DDTags.ANALYTICS_SAMPLE_RATE): "0.25", (Tags.ERROR): "true"]
+    null                         | [(DDTags.ANALYTICS_SAMPLE_RATE): "invalid"]
+    null                         | [:]
+  }
 }
@@ -102,6 +102,33 @@ class URLAsResourceNameRuleTest extends DDSpecification {
     "/a.b/a.b" | _
   }
 
+  def "normalizes #input like the regex"() {
+    expect:
+    decorator.normalizePath(input) == URLAsResourceNameRule.PATH_MIXED_ALPHANUMERICS.matcher(input).replaceAll("?")
+
+    where:
+    input << ["/v1", "/v1/", "/v123/", "/v1a/b", "/a1?b2/c", "/a?/b1", "a1/b2", "//1//", "/V9/1", "/x/v12/y3"]
+  }
+
+  def "caches resource names by method and path"() {
+    setup:
+    def uncached = new URLAsResourceNameRule(null)
+
+    expect:
+    5.times {
+      assert decorator.resourceName(url, method) == expected
+      assert uncached.resourceName(url, method) == expected
+    }
+
+    where:
+    url                                    | method | expected
+    "http://localhost/users/list?page=2"   | "get"  | "GET /users/list"
+    "/users/list"                          | "POST" | "POST /users/list"
+    "/users/list"                          | null   | "/users/list"
+    "http://localhost:8080/users/42/repos" | "GET"  | "GET /users/?/repos"
+    "http://localhost"                     | "GET"  | "GET /"
+  }
+
   def "sets the resource name"() {
     setup:
     def span = SpanFactory.newSpanOf(0)
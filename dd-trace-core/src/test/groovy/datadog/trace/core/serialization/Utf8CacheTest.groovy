@@ -0,0 +1,93 @@
+package datadog.trace.core.serialization
+
+import datadog.trace.util.test.DDSpecification
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class Utf8CacheTest extends DDSpecification {
+
+  def "strings are cached once they repeat"() {
+    setup:
+    def cache = new Utf8Cache(16, 32)
+
+    expect:
+    cache.get("service") == null
+    cache.get("service") == "service".getBytes(StandardCharsets.UTF_8)
+    cache.get("service").is(cache.get("service"))
+    cache.hits() == 2
+    cache.misses() == 2
+  }
+
+  def "long strings are never cached"() {
+    setup:
+    def cache = new Utf8Cache(16, 4)
+
+    expect:
+    (1..10).every { cache.get("abcde") == null }
+    cache.get("abcd") == null
+    cache.get("abcd") != null
+  }
+
+  def "frequent strings are not evicted by one-off strings"() {
+    setup:
+    def cache = new Utf8Cache(1, 32)
+    10.times { cache.get("frequent") }
+
+    when:
+    (1..100).each {
+      cache.get("one-off-" + it)
+      cache.get("one-off-" + it)
+    }
+
+    then:
+    cache.get("frequent") == "frequent".getBytes(StandardCharsets.UTF_8)
+    cache.get("one-off-100") == null
+  }
+
+  def "more frequent strings evict less frequent strings"() {
+    setup:
+    def cache = new Utf8Cache(1, 32)
+    2.times { cache.get("old") }
+
+    when:
+    5.times { cache.get("new") }
+
+    then:
+    cache.get("new") == "new".getBytes(StandardCharsets.UTF_8)
+    cache.get("old") == null
+  }
+
+  def "concurrent lookups return correct encodings"() {
+    setup:
+    def cache = new Utf8Cache(64, 32)
+    def strings = (1..256).collect { "value-" + it + "-ü" }
+    def threads = 8
+    def executor = Executors.newFixedThreadPool(threads)
+    def start = new CountDownLatch(1)
+    def wrong = Collections.synchronizedList([])
+
+    when:
+    threads.times {
+      executor.submit {
+        start.await()
+        1000.times { i ->
+          def string = strings[(i * 31) % strings.size()]
+          def encoding = cache.get(string)
+          if (encoding != null && encoding != string.getBytes(StandardCharsets.UTF_8)) {
+            wrong << string
+          }
+        }
+      }
+    }
+    start.countDown()
+    executor.shutdown()
+    executor.awaitTermination(10, TimeUnit.SECONDS)
+
+    then:
+    wrong.isEmpty()
+    cache.hits() + cache.misses() == threads * 1000
+  }
+}
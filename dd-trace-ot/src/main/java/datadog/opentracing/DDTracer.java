@@ -198,6 +198,7 @@ public class DDTracer implements Tracer, datadog.trace.api.Tracer {
       final Map<String, String> serviceNameMappings,
       final Map<String, String> taggedHeaders,
       final int partialFlushMinSpans,
+      final int partialFlushTimeout,
       final LogHandler logHandler) {
 
     if (logHandler != null) {
@@ -259,6 +260,10 @@ public class DDTracer implements Tracer, datadog.trace.api.Tracer {
       builder = builder.partialFlushMinSpans(partialFlushMinSpans);
     }
 
+    if (partialFlushTimeout != 0) {
+      builder = builder.partialFlushTimeout(partialFlushTimeout);
+    }
+
     coreTracer = builder.build();
 
     // FIXME [API] There's an unfortunate cycle between OTScopeManager and CoreTracer where they
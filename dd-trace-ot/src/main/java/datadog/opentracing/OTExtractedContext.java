@@ -13,12 +13,12 @@ class OTExtractedContext extends OTTagContext {
 
   @Override
   public String toTraceId() {
-    return extractedContext.getTraceId().toString();
+    return extractedContext.getDDTraceId().toString();
   }
 
   @Override
   public String toSpanId() {
-    return extractedContext.getSpanId().toString();
+    return extractedContext.getDDSpanId().toString();
   }
 
   ExtractedContext getDelegate() {
@@ -14,12 +14,12 @@ class OTGenericContext implements SpanContext {
 
   @Override
   public String toTraceId() {
-    return delegate.getTraceId().toString();
+    return delegate.getDDTraceId().toString();
   }
 
   @Override
   public String toSpanId() {
-    return delegate.getSpanId().toString();
+    return delegate.getDDSpanId().toString();
   }
 
   @Override
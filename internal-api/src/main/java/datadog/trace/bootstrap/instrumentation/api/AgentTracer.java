@@ -35,6 +35,12 @@ public class AgentTracer {
     return get().startSpan(spanName, parent, startTimeMicros);
   }
 
+  // Explicit parent, without a builder
+  public static AgentSpan startSpan(
+      final String spanName, final AgentSpan.Context parent, final Map<String, ?> tags) {
+    return get().startSpan(spanName, parent, tags);
+  }
+
   public static AgentScope activateSpan(final AgentSpan span) {
     return get().activateSpan(span);
   }
@@ -81,6 +87,14 @@ public class AgentTracer {
 
     AgentSpan startSpan(String spanName, AgentSpan.Context parent, long startTimeMicros);
 
+    /**
+     * Starts a span without going through a builder, which is the cheapest way to start a span.
+     *
+     * @param parent the parent of the span, or null to start a new trace
+     * @param tags the tags of the span, typically resolved once by the instrumentation, or null
+     */
+    AgentSpan startSpan(String spanName, AgentSpan.Context parent, Map<String, ?> tags);
+
     AgentScope activateSpan(AgentSpan span);
 
     AgentSpan activeSpan();
@@ -117,6 +131,12 @@ public class AgentTracer {
       return NoopAgentSpan.INSTANCE;
     }
 
+    @Override
+    public AgentSpan startSpan(
+        final String spanName, final Context parent, final Map<String, ?> tags) {
+      return NoopAgentSpan.INSTANCE;
+    }
+
     @Override
     public AgentScope activateSpan(final AgentSpan span) {
       return NoopAgentScope.INSTANCE;